@@ -52,6 +52,7 @@ import com.almende.eve.monitor.ResultMonitorFactoryInterface;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.annotation.Access;
 import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Cacheable;
 import com.almende.eve.rpc.annotation.Sender;
 import com.almende.eve.rpc.jsonrpc.JSONMessage;
 import com.almende.eve.rpc.jsonrpc.JSONRPC;
@@ -59,6 +60,7 @@ import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException.CODE;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.state.State;
@@ -270,14 +272,7 @@ public abstract class Agent implements AgentInterface {
 	 */
 	@Access(AccessType.UNAVAILABLE)
 	protected void onCreate() {
-		for (final TransportService service : host.getTransportServices()) {
-			try {
-				service.reconnect(getId());
-			} catch (final Exception e) {
-				LOG.log(Level.WARNING, "Couldn't reconnect transport:"
-						+ service + " for agent:" + getId(), e);
-			}
-		}
+		host.connectAgent(getId());
 	}
 	
 	/**
@@ -493,6 +488,7 @@ public abstract class Agent implements AgentInterface {
 	 */
 	@Override
 	@Access(AccessType.PUBLIC)
+	@Cacheable(ttl = 3600000)
 	@JsonIgnore
 	public List<Object> getMethods() {
 		return JSONRPC.describe(this, EVEREQUESTPARAMS);
@@ -989,6 +985,12 @@ public abstract class Agent implements AgentInterface {
 						json = JOM.getInstance().readValue(message,
 								ObjectNode.class);
 					}
+				} else if (msg instanceof byte[]) {
+					// Encoded message, e.g. Smile, detect the encoding.
+					final JsonNode node = Codec.decode((byte[]) msg);
+					if (node.isObject()) {
+						json = (ObjectNode) node;
+					}
 				} else if (msg instanceof ObjectNode) {
 					json = (ObjectNode) msg;
 				} else if (msg == null) {
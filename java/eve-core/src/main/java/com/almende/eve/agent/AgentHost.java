@@ -8,7 +8,9 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
@@ -234,6 +236,40 @@ public abstract class AgentHost {
 			IllegalAccessException, InvocationTargetException,
 			NoSuchMethodException, IOException;
 	
+	/**
+	 * Create a batch of agents of the same type. The states are created with
+	 * the agent type and the initial parameters in a single write, the agents
+	 * are initialized in parallel, and the transports are connected once all
+	 * agents are created.
+	 * 
+	 * A failing agent doesn't stop the batch. An agent whose transport
+	 * couldn't be connected is created nonetheless, but is reported as
+	 * failed as well.
+	 * 
+	 * @param <T>
+	 *            extends Agent
+	 * @param agentType
+	 *            the agent type
+	 * @param agentIds
+	 *            the agent ids
+	 * @param initParams
+	 *            the initial state of each agent, may be null
+	 * @return the failures, by agent id
+	 */
+	public abstract <T extends Agent> Map<String, Exception> createAgents(
+			Class<T> agentType, Collection<String> agentIds,
+			Map<String, ?> initParams);
+	
+	/**
+	 * Connect a newly created agent to all transport services. During
+	 * {@link #createAgents(Class, Collection, Map)} this is deferred until the
+	 * whole batch is created.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 */
+	public abstract void connectAgent(String agentId);
+	
 	/**
 	 * Create a new agent, using the base AspectAgent class. This agent has a
 	 * namespace "sub", to which the given class's methods are added.
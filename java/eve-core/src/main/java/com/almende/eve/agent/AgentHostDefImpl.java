@@ -10,14 +10,18 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.ProtocolException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,11 +34,15 @@ import com.almende.eve.event.EventsFactory;
 import com.almende.eve.event.EventsInterface;
 import com.almende.eve.monitor.ResultMonitorFactory;
 import com.almende.eve.monitor.ResultMonitorFactoryInterface;
+import com.almende.eve.rpc.jsonrpc.JSONMessage;
+import com.almende.eve.rpc.jsonrpc.RpcCache;
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.scheduler.SchedulerFactory;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateFactory;
 import com.almende.eve.state.TypedKey;
+import com.almende.eve.transport.EncodingTransportService;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.ClassUtil;
 import com.almende.util.ObjectCache;
@@ -60,6 +68,8 @@ public final class AgentHostDefImpl extends AgentHost {
 																																	.getThreadFactory());
 	private final ConcurrentHashMap<String, ConcurrentHashMap<TypedKey<?>, WeakReference<?>>>	refStore			= new ConcurrentHashMap<String, ConcurrentHashMap<TypedKey<?>, WeakReference<?>>>();
 	private static final String																	AGENTS				= "agents";
+	/** Agents created by the current createAgents batch, connected afterwards. */
+	private final ThreadLocal<List<String>>														deferred			= new ThreadLocal<List<String>>();
 	
 	/*
 	 * (non-Javadoc)
@@ -274,6 +284,34 @@ public final class AgentHostDefImpl extends AgentHost {
 		state.setAgentType(agentType);
 		state.init();
 		
+		return initAgent(agentType, state);
+	}
+	
+	/**
+	 * Instantiate and initialize a new agent on its new state.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param agentType
+	 *            the agent type
+	 * @param state
+	 *            the state
+	 * @return the agent
+	 * @throws InstantiationException
+	 *             the instantiation exception
+	 * @throws IllegalAccessException
+	 *             the illegal access exception
+	 * @throws InvocationTargetException
+	 *             the invocation target exception
+	 * @throws NoSuchMethodException
+	 *             the no such method exception
+	 */
+	private <T extends Agent> T initAgent(final Class<T> agentType,
+			final State state) throws InstantiationException,
+			IllegalAccessException, InvocationTargetException,
+			NoSuchMethodException {
+		final String agentId = state.getAgentId();
+		
 		// instantiate the agent
 		final T agent = agentType.getConstructor().newInstance();
 		agent.constr(this, state);
@@ -289,6 +327,148 @@ public final class AgentHostDefImpl extends AgentHost {
 		return agent;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#createAgents(java.lang.Class,
+	 * java.util.Collection, java.util.Map)
+	 */
+	@Override
+	public <T extends Agent> Map<String, Exception> createAgents(
+			final Class<T> agentType, final Collection<String> agentIds,
+			final Map<String, ?> initParams) {
+		final Map<String, Exception> failures = new ConcurrentHashMap<String, Exception>();
+		final List<String> ids = new ArrayList<String>(agentIds);
+		final int threads = Math.min(ids.size(), Runtime.getRuntime()
+				.availableProcessors());
+		final List<String> created = Collections
+				.synchronizedList(new ArrayList<String>(ids.size()));
+		
+		// Create and initialize the agents, in parallel slices.
+		final List<Future<?>> tasks = new ArrayList<Future<?>>(threads);
+		for (int i = 0; i < threads; i++) {
+			final List<String> slice = ids.subList(i * ids.size() / threads,
+					(i + 1) * ids.size() / threads);
+			tasks.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					final List<String> batch = new ArrayList<String>(slice
+							.size());
+					deferred.set(batch);
+					try {
+						for (final String agentId : slice) {
+							try {
+								createBatchAgent(agentType, agentId, initParams);
+							} catch (final Exception e) {
+								failures.put(agentId, e);
+							}
+						}
+					} finally {
+						deferred.remove();
+						created.addAll(batch);
+					}
+				}
+			}));
+		}
+		await(tasks);
+		
+		// Connect the created agents, one task per transport. The creation
+		// tasks are done, so the transports can share a plain copy.
+		final String[] connect = created.toArray(new String[created.size()]);
+		tasks.clear();
+		for (final TransportService service : getTransportServices()) {
+			tasks.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (final String agentId : connect) {
+						try {
+							service.reconnect(agentId);
+						} catch (final Exception e) {
+							failures.put(agentId, e);
+						}
+					}
+				}
+			}));
+		}
+		await(tasks);
+		
+		if (!failures.isEmpty()) {
+			LOG.warning("Failed to create " + failures.size() + " of "
+					+ ids.size() + " agents of type " + agentType.getName());
+		}
+		return failures;
+	}
+	
+	/**
+	 * Create a single agent of a createAgents batch, writing its type and
+	 * initial parameters at once.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param agentType
+	 *            the agent type
+	 * @param agentId
+	 *            the agent id
+	 * @param initParams
+	 *            the init params
+	 * @throws Exception
+	 *             the exception
+	 */
+	private <T extends Agent> void createBatchAgent(final Class<T> agentType,
+			final String agentId, final Map<String, ?> initParams)
+			throws Exception {
+		final State state = getStateFactory().create(agentId);
+		final Map<String, Object> values = new HashMap<String, Object>();
+		if (initParams != null) {
+			values.putAll(initParams);
+		}
+		values.put(State.KEY_AGENT_TYPE, agentType.getName());
+		state.putAll(values);
+		state.init();
+		initAgent(agentType, state);
+	}
+	
+	/**
+	 * Wait for all tasks to finish.
+	 * 
+	 * @param tasks
+	 *            the tasks
+	 */
+	private void await(final List<Future<?>> tasks) {
+		for (final Future<?> task : tasks) {
+			try {
+				task.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (final ExecutionException e) {
+				LOG.log(Level.WARNING, "Batch task failed", e.getCause());
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#connectAgent(java.lang.String)
+	 */
+	@Override
+	public void connectAgent(final String agentId) {
+		final List<String> batch = deferred.get();
+		if (batch != null) {
+			batch.add(agentId);
+			return;
+		}
+		for (final TransportService service : getTransportServices()) {
+			try {
+				service.reconnect(agentId);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Couldn't reconnect transport:"
+						+ service + " for agent:" + agentId, e);
+			}
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -332,6 +512,8 @@ public final class AgentHostDefImpl extends AgentHost {
 				agent.signalAgent(new AgentSignal<Void>(AgentSignal.DESTROY));
 				agent.signalAgent(new AgentSignal<Void>(AgentSignal.DELETE));
 				ObjectCache.get(AGENTS).delete(agentId);
+				ResultMonitorFactory.unload(agentId);
+				RpcCache.remove(agentId);
 				agent = null;
 			} catch (final Exception e) {
 				LOG.log(Level.WARNING, "Error deleting agent:" + agentId, e);
@@ -436,10 +618,20 @@ public final class AgentHostDefImpl extends AgentHost {
 			}
 			service = getTransportService(protocol);
 			if (service != null) {
-				// TODO: Support byte[] at transport level, two types of
-				// transport?
-				service.sendAsync(senderUri, receiverUrl, message.toString(),
-						tag);
+				Codec codec = Codec.JSON;
+				if (service instanceof EncodingTransportService
+						&& message instanceof JSONMessage) {
+					codec = ((EncodingTransportService) service).getCodec(
+							receiverUrl, tag);
+				}
+				if (codec.isBinary()) {
+					service.sendAsync(senderUri, receiverUrl, codec
+							.encode(((JSONMessage) message).getObjectNode()),
+							tag);
+				} else {
+					service.sendAsync(senderUri, receiverUrl,
+							message.toString(), tag);
+				}
 			} else {
 				throw new ProtocolException(
 						"No transport service configured for protocol '"
@@ -1,6 +1,7 @@
 package com.almende.eve.agent.system;
 
 import java.net.URI;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -8,6 +9,8 @@ import com.almende.eve.agent.Agent;
 import com.almende.eve.rpc.jsonrpc.JSONMessage;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.RpcCache;
+import com.almende.eve.scheduler.SchedulerMetrics;
 
 /**
  * @author Almende
@@ -48,4 +51,25 @@ public class HostManagerAgent extends Agent {
 		}
 		
 	}
+	
+	/**
+	 * Gets the hits, misses, hit rate, evictions and size of the RPC result
+	 * caches of the agents on this host.
+	 * 
+	 * @return the cache statistics by agent id
+	 */
+	public Map<String, Map<String, Object>> getCacheStats() {
+		return RpcCache.getAllStats();
+	}
+	
+	/**
+	 * Gets the fire lag and execution time histograms, the tasks overdue at
+	 * startup, the queue depths and the tasks per agent of the schedulers on
+	 * this host.
+	 * 
+	 * @return the scheduler statistics by scheduler name
+	 */
+	public Map<String, Map<String, Object>> getSchedulerStats() {
+		return SchedulerMetrics.getAllStats();
+	}
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.event;
+
+import java.net.URI;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.callback.AsyncCallback;
+import com.almende.eve.config.Config;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Delivers the triggers of an event to its subscribers, straight from the
+ * host's executor instead of through a scheduler task per subscriber.
+ *
+ * The deliveries are grouped by destination host and split into batches; a
+ * batch sends its triggers one after the other, and at most
+ * {@link #CONCURRENCY} sends per destination are in flight at a time, so a
+ * slow host only holds up its own deliveries. A batch waits at most
+ * {@link #TIMEOUT} for each subscriber to respond before it goes on with the
+ * next trigger, once another send of the destination is done: the late send
+ * keeps its place until its response is handled. Only a delivery that fails
+ * to reach its subscriber is stored as a scheduler task, which retries it
+ * through {@link EventsInterface#doTrigger}; one that timed out may have
+ * reached it, and isn't retried.
+ */
+final class EventDispatcher {
+	private static final Logger								LOG				= Logger.getLogger(EventDispatcher.class
+																				.getCanonicalName());
+	/** The maximum number of sends in flight per destination. */
+	static final int										CONCURRENCY		= 4;
+	/** The maximum number of deliveries in a batch. */
+	static final int										BATCH			= 64;
+	/** The delay before a failed delivery is retried, in milliseconds. */
+	static final long										RETRY			= 5000;
+	/** The time to wait for each response, in milliseconds. */
+	static final long										TIMEOUT			= 2000;
+	private static final ConcurrentMap<String, Destination>	DESTINATIONS	= new ConcurrentHashMap<String, Destination>();
+	private static final ScheduledThreadPoolExecutor		TIMER			= new ScheduledThreadPoolExecutor(1, Config.getThreadFactory());
+	static {
+		TIMER.setRemoveOnCancelPolicy(true);
+	}
+	
+	/**
+	 * Instantiates a new event dispatcher.
+	 */
+	private EventDispatcher() {
+	}
+	
+	/**
+	 * Dispatch the triggers of an event.
+	 *
+	 * @param agent
+	 *            the agent triggering the event
+	 * @param deliveries
+	 *            the deliveries, each with the "url", "method" and "params"
+	 *            of a trigger
+	 */
+	static void dispatch(final AgentInterface agent,
+			final List<ObjectNode> deliveries) {
+		if (deliveries.isEmpty()) {
+			return;
+		}
+		// Fill all batches before any is queued: a batch in flight may start
+		// a queued one at any time.
+		final Map<String, List<ObjectNode>> current = new LinkedHashMap<String, List<ObjectNode>>();
+		final List<Entry<String, List<ObjectNode>>> batches = new ArrayList<Entry<String, List<ObjectNode>>>();
+		for (final ObjectNode delivery : deliveries) {
+			final String url = getDestination(delivery.get("url").asText());
+			List<ObjectNode> list = current.get(url);
+			if (list == null || list.size() >= BATCH) {
+				list = new ArrayList<ObjectNode>();
+				current.put(url, list);
+				batches.add(new SimpleImmutableEntry<String, List<ObjectNode>>(
+						url, list));
+			}
+			list.add(delivery);
+		}
+		final Map<Destination, Boolean> destinations = new LinkedHashMap<Destination, Boolean>();
+		for (final Entry<String, List<ObjectNode>> entry : batches) {
+			final Destination destination = getQueue(entry.getKey());
+			destination.queue.add(new Batch(agent, destination, entry
+					.getValue()));
+			destinations.put(destination, true);
+		}
+		for (final Destination destination : destinations.keySet()) {
+			destination.drain();
+		}
+	}
+	
+	/**
+	 * Gets the queue of a destination, created if there is none.
+	 *
+	 * @param url
+	 *            the destination, see {@link #getDestination(String)}
+	 * @return the destination
+	 */
+	private static Destination getQueue(final String url) {
+		Destination result = DESTINATIONS.get(url);
+		if (result == null) {
+			result = new Destination(url);
+			final Destination other = DESTINATIONS.putIfAbsent(url, result);
+			if (other != null) {
+				result = other;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the destination host of a url: the scheme and authority, or the
+	 * domain of an url like xmpp:agent@domain. All local urls share a
+	 * destination.
+	 *
+	 * @param url
+	 *            the url
+	 * @return the destination
+	 */
+	static String getDestination(final String url) {
+		try {
+			final URI uri = URI.create(url);
+			if (uri.getAuthority() != null) {
+				return uri.getScheme() + "://" + uri.getAuthority();
+			}
+			final String part = uri.getSchemeSpecificPart();
+			final int at = part != null ? part.lastIndexOf('@') : -1;
+			return uri.getScheme() + ":" + (at >= 0 ? part.substring(at + 1) : "");
+		} catch (final IllegalArgumentException e) {
+			return url;
+		}
+	}
+	
+	/**
+	 * Store a failed delivery as a scheduler task, to be retried later.
+	 *
+	 * @param agent
+	 *            the agent
+	 * @param delivery
+	 *            the delivery
+	 */
+	private static void retry(final AgentInterface agent,
+			final ObjectNode delivery) {
+		try {
+			agent.getScheduler().createTask(
+					new JSONRequest("event.doTrigger", delivery), RETRY);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, agent.getId()
+					+ ": Couldn't store failed trigger:" + delivery, e);
+		}
+	}
+	
+	/**
+	 * The queued batches of a single destination, and the number of sends in
+	 * flight.
+	 */
+	private static final class Destination {
+		private final String						url;
+		private final ConcurrentLinkedQueue<Batch>	queue	= new ConcurrentLinkedQueue<Batch>();
+		private final AtomicInteger					running	= new AtomicInteger(0);
+		
+		/**
+		 * Instantiates a new destination.
+		 *
+		 * @param url
+		 *            the destination
+		 */
+		private Destination(final String url) {
+			this.url = url;
+		}
+		
+		/**
+		 * Start queued batches, as long as fewer than {@link #CONCURRENCY}
+		 * sends are in flight. An idle destination is dropped; a batch queued
+		 * meanwhile is still started by the dispatch that queued it.
+		 */
+		private void drain() {
+			while (!queue.isEmpty()) {
+				final int current = running.get();
+				if (current >= CONCURRENCY) {
+					// a send in flight drains the queue when it is done
+					return;
+				}
+				if (!running.compareAndSet(current, current + 1)) {
+					continue;
+				}
+				final Batch batch = queue.poll();
+				if (batch == null) {
+					running.decrementAndGet();
+					break;
+				}
+				batch.proceed();
+			}
+			if (running.get() == 0 && queue.isEmpty()) {
+				DESTINATIONS.remove(url, this);
+			}
+		}
+		
+		/**
+		 * Release the slot of a send, and start the next batches.
+		 */
+		private void release() {
+			running.decrementAndGet();
+			drain();
+		}
+	}
+	
+	/**
+	 * The deliveries to a single destination, sent one after the other.
+	 */
+	private static final class Batch implements Runnable {
+		private final AgentInterface	agent;
+		private final Destination		destination;
+		private final List<ObjectNode>	deliveries;
+		private int						next	= 0;
+		
+		/**
+		 * Instantiates a new batch.
+		 *
+		 * @param agent
+		 *            the agent
+		 * @param destination
+		 *            the destination
+		 * @param deliveries
+		 *            the deliveries
+		 */
+		private Batch(final AgentInterface agent,
+				final Destination destination, final List<ObjectNode> deliveries) {
+			this.agent = agent;
+			this.destination = destination;
+			this.deliveries = deliveries;
+		}
+		
+		/**
+		 * Continue with the next delivery on the host's executor.
+		 */
+		private void proceed() {
+			try {
+				final Executor executor = agent.getAgentHost().getPool();
+				executor.execute(this);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, agent.getId()
+						+ ": Couldn't dispatch triggers", e);
+				while (next < deliveries.size()) {
+					retry(agent, deliveries.get(next++));
+				}
+				done();
+			}
+		}
+		
+		/**
+		 * Release the slot of this batch, and start the next ones.
+		 */
+		private void done() {
+			destination.release();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			if (next >= deliveries.size()) {
+				done();
+				return;
+			}
+			final ObjectNode delivery = deliveries.get(next++);
+			// An error response calls both onFailure and onSuccess.
+			final AtomicBoolean completed = new AtomicBoolean(false);
+			// Set by the response or the timeout, whichever comes first.
+			final AtomicBoolean released = new AtomicBoolean(false);
+			final ScheduledFuture<?> timeout = TIMER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (released.compareAndSet(false, true)) {
+						// The late send keeps the slot, the batch waits for
+						// another one.
+						destination.queue.add(Batch.this);
+						destination.drain();
+					}
+				}
+			}, TIMEOUT, TimeUnit.MILLISECONDS);
+			final Runnable release = new Runnable() {
+				@Override
+				public void run() {
+					timeout.cancel(false);
+					if (released.compareAndSet(false, true)) {
+						proceed();
+					} else {
+						destination.release();
+					}
+				}
+			};
+			final AsyncCallback<Void> callback = new AsyncCallback<Void>() {
+				@Override
+				public void onSuccess(final Void result) {
+					if (completed.compareAndSet(false, true)) {
+						release.run();
+					}
+				}
+				
+				@Override
+				public void onFailure(final Exception exception) {
+					if (completed.compareAndSet(false, true)) {
+						if (exception instanceof JSONRPCException) {
+							// delivered, the subscriber failed to handle it
+							LOG.warning(agent.getId() + ": Trigger failed:"
+									+ exception.getLocalizedMessage());
+						} else if (exception instanceof TimeoutException) {
+							// it may have been delivered, don't send it twice
+							LOG.warning(agent.getId() + ": Trigger timed out:"
+									+ delivery);
+						} else {
+							retry(agent, delivery);
+						}
+						release.run();
+					}
+				}
+			};
+			try {
+				agent.sendAsync(URI.create(delivery.get("url").asText()),
+						delivery.get("method").asText(),
+						(ObjectNode) delivery.get("params"), callback,
+						Void.class);
+			} catch (final Exception e) {
+				callback.onFailure(e);
+			}
+		}
+	}
+}
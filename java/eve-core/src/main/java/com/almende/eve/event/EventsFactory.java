@@ -18,8 +18,8 @@ import com.almende.eve.rpc.annotation.AccessType;
 import com.almende.eve.rpc.annotation.Name;
 import com.almende.eve.rpc.annotation.Optional;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
-import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.StateFunction;
 import com.almende.eve.state.TypedKey;
 import com.almende.util.uuid.UUID;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -65,30 +65,6 @@ public class EventsFactory implements EventsInterface {
 		return new ArrayList<Callback>();
 	}
 	
-	/**
-	 * Store a list with subscriptions for an event.
-	 *
-	 * @param event the event
-	 * @param subscriptions the subscriptions
-	 */
-	private void putSubscriptions(final String event, final List<Callback> subscriptions) {
-		
-		final Map<String, List<Callback>> allSubscriptions = myAgent.getState().get(
-				SUBSCRIPTIONS);
-		
-		final HashMap<String, List<Callback>> newSubscriptions = new HashMap<String, List<Callback>>();
-		if (allSubscriptions != null) {
-			newSubscriptions.putAll(allSubscriptions);
-		}
-		newSubscriptions.put(event, subscriptions);
-		if (!myAgent.getState().putIfUnchanged(SUBSCRIPTIONS.getKey(),
-				newSubscriptions, allSubscriptions)) {
-			// Recursive retry.
-			putSubscriptions(event, subscriptions);
-			return;
-		}
-	}
-	
 	/**
 	 * Subscribe to an other agents event.
 	 *
@@ -221,10 +197,11 @@ public class EventsFactory implements EventsInterface {
 		baseParams.put("agent", url);
 		baseParams.put(EVENT, event);
 		
+		// The triggers are sent asynchronously by the dispatcher, so they
+		// cannot block this trigger method.
+		final List<ObjectNode> deliveries = new ArrayList<ObjectNode>(
+				subscriptions.size());
 		for (final Callback subscription : subscriptions) {
-			// create a task to send this trigger.
-			// This way, it is sent asynchronously and cannot block this
-			// trigger method
 			ObjectNode triggerParams = baseParams.deepCopy();
 			
 			triggerParams.put("subscriptionId", subscription.getId());
@@ -240,10 +217,9 @@ public class EventsFactory implements EventsInterface {
 				triggerParams = (ObjectNode) parms.putAll(triggerParams);
 			}
 			taskParams.put("params", triggerParams);
-			final JSONRequest request = new JSONRequest("event.doTrigger", taskParams);
-			final long delay = 0;
-			myAgent.getScheduler().createTask(request, delay);
+			deliveries.add(taskParams);
 		}
+		EventDispatcher.dispatch(myAgent, deliveries);
 	}
 	
 	/* (non-Javadoc)
@@ -256,8 +232,61 @@ public class EventsFactory implements EventsInterface {
 			@Name("callbackMethod") final String callbackMethod,
 			@Optional @Name("callbackParams") final ObjectNode params) {
 		
-		// check if callback already existed, returning existing instead
-		final List<Callback> subscriptions = getSubscriptions(event);
+		final String[] result = new String[1];
+		myAgent.getState().compute(SUBSCRIPTIONS,
+				new StateFunction<HashMap<String, List<Callback>>>() {
+					@Override
+					public HashMap<String, List<Callback>> apply(
+							final HashMap<String, List<Callback>> current) {
+						final List<Callback> subscriptions = current == null ? null
+								: current.get(event);
+						
+						// check if callback already existed, returning
+						// existing instead
+						final Callback existing = findSubscription(
+								subscriptions, callbackUrl, callbackMethod,
+								params);
+						if (existing != null) {
+							result[0] = existing.getId();
+							return current;
+						}
+						
+						// Callback didn't exist, store new callback.
+						final Callback callback = new Callback(new UUID()
+								.toString(), callbackUrl, callbackMethod,
+								params);
+						result[0] = callback.getId();
+						// Changed in place, only the list of this event is
+						// copied: its old instance may be shared with readers.
+						final HashMap<String, List<Callback>> result = current != null ? current
+								: new HashMap<String, List<Callback>>();
+						final List<Callback> newList = new ArrayList<Callback>();
+						if (subscriptions != null) {
+							newList.addAll(subscriptions);
+						}
+						newList.add(callback);
+						result.put(event, newList);
+						return result;
+					}
+				});
+		return result[0];
+	}
+	
+	/**
+	 * Find an existing subscription with the given callback.
+	 *
+	 * @param subscriptions the subscriptions, can be null
+	 * @param callbackUrl the callback url
+	 * @param callbackMethod the callback method
+	 * @param params the params
+	 * @return the callback, or null if not found
+	 */
+	private Callback findSubscription(final List<Callback> subscriptions,
+			final String callbackUrl, final String callbackMethod,
+			final ObjectNode params) {
+		if (subscriptions == null) {
+			return null;
+		}
 		for (final Callback subscription : subscriptions) {
 			if (subscription == null || subscription.getUrl() == null
 					|| subscription.getMethod() == null) {
@@ -276,22 +305,9 @@ public class EventsFactory implements EventsInterface {
 					continue;
 				}
 			}
-			// Callback already exists, returning existing callbackId.
-			return subscription.getId();
+			return subscription;
 		}
-		// create new callback
-		final String subscriptionId = new UUID().toString();
-		final Callback callback = new Callback(subscriptionId, callbackUrl,
-				callbackMethod, params);
-		
-		// Callback didn't exist, store new callback.
-		subscriptions.add(callback);
-		
-		// store the subscriptions
-		// FIXME: Race condition on subscriptions!
-		putSubscriptions(event, subscriptions);
-		
-		return subscriptionId;
+		return null;
 	}
 	
 	/* (non-Javadoc)
@@ -304,52 +320,70 @@ public class EventsFactory implements EventsInterface {
 			@Optional @Name(EVENT) final String event,
 			@Optional @Name("callbackUrl") final String callbackUrl,
 			@Optional @Name("callbackMethod") final String callbackMethod) {
-		final Map<String, List<Callback>> allSubscriptions = myAgent.getState().get(
-				SUBSCRIPTIONS);
-		if (allSubscriptions == null) {
-			return;
-		}
-		
-		for (final Entry<String, List<Callback>> entry : allSubscriptions.entrySet()) {
-			final String subscriptionEvent = entry.getKey();
-			final List<Callback> subscriptions = entry.getValue();
-			if (subscriptions != null) {
-				int i = 0;
-				while (i < subscriptions.size()) {
-					final Callback subscription = subscriptions.get(i);
-					boolean matched = false;
-					if (subscriptionId != null
-							&& subscriptionId.equals(subscription.getId())) {
-						// callback with given subscriptionId is found
-						matched = true;
-					} else if (callbackUrl != null
-							&& callbackUrl.equals(subscription.getUrl())
-							&& (callbackMethod == null || callbackMethod
-									.equals(subscription.getMethod()))
-							&& (event == null || event
-									.equals(subscriptionEvent))) {
-						// callback with matching properties is found
-						matched = true;
-					}
-					
-					if (matched) {
-						subscriptions.remove(i);
-					} else {
-						i++;
+		myAgent.getState().compute(SUBSCRIPTIONS,
+				new StateFunction<HashMap<String, List<Callback>>>() {
+					@Override
+					public HashMap<String, List<Callback>> apply(
+							final HashMap<String, List<Callback>> current) {
+						if (current == null) {
+							return null;
+						}
+						// Changed in place, only the lists that change are
+						// copied.
+						for (final Entry<String, List<Callback>> entry : current
+								.entrySet()) {
+							final String subscriptionEvent = entry.getKey();
+							final List<Callback> subscriptions = entry
+									.getValue();
+							if (subscriptions == null) {
+								continue;
+							}
+							List<Callback> remaining = null;
+							for (int i = 0; i < subscriptions.size(); i++) {
+								final Callback subscription = subscriptions
+										.get(i);
+								boolean matched = false;
+								if (subscriptionId != null
+										&& subscriptionId.equals(subscription
+												.getId())) {
+									// callback with given subscriptionId is
+									// found
+									matched = true;
+								} else if (callbackUrl != null
+										&& callbackUrl.equals(subscription
+												.getUrl())
+										&& (callbackMethod == null || callbackMethod
+												.equals(subscription
+														.getMethod()))
+										&& (event == null || event
+												.equals(subscriptionEvent))) {
+									// callback with matching properties is
+									// found
+									matched = true;
+								}
+								
+								if (matched) {
+									if (remaining == null) {
+										remaining = new ArrayList<Callback>(
+												subscriptions.subList(0, i));
+									}
+								} else if (remaining != null) {
+									remaining.add(subscription);
+								}
+							}
+							// TODO: cleanup event list when empty
+							if (remaining != null) {
+								entry.setValue(remaining);
+							}
+						}
+						return current;
 					}
-				}
-			}
-			// TODO: cleanup event list when empty
-		}
-		
-		// store state again
-		// TODO: Race condition on state
-		myAgent.getState().put(SUBSCRIPTIONS.getKey(), allSubscriptions);
+				});
 	}
 	
 	/**
-	 * Work-method for trigger: called by scheduler for asynchronous and/or
-	 * delayed behaviour.
+	 * Work-method for trigger: called by the scheduler to retry a trigger
+	 * that couldn't be delivered.
 	 *
 	 * @param url the url
 	 * @param method the method
@@ -385,7 +419,7 @@ public class EventsFactory implements EventsInterface {
 		}
 		return result;
 	}
-
+	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public void clear() {
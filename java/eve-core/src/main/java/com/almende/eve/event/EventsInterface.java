@@ -87,8 +87,8 @@ public interface EventsInterface {
 	
 	/**
 	 * Asynchronously trigger an event.
-	 * the onTrigger method is called from a scheduled task, initiated in the
-	 * method trigger
+	 * Called from a scheduled task, to retry a trigger that couldn't be
+	 * delivered by the method trigger.
 	 * 
 	 * @param url
 	 *            the url
@@ -5,23 +5,25 @@
 package com.almende.eve.lock;
 
 import java.util.HashMap;
+import java.util.Map;
 
 import com.almende.eve.agent.Agent;
-import com.almende.eve.state.StateEntry;
+import com.almende.eve.state.State;
+import com.almende.eve.state.TypedKey;
+import com.almende.eve.state.Versioned;
 
 /**
  * The Class StateLock.
+ * 
+ * Blocking callers wait for a change of the timeouts in the state (see
+ * {@link State#awaitChange(String, long, long)}) instead of polling, and take
+ * the lock with a versioned compare-and-set.
  */
 public class StateLock implements TemporalLock {
-	private static final int						MINWAIT				= 10;
-	private final Agent								myAgent;
-	private final StateEntry<HashMap<String, Long>>	myMethodTimeouts	= new StateEntry<HashMap<String, Long>>(
-																				"methodTimeouts") {
-																			@Override
-																			public HashMap<String, Long> defaultValue() {
-																				return new HashMap<String, Long>();
-																			}
-																		};
+	private static final TypedKey<Map<String, Long>>	TIMEOUTS	= new TypedKey<Map<String, Long>>(
+																		"methodTimeouts") {
+																};
+	private final Agent									myAgent;
 	
 	/**
 	 * Instantiates a new state lock.
@@ -42,8 +44,10 @@ public class StateLock implements TemporalLock {
 	 */
 	@Override
 	public long getLockMillisRemaining(final String semaphoreID) {
-		final Long timeout = myMethodTimeouts.getValue(myAgent.getState()).get(
-				semaphoreID);
+		final Map<String, Long> timeouts = myAgent.getState().getShared(
+				TIMEOUTS);
+		final Long timeout = timeouts == null ? null : timeouts
+				.get(semaphoreID);
 		return timeout == null ? -1L : timeout.longValue()
 				- System.currentTimeMillis();
 	}
@@ -57,21 +61,38 @@ public class StateLock implements TemporalLock {
 	@Override
 	public boolean lock(final String semaphoreID, final long remainingMS,
 			final boolean block) {
-		final long millis = getLockMillisRemaining(semaphoreID);
-		if (block) {
-			while (millis > 0L) {
+		final State state = myAgent.getState();
+		while (true) {
+			final Versioned<Map<String, Long>> current = state
+					.getVersioned(TIMEOUTS);
+			final Map<String, Long> timeouts = current.getValue();
+			final Long timeout = timeouts == null ? null : timeouts
+					.get(semaphoreID);
+			final long now = System.currentTimeMillis();
+			final long millis = timeout == null ? -1L : timeout.longValue()
+					- now;
+			if (millis <= 0L) {
+				final HashMap<String, Long> next = timeouts == null ? new HashMap<String, Long>()
+						: new HashMap<String, Long>(timeouts);
+				next.put(semaphoreID, remainingMS <= 0L ? Long.valueOf(0L)
+						: Long.valueOf(now + remainingMS));
+				if (state.putIfVersion(TIMEOUTS.getKey(), next,
+						current.getVersion())) {
+					return true;
+				}
+				// Someone else changed the timeouts, retry.
+			} else if (!block) {
+				return false;
+			} else {
 				try {
-					synchronized (this) {
-						wait(Math.min(MINWAIT, millis));
-					}
-				} catch (final InterruptedException ignore) {
+					state.awaitChange(TIMEOUTS.getKey(), current.getVersion(),
+							millis);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
 				}
 			}
-		} else if (millis > 0L) {
-			return false;
 		}
-		updateLock(semaphoreID, remainingMS);
-		return true;
 	}
 	
 	/**
@@ -83,14 +104,9 @@ public class StateLock implements TemporalLock {
 	 *            the remaining ms
 	 */
 	protected void updateLock(final String semaphoreID, final long remainingMS) {
-		HashMap<String, Long> currentTimeouts, newTimeouts;
-		do {
-			currentTimeouts = myMethodTimeouts.getValue(myAgent.getState());
-			newTimeouts = new HashMap<String, Long>(currentTimeouts);
-			newTimeouts.put(semaphoreID, remainingMS <= 0L ? Long.valueOf(0L)
-					: System.currentTimeMillis() + remainingMS);
-		} while (!myMethodTimeouts.putValueIfUnchanged(myAgent.getState(),
-				newTimeouts, currentTimeouts));
+		myAgent.getState().mapPut(TIMEOUTS, semaphoreID,
+				remainingMS <= 0L ? Long.valueOf(0L) : Long.valueOf(System
+						.currentTimeMillis() + remainingMS));
 	}
 	
 	/*
@@ -9,6 +9,7 @@ import java.util.logging.Logger;
 import com.almende.eve.agent.AgentInterface;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.OverlapPolicy;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -79,8 +80,9 @@ public class Poll implements ResultMonitorConfigType {
 		// Try to cancel any protential existing tasks.
 		cancel(monitor, agent);
 		
-		taskId = agent.getScheduler()
-				.createTask(request, interval, true, false);
+		// Aligned, so the polls of many monitors run together.
+		taskId = agent.getScheduler().createTask(request, interval, true,
+				OverlapPolicy.SKIP, null, true);
 		
 		LOG.info("Poll task created:" + monitor.getUrl());
 		monitor.getPolls().add(this);
@@ -0,0 +1,302 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.monitor;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.callback.AsyncCallback;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+/**
+ * Host wide coalescing of monitor polls. Polls of the same url, method and
+ * params share a single request, whichever agent sends them: callers arriving
+ * while the request is in flight get its result through their callback, and
+ * callers arriving within the given window after it completed get the same
+ * result. Together with the aligned repeating tasks of the schedulers, the
+ * polls of many monitors on the same remote method end up as one request per
+ * interval. Only the caller that sends the request waits for it, the others
+ * return immediately.
+ * 
+ * Polls of which the result depends on the sender (see
+ * {@link ResultMonitor#isPerSender()}) are only shared between the monitors of
+ * a single agent.
+ * 
+ * The result is shared between the callers and must not be modified.
+ */
+public final class PollCoalescer {
+	private static final Logger					LOG			= Logger.getLogger(PollCoalescer.class
+																	.getCanonicalName());
+	/** Maximum window in milliseconds. */
+	public static final long					MAXWINDOW	= 10000;
+	private static final int					PRUNEEVERY	= 1000;
+	private static final PollCoalescer			INSTANCE	= new PollCoalescer();
+	private final ConcurrentHashMap<String, Flight>	flights		= new ConcurrentHashMap<String, Flight>();
+	private final AtomicInteger					created		= new AtomicInteger();
+	
+	/**
+	 * Instantiates a new poll coalescer.
+	 */
+	private PollCoalescer() {
+	}
+	
+	/**
+	 * Gets the single instance.
+	 * 
+	 * @return the instance
+	 */
+	public static PollCoalescer getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Call the remote method, or share the result of an identical call. If
+	 * this caller sends the request, the callback is called before returning,
+	 * else it is called when the shared request completes.
+	 * 
+	 * @param agent
+	 *            the agent sending the request
+	 * @param url
+	 *            the url
+	 * @param method
+	 *            the method
+	 * @param params
+	 *            the params, as JSON string
+	 * @param window
+	 *            how long a completed result may be shared, in milliseconds
+	 * @param perSender
+	 *            the result depends on the sending agent
+	 * @param callback
+	 *            the callback, getting the result or the failure
+	 */
+	public void poll(final AgentInterface agent, final URI url,
+			final String method, final String params, final long window,
+			final boolean perSender, final AsyncCallback<Object> callback) {
+		final String key = (perSender ? agent.getId() : "") + " " + url + " "
+				+ method + " " + params;
+		final long maxAge = Math.min(window, MAXWINDOW);
+		while (true) {
+			final Flight current = flights.get(key);
+			if (current != null && current.isUsable(maxAge)) {
+				current.join(callback);
+				return;
+			}
+			final Flight flight = new Flight();
+			final boolean mine = current == null ? flights.putIfAbsent(key,
+					flight) == null : flights.replace(key, current, flight);
+			if (mine) {
+				if (created.incrementAndGet() % PRUNEEVERY == 0) {
+					prune();
+				}
+				flight.join(callback);
+				try {
+					flight.complete(agent.send(url, method, JOM.getInstance()
+							.readTree(params), TypeFactory.unknownType()), null);
+				} catch (final Exception e) {
+					flight.complete(null, e);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Call the remote method, or share the result of an identical call, and
+	 * wait for the result.
+	 * 
+	 * @param agent
+	 *            the agent sending the request
+	 * @param url
+	 *            the url
+	 * @param method
+	 *            the method
+	 * @param params
+	 *            the params, as JSON string
+	 * @param window
+	 *            how long a completed result may be shared, in milliseconds
+	 * @param perSender
+	 *            the result depends on the sending agent
+	 * @return the result
+	 * @throws JSONRPCException
+	 *             the jSONRPC exception
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public Object poll(final AgentInterface agent, final URI url,
+			final String method, final String params, final long window,
+			final boolean perSender) throws JSONRPCException, IOException {
+		final Outcome outcome = new Outcome();
+		poll(agent, url, method, params, window, perSender, outcome);
+		return outcome.get();
+	}
+	
+	/**
+	 * Remove the results that can't be shared anymore.
+	 */
+	private void prune() {
+		final Iterator<Flight> iter = flights.values().iterator();
+		while (iter.hasNext()) {
+			if (!iter.next().isUsable(MAXWINDOW)) {
+				iter.remove();
+			}
+		}
+	}
+	
+	/**
+	 * A single request, in flight or completed.
+	 */
+	private static final class Flight {
+		private final List<AsyncCallback<Object>>	waiting		= new ArrayList<AsyncCallback<Object>>(
+																		1);
+		private volatile long						completed	= 0;
+		private Object								result		= null;
+		private Exception							error		= null;
+		
+		/**
+		 * Store the outcome and call the waiting callbacks.
+		 * 
+		 * @param result
+		 *            the result
+		 * @param error
+		 *            the error, or null
+		 */
+		private void complete(final Object result, final Exception error) {
+			final List<AsyncCallback<Object>> callbacks;
+			synchronized (this) {
+				this.result = result;
+				this.error = error;
+				completed = System.currentTimeMillis();
+				callbacks = new ArrayList<AsyncCallback<Object>>(waiting);
+				waiting.clear();
+			}
+			for (final AsyncCallback<Object> callback : callbacks) {
+				deliver(callback);
+			}
+		}
+		
+		/**
+		 * Get the outcome through the given callback: now if completed, else
+		 * on completion.
+		 * 
+		 * @param callback
+		 *            the callback
+		 */
+		private void join(final AsyncCallback<Object> callback) {
+			synchronized (this) {
+				if (completed == 0) {
+					waiting.add(callback);
+					return;
+				}
+			}
+			deliver(callback);
+		}
+		
+		/**
+		 * Checks if this flight can be joined, or its result shared.
+		 * 
+		 * @param maxAge
+		 *            the max age of a completed result
+		 * @return true, if usable
+		 */
+		private boolean isUsable(final long maxAge) {
+			final long time = completed;
+			return time == 0
+					|| (error == null && time + maxAge > System
+							.currentTimeMillis());
+		}
+		
+		/**
+		 * Pass the outcome to the given callback.
+		 * 
+		 * @param callback
+		 *            the callback
+		 */
+		private void deliver(final AsyncCallback<Object> callback) {
+			try {
+				if (error != null) {
+					callback.onFailure(error);
+				} else {
+					callback.onSuccess(result);
+				}
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "Poll callback failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Callback of a caller waiting for the outcome.
+	 */
+	private static final class Outcome implements AsyncCallback<Object> {
+		private final CountDownLatch	done	= new CountDownLatch(1);
+		private Object					result	= null;
+		private Exception				error	= null;
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.almende.eve.agent.callback.AsyncCallback#onSuccess(java.lang.
+		 * Object)
+		 */
+		@Override
+		public void onSuccess(final Object result) {
+			this.result = result;
+			done.countDown();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.almende.eve.agent.callback.AsyncCallback#onFailure(java.lang.
+		 * Exception)
+		 */
+		@Override
+		public void onFailure(final Exception exception) {
+			error = exception;
+			done.countDown();
+		}
+		
+		/**
+		 * Wait for the outcome.
+		 * 
+		 * @return the result
+		 * @throws JSONRPCException
+		 *             the jSONRPC exception
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		private Object get() throws JSONRPCException, IOException {
+			try {
+				done.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for poll", e);
+			}
+			if (error instanceof JSONRPCException) {
+				throw (JSONRPCException) error;
+			}
+			if (error instanceof IOException) {
+				throw (IOException) error;
+			}
+			if (error != null) {
+				throw new IOException("Poll failed", error);
+			}
+			return result;
+		}
+	}
+}
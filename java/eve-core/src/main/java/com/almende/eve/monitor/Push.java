@@ -120,6 +120,8 @@ public class Push implements ResultMonitorConfigType {
 		config.put("onChange", onChange);
 		config.put("method", monitor.getMethod());
 		config.put("params", monitor.getParams());
+		// This side applies patches, see ResultMonitorFactory#callbackPush.
+		config.put("patches", true);
 		
 		wrapper.put("config", config);
 		
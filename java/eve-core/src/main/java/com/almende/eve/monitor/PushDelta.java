@@ -0,0 +1,109 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.monitor;
+
+import com.almende.util.JsonPatch;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The last result sent to, or received by, one push subscriber. The sending
+ * side encodes new results as JSON Patch diffs against it, with a full
+ * snapshot every FULL pushes; the receiving side applies them in sequence.
+ * Only used for subscribers that signalled they can apply patches.
+ */
+final class PushDelta {
+	/** Number of pushes after which a full result is sent again. */
+	static final int	FULL		= 20;
+	private JsonNode	last		= null;
+	private long		seq			= 0;
+	private int			sinceFull	= 0;
+	
+	/**
+	 * Encode a new result for sending.
+	 *
+	 * @param result
+	 *            the result
+	 * @param params
+	 *            the push parameters, receiving "seq" and either "patch" or
+	 *            "result"
+	 * @param force
+	 *            send an (empty) patch even if the result didn't change
+	 * @return false if the result didn't change and nothing needs to be sent
+	 */
+	synchronized boolean encode(final JsonNode result, final ObjectNode params,
+			final boolean force) {
+		if (last != null && last.equals(result) && !force) {
+			return false;
+		}
+		ArrayNode patch = null;
+		if (last != null && sinceFull < FULL) {
+			patch = JsonPatch.diff(last, result);
+			// Not worth it if the diff isn't smaller than the result.
+			if (patch.toString().length() >= String.valueOf(result).length()) {
+				patch = null;
+			}
+		}
+		if (patch == null) {
+			params.put("result", result);
+			sinceFull = 0;
+		} else {
+			params.put("patch", patch);
+			sinceFull++;
+		}
+		params.put("seq", ++seq);
+		last = result;
+		return true;
+	}
+	
+	/**
+	 * Remember a new result, for subscribers that get full results only.
+	 *
+	 * @param result
+	 *            the result
+	 * @return false if the result didn't change
+	 */
+	synchronized boolean update(final JsonNode result) {
+		if (last != null && last.equals(result)) {
+			return false;
+		}
+		last = result;
+		seq++;
+		return true;
+	}
+	
+	/**
+	 * Decode a received push.
+	 *
+	 * @param result
+	 *            the full result, or null
+	 * @param patch
+	 *            the patch, or null
+	 * @param sequence
+	 *            the sequence number of this push
+	 * @return the new result, or null if a patch can't be applied and a full
+	 *         result is needed
+	 */
+	synchronized JsonNode decode(final JsonNode result, final ArrayNode patch,
+			final long sequence) {
+		if (patch == null) {
+			last = result;
+		} else {
+			if (last == null || sequence != seq + 1) {
+				last = null;
+				return null;
+			}
+			try {
+				last = JsonPatch.apply(last, patch);
+			} catch (final RuntimeException e) {
+				last = null;
+				return null;
+			}
+		}
+		seq = sequence;
+		return last;
+	}
+}
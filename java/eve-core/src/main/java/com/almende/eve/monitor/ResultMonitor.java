@@ -7,9 +7,7 @@ package com.almende.eve.monitor;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,7 +25,6 @@ public class ResultMonitor implements Serializable {
 	private static final long					serialVersionUID	= -6738643681425840533L;
 	private static final Logger					LOG					= Logger.getLogger(ResultMonitor.class
 																			.getCanonicalName());
-	private static transient Map<String, Cache>	caches				= new HashMap<String, Cache>();
 	private String								id;
 	private String								agentId;
 	private URI									url;
@@ -37,7 +34,9 @@ public class ResultMonitor implements Serializable {
 	private List<Poll>							polls				= new ArrayList<Poll>();
 	private List<Push>							pushes				= new ArrayList<Push>();
 	private String								cacheType;
+	private boolean								perSender			= false;
 	private transient AgentInterface			myAgent				= null;
+	private transient Cache						cache				= null;
 	
 	/**
 	 * Instantiates a new result monitor.
@@ -117,7 +116,7 @@ public class ResultMonitor implements Serializable {
 	 */
 	public void init() {
 		loadAgent();
-		if (!caches.containsKey(id) && cacheType != null) {
+		if (cache == null && cacheType != null) {
 			try {
 				addCache((Cache) Class.forName(cacheType).newInstance());
 			} catch (final Exception e) {
@@ -164,9 +163,7 @@ public class ResultMonitor implements Serializable {
 	 */
 	public void addCache(final Cache config) {
 		cacheType = config.getClass().getName();
-		synchronized (caches) {
-			caches.put(id, config);
-		}
+		cache = config;
 	}
 	
 	/**
@@ -176,9 +173,7 @@ public class ResultMonitor implements Serializable {
 	 */
 	@JsonIgnore
 	public Cache getCache() {
-		synchronized (caches) {
-			return caches.get(id);
-		}
+		return cache;
 	}
 	
 	/**
@@ -409,6 +404,27 @@ public class ResultMonitor implements Serializable {
 		this.cacheType = cacheType;
 	}
 	
+	/**
+	 * Checks if the result depends on the agent polling it. Polls of such
+	 * monitors are only shared with other monitors of the same agent, see
+	 * {@link PollCoalescer}.
+	 * 
+	 * @return true, if per sender
+	 */
+	public boolean isPerSender() {
+		return perSender;
+	}
+	
+	/**
+	 * Sets whether the result depends on the agent polling it.
+	 * 
+	 * @param perSender
+	 *            true, if the result depends on the sender
+	 */
+	public void setPerSender(final boolean perSender) {
+		this.perSender = perSender;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -5,15 +5,21 @@
 package com.almende.eve.monitor;
 
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.callback.AsyncCallback;
 import com.almende.eve.agent.annotation.EventTriggered;
 import com.almende.eve.rpc.annotation.Access;
 import com.almende.eve.rpc.annotation.AccessType;
@@ -25,25 +31,49 @@ import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.State;
 import com.almende.eve.state.TypedKey;
 import com.almende.util.AnnotationUtil.AnnotatedMethod;
 import com.almende.util.NamespaceUtil;
 import com.almende.util.NamespaceUtil.CallTuple;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.fasterxml.jackson.databind.type.TypeFactory;
 
 /**
  * A factory for creating ResultMonitor objects.
+ * 
+ * The monitors of each agent are kept live in a host wide registry, which is
+ * loaded from the agent's state on first use. Each monitor is persisted as
+ * its own state record, so storing or deleting a monitor doesn't rewrite the
+ * others, and caches keep their values between calls. Each write of a
+ * record also touches the {@link #CHANGED} key. On each use only the version
+ * of that key is checked; once it has changed, the versions of the records
+ * are checked, and records changed by another instance of the agent are
+ * loaded again. The registries are softly referenced, so they are only
+ * dropped when memory runs low, and loaded again on next use.
+ * 
+ * Pushes to the default callback only send changes: a JSON Patch against the
+ * last result sent to that subscriber, with a full result every now and then.
+ * Patches are only sent to subscribers that registered with "patches" in
+ * their push config, older subscribers get full results.
  */
 public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
-	private static final Logger										LOG			= Logger.getLogger(ResultMonitorFactory.class
-																						.getCanonicalName());
-	private static final TypedKey<HashMap<String, ResultMonitor>>	MONITORS	= new TypedKey<HashMap<String, ResultMonitor>>(
-																						"_monitors") {
-																				};
-	private AgentInterface											myAgent		= null;
+	private static final Logger																LOG			= Logger.getLogger(ResultMonitorFactory.class
+																														.getCanonicalName());
+	private static final TypedKey<HashMap<String, ResultMonitor>>							MONITORS	= new TypedKey<HashMap<String, ResultMonitor>>(
+																														"_monitors") {
+																												};
+	private static final String																PREFIX		= "_monitor_";
+	/** The state key touched on each change of the monitor records. */
+	public static final String																CHANGED		= "_monitorsChanged";
+	private static final ConcurrentHashMap<String, RegistryReference>						REGISTRY	= new ConcurrentHashMap<String, RegistryReference>();
+	private static final ReferenceQueue<Registry>											CLEARED		= new ReferenceQueue<Registry>();
+	private static final String																CALLBACK	= "monitor.callbackPush";
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, PushDelta>>	PUSHED		= new ConcurrentHashMap<String, ConcurrentHashMap<String, PushDelta>>();
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, PushDelta>>	RECEIVED	= new ConcurrentHashMap<String, ConcurrentHashMap<String, PushDelta>>();
+	private AgentInterface																	myAgent		= null;
 	
 	/**
 	 * Instantiates a new result monitor factory.
@@ -119,8 +149,11 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 				result = (T) monitor.getCache().getValue();
 			}
 			if (result == null) {
-				result = myAgent.send(monitor.getUrl(), monitor.getMethod(),
-						JOM.getInstance().readTree(monitor.getParams()),
+				// Only join a request in flight, don't share older results.
+				result = JOM.getInstance().convertValue(
+						PollCoalescer.getInstance().poll(myAgent,
+								monitor.getUrl(), monitor.getMethod(),
+								monitor.getParams(), 0, monitor.isPerSender()),
 						returnType);
 				if (monitor.hasCache()) {
 					monitor.getCache().store(result);
@@ -168,26 +201,72 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 			if (monitor.getUrl() == null || monitor.getMethod() == null) {
 				LOG.warning("Monitor data invalid:" + monitor);
 			}
-			final Object result = myAgent.send(monitor.getUrl(),
-					monitor.getMethod(),
-					JOM.getInstance().readTree(monitor.getParams()),
-					TypeFactory.unknownType());
-			if (monitor.getCallbackMethod() != null) {
+			// Share the request with identical polls of other monitors, the
+			// result is fanned out through their own doPoll calls. Joining a
+			// request in flight doesn't hold up this thread.
+			PollCoalescer.getInstance().poll(myAgent, monitor.getUrl(),
+					monitor.getMethod(), monitor.getParams(),
+					getWindow(monitor), monitor.isPerSender(),
+					new AsyncCallback<Object>() {
+						@Override
+						public void onSuccess(final Object result) {
+							polled(monitor, result);
+						}
+						
+						@Override
+						public void onFailure(final Exception exception) {
+							LOG.log(Level.WARNING, "Poll of monitor "
+									+ myAgent.getId() + "." + monitorId
+									+ " failed", exception);
+						}
+					});
+		}
+	}
+	
+	/**
+	 * Pass a poll result to the callback method and cache of the monitor.
+	 * 
+	 * @param monitor
+	 *            the monitor
+	 * @param result
+	 *            the result
+	 */
+	private void polled(final ResultMonitor monitor, final Object result) {
+		if (monitor.getCallbackMethod() != null) {
+			try {
 				final ObjectNode params = JOM.createObjectNode();
 				params.put("result",
 						JOM.getInstance().writeValueAsString(result));
-				myAgent.send(URI.create("local:" + myAgent.getId()),
+				myAgent.sendAsync(URI.create("local:" + myAgent.getId()),
 						monitor.getCallbackMethod(), params);
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't pass poll result of monitor "
+						+ myAgent.getId() + "." + monitor.getId(), e);
 			}
-			if (monitor.hasCache()) {
-				monitor.getCache().store(result);
-			}
+		}
+		if (monitor.hasCache()) {
+			monitor.getCache().store(result);
 		}
 	}
 	
-	// TODO: doesn't work!
-	/** The last res. */
-	private JsonNode	lastRes	= null;
+	/**
+	 * Gets the time a poll result may be shared with other monitors: half the
+	 * shortest poll interval, so the next poll always gets a fresh result.
+	 * 
+	 * @param monitor
+	 *            the monitor
+	 * @return the window in milliseconds
+	 */
+	private static long getWindow(final ResultMonitor monitor) {
+		long window = 0;
+		for (final Poll poll : monitor.getPolls()) {
+			if (poll.getInterval() > 0
+					&& (window == 0 || poll.getInterval() / 2 < window)) {
+				window = poll.getInterval() / 2;
+			}
+		}
+		return window;
+	}
 	
 	/*
 	 * (non-Javadoc)
@@ -217,25 +296,31 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 					method, params), myAgent);
 			
 			final JsonNode result = res.getResult();
-			if (pushParams.has("onChange")
-					&& pushParams.get("onChange").asBoolean()) {
-				if (lastRes != null && lastRes.equals(result)) {
+			final ObjectNode parms = JOM.createObjectNode();
+			String callbackMethod = CALLBACK;
+			if (pushParams.has("callback")) {
+				callbackMethod = pushParams.get("callback").textValue();
+			}
+			final PushDelta delta = getDelta(PUSHED, pushKey);
+			if (CALLBACK.equals(callbackMethod) && pushParams.has("patches")
+					&& pushParams.get("patches").asBoolean()) {
+				// Triggered pushes carry new parameters, send those anyway.
+				if (!delta.encode(result, parms, triggerParams != null)) {
 					return;
 				}
-				lastRes = result;
+			} else {
+				if (pushParams.has("onChange")
+						&& pushParams.get("onChange").asBoolean()
+						&& !delta.update(result)) {
+					return;
+				}
+				parms.put("result", result);
 			}
-			
-			final ObjectNode parms = JOM.createObjectNode();
-			parms.put("result", result);
 			parms.put("pushId", pushParams.get("pushId").textValue());
 			
 			parms.put("callbackParams", triggerParams == null ? pushParams
 					: pushParams.putAll(triggerParams));
 			
-			String callbackMethod = "monitor.callbackPush";
-			if (pushParams.has("callback")) {
-				callbackMethod = pushParams.get("callback").textValue();
-			}
 			myAgent.sendAsync(URI.create(pushParams.get("url").textValue()),
 					callbackMethod, parms, null, Void.class);
 			// TODO: If callback reports "old", unregisterPush();
@@ -252,7 +337,10 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 	 */
 	@Access(AccessType.PUBLIC)
 	@Override
-	public final void callbackPush(@Name("result") final Object result,
+	public final void callbackPush(
+			@Optional @Name("result") final JsonNode result,
+			@Optional @Name("patch") final ArrayNode patch,
+			@Optional @Name("seq") final Long seq,
 			@Name("pushId") final String pushId,
 			@Name("callbackParams") final ObjectNode callbackParams)
 			throws JSONRPCException {
@@ -269,6 +357,20 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 			
 			final ResultMonitor monitor = getMonitorById(monitorId);
 			if (monitor != null) {
+				JsonNode value = result;
+				if (seq != null) {
+					value = getDelta(RECEIVED, pushId).decode(result, patch,
+							seq);
+					if (value == null) {
+						// Missed an update, ask for the full result.
+						LOG.info("Resyncing push:" + pushId);
+						final ObjectNode params = JOM.createObjectNode();
+						params.put("pushId", pushId);
+						myAgent.sendAsync(monitor.getUrl(),
+								"monitor.resyncPush", params, null, Void.class);
+						return;
+					}
+				}
 				if (monitor.getCallbackMethod() != null) {
 					
 					ObjectNode params = JOM.createObjectNode();
@@ -276,12 +378,13 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 						params = callbackParams;
 					}
 					params.put("result",
-							JOM.getInstance().writeValueAsString(result));
+							JOM.getInstance().writeValueAsString(value));
 					myAgent.send(URI.create("local:" + myAgent.getId()),
 							monitor.getCallbackMethod(), params);
 				}
 				if (monitor.hasCache()) {
-					monitor.getCache().store(result);
+					monitor.getCache().store(
+							JOM.getInstance().treeToValue(value, Object.class));
 				}
 			} else {
 				LOG.severe("Couldn't find local monitor by id:" + monitorId);
@@ -307,6 +410,7 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 			@Name("config") final ObjectNode pushParams,
 			@Sender final String senderUrl) {
 		final String pushKey = "_push_" + senderUrl + "_" + id;
+		getDeltas(PUSHED).remove(pushKey);
 		pushParams.put("url", senderUrl);
 		pushParams.put("pushId", id);
 		
@@ -384,6 +488,7 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 	@Override
 	public final void unregisterPush(@Name("pushId") final String id,
 			@Sender final String senderUrl) throws IOException {
+		getDeltas(PUSHED).remove("_push_" + senderUrl + "_" + id);
 		ObjectNode config = null;
 		if (myAgent.getState() != null
 				&& myAgent.getState().containsKey(
@@ -409,6 +514,23 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 		}
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.monitor.ResultMonitorFactoryInterface#resyncPush(java
+	 * .lang.String, java.lang.String)
+	 */
+	@Access(AccessType.PUBLIC)
+	@Override
+	public final void resyncPush(@Name("pushId") final String id,
+			@Sender final String senderUrl) throws JSONRPCException,
+			IOException {
+		final String pushKey = "_push_" + senderUrl + "_" + id;
+		getDeltas(PUSHED).remove(pushKey);
+		doPush(pushKey, null);
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -419,18 +541,7 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 	@Override
 	public String store(final ResultMonitor monitor) {
 		try {
-			final Map<String, ResultMonitor> monitors = myAgent.getState().get(
-					MONITORS);
-			final HashMap<String, ResultMonitor> newmonitors = new HashMap<String, ResultMonitor>();
-			if (monitors != null) {
-				newmonitors.putAll(monitors);
-			}
-			newmonitors.put(monitor.getId(), monitor);
-			if (!myAgent.getState().putIfUnchanged(MONITORS.getKey(),
-					newmonitors, monitors)) {
-				// recursive retry.
-				store(monitor);
-			}
+			getRegistry().put(myAgent.getState(), monitor);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Couldn't find monitors:" + myAgent.getId()
 					+ "." + monitor.getId(), e);
@@ -449,19 +560,7 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 	public void delete(final String monitorId) {
 		
 		try {
-			final Map<String, ResultMonitor> monitors = myAgent.getState().get(
-					MONITORS);
-			final Map<String, ResultMonitor> newmonitors = new HashMap<String, ResultMonitor>();
-			if (monitors != null) {
-				newmonitors.putAll(monitors);
-			}
-			newmonitors.remove(monitorId);
-			
-			if (!myAgent.getState().putIfUnchanged(MONITORS.getKey(),
-					newmonitors, monitors)) {
-				// recursive retry.
-				delete(monitorId);
-			}
+			getRegistry().remove(myAgent.getState(), monitorId);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Couldn't delete monitor:" + myAgent.getId()
 					+ "." + monitorId, e);
@@ -478,16 +577,7 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 	@Override
 	public ResultMonitor getMonitorById(final String monitorId) {
 		try {
-			Map<String, ResultMonitor> monitors = myAgent.getState().get(
-					MONITORS);
-			if (monitors == null) {
-				monitors = new HashMap<String, ResultMonitor>();
-			}
-			final ResultMonitor result = monitors.get(monitorId);
-			if (result != null) {
-				result.init();
-			}
-			return result;
+			return getRegistry().monitors.get(monitorId);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Couldn't find monitor:" + myAgent.getId()
 					+ "." + monitorId, e);
@@ -517,18 +607,218 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 	public List<ResultMonitor> getMonitors() {
 		
 		try {
-			Map<String, ResultMonitor> monitors = myAgent.getState().get(
-					MONITORS);
-			if (monitors == null) {
-				monitors = new HashMap<String, ResultMonitor>();
-			}
-			final List<ResultMonitor> result = new ArrayList<ResultMonitor>(
-					monitors.size());
-			result.addAll(monitors.values());
-			return result;
+			return new ArrayList<ResultMonitor>(getRegistry().monitors.values());
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Couldn't find monitors.", e);
 		}
 		return null;
 	}
+	
+	/**
+	 * Gets the live monitors of this agent, loading them from the state on
+	 * first use, and reloading the records that have changed since.
+	 * 
+	 * @return the registry
+	 */
+	private Registry getRegistry() {
+		RegistryReference cleared;
+		while ((cleared = (RegistryReference) CLEARED.poll()) != null) {
+			REGISTRY.remove(cleared.agentId, cleared);
+		}
+		final String agentId = myAgent.getId();
+		RegistryReference reference = REGISTRY.get(agentId);
+		Registry registry = reference != null ? reference.get() : null;
+		if (registry == null) {
+			synchronized (REGISTRY) {
+				reference = REGISTRY.get(agentId);
+				registry = reference != null ? reference.get() : null;
+				if (registry == null) {
+					registry = new Registry();
+					REGISTRY.put(agentId, new RegistryReference(agentId,
+							registry));
+				}
+			}
+		}
+		registry.refresh(myAgent.getState());
+		return registry;
+	}
+	
+	/**
+	 * Gets the push deltas of this agent.
+	 * 
+	 * @param deltas
+	 *            the deltas of all agents, either sent or received
+	 * @return the deltas of this agent, by push key or push id
+	 */
+	private ConcurrentHashMap<String, PushDelta> getDeltas(
+			final ConcurrentHashMap<String, ConcurrentHashMap<String, PushDelta>> deltas) {
+		ConcurrentHashMap<String, PushDelta> result = deltas.get(myAgent
+				.getId());
+		if (result == null) {
+			result = new ConcurrentHashMap<String, PushDelta>();
+			final ConcurrentHashMap<String, PushDelta> other = deltas.putIfAbsent(
+					myAgent.getId(), result);
+			if (other != null) {
+				result = other;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the push delta for one subscription, creating it if needed.
+	 * 
+	 * @param deltas
+	 *            the deltas of all agents, either sent or received
+	 * @param key
+	 *            the push key or push id
+	 * @return the delta
+	 */
+	private PushDelta getDelta(
+			final ConcurrentHashMap<String, ConcurrentHashMap<String, PushDelta>> deltas,
+			final String key) {
+		final ConcurrentHashMap<String, PushDelta> map = getDeltas(deltas);
+		PushDelta result = map.get(key);
+		if (result == null) {
+			result = new PushDelta();
+			final PushDelta other = map.putIfAbsent(key, result);
+			if (other != null) {
+				result = other;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Drop the live monitors and push deltas of an agent, e.g. when the agent
+	 * is deleted. Monitors are loaded from the state again on next use.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 */
+	public static void unload(final String agentId) {
+		REGISTRY.remove(agentId);
+		PUSHED.remove(agentId);
+		RECEIVED.remove(agentId);
+	}
+	
+	/**
+	 * The live monitors of one agent, with the versions of the state records
+	 * they were loaded from.
+	 */
+	private static final class Registry {
+		private final Map<String, ResultMonitor>	monitors	= new ConcurrentHashMap<String, ResultMonitor>();
+		private final Map<String, Long>				versions	= new HashMap<String, Long>();
+		private boolean								loaded		= false;
+		private long								changed		= 0;
+		
+		/**
+		 * If the records have changed since the last refresh, load the
+		 * monitor records that are new or have a new version, and drop the
+		 * monitors whose record is gone. Monitors stored in the old single
+		 * "_monitors" map are moved to their own records first.
+		 * 
+		 * @param state
+		 *            the state of the agent
+		 */
+		private synchronized void refresh(final State state) {
+			// Version first: a change during the scan is seen next time.
+			final long marker = state.getVersion(CHANGED);
+			if (loaded && marker == changed) {
+				return;
+			}
+			changed = marker;
+			if (!loaded) {
+				final Map<String, ResultMonitor> legacy = state.get(MONITORS);
+				if (legacy != null) {
+					for (final ResultMonitor monitor : legacy.values()) {
+						state.put(PREFIX + monitor.getId(), monitor);
+					}
+					state.remove(MONITORS.getKey());
+					state.put(CHANGED, System.currentTimeMillis());
+				}
+				loaded = true;
+			}
+			final Set<String> found = new HashSet<String>();
+			for (final String key : state.keySet()) {
+				if (!key.startsWith(PREFIX)) {
+					continue;
+				}
+				final String id = key.substring(PREFIX.length());
+				found.add(id);
+				final long version = state.getVersion(key);
+				final Long known = versions.get(id);
+				if (known != null && known == version) {
+					continue;
+				}
+				final ResultMonitor monitor = state.get(key,
+						ResultMonitor.class);
+				versions.put(id, version);
+				if (monitor != null) {
+					monitor.init();
+					monitors.put(id, monitor);
+				} else {
+					monitors.remove(id);
+				}
+			}
+			monitors.keySet().retainAll(found);
+			versions.keySet().retainAll(found);
+		}
+		
+		/**
+		 * Store a monitor, keeping the live instance.
+		 * 
+		 * @param state
+		 *            the state of the agent
+		 * @param monitor
+		 *            the monitor
+		 */
+		private synchronized void put(final State state,
+				final ResultMonitor monitor) {
+			final String key = PREFIX + monitor.getId();
+			monitors.put(monitor.getId(), monitor);
+			final Map<String, Object> values = new HashMap<String, Object>(2);
+			values.put(key, monitor);
+			values.put(CHANGED, System.currentTimeMillis());
+			state.putAll(values);
+			versions.put(monitor.getId(), state.getVersion(key));
+		}
+		
+		/**
+		 * Delete a monitor.
+		 * 
+		 * @param state
+		 *            the state of the agent
+		 * @param monitorId
+		 *            the monitor id
+		 */
+		private synchronized void remove(final State state,
+				final String monitorId) {
+			monitors.remove(monitorId);
+			versions.remove(monitorId);
+			state.remove(PREFIX + monitorId);
+			state.put(CHANGED, System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * A soft reference to the registry of an agent.
+	 */
+	private static final class RegistryReference extends
+			SoftReference<Registry> {
+		private final String	agentId;
+		
+		/**
+		 * Instantiates a new registry reference.
+		 * 
+		 * @param agentId
+		 *            the agent id
+		 * @param registry
+		 *            the registry
+		 */
+		private RegistryReference(final String agentId, final Registry registry) {
+			super(registry, CLEARED);
+			this.agentId = agentId;
+		}
+	}
 }
@@ -15,6 +15,8 @@ import com.almende.eve.rpc.annotation.Optional;
 import com.almende.eve.rpc.annotation.Sender;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -50,15 +52,20 @@ public interface ResultMonitorFactoryInterface {
 	
 	/**
 	 * Callback method for the monitoring framework, doing the work for
-	 * receiving pushed data in the requester.
+	 * receiving pushed data in the requester. Pushes either carry the full
+	 * result, or a JSON Patch against the previous one; if a patch can't be
+	 * applied, a full result is requested through resyncPush.
 	 *
-	 * @param result the result
-	 * @param monitorId the monitor id
+	 * @param result the full result
+	 * @param patch the patch against the previous result
+	 * @param seq the sequence number of the push, null for full results only
+	 * @param pushId the push id
 	 * @param callbackParams the callback params
 	 * @throws JSONRPCException the jSONRPC exception
 	 */
-	void callbackPush(@Name("result") Object result,
-			@Name("monitorId") String monitorId,
+	void callbackPush(@Optional @Name("result") JsonNode result,
+			@Optional @Name("patch") ArrayNode patch,
+			@Optional @Name("seq") Long seq, @Name("pushId") String pushId,
 			@Name("callbackParams") ObjectNode callbackParams)
 			throws JSONRPCException;
 	
@@ -84,6 +91,18 @@ public interface ResultMonitorFactoryInterface {
 	void unregisterPush(@Name("pushId") String id, @Sender String senderUrl)
 			throws IOException;
 	
+	/**
+	 * Send the full result of a Push request again, for a requester that
+	 * couldn't apply a patch.
+	 *
+	 * @param id the id
+	 * @param senderUrl the sender url
+	 * @throws JSONRPCException the jSONRPC exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	void resyncPush(@Name("pushId") String id, @Sender String senderUrl)
+			throws JSONRPCException, IOException;
+	
 	/**
 	 * Sets up a monitored RPC call subscription. Conveniency method, which can
 	 * also be expressed as:
@@ -0,0 +1,42 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation to let JSON-RPC calls of a read-only agent method be served from
+ * a per-agent cache, keyed by the method and its parameters.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(value = ElementType.METHOD)
+public @interface Cacheable {
+	
+	/**
+	 * Time to live of a cached result, in milliseconds.
+	 *
+	 * @return the ttl
+	 */
+	long ttl() default 60000;
+	
+	/**
+	 * Names of the parameters that make up the cache key, all parameters if
+	 * empty.
+	 *
+	 * @return the parameter names
+	 */
+	String[] key() default {};
+	
+	/**
+	 * State keys the result depends on: a change of any of them invalidates
+	 * the cached result.
+	 *
+	 * @return the state keys
+	 */
+	String[] depends() default {};
+}
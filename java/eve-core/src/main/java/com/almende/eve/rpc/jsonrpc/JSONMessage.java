@@ -7,6 +7,7 @@ package com.almende.eve.rpc.jsonrpc;
 import java.io.Serializable;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class JSONMessage.
@@ -30,4 +31,11 @@ public abstract class JSONMessage implements Serializable {
 	 */
 	public abstract JsonNode getId();
 	
+	/**
+	 * Gets the object node.
+	 * 
+	 * @return the object node
+	 */
+	public abstract ObjectNode getObjectNode();
+	
 }
@@ -12,6 +12,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -22,10 +23,12 @@ import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.almende.eve.agent.AgentInterface;
 import com.almende.eve.agent.annotation.Namespace;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.annotation.Access;
 import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Cacheable;
 import com.almende.eve.rpc.annotation.Name;
 import com.almende.eve.rpc.annotation.Optional;
 import com.almende.eve.rpc.annotation.Sender;
@@ -159,6 +162,26 @@ public final class JSONRPC {
 								+ "' not found. The method does not exist or you are not authorized.");
 			}
 			
+			// Serve repeated calls of cacheable methods without running them.
+			final Cacheable cacheable = annotatedMethod
+					.getAnnotation(Cacheable.class);
+			RpcCache cache = null;
+			String cacheKey = null;
+			List<Long> versions = null;
+			if (cacheable != null && destination instanceof AgentInterface) {
+				final AgentInterface agent = (AgentInterface) destination;
+				cache = RpcCache.get(agent.getId());
+				cacheKey = getCacheKey(request, annotatedMethod, cacheable,
+						requestParams);
+				final JsonNode cached = cache.get(cacheKey, agent.getState());
+				if (cached != null) {
+					resp.setResult(cached.deepCopy());
+					return resp;
+				}
+				versions = RpcCache.getVersions(agent.getState(),
+						cacheable.depends());
+			}
+			
 			final MethodHandle methodHandle = annotatedMethod.getMethodHandle();
 			final Method method = annotatedMethod.getActualMethod();
 			
@@ -177,6 +200,10 @@ public final class JSONRPC {
 				result = JOM.createNullNode();
 			}
 			resp.setResult(result);
+			if (cache != null) {
+				cache.put(cacheKey, resp.getResult().deepCopy(), cacheable,
+						versions);
+			}
 		} catch (final JSONRPCException err) {
 			resp.setError(err);
 		} catch (final Throwable err) {
@@ -210,6 +237,45 @@ public final class JSONRPC {
 		return resp;
 	}
 	
+	/**
+	 * Gets the cache key of a call: the method name and the canonical form of
+	 * the parameters selected by the Cacheable annotation, including request
+	 * parameters like the sender.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param method
+	 *            the method
+	 * @param cacheable
+	 *            the cacheable
+	 * @param requestParams
+	 *            the request params
+	 * @return the cache key
+	 */
+	private static String getCacheKey(final JSONRequest request,
+			final AnnotatedMethod method, final Cacheable cacheable,
+			final RequestParams requestParams) {
+		final StringBuilder key = new StringBuilder(request.getMethod());
+		final ObjectNode params = request.getParams();
+		final List<String> names = Arrays.asList(cacheable.key());
+		for (final AnnotatedParam param : method.getParams()) {
+			key.append('|');
+			final Annotation a = getRequestAnnotation(param, requestParams);
+			if (a != null) {
+				key.append(requestParams.get(a));
+			} else {
+				final String name = getName(param);
+				if (name == null) {
+					RpcCache.canonical(params, key);
+				} else if (names.isEmpty() || names.contains(name)) {
+					RpcCache.canonical(params == null ? null : params.get(name),
+							key);
+				}
+			}
+		}
+		return key.toString();
+	}
+	
 	/**
 	 * Validate whether the given class contains valid JSON-RPC methods. A class
 	 * if valid when:<br>
@@ -733,4 +799,4 @@ public final class JSONRPC {
 		return (json.has("result") || json.has("error"));
 	}
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,284 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.almende.eve.rpc.annotation.Cacheable;
+import com.almende.eve.state.State;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Bounded per-agent cache of the results of {@link Cacheable} methods.
+ * Entries are dropped when their ttl passes, when one of the state keys
+ * they depend on gets a new version, or when the cache is full (least
+ * recently used first).
+ */
+public final class RpcCache {
+	/** Maximum number of cached results per agent. */
+	public static final int										MAXENTRIES	= 100;
+	private static final ConcurrentHashMap<String, RpcCache>	CACHES		= new ConcurrentHashMap<String, RpcCache>();
+	private final Map<String, Result>							entries		= new LruMap();
+	private long												hits		= 0;
+	private long												misses		= 0;
+	private long												evictions	= 0;
+	private long												invalid		= 0;
+	
+	/**
+	 * Instantiates a new rpc cache.
+	 */
+	private RpcCache() {
+	}
+	
+	/**
+	 * Gets the cache of an agent, creating it if needed.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return the cache
+	 */
+	public static RpcCache get(final String agentId) {
+		RpcCache result = CACHES.get(agentId);
+		if (result == null) {
+			result = new RpcCache();
+			final RpcCache other = CACHES.putIfAbsent(agentId, result);
+			if (other != null) {
+				result = other;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Drop the cache of an agent, e.g. when the agent is deleted.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 */
+	public static void remove(final String agentId) {
+		CACHES.remove(agentId);
+	}
+	
+	/**
+	 * Gets the statistics of all agent caches.
+	 *
+	 * @return the statistics by agent id
+	 */
+	public static Map<String, Map<String, Object>> getAllStats() {
+		final Map<String, Map<String, Object>> result = new HashMap<String, Map<String, Object>>();
+		for (final Map.Entry<String, RpcCache> cache : CACHES.entrySet()) {
+			result.put(cache.getKey(), cache.getValue().getStats());
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets a cached result.
+	 *
+	 * @param key
+	 *            the cache key
+	 * @param state
+	 *            the state of the agent, to check dependencies against
+	 * @return the result, or null if not cached or no longer valid
+	 */
+	public JsonNode get(final String key, final State state) {
+		final Result entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+		}
+		if (entry.expires <= System.currentTimeMillis()
+				|| !entry.versions.equals(getVersions(state, entry.depends))) {
+			synchronized (this) {
+				if (entries.get(key) == entry) {
+					entries.remove(key);
+					invalid++;
+				}
+				misses++;
+			}
+			return null;
+		}
+		synchronized (this) {
+			hits++;
+		}
+		return entry.value;
+	}
+	
+	/**
+	 * Store a result.
+	 *
+	 * @param key
+	 *            the cache key
+	 * @param value
+	 *            the result
+	 * @param cacheable
+	 *            the annotation of the method, with ttl and dependencies
+	 * @param versions
+	 *            the versions of the dependencies from before the call, see
+	 *            {@link #getVersions(State, String[])}
+	 */
+	public void put(final String key, final JsonNode value,
+			final Cacheable cacheable, final List<Long> versions) {
+		final Result entry = new Result(value, System.currentTimeMillis()
+				+ cacheable.ttl(), cacheable.depends(), versions);
+		synchronized (this) {
+			entries.put(key, entry);
+		}
+	}
+	
+	/**
+	 * Drop all cached results of this agent.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+	
+	/**
+	 * Gets the statistics of this cache: hits, misses, hit rate, evictions,
+	 * invalidations and size.
+	 *
+	 * @return the statistics
+	 */
+	public synchronized Map<String, Object> getStats() {
+		final Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("hits", hits);
+		result.put("misses", misses);
+		result.put("hitRate", hits + misses == 0 ? 0.0 : (double) hits
+				/ (hits + misses));
+		result.put("evictions", evictions);
+		result.put("invalidations", invalid);
+		result.put("size", entries.size());
+		return result;
+	}
+	
+	/**
+	 * Gets the current versions of the given state keys.
+	 *
+	 * @param state
+	 *            the state
+	 * @param keys
+	 *            the keys
+	 * @return the versions, in the same order
+	 */
+	public static List<Long> getVersions(final State state, final String[] keys) {
+		if (keys.length == 0 || state == null) {
+			return Collections.emptyList();
+		}
+		final List<Long> result = new ArrayList<Long>(keys.length);
+		for (final String key : keys) {
+			result.add(state.getVersion(key));
+		}
+		return result;
+	}
+	
+	/**
+	 * Build a canonical string of a JSON value: object fields are sorted, so
+	 * equal parameters give equal cache keys regardless of their order.
+	 *
+	 * @param node
+	 *            the node
+	 * @param out
+	 *            the output
+	 */
+	public static void canonical(final JsonNode node, final StringBuilder out) {
+		if (node == null) {
+			out.append("null");
+		} else if (node.isObject()) {
+			final List<String> names = new ArrayList<String>(node.size());
+			final Iterator<String> iter = node.fieldNames();
+			while (iter.hasNext()) {
+				names.add(iter.next());
+			}
+			Collections.sort(names);
+			out.append('{');
+			for (final String name : names) {
+				out.append(TextNode.valueOf(name).toString()).append(':');
+				canonical(node.get(name), out);
+				out.append(',');
+			}
+			out.append('}');
+		} else if (node.isArray()) {
+			out.append('[');
+			for (final JsonNode elem : node) {
+				canonical(elem, out);
+				out.append(',');
+			}
+			out.append(']');
+		} else {
+			out.append(node.toString());
+		}
+	}
+	
+	/**
+	 * The cached results in least recently used order, dropping the eldest
+	 * when full.
+	 */
+	private final class LruMap extends LinkedHashMap<String, Result> {
+		private static final long	serialVersionUID	= 1L;
+		
+		/**
+		 * Instantiates a new lru map.
+		 */
+		private LruMap() {
+			super(16, 0.75f, true);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+		 */
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, Result> eldest) {
+			if (size() > MAXENTRIES) {
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * A cached result.
+	 */
+	private static final class Result {
+		private final JsonNode		value;
+		private final long			expires;
+		private final String[]		depends;
+		private final List<Long>	versions;
+		
+		/**
+		 * Instantiates a new result.
+		 *
+		 * @param value
+		 *            the value
+		 * @param expires
+		 *            the expiry time
+		 * @param depends
+		 *            the state keys
+		 * @param versions
+		 *            their versions
+		 */
+		private Result(final JsonNode value, final long expires,
+				final String[] depends, final List<Long> versions) {
+			this.value = value;
+			this.expires = expires;
+			this.depends = depends;
+			this.versions = versions;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc.jackson;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * The encodings in which JSON data can be stored or sent.
+ *
+ * Text JSON is the default. Smile is a binary JSON encoding, which is more
+ * compact and faster to parse. Smile data always starts with a fixed header
+ * (":)\n"), which makes the encoding self-describing: readers detect the
+ * encoding of incoming data, whatever encoding the writer was configured
+ * with.
+ */
+public enum Codec {
+	
+	/** Text JSON. */
+	JSON("json", "application/json"),
+	
+	/** Binary Smile encoding. */
+	SMILE("smile", "application/x-jackson-smile");
+	
+	private static final byte[]	SMILEHEADER	= new byte[] { ':', ')', '\n' };
+	private final String		name;
+	private final String		contentType;
+	
+	/**
+	 * Holds the Smile mapper, which is created on first use.
+	 */
+	private static final class SmileMapper {
+		private static final ObjectMapper	INSTANCE	= JOM.createInstance(new SmileFactory());
+	}
+	
+	/**
+	 * Instantiates a new codec.
+	 *
+	 * @param name
+	 *            the name
+	 * @param contentType
+	 *            the content type
+	 */
+	private Codec(final String name, final String contentType) {
+		this.name = name;
+		this.contentType = contentType;
+	}
+	
+	/**
+	 * Gets the name, as used in configuration and headers.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Gets the (HTTP) content type.
+	 *
+	 * @return the content type
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+	
+	/**
+	 * Checks if this is a binary encoding.
+	 *
+	 * @return true, if is binary
+	 */
+	public boolean isBinary() {
+		return this != JSON;
+	}
+	
+	/**
+	 * Gets the ObjectMapper for this encoding, configured like
+	 * {@link JOM#getInstance()}.
+	 *
+	 * @return the mapper
+	 */
+	public ObjectMapper getMapper() {
+		return this == JSON ? JOM.getInstance() : SmileMapper.INSTANCE;
+	}
+	
+	/**
+	 * Encode the given value.
+	 *
+	 * @param value
+	 *            the value
+	 * @return the encoded bytes
+	 * @throws JsonProcessingException
+	 *             the json processing exception
+	 */
+	public byte[] encode(final Object value) throws JsonProcessingException {
+		return getMapper().writeValueAsBytes(value);
+	}
+	
+	/**
+	 * Get the codec with the given name.
+	 *
+	 * @param name
+	 *            the name
+	 * @return the codec, or JSON if the name is null
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown
+	 */
+	public static Codec forName(final String name) {
+		if (name == null) {
+			return JSON;
+		}
+		for (final Codec codec : values()) {
+			if (codec.name.equalsIgnoreCase(name)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown codec '" + name
+				+ "', supported: " + getNames());
+	}
+	
+	/**
+	 * Get the codec matching the given content type.
+	 *
+	 * @param contentType
+	 *            the content type, e.g. from a HTTP header
+	 * @return the codec, or JSON if unknown
+	 */
+	public static Codec forContentType(final String contentType) {
+		if (contentType != null) {
+			for (final Codec codec : values()) {
+				if (contentType.startsWith(codec.contentType)) {
+					return codec;
+				}
+			}
+		}
+		return JSON;
+	}
+	
+	/**
+	 * Check if a comma separated list of codec names contains this codec.
+	 *
+	 * @param names
+	 *            the names, e.g. from a header
+	 * @return true, if successful
+	 */
+	public boolean isIn(final String names) {
+		if (names != null) {
+			for (final String item : names.split(",")) {
+				if (item.trim().equalsIgnoreCase(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Names of all supported codecs, comma separated.
+	 *
+	 * @return the names
+	 */
+	public static String getNames() {
+		final StringBuilder result = new StringBuilder();
+		for (final Codec codec : values()) {
+			if (result.length() > 0) {
+				result.append(',');
+			}
+			result.append(codec.name);
+		}
+		return result.toString();
+	}
+	
+	/**
+	 * Detect the encoding of the given data.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the codec
+	 */
+	public static Codec detect(final byte[] data) {
+		return detect(ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * Detect the encoding of the given data, without changing the position of
+	 * the buffer.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the codec
+	 */
+	public static Codec detect(final ByteBuffer data) {
+		if (data.remaining() < SMILEHEADER.length) {
+			return JSON;
+		}
+		for (int i = 0; i < SMILEHEADER.length; i++) {
+			if (data.get(data.position() + i) != SMILEHEADER[i]) {
+				return JSON;
+			}
+		}
+		return SMILE;
+	}
+	
+	/**
+	 * Decode the given data, detecting its encoding.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the json node
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static JsonNode decode(final byte[] data) throws IOException {
+		return detect(data).getMapper().readTree(data);
+	}
+	
+	/**
+	 * Decode the given data, detecting its encoding. The data is parsed
+	 * directly from the buffer, without copying, and the position of the
+	 * buffer is left as it is.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the json node
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static JsonNode decode(final ByteBuffer data) throws IOException {
+		return detect(data).getMapper().readTree(
+				new BufferInputStream(data.duplicate()));
+	}
+	
+	/**
+	 * Decode the given stream, detecting its encoding.
+	 *
+	 * @param data
+	 *            the data
+	 * @return the json node
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static JsonNode decode(final InputStream data) throws IOException {
+		final InputStream in = data.markSupported() ? data
+				: new BufferedInputStream(data);
+		final byte[] header = new byte[SMILEHEADER.length];
+		in.mark(header.length);
+		int count = 0;
+		while (count < header.length) {
+			final int read = in.read(header, count, header.length - count);
+			if (read < 0) {
+				break;
+			}
+			count += read;
+		}
+		in.reset();
+		if (count < header.length) {
+			return JSON.getMapper().readTree(in);
+		}
+		return detect(header).getMapper().readTree(in);
+	}
+	
+	/**
+	 * An input stream reading the remaining bytes of a buffer.
+	 */
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer	buffer;
+		
+		/**
+		 * Instantiates a new buffer input stream.
+		 *
+		 * @param buffer
+		 *            the buffer, which is consumed by reading
+		 */
+		private BufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+		
+		@Override
+		public int read(final byte[] bytes, final int offset, final int length) {
+			if (length == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -3,6 +3,7 @@
  */
 package com.almende.eve.rpc.jsonrpc.jackson;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationFeature;
@@ -20,7 +21,7 @@ import com.fasterxml.jackson.datatype.joda.JodaModule;
 public final class JOM {
 	private static final ObjectMapper	MAPPER;
 	static {
-		MAPPER = createInstance();
+		MAPPER = createInstance(new JsonFactory());
 	}
 	protected JOM() {
 	}
@@ -34,6 +35,17 @@ public final class JOM {
 		return MAPPER;
 	}
 	
+	/**
+	 * Gets the single instance of JOM for the given encoding.
+	 *
+	 * @param codec
+	 *            the codec
+	 * @return single instance of JOM for this codec
+	 */
+	public static ObjectMapper getInstance(final Codec codec) {
+		return codec.getMapper();
+	}
+	
 	/**
 	 * Creates the object node.
 	 *
@@ -64,10 +76,12 @@ public final class JOM {
 	/**
 	 * Creates the instance.
 	 *
+	 * @param factory
+	 *            the factory, determining the encoding
 	 * @return the object mapper
 	 */
-	private static synchronized ObjectMapper createInstance() {
-		final ObjectMapper mapper = new ObjectMapper();
+	static synchronized ObjectMapper createInstance(final JsonFactory factory) {
+		final ObjectMapper mapper = new ObjectMapper(factory);
 		
 		// set configuration
 		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES,
@@ -4,6 +4,9 @@
  */
 package com.almende.eve.scheduler;
 
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+
 /**
  * The Class AbstractScheduler.
  *
@@ -11,6 +14,132 @@ package com.almende.eve.scheduler;
  */
 public abstract class AbstractScheduler implements Scheduler {
 	
+	/**
+	 * Gets the due time of the first run of a repeating task after the run
+	 * that was due at the given time: one interval later. Aligned tasks run on
+	 * the grid of multiples of the interval counted from the epoch, shifted by
+	 * the offset, so tasks with the same interval (e.g. the polls of many
+	 * monitors) fire together; their first run is the first grid time at
+	 * least one interval after the due time. Other tasks keep the phase of
+	 * their own due time.
+	 * 
+	 * @param interval
+	 *            the interval in milliseconds
+	 * @param due
+	 *            the due time of the last run
+	 * @param aligned
+	 *            whether the task runs on the interval grid
+	 * @param offset
+	 *            the offset of the grid, for aligned tasks
+	 * @return the due time
+	 */
+	private static long firstRun(final long interval, final long due,
+			final boolean aligned, final long offset) {
+		final long next = due + interval;
+		if (!aligned) {
+			return next;
+		}
+		final long rest = ((next - offset) % interval + interval) % interval;
+		return rest == 0 ? next : next + interval - rest;
+	}
+	
+	/**
+	 * Gets the number of runs that were due since the run at the given due
+	 * time, not counting that run itself.
+	 * 
+	 * @param interval
+	 *            the interval in milliseconds
+	 * @param due
+	 *            the due time of the last run
+	 * @param aligned
+	 *            whether the task runs on the interval grid
+	 * @param offset
+	 *            the offset of the grid, for aligned tasks
+	 * @return the number of missed runs
+	 */
+	public static long missedRuns(final long interval, final long due,
+			final boolean aligned, final long offset) {
+		final long first = firstRun(interval, due, aligned, offset);
+		final long now = System.currentTimeMillis();
+		return now < first ? 0 : (now - first) / interval + 1;
+	}
+	
+	/**
+	 * Gets the due time of the next run of a repeating task that owes no
+	 * missed runs: its first run after now, never sooner than one interval
+	 * after the run that was due at the given time.
+	 * 
+	 * @param interval
+	 *            the interval in milliseconds
+	 * @param due
+	 *            the due time of the last run
+	 * @param aligned
+	 *            whether the task runs on the interval grid
+	 * @param offset
+	 *            the offset of the grid, for aligned tasks
+	 * @return the due time
+	 */
+	public static long nextRun(final long interval, final long due,
+			final boolean aligned, final long offset) {
+		return firstRun(interval, due, aligned, offset)
+				+ missedRuns(interval, due, aligned, offset) * interval;
+	}
+	
+	/**
+	 * Copy the request of a task with a new id, so the response of each run
+	 * is told apart, also when runs of the same request time out.
+	 * 
+	 * @param request
+	 *            the request
+	 * @return the copy
+	 * @throws JSONRPCException
+	 *             the JSONRPC exception
+	 */
+	protected static JSONRequest newRun(final JSONRequest request)
+			throws JSONRPCException {
+		final JSONRequest copy = new JSONRequest(request.getObjectNode()
+				.deepCopy());
+		copy.setId(null);
+		return copy;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.scheduler.Scheduler#createTask(com.almende.eve.rpc.jsonrpc.JSONRequest, long, boolean, boolean)
+	 */
+	@Override
+	public String createTask(final JSONRequest request, final long delay,
+			final boolean repeat, final boolean sequential) {
+		return createTask(request, delay, repeat,
+				OverlapPolicy.fromSequential(sequential));
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.scheduler.Scheduler#createTask(com.almende.eve.rpc.jsonrpc.JSONRequest, long, boolean, com.almende.eve.scheduler.OverlapPolicy)
+	 */
+	@Override
+	public String createTask(final JSONRequest request, final long delay,
+			final boolean repeat, final OverlapPolicy policy) {
+		return createTask(request, delay, repeat, policy, null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.scheduler.Scheduler#createTask(com.almende.eve.rpc.jsonrpc.JSONRequest, long, boolean, com.almende.eve.scheduler.OverlapPolicy, java.lang.String)
+	 */
+	@Override
+	public String createTask(final JSONRequest request, final long delay,
+			final boolean repeat, final OverlapPolicy policy, final String key) {
+		return createTask(request, delay, repeat, policy, key, false);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.scheduler.Scheduler#createTask(com.almende.eve.rpc.jsonrpc.JSONRequest, long, java.lang.String)
+	 */
+	@Override
+	public String createTask(final JSONRequest request, final long delay,
+			final String key) {
+		return createTask(request, delay, false, OverlapPolicy.SKIP, key);
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.almende.eve.scheduler.Scheduler#cancelAllTasks()
 	 */
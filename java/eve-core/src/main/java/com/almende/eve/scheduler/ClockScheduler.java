@@ -5,10 +5,16 @@ package com.almende.eve.scheduler;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,26 +22,62 @@ import org.joda.time.DateTime;
 
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.callback.AsyncCallback;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.scheduler.clock.Clock;
 import com.almende.eve.scheduler.clock.RunnableClock;
+import com.almende.eve.state.State;
 import com.almende.eve.state.TypedKey;
 import com.almende.util.uuid.UUID;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * The Class ClockScheduler.
+ * 
+ * Each task is stored as its own state record, and indexed in memory by due
+ * time and id: the next task is found in O(log n), and adding, running or
+ * canceling a task only writes that task.
+ * 
+ * All tasks that are due at the same time, like aligned repeating tasks with
+ * the same interval, are run as one batch: their requests are sent to the
+ * agent like that of a single task, and once they have all completed, their
+ * next runs are stored in a single write. An optional jitter offsets the aligned runs of each agent by a fixed
+ * amount, to spread the load of many agents.
+ * 
+ * A task is rescheduled when its run has completed, so runs of a repeating
+ * task never overlap; the runs missed in the meantime are handled by the
+ * task's {@link OverlapPolicy}. One-shot tasks are sent with a callback as
+ * well, and only removed once their run has completed. So while a run is in
+ * flight, its task is still listed and stored with its old due time.
+ * 
+ * Tasks with the same idempotency key are only scheduled once. Tasks without
+ * a key are never merged, so cancelling one doesn't stop another caller's.
+ * 
+ * With a {@link DueIndex}, the agent is indexed by the due time of its first
+ * task, so it can be woken after a restart. The indexed time is stored next
+ * to the tasks, under {@link #DUE}, and written together with them.
  */
 public class ClockScheduler extends AbstractScheduler implements Runnable {
 	private static final Logger									LOG			= Logger.getLogger("ClockScheduler");
-	private final AgentInterface								myAgent;
-	private final Clock											myClock;
-	private final ClockScheduler								_this		= this;
 	private static final TypedKey<TreeMap<String, TaskEntry>>	TYPEDKEY	= new TypedKey<TreeMap<String, TaskEntry>>(
 																					"_taskList") {
 																			};
-	private static final int									MAXCOUNT	= 100;
+	/** The state key prefix of the task records. */
+	public static final String									PREFIX		= "_task_";
+	/** The state key of the due time under which the agent is indexed. */
+	public static final String									DUE			= "_taskDue";
+	private final AgentInterface								myAgent;
+	private final AgentHost										host;
+	private final long											jitter;
+	private final Clock											myClock;
+	private final SchedulerMetrics								metrics;
+	private final DueIndex										index;
+	private Long												indexed		= null;
+	private TreeSet<TaskEntry>									timeline	= null;
+	private Map<String, TaskEntry>								tasks		= null;
+	private Map<String, TaskEntry>								keys		= null;
 	
 	/**
 	 * Instantiates a new clock scheduler.
@@ -46,50 +88,242 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 *            the host
 	 */
 	public ClockScheduler(final AgentInterface myAgent, final AgentHost host) {
+		this(myAgent, host, 0);
+	}
+	
+	/**
+	 * Instantiates a new clock scheduler.
+	 * 
+	 * @param myAgent
+	 *            the my agent
+	 * @param host
+	 *            the host
+	 * @param jitter
+	 *            the maximum offset in milliseconds of the aligned runs of
+	 *            this agent's repeating tasks, 0 for none
+	 */
+	public ClockScheduler(final AgentInterface myAgent, final AgentHost host,
+			final long jitter) {
+		this(myAgent, host, jitter, SchedulerMetrics
+				.get(ClockSchedulerFactory.NAME));
+	}
+	
+	/**
+	 * Instantiates a new clock scheduler.
+	 * 
+	 * @param myAgent
+	 *            the my agent
+	 * @param host
+	 *            the host
+	 * @param jitter
+	 *            the maximum offset in milliseconds of the aligned runs of
+	 *            this agent's repeating tasks, 0 for none
+	 * @param metrics
+	 *            the metrics to record fire lag and execution time in
+	 */
+	public ClockScheduler(final AgentInterface myAgent, final AgentHost host,
+			final long jitter, final SchedulerMetrics metrics) {
+		this(myAgent, host, jitter, metrics, null, null);
+	}
+	
+	/**
+	 * Instantiates a new clock scheduler.
+	 * 
+	 * @param myAgent
+	 *            the my agent
+	 * @param host
+	 *            the host
+	 * @param jitter
+	 *            the maximum offset in milliseconds of the aligned runs of
+	 *            this agent's repeating tasks, 0 for none
+	 * @param metrics
+	 *            the metrics to record fire lag and execution time in
+	 * @param index
+	 *            the index to keep the agent's first due time in, may be null
+	 * @param clock
+	 *            the clock to request the triggers from, null for a clock
+	 *            with the default tick
+	 */
+	ClockScheduler(final AgentInterface myAgent, final AgentHost host,
+			final long jitter, final SchedulerMetrics metrics,
+			final DueIndex index, final Clock clock) {
 		if (myAgent == null) {
 			throw new IllegalArgumentException("MyAgent should not be null!");
 		}
 		this.myAgent = myAgent;
-		myClock = new RunnableClock();
+		this.host = host;
+		this.jitter = jitter;
+		this.metrics = metrics;
+		this.index = index;
+		if (clock != null) {
+			myClock = clock;
+		} else if (host != null) {
+			myClock = new RunnableClock(host.getPool());
+		} else {
+			myClock = new RunnableClock();
+		}
 	}
 	
 	/**
-	 * Gets the first task.
+	 * Load the task index from the state, once. Tasks stored in the old
+	 * single "_taskList" map are moved to their own records.
 	 * 
-	 * @return the first task
+	 * @return false if there is no state
 	 */
-	public TaskEntry getFirstTask() {
-		if (myAgent.getState() == null) {
-			return null;
+	private boolean load() {
+		final State state = myAgent.getState();
+		if (state == null) {
+			return false;
 		}
-		final TreeMap<String, TaskEntry> timeline = myAgent.getState().get(
-				TYPEDKEY);
-		if (timeline != null && !timeline.isEmpty()) {
-			TaskEntry task = timeline.firstEntry().getValue();
-			int count = 0;
-			while (task != null && task.isActive() && count < MAXCOUNT) {
-				count++;
-				final Entry<String, TaskEntry> entry = timeline
-						.higherEntry(task.getTaskId());
-				task = null;
-				if (entry != null) {
-					task = entry.getValue();
-				}
+		if (tasks != null) {
+			return true;
+		}
+		timeline = new TreeSet<TaskEntry>();
+		tasks = new HashMap<String, TaskEntry>();
+		keys = new HashMap<String, TaskEntry>();
+		final TreeMap<String, TaskEntry> legacy = state.get(TYPEDKEY);
+		if (legacy != null) {
+			for (final TaskEntry task : legacy.values()) {
+				task.setActive(false);
+				state.put(PREFIX + task.getTaskId(), task);
 			}
-			if (count >= MAXCOUNT) {
-				LOG.warning("Oops: more than 100 tasks active at the same time:"
-						+ myAgent.getId()
-						+ " : "
-						+ timeline.size()
-						+ "/"
-						+ count);
-			} else {
-				return task;
+			state.remove(TYPEDKEY.getKey());
+		}
+		for (final String key : state.keySet()) {
+			if (key.startsWith(PREFIX)) {
+				final TaskEntry task = getTask(state, key);
+				if (task == null) {
+					continue;
+				}
+				if (task.getKey() != null && keys.containsKey(task.getKey())) {
+					// A duplicate, only one of them should fire.
+					state.remove(key);
+					continue;
+				}
+				// Runs that were interrupted are rerun.
+				task.setActive(false);
+				tasks.put(task.getTaskId(), task);
+				timeline.add(task);
+				if (task.getKey() != null) {
+					keys.put(task.getKey(), task);
+				}
 			}
 		}
+		indexed = state.get(DUE, Long.class);
+		final Map<String, Object> changed = new HashMap<String, Object>(1);
+		reindex(changed);
+		if (!changed.isEmpty()) {
+			state.putAll(changed);
+		}
+		return true;
+	}
+	
+	/**
+	 * Read a persisted task. A record that can't be decoded is logged and
+	 * skipped, so it doesn't stop the other tasks from loading.
+	 * 
+	 * @param state
+	 *            the state
+	 * @param key
+	 *            the key of the task record
+	 * @return the task, or null if there is none or it can't be decoded
+	 */
+	static TaskEntry getTask(final State state, final String key) {
+		try {
+			return state.get(key, TaskEntry.class);
+		} catch (final ClassCastException e) {
+			LOG.log(Level.WARNING, "Skipping undecodable task record '" + key
+					+ "'", e);
+		} catch (final IllegalArgumentException e) {
+			LOG.log(Level.WARNING, "Skipping undecodable task record '" + key
+					+ "'", e);
+		}
 		return null;
 	}
 	
+	/**
+	 * Move the agent in the due index, when the due time of its first task
+	 * has left its bucket or moved earlier. The new due time is added to the
+	 * given changes, to be written together with the tasks.
+	 * 
+	 * @param changed
+	 *            the changes to write
+	 */
+	private void reindex(final Map<String, Object> changed) {
+		if (index == null) {
+			return;
+		}
+		Long due = null;
+		if (!tasks.isEmpty()) {
+			if (timeline.isEmpty()) {
+				// All running, their runs are still indexed.
+				return;
+			}
+			due = timeline.first().getDue().getMillis();
+		}
+		if (!DueIndex.moved(indexed, due)) {
+			return;
+		}
+		index.move(myAgent.getId(), indexed, due);
+		indexed = due;
+		if (due != null) {
+			changed.put(DUE, due);
+		} else {
+			myAgent.getState().remove(DUE);
+		}
+	}
+	
+	/**
+	 * Gets the due time under which the agent is indexed.
+	 * 
+	 * @return the due time in milliseconds, or null
+	 */
+	synchronized Long getIndexed() {
+		return indexed;
+	}
+	
+	/**
+	 * Drop the task index and load it again from the state, e.g. after
+	 * another host changed the tasks. Runs that are in progress are kept, so
+	 * they aren't started again.
+	 */
+	synchronized void reload() {
+		final List<TaskEntry> running = new ArrayList<TaskEntry>();
+		if (tasks != null) {
+			for (final TaskEntry task : tasks.values()) {
+				if (task.isActive()) {
+					running.add(task);
+				}
+			}
+		}
+		tasks = null;
+		if (!load()) {
+			return;
+		}
+		for (final TaskEntry task : running) {
+			final TaskEntry loaded = tasks.get(task.getTaskId());
+			if (loaded != null) {
+				timeline.remove(loaded);
+				tasks.put(task.getTaskId(), task);
+				if (task.getKey() != null) {
+					keys.put(task.getKey(), task);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gets the first task that is not running.
+	 * 
+	 * @return the first task
+	 */
+	public synchronized TaskEntry getFirstTask() {
+		if (!load() || timeline.isEmpty()) {
+			return null;
+		}
+		return timeline.first();
+	}
+	
 	/**
 	 * Put task.
 	 * 
@@ -108,35 +342,30 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * @param onlyIfExists
 	 *            the only if exists
 	 */
-	public void putTask(final TaskEntry task, final boolean onlyIfExists) {
-		if (task == null || myAgent.getState() == null) {
+	public synchronized void putTask(final TaskEntry task,
+			final boolean onlyIfExists) {
+		if (task == null || !load()) {
 			LOG.warning("Trying to save task to non-existing state or task is null");
 			return;
 		}
-		final TreeMap<String, TaskEntry> oldTimeline = myAgent.getState().get(
-				TYPEDKEY);
-		TreeMap<String, TaskEntry> timeline = null;
-		
-		if (oldTimeline != null) {
-			timeline = new TreeMap<String, TaskEntry>(oldTimeline);
-		} else {
-			timeline = new TreeMap<String, TaskEntry>();
+		final TaskEntry old = tasks.get(task.getTaskId());
+		if (onlyIfExists && old == null) {
+			return;
 		}
-		
-		if (onlyIfExists) {
-			if (timeline.containsKey(task.getTaskId())) {
-				timeline.put(task.getTaskId(), task);
-			}
-		} else {
-			timeline.put(task.getTaskId(), task);
+		if (old != null) {
+			timeline.remove(old);
 		}
-		
-		if (!myAgent.getState().putIfUnchanged(TYPEDKEY.getKey(), timeline,
-				oldTimeline)) {
-			// recursive retry....
-			putTask(task, onlyIfExists);
-			return;
+		tasks.put(task.getTaskId(), task);
+		if (!task.isActive()) {
+			timeline.add(task);
+		}
+		if (task.getKey() != null) {
+			keys.put(task.getKey(), task);
 		}
+		final Map<String, Object> changed = new HashMap<String, Object>(2);
+		changed.put(PREFIX + task.getTaskId(), task);
+		reindex(changed);
+		myAgent.getState().putAll(changed);
 	}
 	
 	/*
@@ -145,29 +374,77 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * @see com.almende.eve.scheduler.Scheduler#cancelTask(java.lang.String)
 	 */
 	@Override
-	public void cancelTask(final String id) {
-		if (myAgent.getState() == null) {
+	public synchronized void cancelTask(final String id) {
+		if (!load()) {
 			return;
 		}
-		
-		final TreeMap<String, TaskEntry> oldTimeline = myAgent.getState().get(
-				TYPEDKEY);
-		TreeMap<String, TaskEntry> timeline = null;
-		
-		if (oldTimeline != null) {
-			timeline = new TreeMap<String, TaskEntry>(oldTimeline);
-			timeline.remove(id);
-		} else {
-			timeline = new TreeMap<String, TaskEntry>();
-		}
-		
-		if (timeline != null
-				&& !myAgent.getState().putIfUnchanged(TYPEDKEY.getKey(),
-						timeline, oldTimeline)) {
-			// recursive retry....
-			cancelTask(id);
-			return;
+		final TaskEntry task = tasks.remove(id);
+		if (task != null) {
+			timeline.remove(task);
+			if (task.getKey() != null && keys.get(task.getKey()) == task) {
+				keys.remove(task.getKey());
+			}
+			myAgent.getState().remove(PREFIX + id);
+			final Map<String, Object> changed = new HashMap<String, Object>(1);
+			reindex(changed);
+			if (!changed.isEmpty()) {
+				myAgent.getState().putAll(changed);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the scheduled task with the given key. A one-shot task that is
+	 * already running doesn't count, a new one is scheduled after it.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the task, or null
+	 */
+	private synchronized TaskEntry getTaskByKey(final String key) {
+		if (key == null || !load()) {
+			return null;
 		}
+		final TaskEntry task = keys.get(key);
+		if (task == null || (task.isActive() && task.getInterval() <= 0)) {
+			return null;
+		}
+		return task;
+	}
+	
+	/**
+	 * Mark a task as running, taking it off the timeline.
+	 * 
+	 * @param task
+	 *            the task
+	 * @return false if the task is already running or no longer exists
+	 */
+	private synchronized boolean claim(final TaskEntry task) {
+		if (!load() || task.isActive() || tasks.get(task.getTaskId()) != task) {
+			return false;
+		}
+		timeline.remove(task);
+		task.setActive(true);
+		return true;
+	}
+	
+	/**
+	 * Mark all due tasks as running, taking them off the timeline.
+	 * 
+	 * @return the due tasks
+	 */
+	private synchronized List<TaskEntry> claimDue() {
+		final List<TaskEntry> result = new ArrayList<TaskEntry>();
+		if (!load()) {
+			return result;
+		}
+		final DateTime now = DateTime.now();
+		while (!timeline.isEmpty() && !timeline.first().getDue().isAfter(now)) {
+			final TaskEntry task = timeline.pollFirst();
+			task.setActive(true);
+			result.add(task);
+		}
+		return result;
 	}
 	
 	/**
@@ -177,33 +454,123 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 *            the task
 	 */
 	public void runTask(final TaskEntry task) {
-		if (task == null || task.isActive()) {
+		if (task == null || !claim(task)) {
 			return;
 		}
-		task.setActive(true);
-		_this.putTask(task, true);
-		
-		try {
-			// TODO: fix sequential calls, needs callback and guaranteed
-			// replies, also in the case of void? (This holds for all methods?)
-			final String receiverUrl = "local:" + myAgent.getId();
-			// Next call is always short/asynchronous
-			myAgent.send(task.getRequest(), URI.create(receiverUrl), null, null);
-			
+		runTasks(Collections.singletonList(task));
+	}
+	
+	/**
+	 * Run a batch of claimed tasks, and plan their next runs once they have
+	 * all completed. Each task is sent to the agent with a callback, like a
+	 * single task.
+	 * 
+	 * @param batch
+	 *            the tasks
+	 */
+	private void runTasks(final List<TaskEntry> batch) {
+		final URI receiverUrl = URI.create("local:" + myAgent.getId());
+		final AtomicInteger pending = new AtomicInteger(batch.size());
+		for (final TaskEntry task : batch) {
+			metrics.fired(myAgent.getId(), task.getDue().getMillis());
+			final long start = System.nanoTime();
+			try {
+				myAgent.send(newRun(task.getRequest()), receiverUrl,
+						new AsyncCallback<JSONResponse>() {
+							@Override
+							public void onSuccess(final JSONResponse result) {
+								metrics.completed(myAgent.getId(), start);
+								completed(batch, pending);
+							}
+							
+							@Override
+							public void onFailure(final Exception exception) {
+								LOG.log(Level.WARNING, myAgent.getId()
+										+ ": Scheduled task failed:" + task,
+										exception);
+								metrics.completed(myAgent.getId(), start);
+								completed(batch, pending);
+							}
+						}, null);
+			} catch (final Exception e) {
+				LOG.log(Level.SEVERE, myAgent.getId()
+						+ ": Failed to run scheduled task:" + task, e);
+				completed(batch, pending);
+			}
+		}
+	}
+	
+	/**
+	 * Count down the runs of a batch, and plan the next runs of its tasks once
+	 * the last one has completed, and wait for the first one.
+	 * 
+	 * @param batch
+	 *            the tasks
+	 * @param pending
+	 *            the number of runs of the batch that haven't completed yet
+	 */
+	private void completed(final List<TaskEntry> batch,
+			final AtomicInteger pending) {
+		if (pending.decrementAndGet() == 0) {
+			reschedule(batch);
+			arm();
+		}
+	}
+	
+	/**
+	 * Remove the run one-shot tasks, and put the repeating tasks back on the
+	 * timeline at their next run: right away if their policy owes a missed
+	 * run, else at the first run at least one interval after the last one.
+	 * The repeating tasks are stored in one write.
+	 * 
+	 * @param batch
+	 *            the tasks
+	 */
+	private synchronized void reschedule(final List<TaskEntry> batch) {
+		final Map<String, Object> changed = new HashMap<String, Object>(
+				batch.size());
+		for (final TaskEntry task : batch) {
+			if (tasks.get(task.getTaskId()) != task) {
+				// canceled while running
+				continue;
+			}
 			if (task.getInterval() <= 0) {
 				// Remove from list
-				_this.cancelTask(task.getTaskId());
-			} else {
-				task.setDue(DateTime.now().plus(task.getInterval()));
-				task.setActive(false);
-				_this.putTask(task, true);
-				_this.run();
+				cancelTask(task.getTaskId());
+				continue;
 			}
-		} catch (final Exception e) {
-			LOG.log(Level.SEVERE, myAgent.getId()
-					+ ": Failed to run scheduled task:" + task.toString(), e);
+			final long interval = task.getInterval();
+			final long due = task.getDue().getMillis();
+			final boolean aligned = task.isAligned();
+			final long offset = aligned ? offset(interval) : 0;
+			final long owed = task.getPolicy().owed(task.getBacklog(),
+					missedRuns(interval, due, aligned, offset));
+			task.setBacklog(Math.max(0, owed - 1));
+			task.setDue(owed > 0 ? DateTime.now() : new DateTime(nextRun(
+					interval, due, aligned, offset)));
+			task.setActive(false);
+			timeline.add(task);
+			changed.put(PREFIX + task.getTaskId(), task);
+		}
+		reindex(changed);
+		if (!changed.isEmpty()) {
+			myAgent.getState().putAll(changed);
+		}
+	}
+	
+	/**
+	 * Gets the fixed offset of this agent's aligned runs, derived from its id.
+	 * 
+	 * @param interval
+	 *            the interval of the task
+	 * @return the offset in milliseconds
+	 */
+	private long offset(final long interval) {
+		final long max = Math.min(jitter, interval);
+		if (max <= 0) {
+			return 0;
 		}
-		
+		return (myAgent.getId().hashCode() & Integer.MAX_VALUE) % max;
 	}
 	
 	/*
@@ -223,19 +590,29 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * 
 	 * @see
 	 * com.almende.eve.scheduler.Scheduler#createTask(com.almende.eve.rpc.jsonrpc
-	 * .JSONRequest, long, boolean, boolean)
+	 * .JSONRequest, long, boolean, com.almende.eve.scheduler.OverlapPolicy,
+	 * java.lang.String, boolean)
 	 */
 	@Override
 	public String createTask(final JSONRequest request, final long delay,
-			final boolean repeat, final boolean sequential) {
-		final TaskEntry task = new TaskEntry(DateTime.now().plus(delay),
-				request, (repeat ? delay : 0), sequential);
-		putTask(task);
+			final boolean repeat, final OverlapPolicy policy, final String key,
+			final boolean aligned) {
+		// The first run of a repeating task is right away.
+		final TaskEntry task = new TaskEntry(DateTime.now().plus(
+				repeat ? 0 : delay), request, (repeat ? delay : 0), policy);
+		task.setAligned(aligned);
+		task.setKey(key);
+		synchronized (this) {
+			final TaskEntry existing = getTaskByKey(task.getKey());
+			if (existing != null) {
+				return existing.getTaskId();
+			}
+			putTask(task);
+		}
 		if (repeat || delay <= 0) {
 			runTask(task);
-		} else {
-			run();
 		}
+		run();
 		return task.getTaskId();
 	}
 	
@@ -245,18 +622,11 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * @see com.almende.eve.scheduler.Scheduler#getTasks()
 	 */
 	@Override
-	public Set<String> getTasks() {
-		if (myAgent.getState() == null) {
+	public synchronized Set<String> getTasks() {
+		if (!load()) {
 			return null;
 		}
-		
-		final Set<String> result = new HashSet<String>();
-		final TreeMap<String, TaskEntry> timeline = myAgent.getState().get(
-				TYPEDKEY);
-		if (timeline == null || timeline.size() == 0) {
-			return result;
-		}
-		return timeline.keySet();
+		return new HashSet<String>(tasks.keySet());
 	}
 	
 	/*
@@ -265,18 +635,12 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * @see com.almende.eve.scheduler.Scheduler#getDetailedTasks()
 	 */
 	@Override
-	public Set<String> getDetailedTasks() {
-		if (myAgent.getState() == null) {
+	public synchronized Set<String> getDetailedTasks() {
+		if (!load()) {
 			return null;
 		}
-		
 		final Set<String> result = new HashSet<String>();
-		final TreeMap<String, TaskEntry> timeline = myAgent.getState().get(
-				TYPEDKEY);
-		if (timeline == null || timeline.size() == 0) {
-			return result;
-		}
-		for (final TaskEntry entry : timeline.values()) {
+		for (final TaskEntry entry : tasks.values()) {
 			result.add(entry.toString());
 		}
 		return result;
@@ -289,32 +653,44 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 */
 	@Override
 	public void run() {
+		// Run all due tasks as one batch, then wait for the next one.
+		final List<TaskEntry> batch = claimDue();
+		if (!batch.isEmpty()) {
+			runTasks(batch);
+		}
+		arm();
+	}
+	
+	/**
+	 * Request a trigger for the first task that is not running.
+	 */
+	void arm() {
 		final TaskEntry task = getFirstTask();
 		if (task != null) {
-			if (task.getDue().isBeforeNow()) {
-				runTask(task);
-				// recursive call next task
-				run();
-				return;
-			}
-			myClock.requestTrigger(myAgent.getId(), task.getDue(), this);
+			myClock.requestTrigger(triggerId(), task.getDue(), this);
 		}
 	}
 	
+	/**
+	 * Gets the id of this scheduler's trigger on the clock.
+	 * 
+	 * @return the trigger id
+	 */
+	String triggerId() {
+		return myAgent.getId();
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
-	public String toString() {
-		if (myAgent.getState() == null) {
+	public synchronized String toString() {
+		if (!load()) {
 			return null;
 		}
-		
-		final TreeMap<String, TaskEntry> timeline = myAgent.getState().get(
-				TYPEDKEY);
-		return (timeline != null) ? timeline.toString() : "[]";
+		return timeline.toString();
 	}
 }
 
@@ -326,13 +702,15 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 	private static final Logger	LOG					= Logger.getLogger(TaskEntry.class
 															.getCanonicalName());
 	private static final long	serialVersionUID	= -2402975617148459433L;
-	// TODO, make JSONRequest.equals() state something about real equal tasks,
-	// use it as deduplication!
 	private String				taskId				= null;
+	private String				key					= null;
 	private JSONRequest			request;
 	private DateTime			due;
 	private long				interval			= 0;
 	private boolean				sequential			= true;
+	private OverlapPolicy		policy				= null;
+	private long				backlog				= 0;
+	private boolean				aligned				= false;
 	private boolean				active				= false;
 	
 	/**
@@ -350,16 +728,17 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 	 *            the request
 	 * @param interval
 	 *            the interval
-	 * @param sequential
-	 *            the sequential
+	 * @param policy
+	 *            the overlap policy
 	 */
 	public TaskEntry(final DateTime due, final JSONRequest request,
-			final long interval, final boolean sequential) {
+			final long interval, final OverlapPolicy policy) {
 		taskId = new UUID().toString();
 		this.request = request;
 		this.due = due;
 		this.interval = interval;
-		this.sequential = sequential;
+		this.policy = policy;
+		sequential = policy != OverlapPolicy.SKIP;
 	}
 	
 	/*
@@ -399,10 +778,11 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 		if (equals(o)) {
 			return 0;
 		}
-		if (due.equals(o.due)) {
+		final int result = due.compareTo(o.due);
+		if (result == 0) {
 			return taskId.compareTo(o.taskId);
 		}
-		return due.compareTo(o.due);
+		return result;
 	}
 	
 	/**
@@ -511,6 +891,84 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 		this.sequential = sequential;
 	}
 	
+	/**
+	 * Gets the idempotency key.
+	 * 
+	 * @return the key, may be null
+	 */
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * Sets the key.
+	 * 
+	 * @param key
+	 *            the new key
+	 */
+	public void setKey(final String key) {
+		this.key = key;
+	}
+	
+	/**
+	 * Gets the overlap policy, derived from the sequential flag for tasks
+	 * stored without one.
+	 * 
+	 * @return the policy
+	 */
+	public OverlapPolicy getPolicy() {
+		return policy != null ? policy : OverlapPolicy
+				.fromSequential(sequential);
+	}
+	
+	/**
+	 * Sets the policy.
+	 * 
+	 * @param policy
+	 *            the new policy
+	 */
+	public void setPolicy(final OverlapPolicy policy) {
+		this.policy = policy;
+	}
+	
+	/**
+	 * Checks if the task runs on the grid of multiples of its interval.
+	 * 
+	 * @return true, if aligned
+	 */
+	public boolean isAligned() {
+		return aligned;
+	}
+	
+	/**
+	 * Sets the aligned.
+	 * 
+	 * @param aligned
+	 *            the new aligned
+	 */
+	public void setAligned(final boolean aligned) {
+		this.aligned = aligned;
+	}
+	
+	/**
+	 * Gets the number of missed runs still owed.
+	 * 
+	 * @return the backlog
+	 */
+	public long getBacklog() {
+		return backlog;
+	}
+	
+	/**
+	 * Sets the backlog.
+	 * 
+	 * @param backlog
+	 *            the new backlog
+	 */
+	public void setBacklog(final long backlog) {
+		this.backlog = backlog;
+	}
+	
 	/**
 	 * Sets the active.
 	 * 
@@ -4,22 +4,58 @@
  */
 package com.almende.eve.scheduler;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.joda.time.DateTime;
+
+import com.almende.eve.agent.Agent;
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.scheduler.clock.Clock;
+import com.almende.eve.scheduler.clock.RunnableClock;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
 
 /**
  * A factory for creating ClockScheduler objects.
+ * 
+ * Agents with tasks are kept in a persisted {@link DueIndex}, by the due time
+ * of their first task. On start, the index is streamed in the background, a
+ * bucket at a time, and the agents are woken up when their first task is due,
+ * so tasks of idle agents run too. Agents are woken in due time order: those
+ * due within the horizon are armed, later ones as time advances, and overdue
+ * ones at a limited rate. The index is built once from the agent states, when
+ * it doesn't exist yet. Moves of agents to a later due time are written once
+ * per bucket tick, see {@link #flushIndex()}.
  */
 public class ClockSchedulerFactory implements SchedulerFactory {
 	private static final Logger				LOG			= Logger.getLogger(ClockSchedulerFactory.class
 																.getCanonicalName());
+	/**
+	 * The name of the metrics of clock schedulers without a factory, and the
+	 * prefix of the name of each factory's metrics: NAME + ":" + the id of
+	 * its due index.
+	 */
+	public static final String				NAME		= "clock";
+	private static final String				RECOVER		= "recover:";
+	private static final String				INDEX		= "_clockScheduler";
 	private final Map<String, Scheduler>	schedulers	= new HashMap<String, Scheduler>();
 	private AgentHost						host		= null;
+	private long							jitter		= 0;
+	private long							horizon		= TaskRecovery.HORIZON;
+	private int								catchUpRate	= TaskRecovery.RATE;
+	private Clock							clock		= null;
+	private DueIndex						index		= null;
+	private SchedulerMetrics				metrics		= null;
 	
 	/**
 	 * This constructor is called when constructed by the AgentHost.
@@ -27,11 +63,46 @@ public class ClockSchedulerFactory implements SchedulerFactory {
 	 * @param host
 	 *            the host
 	 * @param params
-	 *            the params
+	 *            the params, optionally with a "tick": the resolution of the
+	 *            clock of this factory's schedulers in (fractions of)
+	 *            milliseconds, and a "jitter": the
+	 *            maximum offset in milliseconds of each agent's aligned
+	 *            runs. For recovery, a "horizon" in milliseconds within which
+	 *            agents are woken, and a "catchUpRate" in overdue agents per
+	 *            second. The class name of a "metricsSink". The "id" of
+	 *            the state of the due index.
 	 */
 	public ClockSchedulerFactory(final AgentHost host,
 			final Map<String, Object> params) {
-		this(host, "");
+		this.host = host;
+		long tick = RunnableClock.DEFAULT_TICK;
+		if (params != null && params.get("tick") instanceof Number) {
+			// tick in milliseconds, may be a fraction
+			final double millis = ((Number) params.get("tick")).doubleValue();
+			tick = (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		if (host != null) {
+			clock = new RunnableClock(host.getPool(), tick,
+					TimeUnit.NANOSECONDS);
+		}
+		if (params != null && params.get("jitter") instanceof Number) {
+			jitter = ((Number) params.get("jitter")).longValue();
+		}
+		if (params != null && params.get("horizon") instanceof Number) {
+			horizon = ((Number) params.get("horizon")).longValue();
+		}
+		if (params != null && params.get("catchUpRate") instanceof Number) {
+			catchUpRate = ((Number) params.get("catchUpRate")).intValue();
+		}
+		String id = params != null ? (String) params.get("id") : null;
+		if (id == null || id.equals("")) {
+			id = INDEX;
+		}
+		metrics = SchedulerMetrics.get(NAME + ":" + id);
+		metrics.configure(params);
+		initMetrics();
+		initIndex(id);
+		recover();
 	}
 	
 	/**
@@ -43,7 +114,228 @@ public class ClockSchedulerFactory implements SchedulerFactory {
 	 *            the id
 	 */
 	public ClockSchedulerFactory(final AgentHost host, final String id) {
-		this.host = host;
+		this(host, id != null && !id.equals("") ? Collections
+				.<String, Object> singletonMap("id", id) : null);
+	}
+	
+	/**
+	 * Open the state of the due index.
+	 * 
+	 * @param id
+	 *            the id of the state
+	 */
+	private void initIndex(final String id) {
+		if (host == null || host.getStateFactory() == null) {
+			return;
+		}
+		try {
+			// TODO: dangerous to use a generic state (can possibly conflict
+			// with the id a regular agent)
+			State state = host.getStateFactory().get(id);
+			if (state == null) {
+				state = host.getStateFactory().create(id);
+			}
+			index = new DueIndex(state, clock);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Can't init due index", e);
+		}
+	}
+	
+	/**
+	 * Register gauges for the queue depths and the tasks per agent.
+	 */
+	private void initMetrics() {
+		metrics.setGauge("pending", new SchedulerMetrics.Gauge() {
+			@Override
+			public Object get() {
+				return RunnableClock.getPendingCount();
+			}
+		});
+		if (host != null) {
+			metrics.setGauge("poolQueue", new SchedulerMetrics.Gauge() {
+				@Override
+				public Object get() {
+					return SchedulerMetrics.queueDepth(host.getPool());
+				}
+			});
+		}
+		metrics.setGauge("tasksPerAgent", new SchedulerMetrics.Gauge() {
+			@Override
+			public Object get() {
+				final Map<String, Scheduler> current;
+				synchronized (schedulers) {
+					current = new HashMap<String, Scheduler>(schedulers);
+				}
+				final Map<String, Integer> result = new HashMap<String, Integer>();
+				for (final Map.Entry<String, Scheduler> entry : current
+						.entrySet()) {
+					final Set<String> tasks = entry.getValue().getTasks();
+					result.put(entry.getKey(), tasks != null ? tasks.size() : 0);
+				}
+				return result;
+			}
+		});
+	}
+	
+	/**
+	 * Stream the due index in the background, and wake up the agents when
+	 * their first task is due. The index is built first, if needed.
+	 */
+	private void recover() {
+		if (index == null) {
+			return;
+		}
+		host.getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!index.isBuilt()) {
+					build();
+				}
+				final List<Long> buckets = index.getBuckets();
+				final TaskRecovery<Map.Entry<String, Long>> recovery = new TaskRecovery<Map.Entry<String, Long>>(
+						horizon, catchUpRate) {
+					private final long	split		= DueIndex
+														.bucket(getStart());
+					private int			nextOverdue	= 0;
+					private int			nextLater	= 0;
+					
+					@Override
+					boolean page(final boolean overdue) {
+						if (!overdue) {
+							// Later tasks start in the bucket of the start.
+							while (nextLater < buckets.size()
+									&& buckets.get(nextLater) < split) {
+								nextLater++;
+							}
+						}
+						final int next = overdue ? nextOverdue++ : nextLater++;
+						if (next >= buckets.size()
+								|| (overdue && buckets.get(next) > split)) {
+							return false;
+						}
+						long count = 0;
+						for (final Map.Entry<String, Long> entry : index.get(
+								buckets.get(next)).entrySet()) {
+							if ((entry.getValue() <= getStart()) == overdue) {
+								add(new SimpleImmutableEntry<String, Long>(
+										entry), entry.getValue());
+								count++;
+							}
+						}
+						if (overdue) {
+							metrics.overdueAtStartup(count);
+						}
+						return true;
+					}
+					
+					@Override
+					void arm(final Map.Entry<String, Long> entry,
+							final long delay) {
+						final String agentId = entry.getKey();
+						clock.requestTrigger(RECOVER + agentId, DateTime.now()
+								.plus(delay), new Runnable() {
+							@Override
+							public void run() {
+								wake(agentId, entry.getValue());
+							}
+						});
+					}
+				};
+				recovery.start();
+			}
+		});
+	}
+	
+	/**
+	 * Build the due index from the tasks in the agent states, once.
+	 */
+	private void build() {
+		final StateFactory states = host.getStateFactory();
+		final Iterator<String> iter = states.getAllAgentIds();
+		int count = 0;
+		while (iter.hasNext()) {
+			final String agentId = iter.next();
+			try {
+				final Long due = getFirstDue(states.get(agentId));
+				if (due != null) {
+					index.add(agentId, due);
+					count++;
+				}
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Couldn't read tasks of agent:"
+						+ agentId, e);
+			}
+		}
+		index.flush();
+		index.setBuilt();
+		LOG.info("Built the due index of " + count + " agents.");
+	}
+	
+	/**
+	 * Gets the due time of the first persisted task in a state.
+	 * 
+	 * @param state
+	 *            the state
+	 * @return the due time in milliseconds, or null if there are no tasks
+	 */
+	private static Long getFirstDue(final State state) {
+		if (state == null) {
+			return null;
+		}
+		Long result = null;
+		if (state.containsKey("_taskList")) {
+			// old task list, migrated when the scheduler loads
+			result = System.currentTimeMillis();
+		}
+		for (final String key : state.keySet()) {
+			if (key.startsWith(ClockScheduler.PREFIX)) {
+				final TaskEntry task = ClockScheduler.getTask(state, key);
+				if (task == null || task.getDue() == null) {
+					continue;
+				}
+				if (result == null || task.getDue().getMillis() < result) {
+					result = task.getDue().getMillis();
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Wake up an agent, creating its scheduler, which runs its due tasks.
+	 * Index entries the agent no longer is indexed under, e.g. after a crash
+	 * between the writes of the agent and the index, are moved to the due
+	 * time the agent is indexed under, or dropped.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @param due
+	 *            the due time the agent was indexed under
+	 */
+	private void wake(final String agentId, final long due) {
+		try {
+			final Agent agent = host.getAgent(agentId);
+			final ClockScheduler scheduler = agent != null ? (ClockScheduler) getScheduler(agent)
+					: null;
+			final Long indexed = scheduler != null ? scheduler.getIndexed()
+					: null;
+			if (indexed == null
+					|| DueIndex.bucket(indexed) != DueIndex.bucket(due)) {
+				index.move(agentId, due, indexed);
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't wake agent:" + agentId, e);
+		}
+	}
+	
+	/**
+	 * Write the pending moves of the due index now, instead of on the next
+	 * bucket tick, e.g. before stopping the host.
+	 */
+	public void flushIndex() {
+		if (index != null) {
+			index.flush();
+		}
 	}
 	
 	/*
@@ -61,7 +353,8 @@ public class ClockSchedulerFactory implements SchedulerFactory {
 				scheduler = (ClockScheduler) schedulers.get(agent.getId());
 			} else {
 				try {
-					scheduler = new ClockScheduler(agent, host);
+					scheduler = new ClockScheduler(agent, host, jitter,
+							metrics, index, clock);
 					schedulers.put(agent.getId(), scheduler);
 				} catch (final Exception e) {
 					LOG.log(Level.SEVERE, "Couldn't init new scheduler", e);
@@ -0,0 +1,959 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.scheduler.clock.Clock;
+import com.almende.eve.scheduler.clock.RunnableClock;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
+import com.almende.eve.state.StateFunction;
+import com.almende.eve.state.TypedKey;
+import com.almende.eve.state.Versioned;
+import com.almende.util.uuid.UUID;
+
+/**
+ * A factory for clock schedulers on several hosts that share their states,
+ * e.g. through a shared folder with a {@link FileStateFactory}.
+ *
+ * The agents are divided over a fixed number of buckets, by the hash of their
+ * id. Each host claims a fair share of the buckets by taking a lease on them
+ * in a shared cluster state, and renews its leases on each heartbeat. Only
+ * the owner of a bucket runs the tasks of its agents; tasks created on other
+ * hosts are stored in the agent's state and the owner is notified through the
+ * index of agents with tasks, one key per bucket, of which it checks its own
+ * buckets on each heartbeat. The buckets of a host that stops renewing are
+ * taken over by the others once its leases expire, and a new host gets
+ * buckets as the others give up what exceeds their share.
+ *
+ * Hosts compare lease times with their own clock. A safety margin covers the
+ * difference between their clocks and pauses of a host: an owner stops
+ * running tasks a margin before its lease expires, and others only take the
+ * bucket over a margin after it expired. The clocks of the hosts should be
+ * synchronized to well within the margin. Tasks that were running on a failed
+ * host run again on the new owner.
+ *
+ * Leases are claimed by a compare-and-set on the versions of the keys of the
+ * cluster state, so these versions have to be stored with it. A file state
+ * factory only does so in JSON; with one storing serialized objects, the
+ * cluster state is kept in JSON in the {@link #CLUSTER} folder of its services
+ * folder.
+ */
+public class ClusteredSchedulerFactory implements SchedulerFactory {
+	private static final Logger									LOG			= Logger.getLogger(ClusteredSchedulerFactory.class
+																					.getCanonicalName());
+	private static final TypedKey<HashMap<String, Long>>		HOSTS		= new TypedKey<HashMap<String, Long>>(
+																					"hosts") {
+																			};
+	private static final TypedKey<HashMap<String, Lease>>		LEASES		= new TypedKey<HashMap<String, Lease>>(
+																					"leases") {
+																			};
+	/** The index of agents with tasks from before it was kept per bucket. */
+	private static final TypedKey<HashMap<String, String>>		AGENTS		= new TypedKey<HashMap<String, String>>(
+																					"agents") {
+																			};
+	private static final String									INDEXED		= "indexed";
+	/** The default id of the cluster state. */
+	public static final String									DEFAULTID	= "_schedulerCluster";
+	/** The folder of the cluster state below the services folder. */
+	public static final String									CLUSTER		= "cluster";
+	private final Map<String, ClusteredScheduler>				schedulers	= new HashMap<String, ClusteredScheduler>();
+	/** The owned buckets: {bucket: lease expiry} */
+	private final Map<Integer, Long>							owned		= new ConcurrentHashMap<Integer, Long>();
+	/** The last seen change of the agents in the owned buckets. */
+	private final Map<String, String>							seen		= new ConcurrentHashMap<String, String>();
+	/** The last seen version of the index of each owned bucket. */
+	private final Map<Integer, Long>							versions	= new ConcurrentHashMap<Integer, Long>();
+	private final AgentHost										host;
+	private final String										hostId;
+	/** The prefix of the trigger ids, unique to this instance. */
+	private final String										triggers;
+	private final Clock											clock;
+	private final SchedulerMetrics								metrics;
+	private final State											cluster;
+	private int													buckets		= 64;
+	private long												leaseTime	= 10000;
+	private long												margin		= -1;
+	private long												heartbeat	= 1000;
+	private long												jitter		= 0;
+	private volatile boolean									running		= true;
+	
+	/**
+	 * This constructor is called when constructed by the AgentHost.
+	 *
+	 * @param host
+	 *            the host
+	 * @param params
+	 *            the params, optionally with the "id" of the cluster state,
+	 *            and a "path": the folder of the cluster state if it isn't
+	 *            kept by (or next to) the host's state factory. The "hostId"
+	 *            of this host, unique in the cluster, the number of
+	 *            "buckets", the "leaseTime", its safety "margin" (by default a
+	 *            fifth of the lease time) and "heartbeat" interval in
+	 *            milliseconds, and the "jitter" and "metricsSink" of the clock
+	 *            schedulers.
+	 */
+	public ClusteredSchedulerFactory(final AgentHost host,
+			final Map<String, Object> params) {
+		this(host, openCluster(host, params), params);
+	}
+	
+	/**
+	 * Instantiates a new clustered scheduler factory on the given cluster
+	 * state, e.g. one kept by another backend than the host's state factory.
+	 *
+	 * @param host
+	 *            the host
+	 * @param cluster
+	 *            the cluster state, shared by the hosts; null if it couldn't
+	 *            be opened, the factory then doesn't run any tasks
+	 * @param params
+	 *            the params, as for
+	 *            {@link #ClusteredSchedulerFactory(AgentHost, Map)}; the "id"
+	 *            and "path" of the cluster state are ignored
+	 */
+	public ClusteredSchedulerFactory(final AgentHost host,
+			final State cluster, final Map<String, Object> params) {
+		this.host = host;
+		this.cluster = cluster;
+		String name = null;
+		if (params != null) {
+			if (params.get("hostId") instanceof String) {
+				name = (String) params.get("hostId");
+			}
+			if (params.get("buckets") instanceof Number) {
+				buckets = ((Number) params.get("buckets")).intValue();
+			}
+			if (params.get("leaseTime") instanceof Number) {
+				leaseTime = ((Number) params.get("leaseTime")).longValue();
+			}
+			if (params.get("margin") instanceof Number) {
+				margin = ((Number) params.get("margin")).longValue();
+			}
+			if (params.get("heartbeat") instanceof Number) {
+				heartbeat = ((Number) params.get("heartbeat")).longValue();
+			}
+			if (params.get("jitter") instanceof Number) {
+				jitter = ((Number) params.get("jitter")).longValue();
+			}
+		}
+		if (margin < 0) {
+			margin = leaseTime / 5;
+		}
+		hostId = name != null ? name : new UUID().toString();
+		triggers = "cluster:" + hostId + ":" + new UUID().toString();
+		clock = new RunnableClock(host.getPool());
+		metrics = SchedulerMetrics.get("cluster:" + hostId);
+		metrics.configure(params);
+		if (cluster == null) {
+			running = false;
+			return;
+		}
+		initMetrics();
+		host.getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				heartbeat();
+			}
+		});
+	}
+	
+	/**
+	 * Instantiates a new clustered scheduler factory.
+	 *
+	 * @param host
+	 *            the host
+	 * @param id
+	 *            the id of the cluster state
+	 */
+	public ClusteredSchedulerFactory(final AgentHost host, final String id) {
+		this(host, id != null && !id.isEmpty() ? Collections
+				.<String, Object> singletonMap("id", id) : null);
+	}
+	
+	/**
+	 * Open the cluster state given by the "id" and "path" params.
+	 *
+	 * @param host
+	 *            the host
+	 * @param params
+	 *            the params
+	 * @return the state, null if it can't be opened
+	 */
+	private static State openCluster(final AgentHost host,
+			final Map<String, Object> params) {
+		String id = DEFAULTID;
+		String path = null;
+		if (params != null) {
+			if (params.get("id") instanceof String) {
+				id = (String) params.get("id");
+			}
+			if (params.get("path") instanceof String) {
+				path = (String) params.get("path");
+			}
+		}
+		try {
+			StateFactory states = host.getStateFactory();
+			if (path != null) {
+				states = new FileStateFactory(path, true);
+			} else if (states instanceof FileStateFactory
+					&& !((FileStateFactory) states).isJson()) {
+				// Serialized states keep their versions in memory only.
+				states = new FileStateFactory(
+						((FileStateFactory) states).getServicesPath() + CLUSTER,
+						true);
+			}
+			return getState(states, id);
+		} catch (final IOException e) {
+			LOG.log(Level.SEVERE, "Couldn't open cluster state:" + id, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets a state, creating it if it doesn't exist yet.
+	 *
+	 * @param states
+	 *            the state factory
+	 * @param id
+	 *            the id
+	 * @return the state
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static State getState(final StateFactory states, final String id)
+			throws IOException {
+		State state = states.get(id);
+		if (state == null) {
+			try {
+				state = states.create(id);
+			} catch (final IllegalStateException e) {
+				// just created by another host
+				state = states.get(id);
+			}
+		}
+		return state;
+	}
+	
+	/**
+	 * Register gauges for the owned buckets and the pending triggers.
+	 */
+	private void initMetrics() {
+		metrics.setGauge("buckets", new SchedulerMetrics.Gauge() {
+			@Override
+			public Object get() {
+				return getBuckets();
+			}
+		});
+		metrics.setGauge("pending", new SchedulerMetrics.Gauge() {
+			@Override
+			public Object get() {
+				return RunnableClock.getPendingCount();
+			}
+		});
+	}
+	
+	/**
+	 * Gets the id of this host in the cluster.
+	 *
+	 * @return the host id
+	 */
+	public String getHostId() {
+		return hostId;
+	}
+	
+	/**
+	 * Gets the buckets this host currently owns.
+	 *
+	 * @return the buckets
+	 */
+	public Set<Integer> getBuckets() {
+		return new TreeSet<Integer>(owned.keySet());
+	}
+	
+	/**
+	 * Gets the bucket of an agent.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return the bucket
+	 */
+	private int bucket(final String agentId) {
+		return (agentId.hashCode() & Integer.MAX_VALUE) % buckets;
+	}
+	
+	/**
+	 * Gets the index of agents with tasks in a bucket.
+	 *
+	 * @param bucket
+	 *            the bucket
+	 * @return the typed key
+	 */
+	private static TypedKey<HashMap<String, String>> agents(final int bucket) {
+		return new TypedKey<HashMap<String, String>>(AGENTS.getKey() + "."
+				+ bucket) {
+		};
+	}
+	
+	/**
+	 * Checks if this host owns the bucket of an agent, and its lease doesn't
+	 * expire within the margin.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return true, if this host should run the agent's tasks
+	 */
+	private boolean owns(final String agentId) {
+		final Long expires = owned.get(bucket(agentId));
+		return running && expires != null
+				&& expires - margin > System.currentTimeMillis();
+	}
+	
+	/**
+	 * Renew this host's registration and leases, claim free buckets and wake
+	 * the agents of acquired buckets and the agents whose tasks changed.
+	 */
+	private void heartbeat() {
+		if (!running) {
+			return;
+		}
+		try {
+			final long now = System.currentTimeMillis();
+			sync(lease(now, register(now)));
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, hostId + ": Heartbeat failed", e);
+		}
+		if (running) {
+			clock.requestTrigger(triggers, DateTime.now()
+					.plus(heartbeat), new Runnable() {
+						@Override
+						public void run() {
+							heartbeat();
+						}
+					});
+		}
+	}
+	
+	/**
+	 * Register this host as alive until the end of the lease time, or remove
+	 * it when stopped, and drop the hosts that have expired.
+	 *
+	 * @param now
+	 *            the current time
+	 * @return the number of live hosts
+	 */
+	private int register(final long now) {
+		final HashMap<String, Long> hosts = cluster.compute(HOSTS,
+				new StateFunction<HashMap<String, Long>>() {
+					@Override
+					public HashMap<String, Long> apply(
+							final HashMap<String, Long> current) {
+						final HashMap<String, Long> result = new HashMap<String, Long>();
+						if (current != null) {
+							for (final Map.Entry<String, Long> entry : current
+									.entrySet()) {
+								if (entry.getValue() > now) {
+									result.put(entry.getKey(), entry.getValue());
+								}
+							}
+						}
+						if (running) {
+							result.put(hostId, now + leaseTime);
+						} else {
+							result.remove(hostId);
+						}
+						return result;
+					}
+				});
+		return hosts != null ? Math.max(1, hosts.size()) : 1;
+	}
+	
+	/**
+	 * Renew the leases of this host up to its fair share of the buckets,
+	 * release the rest, and claim free buckets, or buckets whose lease expired
+	 * more than a margin ago, to fill its share. When stopped, all leases are
+	 * released. Only the leases read back from the cluster state count as
+	 * owned, so a write that failed or was lost doesn't claim buckets.
+	 *
+	 * @param now
+	 *            the current time
+	 * @param hosts
+	 *            the number of live hosts
+	 * @return the newly acquired buckets
+	 */
+	private Set<Integer> lease(final long now, final int hosts) {
+		final int share = (buckets + hosts - 1) / hosts;
+		// Start at a different bucket on each host, to avoid contention.
+		final int start = (hostId.hashCode() & Integer.MAX_VALUE) % buckets;
+		try {
+			claim(now, share, start);
+		} catch (final IllegalStateException e) {
+			LOG.log(Level.WARNING, hostId + ": Couldn't write leases", e);
+		}
+		final HashMap<String, Lease> leases = cluster.getVersioned(LEASES)
+				.getValue();
+		
+		final Map<Integer, Long> next = new HashMap<Integer, Long>();
+		if (leases != null && running) {
+			for (final Map.Entry<String, Lease> entry : leases.entrySet()) {
+				if (hostId.equals(entry.getValue().getHost())) {
+					next.put(Integer.valueOf(entry.getKey()), entry.getValue()
+							.getExpires());
+				}
+			}
+		}
+		final Set<Integer> acquired = new HashSet<Integer>(next.keySet());
+		acquired.removeAll(owned.keySet());
+		final Set<Integer> lost = new HashSet<Integer>(owned.keySet());
+		lost.removeAll(next.keySet());
+		owned.putAll(next);
+		owned.keySet().retainAll(next.keySet());
+		if (!acquired.isEmpty() || !lost.isEmpty()) {
+			LOG.info(hostId + ": Acquired buckets " + acquired + ", lost "
+					+ lost + ", owns " + getBuckets());
+		}
+		if (!lost.isEmpty()) {
+			disarm(lost);
+		}
+		return acquired;
+	}
+	
+	/**
+	 * Write the leases of this host: renew up to its share and release the
+	 * rest, then claim free or expired buckets to fill the share.
+	 *
+	 * @param now
+	 *            the current time
+	 * @param share
+	 *            the fair share of buckets of this host
+	 * @param start
+	 *            the bucket to start at
+	 */
+	private void claim(final long now, final int share, final int start) {
+		cluster.compute(LEASES, new StateFunction<HashMap<String, Lease>>() {
+			@Override
+			public HashMap<String, Lease> apply(
+					final HashMap<String, Lease> current) {
+				final HashMap<String, Lease> result = current != null ? new HashMap<String, Lease>(
+						current) : new HashMap<String, Lease>();
+				int mine = 0;
+				for (int i = 0; i < buckets; i++) {
+					final String bucket = Integer
+							.toString((start + i) % buckets);
+					final Lease lease = result.get(bucket);
+					if (lease != null && hostId.equals(lease.getHost())) {
+						if (running && mine < share) {
+							result.put(bucket,
+									new Lease(hostId, now + leaseTime));
+							mine++;
+						} else {
+							result.remove(bucket);
+						}
+					}
+				}
+				for (int i = 0; i < buckets && running && mine < share; i++) {
+					final String bucket = Integer
+							.toString((start + i) % buckets);
+					final Lease lease = result.get(bucket);
+					if (lease == null || lease.getExpires() + margin <= now) {
+						result.put(bucket, new Lease(hostId, now + leaseTime));
+						mine++;
+					}
+				}
+				return result;
+			}
+		});
+	}
+	
+	/**
+	 * Cancel the triggers of the schedulers of the agents in the given
+	 * buckets.
+	 *
+	 * @param lost
+	 *            the buckets, null for all
+	 */
+	private void disarm(final Set<Integer> lost) {
+		synchronized (schedulers) {
+			for (final ClusteredScheduler scheduler : schedulers.values()) {
+				if (lost == null || lost.contains(bucket(scheduler.agentId))) {
+					clock.cancel(scheduler.triggerId());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Wake the agents of the acquired buckets, and the agents of the other
+	 * owned buckets whose tasks were changed by another host. Only the index
+	 * of the owned buckets is read, and only if its version changed. The
+	 * index is built on the first start of the cluster.
+	 *
+	 * @param acquired
+	 *            the newly acquired buckets
+	 */
+	private void sync(final Set<Integer> acquired) {
+		if (!cluster.containsKey(INDEXED)
+				&& cluster.putIfVersion(INDEXED, true, 0)) {
+			index();
+		}
+		versions.keySet().retainAll(owned.keySet());
+		for (final String agentId : seen.keySet()) {
+			if (!owned.containsKey(bucket(agentId))) {
+				seen.remove(agentId);
+			}
+		}
+		for (final Integer bucket : owned.keySet()) {
+			final Versioned<HashMap<String, String>> index = cluster
+					.getVersioned(agents(bucket));
+			final boolean all = acquired.contains(bucket);
+			final Long version = versions.put(bucket, index.getVersion());
+			if (index.getValue() == null
+					|| (!all && version != null && version == index
+							.getVersion())) {
+				continue;
+			}
+			for (final Map.Entry<String, String> entry : index.getValue()
+					.entrySet()) {
+				final String agentId = entry.getKey();
+				if (all || !entry.getValue().equals(seen.get(agentId))) {
+					seen.put(agentId, entry.getValue());
+					host.getPool().execute(new Runnable() {
+						@Override
+						public void run() {
+							wake(agentId, entry.getValue());
+						}
+					});
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Build the index of agents with tasks, per bucket: from the index kept
+	 * in a single key before, or from all states. Agents changed in the
+	 * meantime keep their entry.
+	 */
+	private void index() {
+		HashMap<String, String> all = cluster.get(AGENTS);
+		final boolean legacy = all != null;
+		if (!legacy) {
+			all = scan();
+		}
+		final Map<Integer, HashMap<String, String>> shards = new HashMap<Integer, HashMap<String, String>>();
+		for (final Map.Entry<String, String> entry : all.entrySet()) {
+			final int bucket = bucket(entry.getKey());
+			if (!shards.containsKey(bucket)) {
+				shards.put(bucket, new HashMap<String, String>());
+			}
+			shards.get(bucket).put(entry.getKey(), entry.getValue());
+		}
+		for (final Map.Entry<Integer, HashMap<String, String>> shard : shards
+				.entrySet()) {
+			cluster.compute(agents(shard.getKey()),
+					new StateFunction<HashMap<String, String>>() {
+						@Override
+						public HashMap<String, String> apply(
+								final HashMap<String, String> current) {
+							final HashMap<String, String> result = new HashMap<String, String>(
+									shard.getValue());
+							if (current != null) {
+								result.putAll(current);
+							}
+							return result;
+						}
+					});
+		}
+		if (legacy) {
+			cluster.remove(AGENTS.getKey());
+		}
+	}
+	
+	/**
+	 * Find all agents with persisted tasks.
+	 *
+	 * @return the index of agents with tasks
+	 */
+	private HashMap<String, String> scan() {
+		final HashMap<String, String> result = new HashMap<String, String>();
+		final StateFactory states = host.getStateFactory();
+		final Iterator<String> iter = states.getAllAgentIds();
+		while (iter.hasNext()) {
+			final String agentId = iter.next();
+			try {
+				final State state = states.get(agentId);
+				if (state == null) {
+					continue;
+				}
+				for (final String key : state.keySet()) {
+					if (key.startsWith(ClockScheduler.PREFIX)
+							|| key.equals("_taskList")) {
+						result.put(agentId, new UUID().toString());
+						break;
+					}
+				}
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Couldn't read tasks of agent:" + agentId,
+						e);
+			}
+		}
+		LOG.info(hostId + ": Indexed " + result.size() + " agents with tasks");
+		return result;
+	}
+	
+	/**
+	 * Wake up an agent: (re)load its tasks and run the due ones. An agent that
+	 * no longer exists or has no tasks is dropped from the index, unless its
+	 * tasks were changed in the meantime.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param stamp
+	 *            the change of the agent in the index
+	 */
+	private void wake(final String agentId, final String stamp) {
+		try {
+			ClusteredScheduler scheduler;
+			synchronized (schedulers) {
+				scheduler = schedulers.get(agentId);
+			}
+			if (scheduler != null) {
+				scheduler.reload();
+				scheduler.run();
+			} else {
+				final Agent agent = host.getAgent(agentId);
+				if (agent != null) {
+					scheduler = (ClusteredScheduler) getScheduler(agent);
+				}
+			}
+			if (scheduler == null || scheduler.getTasks() == null
+					|| scheduler.getTasks().isEmpty()) {
+				forget(agentId, stamp);
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, hostId + ": Couldn't wake agent:" + agentId,
+					e);
+		}
+	}
+	
+	/**
+	 * Mark the tasks of an agent as changed, so the owner of its bucket loads
+	 * them.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 */
+	private void changed(final String agentId) {
+		final String stamp = new UUID().toString();
+		if (owns(agentId)) {
+			seen.put(agentId, stamp);
+		}
+		cluster.mapPut(agents(bucket(agentId)), agentId, stamp);
+	}
+	
+	/**
+	 * Remove an agent from the index, if it wasn't changed since the given
+	 * stamp. An empty bucket keeps its key, so its version keeps counting.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param stamp
+	 *            the stamp
+	 */
+	private void forget(final String agentId, final String stamp) {
+		cluster.compute(agents(bucket(agentId)),
+				new StateFunction<HashMap<String, String>>() {
+					@Override
+					public HashMap<String, String> apply(
+							final HashMap<String, String> current) {
+						if (current == null
+								|| !stamp.equals(current.get(agentId))) {
+							return current;
+						}
+						final HashMap<String, String> result = new HashMap<String, String>(
+								current);
+						result.remove(agentId);
+						return result;
+					}
+				});
+	}
+	
+	/**
+	 * Stop this host: stop the heartbeat and stop running tasks. With release,
+	 * the leases are given up right away; without, they are left to expire,
+	 * as if the host failed.
+	 *
+	 * @param release
+	 *            release the leases
+	 */
+	public void shutdown(final boolean release) {
+		running = false;
+		clock.cancel(triggers);
+		disarm(null);
+		owned.clear();
+		if (release && cluster != null) {
+			final long now = System.currentTimeMillis();
+			register(now);
+			lease(now, 1);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.almende.eve.scheduler.SchedulerFactory#getScheduler(com.almende.eve
+	 * .agent.AgentInterface)
+	 */
+	@Override
+	public Scheduler getScheduler(final AgentInterface agent) {
+		ClusteredScheduler scheduler = null;
+		synchronized (schedulers) {
+			scheduler = schedulers.get(agent.getId());
+			if (scheduler == null) {
+				try {
+					scheduler = new ClusteredScheduler(agent);
+					schedulers.put(agent.getId(), scheduler);
+				} catch (final Exception e) {
+					LOG.log(Level.SEVERE, "Couldn't init new scheduler", e);
+				}
+			}
+		}
+		if (scheduler != null) {
+			scheduler.run();
+		}
+		return scheduler;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.almende.eve.scheduler.SchedulerFactory#destroyScheduler(java.lang
+	 * .String)
+	 */
+	@Override
+	public void destroyScheduler(final String agentId) {
+		synchronized (schedulers) {
+			schedulers.remove(agentId);
+		}
+	}
+	
+	/**
+	 * A clock scheduler that only runs tasks while this host owns the bucket
+	 * of its agent. Changes made on another host are loaded before they are
+	 * applied, and announced to the owner.
+	 */
+	private class ClusteredScheduler extends ClockScheduler {
+		private final String	agentId;
+		
+		/**
+		 * Instantiates a new clustered scheduler.
+		 *
+		 * @param agent
+		 *            the agent
+		 */
+		ClusteredScheduler(final AgentInterface agent) {
+			super(agent, host, jitter, metrics);
+			agentId = agent.getId();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.almende.eve.scheduler.ClockScheduler#run()
+		 */
+		@Override
+		public void run() {
+			if (owns(agentId)) {
+				super.run();
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.almende.eve.scheduler.ClockScheduler#runTask(com.almende.eve.
+		 * scheduler.TaskEntry)
+		 */
+		@Override
+		public void runTask(final TaskEntry task) {
+			if (owns(agentId)) {
+				super.runTask(task);
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.almende.eve.scheduler.ClockScheduler#arm()
+		 */
+		@Override
+		void arm() {
+			if (owns(agentId)) {
+				super.arm();
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.almende.eve.scheduler.ClockScheduler#triggerId()
+		 */
+		@Override
+		String triggerId() {
+			return triggers + "/" + agentId;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.almende.eve.scheduler.ClockScheduler#createTask(com.almende.eve
+		 * .rpc.jsonrpc.JSONRequest, long, boolean,
+		 * com.almende.eve.scheduler.OverlapPolicy, java.lang.String, boolean)
+		 */
+		@Override
+		public String createTask(final JSONRequest request, final long delay,
+				final boolean repeat, final OverlapPolicy policy,
+				final String key, final boolean aligned) {
+			final boolean owner = owns(agentId);
+			if (!owner) {
+				reload();
+			}
+			final Set<String> before = getTasks();
+			final String result = super.createTask(request, delay, repeat,
+					policy, key, aligned);
+			// The owner only announces an agent's first task, for takeover.
+			if (!owner || before == null || before.isEmpty()) {
+				changed(agentId);
+			}
+			return result;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see
+		 * com.almende.eve.scheduler.ClockScheduler#cancelTask(java.lang.String)
+		 */
+		@Override
+		public void cancelTask(final String id) {
+			if (owns(agentId)) {
+				super.cancelTask(id);
+			} else {
+				reload();
+				super.cancelTask(id);
+				changed(agentId);
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see com.almende.eve.scheduler.AbstractScheduler#cancelAllTasks()
+		 */
+		@Override
+		public void cancelAllTasks() {
+			final boolean owner = owns(agentId);
+			if (!owner) {
+				reload();
+			}
+			final Set<String> ids = getTasks();
+			if (ids == null) {
+				return;
+			}
+			for (final String id : ids) {
+				super.cancelTask(id);
+			}
+			if (!owner) {
+				changed(agentId);
+			}
+		}
+	}
+	
+	/**
+	 * The lease of a bucket: the owning host and the time it expires.
+	 */
+	static final class Lease {
+		private String	host	= null;
+		private long	expires	= 0;
+		
+		/**
+		 * Instantiates a new lease.
+		 */
+		public Lease() {
+		}
+		
+		/**
+		 * Instantiates a new lease.
+		 *
+		 * @param host
+		 *            the host id
+		 * @param expires
+		 *            the expiry time in milliseconds
+		 */
+		public Lease(final String host, final long expires) {
+			this.host = host;
+			this.expires = expires;
+		}
+		
+		/**
+		 * Gets the host.
+		 *
+		 * @return the host id
+		 */
+		public String getHost() {
+			return host;
+		}
+		
+		/**
+		 * Sets the host.
+		 *
+		 * @param host
+		 *            the new host id
+		 */
+		public void setHost(final String host) {
+			this.host = host;
+		}
+		
+		/**
+		 * Gets the expiry time.
+		 *
+		 * @return the expiry time in milliseconds
+		 */
+		public long getExpires() {
+			return expires;
+		}
+		
+		/**
+		 * Sets the expiry time.
+		 *
+		 * @param expires
+		 *            the new expiry time in milliseconds
+		 */
+		public void setExpires(final long expires) {
+			this.expires = expires;
+		}
+	}
+}
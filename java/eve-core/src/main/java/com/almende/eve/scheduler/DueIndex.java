@@ -0,0 +1,315 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+import com.almende.eve.scheduler.clock.Clock;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFunction;
+import com.almende.eve.state.TypedKey;
+
+/**
+ * A persisted index of the agents with tasks, by the due time of their first
+ * task. Agents are kept in buckets of {@link #WIDTH} milliseconds, one state
+ * key per bucket, so recovery reads them in due order, a bucket at a time,
+ * instead of reading the tasks of all agents.
+ *
+ * An agent is only moved when its first due time leaves its bucket or moves
+ * earlier, so the index is written at most once per bucket for a repeating
+ * task. The indexed time may be early, which only wakes the agent early.
+ * Therefore only moves to an earlier time are written at once. Moves to a
+ * later time and removals are collected in memory and written once per
+ * bucket tick, a single write per changed bucket, so agents that move every
+ * bucket don't each rewrite the index (which, for file based states, means
+ * rewriting the whole file). After a crash the agents are found at their
+ * earlier times.
+ */
+final class DueIndex {
+	/** The width of a bucket, in milliseconds. */
+	static final long										WIDTH		= 60000;
+	private static final String								PREFIX		= "due.";
+	private static final String								BUILT		= "built";
+	private static final String								FLUSH		= "flushDueIndex:";
+	private final State										state;
+	private final Clock										clock;
+	/** The changes not written yet, by bucket: due times, or null to remove. */
+	private final Map<Long, Map<String, Long>>				pending		= new HashMap<Long, Map<String, Long>>();
+	private final Object									flushLock	= new Object();
+	private boolean											flushing	= false;
+	
+	/**
+	 * Instantiates a new due index.
+	 *
+	 * @param state
+	 *            the state to keep the index in
+	 * @param clock
+	 *            the clock to request the writes of the later moves from,
+	 *            null to write all moves at once
+	 */
+	DueIndex(final State state, final Clock clock) {
+		this.state = state;
+		this.clock = clock;
+	}
+	
+	/**
+	 * Gets the bucket of a due time.
+	 *
+	 * @param due
+	 *            the due time in milliseconds
+	 * @return the bucket
+	 */
+	static long bucket(final long due) {
+		return due / WIDTH;
+	}
+	
+	/**
+	 * Checks if an agent indexed at the given due time should be moved, now
+	 * its first task is due at the given time.
+	 *
+	 * @param indexed
+	 *            the indexed due time, or null
+	 * @param due
+	 *            the due time of the first task, or null
+	 * @return true, if the index should be written
+	 */
+	static boolean moved(final Long indexed, final Long due) {
+		if (indexed == null || due == null) {
+			return indexed != null || due != null;
+		}
+		return due < indexed || bucket(due) != bucket(indexed);
+	}
+	
+	/**
+	 * Gets the state key of a bucket.
+	 *
+	 * @param bucket
+	 *            the bucket
+	 * @return the typed key
+	 */
+	private static TypedKey<HashMap<String, Long>> key(final long bucket) {
+		return new TypedKey<HashMap<String, Long>>(PREFIX + bucket) {
+		};
+	}
+	
+	/**
+	 * Move an agent from one due time to another. A move to an earlier time
+	 * is written before returning, others on the next bucket tick.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param from
+	 *            the indexed due time, or null if not indexed
+	 * @param to
+	 *            the new due time, or null to remove the agent
+	 */
+	void move(final String agentId, final Long from, final Long to) {
+		synchronized (pending) {
+			if (to != null) {
+				change(bucket(to), agentId, to);
+			}
+			if (from != null && (to == null || bucket(from) != bucket(to))) {
+				change(bucket(from), agentId, null);
+			}
+		}
+		if (to != null && (from == null || to < from)) {
+			flush(bucket(to));
+		}
+		if (clock == null) {
+			flush();
+		} else {
+			requestFlush();
+		}
+	}
+	
+	/**
+	 * Add an agent, without writing it yet, e.g. while building the index.
+	 * The agents are written by the next {@link #flush()}.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param due
+	 *            the due time
+	 */
+	void add(final String agentId, final long due) {
+		synchronized (pending) {
+			change(bucket(due), agentId, due);
+		}
+	}
+	
+	/**
+	 * Remove an agent from the bucket of the given due time, on the next
+	 * bucket tick. The bucket is dropped once it is empty.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param due
+	 *            the indexed due time
+	 */
+	void remove(final String agentId, final long due) {
+		move(agentId, due, null);
+	}
+	
+	/**
+	 * Record a change of a bucket, replacing an earlier change of the agent
+	 * in that bucket. Must hold the lock of the pending changes.
+	 *
+	 * @param bucket
+	 *            the bucket
+	 * @param agentId
+	 *            the agent id
+	 * @param due
+	 *            the due time, or null to remove the agent
+	 */
+	private void change(final long bucket, final String agentId,
+			final Long due) {
+		Map<String, Long> changes = pending.get(bucket);
+		if (changes == null) {
+			changes = new HashMap<String, Long>();
+			pending.put(bucket, changes);
+		}
+		changes.put(agentId, due);
+	}
+	
+	/**
+	 * Request a write of the pending changes at the next bucket tick, if not
+	 * requested yet.
+	 */
+	private void requestFlush() {
+		synchronized (pending) {
+			if (flushing || pending.isEmpty()) {
+				return;
+			}
+			flushing = true;
+		}
+		final long next = (bucket(System.currentTimeMillis()) + 1) * WIDTH;
+		clock.requestTrigger(FLUSH + state.getAgentId() + ":"
+				+ System.identityHashCode(this), new DateTime(next),
+				new Runnable() {
+					@Override
+					public void run() {
+						synchronized (pending) {
+							flushing = false;
+						}
+						flush();
+					}
+				});
+	}
+	
+	/**
+	 * Write all pending changes, a single write per bucket.
+	 */
+	void flush() {
+		synchronized (flushLock) {
+			final Map<Long, Map<String, Long>> changes;
+			synchronized (pending) {
+				changes = new HashMap<Long, Map<String, Long>>(pending);
+				pending.clear();
+			}
+			for (final Map.Entry<Long, Map<String, Long>> entry : changes
+					.entrySet()) {
+				write(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Write the pending changes of a single bucket.
+	 *
+	 * @param bucket
+	 *            the bucket
+	 */
+	private void flush(final long bucket) {
+		synchronized (flushLock) {
+			final Map<String, Long> changes;
+			synchronized (pending) {
+				changes = pending.remove(bucket);
+			}
+			if (changes != null) {
+				write(bucket, changes);
+			}
+		}
+	}
+	
+	/**
+	 * Apply changes to a bucket in the state, and drop the bucket once it is
+	 * empty. Flushes are serialized, so a later change of an agent is never
+	 * overwritten by an earlier one.
+	 *
+	 * @param bucket
+	 *            the bucket
+	 * @param changes
+	 *            the due times by agent id, null to remove the agent
+	 */
+	private void write(final long bucket, final Map<String, Long> changes) {
+		state.compute(key(bucket), new StateFunction<HashMap<String, Long>>() {
+			@Override
+			public HashMap<String, Long> apply(
+					final HashMap<String, Long> current) {
+				final HashMap<String, Long> agents = current != null ? new HashMap<String, Long>(
+						current) : new HashMap<String, Long>();
+				for (final Map.Entry<String, Long> change : changes.entrySet()) {
+					if (change.getValue() == null) {
+						agents.remove(change.getKey());
+					} else {
+						agents.put(change.getKey(), change.getValue());
+					}
+				}
+				return agents.isEmpty() ? null : agents;
+			}
+		});
+	}
+	
+	/**
+	 * Gets the buckets, in due order.
+	 *
+	 * @return the buckets
+	 */
+	List<Long> getBuckets() {
+		final List<Long> result = new ArrayList<Long>();
+		for (final String key : state.keySet()) {
+			if (key.startsWith(PREFIX)) {
+				result.add(Long.valueOf(key.substring(PREFIX.length())));
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+	
+	/**
+	 * Gets the agents in a bucket.
+	 *
+	 * @param bucket
+	 *            the bucket
+	 * @return the due times by agent id
+	 */
+	Map<String, Long> get(final long bucket) {
+		final Map<String, Long> result = state.get(key(bucket));
+		return result != null ? result : new HashMap<String, Long>(0);
+	}
+	
+	/**
+	 * Checks if the index is complete: built from the agent states, or
+	 * kept since the start.
+	 *
+	 * @return true, if built
+	 */
+	boolean isBuilt() {
+		return state.containsKey(BUILT);
+	}
+	
+	/**
+	 * Mark the index as complete.
+	 */
+	void setBuilt() {
+		state.put(BUILT, true);
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+/**
+ * Receives the measurements of a scheduler factory, e.g. to forward them to
+ * a monitoring system. See {@link SchedulerMetrics#setSink(MetricsSink)}.
+ */
+public interface MetricsSink {
+	
+	/**
+	 * Called for each measurement, on the thread that made it. The sink should
+	 * return quickly and not block.
+	 *
+	 * @param scheduler
+	 *            the name of the scheduler
+	 * @param metric
+	 *            the metric, e.g. {@link SchedulerMetrics#LAG}
+	 * @param agentId
+	 *            the agent id, null for host wide metrics
+	 * @param value
+	 *            the value, in milliseconds for durations
+	 */
+	void record(String scheduler, String metric, String agentId, long value);
+}
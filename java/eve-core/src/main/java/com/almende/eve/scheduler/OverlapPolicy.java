@@ -0,0 +1,56 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+/**
+ * What a repeating task does with the runs it missed while it was running.
+ *
+ * The next run of a repeating task is only armed once the current run has
+ * completed, so runs of the same task never overlap. The runs that were due
+ * in the meantime are handled by this policy.
+ */
+public enum OverlapPolicy {
+	/**
+	 * Drop the missed runs, and wait for the next run on the task's interval.
+	 * A saturated agent sheds its timer load.
+	 */
+	SKIP,
+	/** Run once more right away if any runs were missed. */
+	COALESCE,
+	/** Run all missed runs, one after the other. */
+	QUEUE;
+	
+	/**
+	 * Gets the policy of tasks created with the sequential flag: sequential
+	 * tasks catch up on missed runs, the others skip them.
+	 *
+	 * @param sequential
+	 *            the sequential flag
+	 * @return the policy
+	 */
+	public static OverlapPolicy fromSequential(final boolean sequential) {
+		return sequential ? COALESCE : SKIP;
+	}
+	
+	/**
+	 * Gets the number of runs a task still owes after completing a run.
+	 *
+	 * @param backlog
+	 *            the runs it owed before this run
+	 * @param missed
+	 *            the runs that were due while it ran
+	 * @return the runs it owes, if positive the next run is right away
+	 */
+	public long owed(final long backlog, final long missed) {
+		switch (this) {
+			case QUEUE:
+				return backlog + missed;
+			case COALESCE:
+				return missed > 0 ? 1 : 0;
+			default:
+				return 0;
+		}
+	}
+}
@@ -4,16 +4,25 @@
  */
 package com.almende.eve.scheduler;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -23,36 +32,72 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
-import org.joda.time.Interval;
 
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.callback.AsyncCallback;
 import com.almende.eve.config.Config;
-import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.FileStateFactory;
 import com.almende.eve.state.State;
 import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.databind.JavaType;
 
 /**
  * Documentation on Scheduling:
  * http://docs.oracle.com/javase/1.5.0/docs/api/java
  * /util/concurrent/ScheduledExecutorService.html
  * http://www.javapractices.com/topic/TopicAction.do?Id=54
+ * 
+ * Tasks are persisted as a journal: each created or removed task appends one
+ * entry, and every {@link #CHECKPOINT} entries the full task list is written
+ * as a checkpoint and the journal up to it is dropped. The journal is an
+ * append-only file, one JSON line per entry, in the services folder of a
+ * {@link FileStateFactory} or at the configured "journal" path; other state
+ * factories keep it in the state, one key per entry. The checkpoint is written
+ * in a single putAll, after which the journal file is truncated. Entries a
+ * checkpoint already covers are skipped on replay, so a crash in between
+ * loses nothing. Rescheduling a repeating task doesn't write anything.
+ * 
+ * The next run of a repeating task is armed when the response of the current
+ * run comes in, so runs never overlap; the runs missed in the meantime are
+ * handled by the task's {@link OverlapPolicy}. Tasks with the same
+ * idempotency key are only scheduled once, tasks without a key are never
+ * merged.
+ * 
+ * On start, the persisted tasks are paged in by due time: only tasks due
+ * within the horizon are armed, and tasks that were due while the host was
+ * down are caught up at a limited rate.
  */
 public class RunnableSchedulerFactory implements SchedulerFactory {
-	private static final Logger						LOG			= Logger.getLogger(RunnableSchedulerFactory.class
-																		.getSimpleName());
-	private final ScheduledExecutorService			scheduler	= Executors
-																		.newScheduledThreadPool(
-																				8,
-																				Config.getThreadFactory());
+	/** Number of journal entries after which a checkpoint is written. */
+	public static final int							CHECKPOINT			= 1000;
+	private static final String						JOURNAL				= "journal.";
+	private static final Logger						LOG					= Logger.getLogger(RunnableSchedulerFactory.class
+																			.getSimpleName());
+	private final ScheduledExecutorService			scheduler			= Executors
+																			.newScheduledThreadPool(
+																					8,
+																					Config.getThreadFactory());
 	/** All tasks: {agentId: {taskId: task}} */
-	private final Map<String, Map<String, Task>>	allTasks	= new ConcurrentHashMap<String, Map<String, Task>>();
-	private State									state		= null;
-	private String									stateId		= null;
-	private AgentHost								host		= null;
-	private long									count		= 0;
+	private final Map<String, Map<String, Task>>	allTasks			= new ConcurrentHashMap<String, Map<String, Task>>();
+	/** Tasks with an idempotency key: {agentId/key: task} */
+	private final ConcurrentHashMap<String, Task>	keys				= new ConcurrentHashMap<String, Task>();
+	private State									state				= null;
+	private String									journalPath			= null;
+	private File									journalFile			= null;
+	private OutputStream							journalOut			= null;
+	private String									stateId				= null;
+	private AgentHost								host				= null;
+	private long									count				= 0;
+	private long									seq					= 0;
+	private long									checkpointSeq		= 0;
+	private boolean									checkpointPending	= false;
+	private long									horizon				= TaskRecovery.HORIZON;
+	private int										catchUpRate			= TaskRecovery.RATE;
+	private SchedulerMetrics						metrics				= null;
 	
 	/**
 	 * This constructor is called when constructed by the AgentHost.
@@ -60,11 +105,14 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	 * @param host
 	 *            the host
 	 * @param params
-	 *            the params
+	 *            the params: optionally the "id" of the state, the "horizon"
+	 *            in milliseconds within which recovered tasks are armed,
+	 *            the "catchUpRate" in overdue tasks per second, the class
+	 *            name of a "metricsSink", and the "journal" file path
 	 */
 	public RunnableSchedulerFactory(final AgentHost host,
 			final Map<String, Object> params) {
-		this(host, (params != null) ? (String) params.get("id") : null);
+		this(host, (params != null) ? (String) params.get("id") : null, params);
 	}
 	
 	/**
@@ -76,20 +124,84 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	 *            the id
 	 */
 	public RunnableSchedulerFactory(final AgentHost host, final String id) {
+		this(host, id, null);
+	}
+	
+	/**
+	 * Instantiates a new runnable scheduler factory.
+	 * 
+	 * @param host
+	 *            the host
+	 * @param id
+	 *            the id
+	 * @param params
+	 *            the params, may be null
+	 */
+	private RunnableSchedulerFactory(final AgentHost host, final String id,
+			final Map<String, Object> params) {
 		this.host = host;
 		stateId = id;
+		if (params != null) {
+			if (params.get("horizon") instanceof Number) {
+				horizon = ((Number) params.get("horizon")).longValue();
+			}
+			if (params.get("catchUpRate") instanceof Number) {
+				catchUpRate = ((Number) params.get("catchUpRate")).intValue();
+			}
+			journalPath = (String) params.get("journal");
+		}
 		
-		init();
+		init(params);
 	}
 	
 	/**
 	 * Perform initialization tasks.
+	 * 
+	 * @param params
+	 *            the params, may be null
 	 */
-	private void init() {
+	private void init(final Map<String, Object> params) {
 		initState();
+		initJournal();
+		initMetrics(params);
 		initTasks();
 	}
 	
+	/**
+	 * Register the metrics of this scheduler, named after its state, with
+	 * its own sink and gauges for the queue depths and the tasks per agent.
+	 * 
+	 * @param params
+	 *            the params, with the class name of the "metricsSink"
+	 */
+	private void initMetrics(final Map<String, Object> params) {
+		metrics = SchedulerMetrics.get("runnable:" + stateId);
+		metrics.configure(params);
+		metrics.setGauge("pending", new SchedulerMetrics.Gauge() {
+			@Override
+			public Object get() {
+				return SchedulerMetrics.queueDepth(scheduler);
+			}
+		});
+		metrics.setGauge("poolQueue", new SchedulerMetrics.Gauge() {
+			@Override
+			public Object get() {
+				return SchedulerMetrics.queueDepth(host.getPool());
+			}
+		});
+		metrics.setGauge("tasksPerAgent", new SchedulerMetrics.Gauge() {
+			@Override
+			public Object get() {
+				final Map<String, Integer> result = new HashMap<String, Integer>();
+				for (final Entry<String, Map<String, Task>> entry : allTasks
+						.entrySet()) {
+					result.put(entry.getKey(), entry.getValue().size());
+				}
+				return result;
+			}
+		});
+	}
+	
 	/**
 	 * Initialize a state for the service, to persist the parameters of all open
 	 * connections.
@@ -116,6 +228,40 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		}
 	}
 	
+	/**
+	 * Open the journal file for appending: the configured path, or a file in
+	 * the services folder of a file state factory, where the factory won't
+	 * take it for a state. A journal at the hidden location next to the
+	 * states, used before, is moved there. Without either, the journal is
+	 * kept in the state.
+	 */
+	private void initJournal() {
+		try {
+			if (journalPath == null
+					&& host.getStateFactory() instanceof FileStateFactory) {
+				final FileStateFactory files = (FileStateFactory) host
+						.getStateFactory();
+				journalPath = files.getServicesPath() + stateId + ".journal";
+				final File old = new File(files.getPath() + "." + stateId
+						+ ".journal");
+				final File moved = new File(journalPath);
+				if (old.exists() && !moved.exists() && !old.renameTo(moved)) {
+					throw new IOException("Could not move journal " + old
+							+ " to " + moved);
+				}
+			}
+			if (journalPath == null) {
+				return;
+			}
+			journalFile = new File(journalPath);
+			journalOut = new FileOutputStream(journalFile, true);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Can't open journal " + journalPath
+					+ ", journaling to the state instead.", e);
+			journalFile = null;
+		}
+	}
+	
 	/**
 	 * Get a scheduler for a specific agent.
 	 * 
@@ -137,7 +283,13 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	 */
 	@Override
 	public void destroyScheduler(final String agentId) {
-		allTasks.remove(agentId);
+		final Map<String, Task> tasks = allTasks.remove(agentId);
+		if (tasks != null) {
+			for (final Task task : tasks.values()) {
+				task.releaseKey();
+				journalRemove(task.getTaskId());
+			}
+		}
 	}
 	
 	/**
@@ -170,6 +322,9 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		/** The request. */
 		private JSONRequest			request				= null;
 		
+		/** The serialized request of a recovered task, until it is armed. */
+		private String				requestString		= null;
+		
 		/** The timestamp. */
 		private DateTime			timestamp			= null;
 		
@@ -182,6 +337,18 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		/** The sequential. */
 		private boolean				sequential			= false;
 		
+		/** What to do with the runs missed while running. */
+		private OverlapPolicy		policy				= OverlapPolicy.SKIP;
+		
+		/** The runs still owed, see {@link OverlapPolicy#QUEUE}. */
+		private long				backlog				= 0;
+		
+		/** Run on the grid of multiples of the interval. */
+		private boolean				aligned				= false;
+		
+		/** The idempotency key. */
+		private String				key					= null;
+		
 		/**
 		 * Schedule a task.
 		 * 
@@ -193,59 +360,83 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		 *            The delay in milliseconds
 		 * @param interval
 		 *            the interval
-		 * @param sequential
-		 *            the sequential
+		 * @param policy
+		 *            the overlap policy
+		 * @param key
+		 *            the idempotency key, may be null
+		 * @param aligned
+		 *            run a repeating task on the interval grid
 		 */
 		Task(final String agentId, final JSONRequest request, final long delay,
-				final boolean interval, final boolean sequential) {
+				final boolean interval, final OverlapPolicy policy,
+				final String key, final boolean aligned) {
 			// TODO: throw exceptions when agentId, request are null or
 			// delay < 0
 			this.agentId = agentId;
 			this.request = request;
+			this.key = key;
 			if (interval) {
 				this.interval = delay;
-				this.sequential = sequential;
+				this.policy = policy;
+				this.aligned = aligned;
+				sequential = policy != OverlapPolicy.SKIP;
 			}
 			
 			if (interval) {
-				start(-1);
+				start(-1, true);
 			} else {
-				start(delay);
+				start(delay, true);
 			}
 		}
 		
 		/**
-		 * Schedule a task.
+		 * Recover a persisted task, without persisting it again. The task is
+		 * listed, but only runs once it is armed by {@link #resume(long)}.
 		 * 
 		 * @param params
-		 *            A Map with parameters: agentId, request (stringified
-		 *            JSONRequest), and timestamp (ISOdate)
-		 * @throws JSONRPCException
-		 *             the jSONRPC exception
-		 * @throws IOException
-		 *             Signals that an I/O exception has occurred.
+		 *            A Map with parameters: taskId, agentId, request
+		 *            (stringified JSONRequest), and timestamp (ISOdate)
 		 */
-		Task(final Map<String, String> params) throws JSONRPCException,
-				IOException {
+		Task(final Map<String, String> params) {
 			// TODO: throw exceptions when agentId, request are null or
 			// delay < 0
 			
+			taskId = params.get("taskId");
 			agentId = params.get("agentId");
-			request = new JSONRequest(params.get("request"));
+			requestString = params.get("request");
 			timestamp = new DateTime(params.get("timestamp"));
 			interval = Long.valueOf(params.get("interval"));
 			sequential = Boolean.valueOf(params.get("sequential"));
-			
-			long delay = 0;
-			if (timestamp.isAfterNow()) {
-				delay = new Interval(DateTime.now(), timestamp)
-						.toDurationMillis();
+			policy = params.get("policy") != null ? OverlapPolicy
+					.valueOf(params.get("policy")) : OverlapPolicy
+					.fromSequential(sequential);
+			key = params.get("key");
+			aligned = Boolean.valueOf(params.get("aligned"));
+			if (taskId == null) {
+				taskId = createTaskId();
 			}
-			
-			if (interval > 0) {
-				start(-1);
-			} else {
-				start(delay);
+			store();
+		}
+		
+		/**
+		 * Arm a recovered task, unless it was canceled in the meantime.
+		 * 
+		 * @param delay
+		 *            delay in milliseconds
+		 */
+		private void resume(final long delay) {
+			if (cancelled()) {
+				return;
+			}
+			try {
+				if (request == null) {
+					request = new JSONRequest(requestString);
+					requestString = null;
+				}
+				start(delay, false);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Failed to recover task:" + taskId, e);
+				remove();
 			}
 		}
 		
@@ -254,29 +445,36 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		 * 
 		 * @param delay
 		 *            delay in milliseconds
+		 * @param persist
+		 *            append the task to the journal, only needed when it is
+		 *            new
 		 */
-		private void start(final long delay) {
+		private void start(final long delay, final boolean persist) {
 			// create the task
 			timestamp = DateTime.now().plus(delay);
 			if (taskId == null) {
 				taskId = createTaskId();
 			}
-			// persist the task, must be before schedule, because otherwise it
+			// store the task, must be before schedule, because otherwise it
 			// will report as cancelled!
 			store();
+			if (persist) {
+				final Map<String, String> entry = getParams();
+				entry.put("op", "add");
+				journal(entry);
+			}
 			// TODO: Double threading with send method!
-			// TODO: fix sequential calls
 			future = scheduler.schedule(new Runnable() {
 				@Override
 				public void run() {
+					final long due = timestamp.getMillis();
+					boolean sent = false;
 					try {
 						if (cancelled()) {
 							return;
 						}
-						if (interval > 0 && !sequential) {
-							start(interval);
-						}
-						
+						metrics.fired(agentId, due);
+						final long start = System.nanoTime();
 						final String receiverUrl = "local:" + agentId;
 						final AgentInterface sender = host.getAgent(agentId);
 						if (sender == null) {
@@ -284,23 +482,78 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 							destroyScheduler(agentId);
 							return;
 						}
-						sender.send(request, URI.create(receiverUrl), null,
-								null);
-						
-						if (interval > 0 && sequential && !cancelled()) {
-							start(interval);
+						if (interval > 0) {
+							// The next run is armed once this one completes.
+							sender.send(AbstractScheduler.newRun(request),
+									URI.create(receiverUrl),
+									new AsyncCallback<JSONResponse>() {
+										@Override
+										public void onSuccess(
+												final JSONResponse result) {
+											metrics.completed(agentId, start);
+											completed(due);
+										}
+										
+										@Override
+										public void onFailure(
+												final Exception exception) {
+											LOG.log(Level.WARNING, "Task "
+													+ taskId + " failed",
+													exception);
+											metrics.completed(agentId, start);
+											completed(due);
+										}
+									}, null);
+						} else {
+							// A new task with the same key runs after this one.
+							releaseKey();
+							sender.send(AbstractScheduler.newRun(request),
+									URI.create(receiverUrl),
+									new AsyncCallback<JSONResponse>() {
+										@Override
+										public void onSuccess(
+												final JSONResponse result) {
+											metrics.completed(agentId, start);
+										}
+										
+										@Override
+										public void onFailure(
+												final Exception exception) {
+											metrics.completed(agentId, start);
+										}
+									}, null);
 						}
+						sent = true;
 					} catch (final Exception e) {
 						LOG.log(Level.WARNING, "", e);
 					} finally {
 						if (interval <= 0) {
 							remove();
+						} else if (!sent) {
+							completed(due);
 						}
 					}
 				}
 			}, delay, TimeUnit.MILLISECONDS);
 		}
 		
+		/**
+		 * Arm the next run of a repeating task, after a run has completed.
+		 * 
+		 * @param due
+		 *            the due time of the completed run
+		 */
+		private void completed(final long due) {
+			if (cancelled()) {
+				return;
+			}
+			final long owed = policy.owed(backlog,
+					AbstractScheduler.missedRuns(interval, due, aligned, 0));
+			backlog = Math.max(0, owed - 1);
+			start(owed > 0 ? 0 : AbstractScheduler.nextRun(interval, due,
+					aligned, 0) - System.currentTimeMillis(), false);
+		}
+		
 		/**
 		 * Gets the task id.
 		 * 
@@ -364,6 +617,24 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 			return sequential;
 		}
 		
+		/**
+		 * Gets the idempotency key.
+		 * 
+		 * @return the key, may be null
+		 */
+		public String getKey() {
+			return key;
+		}
+		
+		/**
+		 * Gets the overlap policy.
+		 * 
+		 * @return the policy
+		 */
+		public OverlapPolicy getPolicy() {
+			return policy;
+		}
+		
 		/**
 		 * Cancel.
 		 */
@@ -390,16 +661,36 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 				}
 			}
 			tasks.put(taskId, this);
-			storeTasks();
+			if (key != null) {
+				keys.putIfAbsent(agentId + "/" + key, this);
+			}
+		}
+		
+		/**
+		 * Checks if this task holds its key, only one task per key runs.
+		 * 
+		 * @return true, if it holds the key or has none
+		 */
+		private boolean holdsKey() {
+			return key == null || keys.get(agentId + "/" + key) == this;
+		}
+		
+		/**
+		 * Let another task take the key of this task.
+		 */
+		private void releaseKey() {
+			if (key != null) {
+				keys.remove(agentId + "/" + key, this);
+			}
 		}
 		
 		/**
 		 * Remove this task from the global task list.
 		 */
 		private void remove() {
+			releaseKey();
 			final Map<String, Task> tasks = allTasks.get(agentId);
-			if (tasks != null) {
-				tasks.remove(taskId);
+			if (tasks != null && tasks.remove(taskId) != null) {
 				
 				if (tasks.size() == 0) {
 					synchronized (tasks) {
@@ -410,7 +701,7 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 						}
 					}
 				}
-				storeTasks();
+				journalRemove(taskId);
 			}
 		}
 		
@@ -438,11 +729,20 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		 */
 		public Map<String, String> getParams() {
 			final Map<String, String> params = new HashMap<String, String>();
+			params.put("taskId", taskId);
 			params.put("agentId", agentId);
-			params.put("request", request.toString());
+			params.put("request", request != null ? request.toString()
+					: requestString);
 			params.put("timestamp", timestamp.toString());
 			params.put("interval", new Long(interval).toString());
 			params.put("sequential", Boolean.valueOf(sequential).toString());
+			params.put("policy", policy.name());
+			if (aligned) {
+				params.put("aligned", "true");
+			}
+			if (key != null) {
+				params.put("key", key);
+			}
 			return params;
 		}
 		
@@ -488,17 +788,34 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		 *            The delay in milliseconds
 		 * @param repeat
 		 *            Should the task be repeated at an interval?
-		 * @param sequential
-		 *            Should (long running) tasks run sequential, or may they
-		 *            run in parallel?
-		 * @return taskId
+		 * @param policy
+		 *            What to do with the runs that were due while the task
+		 *            was still running
+		 * @param key
+		 *            the idempotency key, may be null
+		 * @param aligned
+		 *            run a repeating task on the interval grid
+		 * @return taskId, of the already scheduled task if there is one
 		 */
 		@Override
 		public String createTask(final JSONRequest request, final long delay,
-				final boolean repeat, final boolean sequential) {
-			final Task task = new Task(agentId, request, delay, repeat,
-					sequential);
-			return task.getTaskId();
+				final boolean repeat, final OverlapPolicy policy,
+				final String key, final boolean aligned) {
+			if (key == null) {
+				return new Task(agentId, request, delay, repeat, policy, null,
+						aligned).getTaskId();
+			}
+			synchronized (keys) {
+				final Task existing = keys.get(agentId + "/" + key);
+				if (existing != null) {
+					if (!existing.cancelled()) {
+						return existing.getTaskId();
+					}
+					existing.releaseKey();
+				}
+				return new Task(agentId, request, delay, repeat, policy, key,
+						aligned).getTaskId();
+			}
 		}
 		
 		/**
@@ -590,47 +907,240 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	}
 	
 	/**
-	 * load scheduled, persisted tasks.
+	 * Load the persisted tasks: the last checkpoint with the journal entries
+	 * after it replayed on top, and page them in without writing anything.
 	 */
 	private void initTasks() {
 		int taskCount = 0;
 		int failedTaskCount = 0;
+		int duplicates = 0;
+		boolean migrate = false;
+		final List<String> stateJournal = new ArrayList<String>();
 		
+		final Map<String, Map<String, String>> serializedTasks = new LinkedHashMap<String, Map<String, String>>();
 		try {
-			final List<Map<String, String>> serializedTasks = state.get(
-					"tasks", new TypeUtil<List<Map<String, String>>>() {
+			final Long checkpoint = state.get("checkpoint", Long.class);
+			if (checkpoint != null) {
+				checkpointSeq = checkpoint;
+			}
+			final List<Map<String, String>> tasks = state.get("tasks",
+					new TypeUtil<List<Map<String, String>>>() {
 					});
+			if (tasks != null) {
+				for (final Map<String, String> taskParams : tasks) {
+					String taskId = taskParams.get("taskId");
+					if (taskId == null) {
+						// task list from before the journal, without ids
+						taskId = createTaskId();
+						taskParams.put("taskId", taskId);
+						migrate = true;
+					}
+					serializedTasks.put(taskId, taskParams);
+				}
+			}
 			
-			if (serializedTasks != null) {
-				for (final Map<String, String> taskParams : serializedTasks) {
-					taskCount++;
-					try {
-						// start the task
-						new Task(taskParams);
-						// TODO: optimize: when a new Task is created, it will
-						// automatically
-						// store and persist allTasks again. That is inefficient
-					} catch (final Exception e) {
-						LOG.log(Level.WARNING, "", e);
-						failedTaskCount++;
+			final TreeMap<Long, Map<String, String>> journal = new TreeMap<Long, Map<String, String>>();
+			for (final String key : state.keySet()) {
+				if (key.startsWith(JOURNAL)) {
+					stateJournal.add(key);
+					final long entrySeq = Long.parseLong(key.substring(JOURNAL
+							.length()));
+					if (entrySeq > checkpointSeq) {
+						final Map<String, String> entry = state.get(key,
+								new TypeUtil<Map<String, String>>() {
+								});
+						if (entry != null) {
+							journal.put(entrySeq, entry);
+						}
 					}
 				}
 			}
+			if (journalFile != null) {
+				// Move entries kept in the state to the file, and cut off a
+				// partial last line, by writing a checkpoint.
+				if (!readJournal(journal) || !stateJournal.isEmpty()) {
+					migrate = true;
+				}
+			}
+			seq = journal.isEmpty() ? checkpointSeq : journal.lastKey();
+			for (final Map<String, String> entry : journal.values()) {
+				if ("remove".equals(entry.remove("op"))) {
+					serializedTasks.remove(entry.get("taskId"));
+				} else {
+					serializedTasks.put(entry.get("taskId"), entry);
+				}
+			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
 		
+		synchronized (this) {
+			for (final String taskId : serializedTasks.keySet()) {
+				try {
+					count = Math.max(count, Long.parseLong(taskId));
+				} catch (final NumberFormatException e) {
+					LOG.log(Level.FINE, "Non numeric taskId:" + taskId, e);
+				}
+			}
+		}
+		final TaskRecovery<Task> recovery = new TaskRecovery<Task>(horizon,
+				catchUpRate) {
+			@Override
+			void arm(final Task task, final long delay) {
+				task.resume(delay);
+			}
+		};
+		for (final Map<String, String> taskParams : serializedTasks.values()) {
+			taskCount++;
+			try {
+				final Task task = new Task(taskParams);
+				if (!task.holdsKey()) {
+					// A duplicate, only one of them should fire.
+					task.remove();
+					duplicates++;
+					continue;
+				}
+				recovery.add(task, task.getTimestamp().getMillis());
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "", e);
+				failedTaskCount++;
+			}
+		}
+		if (migrate) {
+			checkpoint();
+			if (journalFile != null) {
+				for (final String key : stateJournal) {
+					state.remove(key);
+				}
+			}
+		}
+		recovery.start();
+		metrics.overdueAtStartup(recovery.getOverdue());
+		
 		LOG.info("Initialized "
 				+ taskCount
 				+ " tasks"
 				+ ((failedTaskCount > 0) ? (" " + failedTaskCount + " tasks failed to start.")
+						: "")
+				+ ((duplicates > 0) ? (" " + duplicates + " duplicate tasks dropped.")
 						: ""));
 	}
 	
 	/**
-	 * Persist all currently running tasks.
+	 * Read the entries after the last checkpoint from the journal file.
+	 * 
+	 * @param journal
+	 *            the entries by sequence number
+	 * @return false, if the file ends in a partial line
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean readJournal(final Map<Long, Map<String, String>> journal)
+			throws IOException {
+		if (journalFile.length() == 0) {
+			return true;
+		}
+		final JavaType type = JOM.getTypeFactory().constructMapType(
+				HashMap.class, String.class, String.class);
+		final byte[] last = new byte[1];
+		final RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+		try {
+			file.seek(file.length() - 1);
+			file.readFully(last);
+		} finally {
+			file.close();
+		}
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(journalFile), "UTF-8"));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				final Map<String, String> entry;
+				try {
+					entry = JOM.getInstance().readValue(line, type);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, "Partial entry at the end of journal "
+							+ journalFile + ", ignored.", e);
+					return false;
+				}
+				final long entrySeq = Long.parseLong(entry.remove("seq"));
+				if (entrySeq > checkpointSeq) {
+					journal.put(entrySeq, entry);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return last[0] == '\n';
+	}
+	
+	/**
+	 * Append the removal of a task to the journal.
+	 * 
+	 * @param taskId
+	 *            the task id
+	 */
+	private void journalRemove(final String taskId) {
+		final Map<String, String> entry = new HashMap<String, String>();
+		entry.put("op", "remove");
+		entry.put("taskId", taskId);
+		journal(entry);
+	}
+	
+	/**
+	 * Append an entry to the journal, and schedule a checkpoint once the
+	 * journal has grown to {@link #CHECKPOINT} entries.
+	 * 
+	 * @param entry
+	 *            the entry
 	 */
-	private void storeTasks() {
+	private synchronized void journal(final Map<String, String> entry) {
+		seq++;
+		if (!append(entry)) {
+			state.put(JOURNAL + seq, entry);
+		}
+		if (seq - checkpointSeq >= CHECKPOINT && !checkpointPending) {
+			checkpointPending = true;
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					checkpoint();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Append an entry to the journal file, as a single write, so a crash
+	 * leaves at most the last line partial.
+	 * 
+	 * @param entry
+	 *            the entry
+	 * @return true, if appended; false without journal file or on failure
+	 */
+	private boolean append(final Map<String, String> entry) {
+		if (journalOut == null) {
+			return false;
+		}
+		final Map<String, String> line = new HashMap<String, String>(entry);
+		line.put("seq", Long.toString(seq));
+		try {
+			journalOut.write((JOM.getInstance().writeValueAsString(line) + "\n")
+					.getBytes("UTF-8"));
+			return true;
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Can't append to journal " + journalFile
+					+ ", using the state.", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Persist all currently running tasks as a checkpoint, and drop the
+	 * journal entries it covers. The task list and its sequence number are
+	 * written together, the journal file is then truncated.
+	 */
+	private synchronized void checkpoint() {
 		final ArrayList<Map<String, String>> serializedTasks = new ArrayList<Map<String, String>>();
 		
 		for (final Entry<String, Map<String, Task>> allEntry : allTasks
@@ -642,7 +1152,39 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 			}
 		}
 		
-		state.put("tasks", serializedTasks);
+		final Map<String, Object> values = new HashMap<String, Object>(2);
+		values.put("tasks", serializedTasks);
+		values.put("checkpoint", seq);
+		state.putAll(values);
+		if (journalOut != null) {
+			truncateJournal();
+		} else {
+			for (long i = checkpointSeq + 1; i <= seq; i++) {
+				state.remove(JOURNAL + i);
+			}
+		}
+		checkpointSeq = seq;
+		checkpointPending = false;
 	}
 	
+	/**
+	 * Truncate the journal file, keeping it open for writing. Only java.io is
+	 * used, java.nio.file is not available on all platforms (e.g. Android).
+	 * Entries left behind by a failed truncate are covered by the checkpoint
+	 * and skipped on recovery.
+	 */
+	private void truncateJournal() {
+		try {
+			journalOut.close();
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Can't close journal " + journalFile, e);
+		}
+		try {
+			journalOut = new FileOutputStream(journalFile, false);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Can't reopen journal " + journalFile
+					+ ", using the state.", e);
+			journalOut = null;
+		}
+	}
 }
@@ -37,6 +37,65 @@ public interface Scheduler {
 	String createTask(JSONRequest request, long delay, boolean repeat,
 			boolean sequential);
 	
+	/**
+	 * Schedule a task, potentially running at an interval. The next run of a
+	 * repeating task is armed when the current run has completed.
+	 *
+	 * @param request A JSONRequest with method and params
+	 * @param delay The delay in milliseconds
+	 * @param repeat the repeat
+	 * @param policy What to do with the runs that were due while the task
+	 * was still running
+	 * @return taskId
+	 */
+	String createTask(JSONRequest request, long delay, boolean repeat,
+			OverlapPolicy policy);
+	
+	/**
+	 * Schedule a task, unless a task with the same key is already scheduled.
+	 *
+	 * @param request A JSONRequest with method and params
+	 * @param delay The delay in milliseconds
+	 * @param key The idempotency key
+	 * @return taskId, of the already scheduled task if there is one
+	 */
+	String createTask(JSONRequest request, long delay, String key);
+	
+	/**
+	 * Schedule a task, potentially running at an interval, unless a task with
+	 * the same key is already scheduled. Tasks without a key are never merged,
+	 * so cancelling one doesn't stop a task created by another caller.
+	 *
+	 * @param request A JSONRequest with method and params
+	 * @param delay The delay in milliseconds
+	 * @param repeat the repeat
+	 * @param policy What to do with the runs that were due while the task
+	 * was still running
+	 * @param key The idempotency key, may be null
+	 * @return taskId, of the already scheduled task if there is one
+	 */
+	String createTask(JSONRequest request, long delay, boolean repeat,
+			OverlapPolicy policy, String key);
+	
+	/**
+	 * Schedule a task, like {@link #createTask(JSONRequest, long, boolean,
+	 * OverlapPolicy, String)}. The runs of a repeating task are at least one
+	 * interval apart. Aligned tasks run on the grid of multiples of their
+	 * interval, counted from the epoch, so tasks with the same interval (e.g.
+	 * polls) run together; other tasks keep the phase of their first run.
+	 *
+	 * @param request A JSONRequest with method and params
+	 * @param delay The delay in milliseconds
+	 * @param repeat the repeat
+	 * @param policy What to do with the runs that were due while the task
+	 * was still running
+	 * @param key The idempotency key, may be null
+	 * @param aligned Run a repeating task on the interval grid
+	 * @return taskId, of the already scheduled task if there is one
+	 */
+	String createTask(JSONRequest request, long delay, boolean repeat,
+			OverlapPolicy policy, String key, boolean aligned);
+	
 	/**
 	 * Cancel a scheduled task by its id.
 	 *
@@ -0,0 +1,328 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measurements of a scheduler: how late tasks fire (actual minus due time),
+ * how long they run, how many tasks were overdue when the scheduler started,
+ * and gauges like the queue depth and the tasks per agent.
+ *
+ * The metrics of all schedulers on this host are available through
+ * {@link #getAllStats()}, and each measurement is passed on to the
+ * {@link MetricsSink} of the scheduler, if one is set. Each scheduler factory
+ * has metrics, and a sink, of its own.
+ */
+public final class SchedulerMetrics {
+	private static final Logger											LOG			= Logger.getLogger(SchedulerMetrics.class
+																							.getCanonicalName());
+	/** The fire lag of a task: actual minus due time. */
+	public static final String											LAG			= "lag";
+	/** The execution time of a task. */
+	public static final String											EXECUTION	= "execution";
+	/** The number of tasks that were overdue at startup. */
+	public static final String											OVERDUE		= "overdueAtStartup";
+	private static final ConcurrentHashMap<String, SchedulerMetrics>	METRICS		= new ConcurrentHashMap<String, SchedulerMetrics>();
+	private final String												name;
+	private volatile MetricsSink										sink		= null;
+	private final Histogram												lag			= new Histogram();
+	private final Histogram												execution	= new Histogram();
+	private final AtomicLong											overdue		= new AtomicLong(0);
+	private final Map<String, Gauge>									gauges		= new ConcurrentHashMap<String, Gauge>();
+	
+	/**
+	 * A value that is read when the statistics are requested.
+	 */
+	public interface Gauge {
+		
+		/**
+		 * Gets the current value.
+		 *
+		 * @return the value
+		 */
+		Object get();
+	}
+	
+	/**
+	 * Instantiates new scheduler metrics.
+	 *
+	 * @param name
+	 *            the name of the scheduler
+	 */
+	private SchedulerMetrics(final String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Gets the metrics of a scheduler, creating them if needed.
+	 *
+	 * @param name
+	 *            the name of the scheduler
+	 * @return the metrics
+	 */
+	public static SchedulerMetrics get(final String name) {
+		SchedulerMetrics result = METRICS.get(name);
+		if (result == null) {
+			result = new SchedulerMetrics(name);
+			final SchedulerMetrics other = METRICS.putIfAbsent(name, result);
+			if (other != null) {
+				result = other;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the statistics of all schedulers.
+	 *
+	 * @return the statistics by scheduler name
+	 */
+	public static Map<String, Map<String, Object>> getAllStats() {
+		final Map<String, Map<String, Object>> result = new HashMap<String, Map<String, Object>>();
+		for (final Map.Entry<String, SchedulerMetrics> metrics : METRICS
+				.entrySet()) {
+			result.put(metrics.getKey(), metrics.getValue().getStats());
+		}
+		return result;
+	}
+	
+	/**
+	 * Sets the sink that receives the measurements of this scheduler, null
+	 * for none.
+	 *
+	 * @param sink
+	 *            the sink
+	 */
+	public void setSink(final MetricsSink sink) {
+		this.sink = sink;
+	}
+	
+	/**
+	 * Sets the sink from the params of a scheduler factory: the class name in
+	 * "metricsSink", or none if not given.
+	 *
+	 * @param params
+	 *            the params, may be null
+	 */
+	void configure(final Map<String, Object> params) {
+		if (params == null || !(params.get("metricsSink") instanceof String)) {
+			setSink(null);
+			return;
+		}
+		final String className = (String) params.get("metricsSink");
+		try {
+			setSink((MetricsSink) Class.forName(className).newInstance());
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't create metrics sink:" + className,
+					e);
+		}
+	}
+	
+	/**
+	 * Gets the queue depth of an executor.
+	 *
+	 * @param executor
+	 *            the executor
+	 * @return the number of queued runnables, or -1 if unknown
+	 */
+	public static int queueDepth(final Executor executor) {
+		if (executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) executor).getQueue().size();
+		}
+		return -1;
+	}
+	
+	/**
+	 * Record that a task fired.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param due
+	 *            the due time of the task, in milliseconds
+	 */
+	public void fired(final String agentId, final long due) {
+		record(lag, LAG, agentId, System.currentTimeMillis() - due);
+	}
+	
+	/**
+	 * Record that a task completed.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param start
+	 *            the start of the run, from {@link System#nanoTime()}
+	 */
+	public void completed(final String agentId, final long start) {
+		record(execution, EXECUTION, agentId, TimeUnit.NANOSECONDS
+				.toMillis(System.nanoTime() - start));
+	}
+	
+	/**
+	 * Record the number of tasks that were overdue at startup.
+	 *
+	 * @param count
+	 *            the count
+	 */
+	public void overdueAtStartup(final long count) {
+		overdue.addAndGet(count);
+		final MetricsSink current = sink;
+		if (current != null) {
+			current.record(name, OVERDUE, null, count);
+		}
+	}
+	
+	/**
+	 * Sets a gauge, reported in the statistics under the given name.
+	 *
+	 * @param gauge
+	 *            the name of the gauge
+	 * @param value
+	 *            the gauge
+	 */
+	public void setGauge(final String gauge, final Gauge value) {
+		gauges.put(gauge, value);
+	}
+	
+	/**
+	 * Gets the statistics: the lag and execution histograms, the overdue
+	 * tasks at startup and the current values of the gauges.
+	 *
+	 * @return the statistics
+	 */
+	public Map<String, Object> getStats() {
+		final Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put(LAG, lag.getStats());
+		result.put(EXECUTION, execution.getStats());
+		result.put(OVERDUE, overdue.get());
+		for (final Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+			try {
+				result.put(gauge.getKey(), gauge.getValue().get());
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Couldn't read gauge:" + gauge.getKey(),
+						e);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Record a measurement in a histogram, and pass it on to the sink.
+	 *
+	 * @param histogram
+	 *            the histogram
+	 * @param metric
+	 *            the metric
+	 * @param agentId
+	 *            the agent id
+	 * @param value
+	 *            the value
+	 */
+	private void record(final Histogram histogram, final String metric,
+			final String agentId, final long value) {
+		histogram.add(value);
+		final MetricsSink current = sink;
+		if (current != null) {
+			try {
+				current.record(name, metric, agentId, value);
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Metrics sink failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Histogram of millisecond values, in power of two buckets.
+	 */
+	private static final class Histogram {
+		private static final int		BUCKETS	= 22;
+		private final AtomicLongArray	counts	= new AtomicLongArray(BUCKETS);
+		private final AtomicLong		count	= new AtomicLong(0);
+		private final AtomicLong		sum		= new AtomicLong(0);
+		private final AtomicLong		max		= new AtomicLong(0);
+		
+		/**
+		 * Add a value, negative values count as 0.
+		 *
+		 * @param value
+		 *            the value
+		 */
+		private void add(final long value) {
+			final long clamped = Math.max(0, value);
+			counts.incrementAndGet(Math.min(BUCKETS - 1,
+					64 - Long.numberOfLeadingZeros(clamped)));
+			count.incrementAndGet();
+			sum.addAndGet(clamped);
+			long old = max.get();
+			while (clamped > old && !max.compareAndSet(old, clamped)) {
+				old = max.get();
+			}
+		}
+		
+		/**
+		 * Gets the count, mean, max, approximate percentiles and the non
+		 * empty buckets, by their upper bound.
+		 *
+		 * @return the statistics
+		 */
+		private Map<String, Object> getStats() {
+			final long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts.get(i);
+				total += snapshot[i];
+			}
+			final Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("count", total);
+			result.put("mean", total == 0 ? 0.0 : (double) sum.get() / total);
+			result.put("max", max.get());
+			result.put("p50", percentile(snapshot, total, 0.5));
+			result.put("p90", percentile(snapshot, total, 0.9));
+			result.put("p99", percentile(snapshot, total, 0.99));
+			final Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < BUCKETS; i++) {
+				if (snapshot[i] > 0) {
+					buckets.put(i < BUCKETS - 1 ? "<" + (1L << i) : ">="
+							+ (1L << (i - 1)), snapshot[i]);
+				}
+			}
+			result.put("buckets", buckets);
+			return result;
+		}
+		
+		/**
+		 * Gets the upper bound of the bucket that holds the given percentile.
+		 *
+		 * @param snapshot
+		 *            the bucket counts
+		 * @param total
+		 *            the total count
+		 * @param fraction
+		 *            the percentile, as a fraction
+		 * @return the upper bound, at most the max
+		 */
+		private long percentile(final long[] snapshot, final long total,
+				final double fraction) {
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += snapshot[i];
+				if (seen > 0 && seen >= fraction * total) {
+					return Math.min(1L << i, max.get());
+				}
+			}
+			return max.get();
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.config.Config;
+
+/**
+ * Pages persisted tasks back in after a restart, in due time order.
+ *
+ * Only the tasks that are due within the horizon are armed, later ones are
+ * armed as time advances. Tasks that were due while the host was down are
+ * caught up at a limited rate, instead of all at once.
+ *
+ * Tasks are either all added before the start, or streamed in due order: a
+ * page at a time, as the tasks added before are armed, see
+ * {@link #page(boolean)}.
+ *
+ * @param <T>
+ *            the type of the recovered tasks
+ */
+abstract class TaskRecovery<T> implements Runnable {
+	private static final Logger						LOG			= Logger.getLogger(TaskRecovery.class
+																		.getCanonicalName());
+	private static final ScheduledExecutorService	PAGER		= Executors
+																		.newSingleThreadScheduledExecutor(Config
+																				.getThreadFactory());
+	/** The default horizon, in milliseconds. */
+	static final long								HORIZON		= 60000;
+	/** The default catch up rate, in tasks per second. */
+	static final int								RATE		= 1000;
+	private static final long						PAGE		= 1000;
+	private final long								horizon;
+	private final int								rate;
+	private final long								start		= System
+																		.currentTimeMillis();
+	private final Queue<Item<T>>					overdue		= new PriorityQueue<Item<T>>();
+	private final Queue<Item<T>>					later		= new PriorityQueue<Item<T>>();
+	private boolean									moreOverdue	= true;
+	private boolean									moreLater	= true;
+	private int										split		= 0;
+	private ScheduledFuture<?>						pager		= null;
+	
+	/**
+	 * Instantiates a new task recovery.
+	 *
+	 * @param horizon
+	 *            tasks due within this many milliseconds are armed
+	 * @param rate
+	 *            the maximum number of overdue tasks armed per second
+	 */
+	TaskRecovery(final long horizon, final int rate) {
+		this.horizon = horizon > 0 ? horizon : HORIZON;
+		this.rate = rate > 0 ? rate : RATE;
+	}
+	
+	/**
+	 * Arm a task.
+	 *
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the delay in milliseconds after which it should run
+	 */
+	abstract void arm(T task, long delay);
+	
+	/**
+	 * Add the next page of tasks, in due order, for a recovery that streams
+	 * its tasks. Called once all tasks added before are armed: a page holds
+	 * the tasks that follow them, due either at or before the start, or
+	 * after it.
+	 *
+	 * @param overdue
+	 *            true for the tasks due at or before the start, false for
+	 *            the later ones
+	 * @return false if there are no more pages
+	 */
+	boolean page(final boolean overdue) {
+		return false;
+	}
+	
+	/**
+	 * Add a persisted task, before starting or from {@link #page(boolean)}.
+	 *
+	 * @param task
+	 *            the task
+	 * @param due
+	 *            the due time in milliseconds
+	 */
+	void add(final T task, final long due) {
+		(due <= start ? overdue : later).add(new Item<T>(task, due));
+	}
+	
+	/**
+	 * Gets the start time: tasks due at or before it are overdue.
+	 *
+	 * @return the start time in milliseconds
+	 */
+	long getStart() {
+		return start;
+	}
+	
+	/**
+	 * Arm the first page of tasks, and keep paging in the others.
+	 */
+	synchronized void start() {
+		split = overdue.size();
+		if (split > 0) {
+			LOG.info("Catching up " + split + " overdue tasks, at " + rate
+					+ " per second.");
+		}
+		run();
+		if (!isDone()) {
+			pager = PAGER.scheduleWithFixedDelay(this, PAGE, PAGE,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Gets the number of tasks that were overdue at start, not counting the
+	 * streamed ones.
+	 *
+	 * @return the count
+	 */
+	synchronized int getOverdue() {
+		return split;
+	}
+	
+	/**
+	 * Checks if all tasks are armed.
+	 *
+	 * @return true, if done
+	 */
+	synchronized boolean isDone() {
+		return peek(true) == null && peek(false) == null;
+	}
+	
+	/**
+	 * Gets the first task that is not armed yet, paging in more if needed.
+	 *
+	 * @param overdue
+	 *            true for the overdue tasks, false for the later ones
+	 * @return the task, or null if there are none left
+	 */
+	private Item<T> peek(final boolean overdue) {
+		final Queue<Item<T>> queue = overdue ? this.overdue : later;
+		while (queue.isEmpty() && (overdue ? moreOverdue : moreLater)) {
+			if (!page(overdue)) {
+				if (overdue) {
+					moreOverdue = false;
+				} else {
+					moreLater = false;
+				}
+			}
+		}
+		return queue.peek();
+	}
+	
+	/**
+	 * Arm the next page: a second's worth of overdue tasks, spread over the
+	 * second, and the tasks that came within the horizon.
+	 */
+	@Override
+	public synchronized void run() {
+		final long now = System.currentTimeMillis();
+		final int max = (int) Math.max(1, rate * PAGE / 1000);
+		for (int count = 0; count < max && peek(true) != null; count++) {
+			safeArm(overdue.poll().task, count * PAGE / max);
+		}
+		Item<T> item = peek(false);
+		while (item != null && item.due <= now + horizon) {
+			safeArm(later.poll().task, Math.max(0, item.due - now));
+			item = peek(false);
+		}
+		if (isDone()) {
+			if (pager != null) {
+				pager.cancel(false);
+				pager = null;
+			}
+		}
+	}
+	
+	/**
+	 * Arm a task, logging failures so the other tasks still get armed.
+	 *
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the delay
+	 */
+	private void safeArm(final T task, final long delay) {
+		try {
+			arm(task, delay);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Failed to recover task:" + task, e);
+		}
+	}
+	
+	/**
+	 * A task with its due time.
+	 *
+	 * @param <T>
+	 *            the type of the task
+	 */
+	private static final class Item<T> implements Comparable<Item<T>> {
+		private final T		task;
+		private final long	due;
+		
+		/**
+		 * Instantiates a new item.
+		 *
+		 * @param task
+		 *            the task
+		 * @param due
+		 *            the due time
+		 */
+		private Item(final T task, final long due) {
+			this.task = task;
+			this.due = due;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(final Item<T> other) {
+			return due < other.due ? -1 : (due == other.due ? 0 : 1);
+		}
+	}
+}
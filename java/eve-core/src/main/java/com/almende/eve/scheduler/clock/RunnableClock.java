@@ -4,28 +4,100 @@
  */
 package com.almende.eve.scheduler.clock;
 
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
-import org.joda.time.Interval;
 
 import com.almende.eve.config.Config;
 
 /**
- * The Class RunnableClock.
+ * The Class RunnableClock. All instances with the same tick share one
+ * {@link TimingWheel}; the callbacks of expired triggers run on the executor
+ * given to the clock.
  */
 public class RunnableClock implements Runnable, Clock {
-	private static final NavigableMap<ClockEntry, ClockEntry>	TIMELINE	= new TreeMap<ClockEntry, ClockEntry>();
-	private static final ScheduledExecutorService				POOL		= Executors
-																					.newScheduledThreadPool(
-																							4,
-																							Config.getThreadFactory());
-	private static ScheduledFuture<?>							future		= null;
+	/** The default tick in nanoseconds: one millisecond. */
+	public static final long									DEFAULT_TICK	= TimeUnit.MILLISECONDS
+																						.toNanos(1);
+	private static final ScheduledExecutorService				POOL			= Executors
+																						.newScheduledThreadPool(
+																								4,
+																								Config.getThreadFactory());
+	private static final ConcurrentHashMap<Long, TimingWheel>	WHEELS			= new ConcurrentHashMap<Long, TimingWheel>();
+	private final Executor										executor;
+	private final TimingWheel									wheel;
+	
+	/**
+	 * Instantiates a new runnable clock, running callbacks on the clock's own
+	 * thread pool.
+	 */
+	public RunnableClock() {
+		this(POOL);
+	}
+	
+	/**
+	 * Instantiates a new runnable clock.
+	 * 
+	 * @param executor
+	 *            the executor to run the callbacks on
+	 */
+	public RunnableClock(final Executor executor) {
+		this(executor, DEFAULT_TICK, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Instantiates a new runnable clock with the given tick, the resolution at
+	 * which triggers fire. Only clocks with the same tick share a wheel, so
+	 * the tick of one clock doesn't change the others.
+	 * 
+	 * @param executor
+	 *            the executor to run the callbacks on
+	 * @param duration
+	 *            the duration of a tick
+	 * @param unit
+	 *            the unit
+	 */
+	public RunnableClock(final Executor executor, final long duration,
+			final TimeUnit unit) {
+		this.executor = executor;
+		this.wheel = getWheel(unit.toNanos(duration));
+	}
+	
+	/**
+	 * Gets the shared wheel of the given tick.
+	 * 
+	 * @param tickNanos
+	 *            the tick in nanoseconds
+	 * @return the wheel
+	 */
+	private static TimingWheel getWheel(final long tickNanos) {
+		TimingWheel result = WHEELS.get(tickNanos);
+		if (result == null) {
+			final TimingWheel wheel = new TimingWheel(POOL, tickNanos);
+			result = WHEELS.putIfAbsent(tickNanos, wheel);
+			if (result == null) {
+				result = wheel;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the number of pending triggers, of all clocks.
+	 * 
+	 * @return the count
+	 */
+	public static int getPendingCount() {
+		int count = 0;
+		for (final TimingWheel wheel : WHEELS.values()) {
+			count += wheel.size();
+		}
+		return count;
+	}
 	
 	/*
 	 * (non-Javadoc)
@@ -34,25 +106,7 @@ public class RunnableClock implements Runnable, Clock {
 	 */
 	@Override
 	public void run() {
-		synchronized (TIMELINE) {
-			while (!TIMELINE.isEmpty()) {
-				final ClockEntry ce = TIMELINE.firstEntry().getValue();
-				if (future != null) {
-					future.cancel(false);
-					future = null;
-				}
-				final DateTime now = DateTime.now();
-				if (ce.getDue().isBefore(now)) {
-					TIMELINE.remove(ce);
-					POOL.execute(ce.getCallback());
-					continue;
-				}
-				final long interval = new Interval(now, ce.getDue())
-						.toDurationMillis();
-				future = POOL.schedule(this, interval, TimeUnit.MILLISECONDS);
-				break;
-			}
-		}
+		wheel.run();
 	}
 	
 	/*
@@ -65,33 +119,17 @@ public class RunnableClock implements Runnable, Clock {
 	@Override
 	public void requestTrigger(final String triggerId, final DateTime due,
 			final Runnable callback) {
-		synchronized (TIMELINE) {
-			final ClockEntry ce = new ClockEntry(triggerId, due, callback);
-			final ClockEntry oldVal = TIMELINE.get(ce);
-			if (oldVal == null || oldVal.getDue().isAfter(due)) {
-				TIMELINE.put(ce, ce);
-				run();
-			}
-		}
+		wheel.request(new ClockEntry(triggerId, due, callback, executor));
 	}
 	
 	@Override
 	public void cancel(final String triggerId) {
-		synchronized (TIMELINE) {
-			final ClockEntry ce = new ClockEntry(triggerId, null, null);
-			TIMELINE.remove(ce);
-		}
+		wheel.cancel(triggerId);
 	}
 	
 	@Override
 	public void clear() {
-		synchronized (TIMELINE) {
-			TIMELINE.clear();
-			if (future != null) {
-				future.cancel(false);
-				future = null;
-			}
-		}
+		wheel.clear();
 	}
 }
 
@@ -103,6 +141,7 @@ class ClockEntry implements Comparable<ClockEntry> {
 	private String		triggerId;
 	private DateTime	due;
 	private Runnable	callback;
+	private Executor	executor;
 	
 	/**
 	 * @param triggerId
@@ -111,9 +150,21 @@ class ClockEntry implements Comparable<ClockEntry> {
 	 */
 	public ClockEntry(final String triggerId, final DateTime due,
 			final Runnable callback) {
+		this(triggerId, due, callback, null);
+	}
+	
+	/**
+	 * @param triggerId
+	 * @param due
+	 * @param callback
+	 * @param executor
+	 */
+	public ClockEntry(final String triggerId, final DateTime due,
+			final Runnable callback, final Executor executor) {
 		this.triggerId = triggerId;
 		this.due = due;
 		this.callback = callback;
+		this.executor = executor;
 	}
 	
 	/**
@@ -158,6 +209,13 @@ class ClockEntry implements Comparable<ClockEntry> {
 		this.callback = callback;
 	}
 	
+	/**
+	 * @return The executor to run the callback on.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -192,16 +250,12 @@ class ClockEntry implements Comparable<ClockEntry> {
 	 */
 	@Override
 	public int compareTo(final ClockEntry o) {
-		if (due == null || o.due == null) {
-			if (this.equals(o)) {
-				return 0;
-			} else {
-				return -1;
+		if (due != null && o.due != null) {
+			final int result = due.compareTo(o.due);
+			if (result != 0) {
+				return result;
 			}
 		}
-		if (due.equals(o.due)) {
-			return 0;
-		}
-		return due.compareTo(o.due);
+		return triggerId.compareTo(o.triggerId);
 	}
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler.clock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical timing wheel, holding at most one pending trigger per trigger
+ * id.
+ *
+ * Requesting and cancelling triggers doesn't take a lock: requests are
+ * registered in a concurrent map and queued, and only the tick thread puts
+ * them into the wheel. Each tick, the expired triggers are handed to their
+ * executors in batches. Cancelled or replaced entries stay in the wheel until
+ * they expire or are swept, and are then dropped.
+ */
+final class TimingWheel implements Runnable {
+	private static final Logger							LOG			= Logger.getLogger(TimingWheel.class
+																			.getCanonicalName());
+	private static final int							BITS		= 9;
+	private static final int							SIZE		= 1 << BITS;
+	private static final int							MASK		= SIZE - 1;
+	private static final int							LEVELS		= 4;
+	/** Maximum number of callbacks per dispatched batch. */
+	private static final int							BATCH		= 64;
+	/** Minimum number of dropped entries before the wheel is swept. */
+	private static final int							SWEEP		= 1024;
+	private final ConcurrentHashMap<String, ClockEntry>	entries		= new ConcurrentHashMap<String, ClockEntry>();
+	private final ConcurrentLinkedQueue<ClockEntry>		inbox		= new ConcurrentLinkedQueue<ClockEntry>();
+	private final AtomicInteger							stale		= new AtomicInteger(0);
+	private final ScheduledExecutorService				ticker;
+	private final long									baseMillis	= System.currentTimeMillis();
+	private final long									baseNanos	= System.nanoTime();
+	private volatile ScheduledFuture<?>					future		= null;
+	private final long									tickNanos;
+	private long										current		= -1;
+	private int											placed		= 0;
+	private List<ClockEntry>[][]						slots		= newSlots();
+	
+	/**
+	 * Instantiates a new timing wheel.
+	 *
+	 * @param ticker
+	 *            the executor to run the ticks on
+	 * @param tickNanos
+	 *            the duration of a tick in nanoseconds, the resolution of the
+	 *            wheel
+	 */
+	TimingWheel(final ScheduledExecutorService ticker, final long tickNanos) {
+		if (tickNanos <= 0) {
+			throw new IllegalArgumentException("Tick should be positive:"
+					+ tickNanos + " ns");
+		}
+		this.ticker = ticker;
+		this.tickNanos = tickNanos;
+	}
+	
+	/**
+	 * Request a trigger, unless one for the same id is already pending at the
+	 * same or an earlier time.
+	 *
+	 * @param entry
+	 *            the entry
+	 */
+	void request(final ClockEntry entry) {
+		final String triggerId = entry.getAgentId();
+		while (true) {
+			final ClockEntry old = entries.putIfAbsent(triggerId, entry);
+			if (old == null) {
+				break;
+			}
+			if (!old.getDue().isAfter(entry.getDue())) {
+				return;
+			}
+			if (entries.replace(triggerId, old, entry)) {
+				stale.incrementAndGet();
+				break;
+			}
+		}
+		inbox.add(entry);
+		if (future == null) {
+			start();
+		}
+	}
+	
+	/**
+	 * Cancel the pending trigger of the given id.
+	 *
+	 * @param triggerId
+	 *            the trigger id
+	 */
+	void cancel(final String triggerId) {
+		if (entries.remove(triggerId) != null) {
+			stale.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Cancel all pending triggers.
+	 */
+	synchronized void clear() {
+		entries.clear();
+		inbox.clear();
+		slots = newSlots();
+		placed = 0;
+		stale.set(0);
+	}
+	
+	/**
+	 * Gets the number of pending triggers.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Start ticking.
+	 */
+	private synchronized void start() {
+		if (future == null) {
+			current = now();
+			future = ticker.scheduleAtFixedRate(this, tickNanos, tickNanos,
+					TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * Advance the wheel to the current time, and dispatch the expired
+	 * triggers.
+	 */
+	@Override
+	public synchronized void run() {
+		try {
+			final Map<Executor, List<ClockEntry>> batch = new HashMap<Executor, List<ClockEntry>>();
+			final long now = now();
+			if (placed == 0) {
+				// Nothing in the wheel, skip the idle ticks.
+				current = Math.max(current, now);
+			}
+			ClockEntry entry = inbox.poll();
+			while (entry != null) {
+				if (entries.get(entry.getAgentId()) == entry) {
+					place(entry, batch);
+				} else {
+					stale.decrementAndGet();
+				}
+				entry = inbox.poll();
+			}
+			while (current < now) {
+				current++;
+				for (int level = LEVELS - 1; level > 0; level--) {
+					if ((current & ((1L << (BITS * level)) - 1)) == 0) {
+						cascade(level, batch);
+					}
+				}
+				cascade(0, batch);
+			}
+			dispatch(batch);
+			final int dropped = stale.get();
+			if (dropped > SWEEP && dropped > entries.size()) {
+				sweep();
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Timing wheel tick failed", e);
+		}
+	}
+	
+	/**
+	 * Gets the current time, in ticks.
+	 *
+	 * @return the tick
+	 */
+	private long now() {
+		return (TimeUnit.MILLISECONDS.toNanos(baseMillis) + System.nanoTime() - baseNanos)
+				/ tickNanos;
+	}
+	
+	/**
+	 * Put an entry in the slot of its due tick, or in the batch if it is
+	 * already due.
+	 *
+	 * @param entry
+	 *            the entry
+	 * @param batch
+	 *            the batch
+	 */
+	private void place(final ClockEntry entry,
+			final Map<Executor, List<ClockEntry>> batch) {
+		final long due = TimeUnit.MILLISECONDS.toNanos(entry.getDue()
+				.getMillis()) / tickNanos;
+		final long delta = due - current;
+		if (delta <= 0) {
+			List<ClockEntry> list = batch.get(entry.getExecutor());
+			if (list == null) {
+				list = new ArrayList<ClockEntry>();
+				batch.put(entry.getExecutor(), list);
+			}
+			list.add(entry);
+			return;
+		}
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		final int index = (int) ((due >> (BITS * level)) & MASK);
+		if (slots[level][index] == null) {
+			slots[level][index] = new ArrayList<ClockEntry>();
+		}
+		slots[level][index].add(entry);
+		placed++;
+	}
+	
+	/**
+	 * Empty the slot of the current tick at the given level, placing its
+	 * entries again: in a lower level, or in the batch if due.
+	 *
+	 * @param level
+	 *            the level
+	 * @param batch
+	 *            the batch
+	 */
+	private void cascade(final int level,
+			final Map<Executor, List<ClockEntry>> batch) {
+		final int index = (int) ((current >> (BITS * level)) & MASK);
+		final List<ClockEntry> slot = slots[level][index];
+		if (slot == null) {
+			return;
+		}
+		slots[level][index] = null;
+		placed -= slot.size();
+		for (final ClockEntry entry : slot) {
+			place(entry, batch);
+		}
+	}
+	
+	/**
+	 * Hand the expired triggers to their executors, in batches.
+	 *
+	 * @param batch
+	 *            the expired entries, per executor
+	 */
+	private void dispatch(final Map<Executor, List<ClockEntry>> batch) {
+		for (final Map.Entry<Executor, List<ClockEntry>> item : batch
+				.entrySet()) {
+			final List<ClockEntry> list = item.getValue();
+			for (int i = 0; i < list.size(); i += BATCH) {
+				final List<Runnable> callbacks = new ArrayList<Runnable>(
+						Math.min(BATCH, list.size() - i));
+				for (final ClockEntry entry : list.subList(i,
+						Math.min(i + BATCH, list.size()))) {
+					if (entries.remove(entry.getAgentId(), entry)) {
+						callbacks.add(entry.getCallback());
+					} else {
+						stale.decrementAndGet();
+					}
+				}
+				if (!callbacks.isEmpty()) {
+					item.getKey().execute(new Runnable() {
+						@Override
+						public void run() {
+							for (final Runnable callback : callbacks) {
+								try {
+									callback.run();
+								} catch (final Exception e) {
+									LOG.log(Level.WARNING,
+											"Trigger callback failed", e);
+								}
+							}
+						}
+					});
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Drop all cancelled and replaced entries from the wheel.
+	 */
+	private void sweep() {
+		for (final List<ClockEntry>[] level : slots) {
+			for (int i = 0; i < SIZE; i++) {
+				final List<ClockEntry> slot = level[i];
+				if (slot == null) {
+					continue;
+				}
+				final List<ClockEntry> live = new ArrayList<ClockEntry>(
+						slot.size());
+				for (final ClockEntry entry : slot) {
+					if (entries.get(entry.getAgentId()) == entry) {
+						live.add(entry);
+					} else {
+						stale.decrementAndGet();
+					}
+				}
+				placed -= slot.size() - live.size();
+				level[i] = live.isEmpty() ? null : live;
+			}
+		}
+	}
+	
+	/**
+	 * Create empty slots for all levels.
+	 *
+	 * @return the slots
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<ClockEntry>[][] newSlots() {
+		return new List[LEVELS][SIZE];
+	}
+
+}
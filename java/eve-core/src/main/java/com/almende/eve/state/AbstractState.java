@@ -5,26 +5,135 @@
 package com.almende.eve.state;
 
 import java.io.Serializable;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.LinkedHashSet;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.StateQuota.Policy;
+import com.almende.util.ClassUtil;
 import com.almende.util.TypeUtil;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class AbstractState.
+ * 
+ * Typed reads keep the decoded object per key and requested type, tagged with
+ * the version of the key it was decoded at. As long as the version doesn't
+ * change, the next read returns the cached object without reading or
+ * converting the stored value again. Only immutable results (strings, numbers,
+ * booleans, enums) are cached for the plain get() methods; mutable results are
+ * only shared through {@link #getShared(TypedKey)}, as frozen copies.
+ * 
+ * Each key has a version, which increases on every change. By default the
+ * versions are kept in memory, states call {@link #changed(String)} and
+ * {@link #removed(String)} on each change. States that persist their versions
+ * override {@link #getVersion(String)} instead.
+ * 
+ * Watchers and waiting threads are notified from {@link #fireChange(String)},
+ * which is called by {@link #changed(String)} and {@link #removed(String)}.
+ * States that persist their versions call it themselves.
+ * 
+ * Expiring keys and quotas are handled here as well, for all states: the
+ * expiry time of a key is stored next to it, under a reserved key of its own,
+ * so setting or removing one expiry doesn't rewrite the others. The
+ * {@link StateReaper} calls {@link #expire()} on states that need it. The quota bookkeeping
+ * (value sizes by version, access order) is kept in memory. Like the decoded
+ * values, in-memory versions, listeners and expiry times, it is only created
+ * on first use, as most states never need most of it.
+ * 
+ * The atomic operations (compute, merge and the map and list operations) are
+ * implemented on top of putIfVersion, retrying in a loop on conflicts. They
+ * hold the lock of the state, so local threads don't conflict at all. Reads
+ * don't take that lock, and JSON states may return their stored tree, so the
+ * operations never change the stored value: the map and list operations work
+ * on a deep copy of the JSON tree (without converting the other entries of
+ * the collection), or on a shallow copy of a Java collection, and write the
+ * copy with putIfVersion. Compute functions return a changed copy of the
+ * current value, see {@link StateFunction}; only a result equal to the stored
+ * value skips the write.
  *
  * @param <V> the value type
  * @author Almende
  */
 public abstract class AbstractState<V> implements State {
-	private static final Logger	LOG		= Logger.getLogger(AbstractState.class
-												.getCanonicalName());
-	private String				agentId	= null;
+	private static final Logger			LOG			= Logger.getLogger(AbstractState.class
+															.getCanonicalName());
+	private static final Object			UNCHANGED	= new Object();
+	private static final Set<Class<?>>	IMMUTABLES	= new HashSet<Class<?>>(
+															Arrays.asList(
+																	String.class,
+																	Boolean.class,
+																	Character.class,
+																	Byte.class,
+																	Short.class,
+																	Integer.class,
+																	Long.class,
+																	Float.class,
+																	Double.class,
+																	BigInteger.class,
+																	BigDecimal.class));
+	/** Collection types of which shared reads return frozen copies. */
+	private static final Set<Class<?>>	FREEZABLES	= new HashSet<Class<?>>(
+															Arrays.asList(
+																	Map.class,
+																	SortedMap.class,
+																	Collection.class,
+																	List.class,
+																	Set.class,
+																	SortedSet.class));
+	private String						agentId		= null;
+	/** The decoded values by key, created on first use like the others. */
+	private volatile Map<String, Map<JavaType, Decoded>>	decoded	= null;
+	private volatile Versions			versions	= null;
+	private volatile Watches			watches		= null;
+	/** Maximum number of keys with cached decoded values. */
+	private static final int			MAX_DECODED	= 1024;
+	/** Maximum number of attempts of an atomic update. */
+	private static final int			MAX_UPDATES	= 1000;
+	/** Maximum number of keys removed per call of expire(). */
+	private static final int			EXPIRE_BATCH	= 100;
+	/** Prefix of the keys holding the expiry time of a key. */
+	private static final String			EXPIRY_PREFIX	= KEY_EXPIRES + ".";
+	/** The single map of expiry times, as stored by older versions. */
+	private static final TypedKey<HashMap<String, Long>>	EXPIRES	= new TypedKey<HashMap<String, Long>>(
+																	KEY_EXPIRES) {
+															};
+	/** The last known expiry times. */
+	private volatile Map<String, Long>	expires		= null;
+	private volatile StateQuota			quota		= null;
+	private volatile boolean			tracked		= false;
+	private volatile Usage				usage		= null;
 	
 	/**
 	 * The implemented classes must have a public constructor.
@@ -69,6 +178,8 @@ public abstract class AbstractState<V> implements State {
 	 */
 	@Override
 	public synchronized Object put(final String key, final Object value) {
+		forget(key);
+		track(key);
 		if (value == null
 				|| Serializable.class.isAssignableFrom(value.getClass())) {
 			return locPut(key, (Serializable) value);
@@ -80,12 +191,388 @@ public abstract class AbstractState<V> implements State {
 		}
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#putAll(java.util.Map)
+	 */
+	@Override
+	public synchronized void putAll(final Map<String, ?> values) {
+		for (final Entry<String, ?> entry : values.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#getAll()
+	 */
+	@Override
+	public synchronized Map<String, Object> getAll() {
+		final Map<String, Object> result = new HashMap<String, Object>();
+		for (final String key : keySet()) {
+			final V value = get(key);
+			if (value != null) {
+				result.put(key, value);
+			}
+		}
+		return result;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#put(java.lang.String, java.lang.Object, long)
+	 */
+	@Override
+	public synchronized void put(final String key, final Object value,
+			final long ttl) {
+		if (ttl <= 0) {
+			put(key, value);
+			removeExpiry(key);
+			return;
+		}
+		final long expiry = System.currentTimeMillis() + ttl;
+		// A single putAll, so the value and its expiry are written together.
+		final Map<String, Object> values = new HashMap<String, Object>(2);
+		values.put(key, value);
+		values.put(EXPIRY_PREFIX + key, expiry);
+		putAll(values);
+		expires().put(key, expiry);
+		StateReaper.register(this);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#putIfVersion(java.lang.String, java.lang.Object, long, long)
+	 */
+	@Override
+	public synchronized boolean putIfVersion(final String key,
+			final Object value, final long version, final long ttl) {
+		if (ttl <= 0 || value == null) {
+			if (!putIfVersion(key, value, version)) {
+				return false;
+			}
+			removeExpiry(key);
+			return true;
+		}
+		final long expiry = System.currentTimeMillis() + ttl;
+		final Map<String, Object> values = new HashMap<String, Object>(2);
+		values.put(key, value);
+		values.put(EXPIRY_PREFIX + key, expiry);
+		if (!putAllIfVersion(values, key, version)) {
+			return false;
+		}
+		expires().put(key, expiry);
+		StateReaper.register(this);
+		return true;
+	}
+	
+	/**
+	 * Put the values in a single write, if the given key still has the given
+	 * version. This default implementation checks the version and writes
+	 * under the lock of this object, like
+	 * {@link #putIfVersion(String, Object, long)}. Backends that can write
+	 * conditionally in the store itself override this method.
+	 *
+	 * @param values the values
+	 * @param key the key whose version is checked
+	 * @param version the expected version
+	 * @return true, if successful
+	 */
+	protected synchronized boolean putAllIfVersion(
+			final Map<String, ?> values, final String key, final long version) {
+		if (getVersion(key) != version) {
+			return false;
+		}
+		putAll(values);
+		return getVersion(key) != version;
+	}
+	
+	/**
+	 * Drop the expiry time of a removed key, so a later put of the key doesn't
+	 * inherit it. States call this from {@link #remove(String)}.
+	 *
+	 * @param key the removed key
+	 */
+	protected final void removeExpiry(final String key) {
+		if (key.startsWith(KEY_EXPIRES)) {
+			return;
+		}
+		final Map<String, Long> known = expires;
+		if ((known != null && known.remove(key) != null)
+				|| containsKey(EXPIRY_PREFIX + key)) {
+			remove(EXPIRY_PREFIX + key);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#setQuota(com.almende.eve.state.StateQuota)
+	 */
+	@Override
+	public void setQuota(final StateQuota quota) {
+		this.quota = quota;
+		final Usage known = usage;
+		if (known != null) {
+			known.accessed.clear();
+		}
+		if (quota != null) {
+			StateReaper.register(this);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#getQuota()
+	 */
+	@Override
+	public StateQuota getQuota() {
+		return quota;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#expire()
+	 */
+	@Override
+	public synchronized int expire() {
+		int count = 0;
+		final HashMap<String, Long> legacy = get(EXPIRES);
+		if (legacy != null) {
+			final Map<String, Object> values = new HashMap<String, Object>();
+			for (final Entry<String, Long> entry : legacy.entrySet()) {
+				values.put(EXPIRY_PREFIX + entry.getKey(), entry.getValue());
+			}
+			putAll(values);
+			remove(KEY_EXPIRES);
+		}
+		
+		// Other instances may have set expiry times too, so read them all.
+		// Only the expired keys and their expiry times are written.
+		final long now = System.currentTimeMillis();
+		final Map<String, Long> found = new HashMap<String, Long>();
+		for (final String expiryKey : new ArrayList<String>(keySet())) {
+			if (!expiryKey.startsWith(EXPIRY_PREFIX)) {
+				continue;
+			}
+			final Long expiry = get(expiryKey, Long.class);
+			if (expiry == null) {
+				continue;
+			}
+			final String key = expiryKey.substring(EXPIRY_PREFIX.length());
+			if (expiry <= now && count < EXPIRE_BATCH) {
+				// Removes the expiry time as well.
+				remove(key);
+				count++;
+			} else {
+				found.put(key, expiry);
+			}
+		}
+		if (expires != null || !found.isEmpty()) {
+			final Map<String, Long> known = expires();
+			known.keySet().retainAll(found.keySet());
+			known.putAll(found);
+		}
+		if (quota != null) {
+			count += evict(EXPIRE_BATCH);
+		}
+		return count;
+	}
+	
+	/**
+	 * Checks if this state has expiring keys or a quota.
+	 *
+	 * @return true, if the state should be visited by the reaper
+	 */
+	boolean isExpiring() {
+		final Map<String, Long> known = expires;
+		return (known != null && !known.isEmpty()) || quota != null;
+	}
+	
+	/**
+	 * Gets the versions of all keys. States that can read all versions at
+	 * once override this method.
+	 *
+	 * @return the versions by key
+	 */
+	protected Map<String, Long> getVersions() {
+		final Map<String, Long> result = new HashMap<String, Long>();
+		for (final String key : keySet()) {
+			result.put(key, getVersion(key));
+		}
+		return result;
+	}
+	
+	/**
+	 * Evict keys until the state fits its quota.
+	 *
+	 * @param max the maximum number of keys to evict
+	 * @return the number of evicted keys
+	 */
+	private int evict(final int max) {
+		final StateQuota limit = quota;
+		final Map<String, Long> current = getVersions();
+		// Reserved keys (the agent type, expiry times, tasks, monitors,
+		// checkpoints) are neither counted nor evicted.
+		final Iterator<String> iter = current.keySet().iterator();
+		while (iter.hasNext()) {
+			if (isReserved(iter.next())) {
+				iter.remove();
+			}
+		}
+		final Usage known = usage();
+		known.sizes.keySet().retainAll(current.keySet());
+		known.accessed.keySet().retainAll(current.keySet());
+		
+		int keys = current.size();
+		long bytes = 0;
+		if (limit.getMaxBytes() > 0) {
+			for (final Entry<String, Long> entry : current.entrySet()) {
+				bytes += sizeOf(entry.getKey(), entry.getValue());
+			}
+		}
+		if (fits(limit, keys, bytes)) {
+			return 0;
+		}
+		final List<Entry<String, Long>> order = new ArrayList<Entry<String, Long>>(
+				current.entrySet());
+		Collections.sort(order, new Comparator<Entry<String, Long>>() {
+			@Override
+			public int compare(final Entry<String, Long> a,
+					final Entry<String, Long> b) {
+				if (limit.getPolicy() == Policy.LRU) {
+					final int result = Long.compare(accessOf(a.getKey()),
+							accessOf(b.getKey()));
+					if (result != 0) {
+						return result;
+					}
+				}
+				return Long.compare(a.getValue(), b.getValue());
+			}
+		});
+		int count = 0;
+		for (final Entry<String, Long> entry : order) {
+			if (count >= max || fits(limit, keys, bytes)) {
+				break;
+			}
+			final long[] size = known.sizes.get(entry.getKey());
+			remove(entry.getKey());
+			keys--;
+			bytes -= size == null ? 0 : size[1];
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Checks if the given key is reserved for the bookkeeping of Eve itself.
+	 *
+	 * @param key the key
+	 * @return true, if the key starts with an underscore
+	 */
+	private static boolean isReserved(final String key) {
+		return key.startsWith("_");
+	}
+	
+	/**
+	 * Checks if the given counts are within the quota.
+	 *
+	 * @param limit the quota
+	 * @param keys the number of keys
+	 * @param bytes the size
+	 * @return true, if within the quota
+	 */
+	private static boolean fits(final StateQuota limit, final int keys,
+			final long bytes) {
+		return (limit.getMaxKeys() <= 0 || keys <= limit.getMaxKeys())
+				&& (limit.getMaxBytes() <= 0 || bytes <= limit.getMaxBytes());
+	}
+	
+	/**
+	 * Gets the last access of the given key, for the LRU policy.
+	 *
+	 * @param key the key
+	 * @return the access counter, 0 if not accessed since the quota was set
+	 */
+	private long accessOf(final String key) {
+		final Long access = usage().accessed.get(key);
+		return access == null ? 0 : access;
+	}
+	
+	/**
+	 * Gets the (JSON) size of the value of the given key, measuring it again
+	 * only if the key has changed.
+	 *
+	 * @param key the key
+	 * @param version the current version of the key
+	 * @return the size in bytes
+	 */
+	private long sizeOf(final String key, final long version) {
+		final Map<String, long[]> sizes = usage().sizes;
+		final long[] cached = sizes.get(key);
+		if (cached != null && cached[0] == version) {
+			return cached[1];
+		}
+		long size = 0;
+		final V raw = get(key);
+		if (raw != null) {
+			try {
+				size = JOM.getInstance().writeValueAsBytes(raw).length;
+			} catch (final JsonProcessingException e) {
+				LOG.log(Level.FINE, "Can't measure key:" + key, e);
+			}
+		}
+		sizes.put(key, new long[] { version, size });
+		return size;
+	}
+	
+	/**
+	 * Keep track of an access of the given key: on the first access, hands
+	 * the state to the reaper if it holds stored expiry times, and updates the
+	 * LRU order.
+	 *
+	 * @param key the key
+	 */
+	private void track(final String key) {
+		if (!tracked) {
+			// Null if the state couldn't be read, try again on the next access.
+			final Set<String> keys = keySet();
+			tracked = keys != null;
+			if (keys != null) {
+				for (final String other : keys) {
+					if (other.startsWith(KEY_EXPIRES)) {
+						StateReaper.register(this);
+						break;
+					}
+				}
+			}
+		}
+		final StateQuota limit = quota;
+		if (limit != null && limit.getPolicy() == Policy.LRU) {
+			final Usage known = usage();
+			known.accessed.put(key, known.accesses.incrementAndGet());
+		}
+	}
+	
+	/**
+	 * Checks if the given key has expired, but was not removed yet. An expiry
+	 * time that is no longer stored (e.g. after a clear()) is dropped.
+	 *
+	 * @param key the key
+	 * @return true, if expired
+	 */
+	private boolean isExpired(final String key) {
+		final Map<String, Long> known = expires;
+		final Long expiry = known != null ? known.get(key) : null;
+		if (expiry == null || expiry > System.currentTimeMillis()) {
+			return false;
+		}
+		if (!containsKey(EXPIRY_PREFIX + key)) {
+			known.remove(key);
+			return false;
+		}
+		return true;
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.almende.eve.state.State#putIfUnchanged(java.lang.String, java.lang.Object, java.lang.Object)
 	 */
 	@Override
 	public synchronized boolean putIfUnchanged(final String key,
 			final Object newVal, final Object oldVal) {
+		forget(key);
 		if (newVal == null
 				|| Serializable.class.isAssignableFrom(newVal.getClass())) {
 			return locPutIfUnchanged(key, (Serializable) newVal,
@@ -135,7 +622,7 @@ public abstract class AbstractState<V> implements State {
 	 */
 	@Override
 	public <T> T get(final String key, final Class<T> type) {
-		return TypeUtil.inject(get(key), type);
+		return decode(key, JOM.getTypeFactory().constructType(type), false);
 	}
 	
 	/* (non-Javadoc)
@@ -143,7 +630,7 @@ public abstract class AbstractState<V> implements State {
 	 */
 	@Override
 	public <T> T get(final String key, final Type type) {
-		return TypeUtil.inject(get(key), type);
+		return decode(key, JOM.getTypeFactory().constructType(type), false);
 	}
 	
 	/* (non-Javadoc)
@@ -151,7 +638,7 @@ public abstract class AbstractState<V> implements State {
 	 */
 	@Override
 	public <T> T get(final String key, final JavaType type) {
-		return TypeUtil.inject(get(key), type);
+		return decode(key, type, false);
 	}
 	
 	/* (non-Javadoc)
@@ -159,7 +646,7 @@ public abstract class AbstractState<V> implements State {
 	 */
 	@Override
 	public <T> T get(final String key, final TypeUtil<T> type) {
-		return type.inject(get(key));
+		return decode(key, (JavaType) type.getType(), false);
 	}
 	
 	/* (non-Javadoc)
@@ -170,6 +657,698 @@ public abstract class AbstractState<V> implements State {
 		return get(typedKey.getKey(), typedKey.getType());
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#getShared(com.almende.eve.state.TypedKey)
+	 */
+	@Override
+	public <T> T getShared(final TypedKey<T> typedKey) {
+		return decode(typedKey.getKey(), typedKey.getType(), true);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#compute(com.almende.eve.state.TypedKey, com.almende.eve.state.StateFunction)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T compute(final TypedKey<T> key, final StateFunction<T> function) {
+		final Object[] result = new Object[1];
+		update(key.getKey(), new Update() {
+			@Override
+			public Object apply(final Object raw) {
+				if (raw instanceof JsonNode) {
+					// Decoded into a new object, which the function may change.
+					final T value = function.apply((T) TypeUtil.inject(raw,
+							key.getType()));
+					result[0] = value;
+					if (value == null) {
+						return null;
+					}
+					final JsonNode tree = JOM.getInstance().valueToTree(value);
+					return equal((JsonNode) raw, tree) ? UNCHANGED : tree;
+				}
+				// A deep copy, which the function may change, also in its
+				// nested values.
+				final Object copy = deepCopy(raw);
+				final T value = function.apply((T) TypeUtil.inject(copy,
+						key.getType()));
+				result[0] = value;
+				// Without a copy, the stored object may have been changed in
+				// place: write it.
+				if (value == null ? raw == null : value != raw
+						&& value.equals(raw)) {
+					return UNCHANGED;
+				}
+				return value;
+			}
+		});
+		return (T) result[0];
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#merge(com.almende.eve.state.TypedKey, java.lang.Object, com.almende.eve.state.StateMergeFunction)
+	 */
+	@Override
+	public <T> T merge(final TypedKey<T> key, final T value,
+			final StateMergeFunction<T> function) {
+		return compute(key, new StateFunction<T>() {
+			@Override
+			public T apply(final T current) {
+				return current == null ? value : function.apply(current, value);
+			}
+		});
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#mapPut(com.almende.eve.state.TypedKey, java.lang.String, java.lang.Object)
+	 */
+	@Override
+	public <T> void mapPut(final TypedKey<? extends Map<String, T>> key,
+			final String field, final T value) {
+		update(key.getKey(), new MapUpdate(key.getType(), field, value, false));
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#mapReplace(com.almende.eve.state.TypedKey, java.lang.String, java.lang.Object)
+	 */
+	@Override
+	public <T> boolean mapReplace(final TypedKey<? extends Map<String, T>> key,
+			final String field, final T value) {
+		return update(key.getKey(), new MapUpdate(key.getType(), field, value,
+				true)) != UNCHANGED;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#mapRemove(com.almende.eve.state.TypedKey, java.lang.String)
+	 */
+	@Override
+	public boolean mapRemove(final TypedKey<? extends Map<String, ?>> key,
+			final String field) {
+		return update(key.getKey(), new Update() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object apply(final Object raw) {
+				if (raw instanceof ObjectNode) {
+					if (((ObjectNode) raw).remove(field) == null) {
+						return UNCHANGED;
+					}
+					return raw;
+				}
+				if (raw instanceof Map && ((Map<String, ?>) raw).containsKey(field)) {
+					final Map<String, Object> result = copy((Map<String, ?>) raw);
+					result.remove(field);
+					return result;
+				}
+				return UNCHANGED;
+			}
+		}) != UNCHANGED;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#listAppend(com.almende.eve.state.TypedKey, java.lang.Object)
+	 */
+	@Override
+	public <T> void listAppend(final TypedKey<? extends Collection<T>> key,
+			final T value) {
+		update(key.getKey(), new Update() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object apply(final Object raw) {
+				if (raw instanceof JsonNode) {
+					final ArrayNode result = raw instanceof ArrayNode ? (ArrayNode) raw
+							: JOM.createArrayNode();
+					result.add((JsonNode) JOM.getInstance().valueToTree(value));
+					return result;
+				}
+				final Collection<Object> result;
+				if (raw instanceof Collection) {
+					result = (Collection<Object>) newInstance(raw.getClass(),
+							new ArrayList<Object>());
+					result.addAll((Collection<?>) raw);
+				} else {
+					result = (Collection<Object>) newInstance(key.getType()
+							.getRawClass(), new ArrayList<Object>());
+				}
+				result.add(value);
+				return result;
+			}
+		});
+	}
+	
+	/**
+	 * Atomically update the value of the given key: apply the update to the
+	 * current stored value and store the result if the key hasn't changed in
+	 * the meantime, else retry. JSON states may return their stored tree from
+	 * get(), which readers use without the lock of the state, so the update
+	 * gets a deep copy of it, which it may change in place. A store that keeps
+	 * failing the write stops the retries after {@link #MAX_UPDATES} attempts.
+	 *
+	 * @param key the key
+	 * @param update the update
+	 * @return the new value, or UNCHANGED
+	 */
+	private synchronized Object update(final String key, final Update update) {
+		for (int attempt = 0; attempt < MAX_UPDATES; attempt++) {
+			// Version first: if the value changes in between, the put fails.
+			final long version = getVersion(key);
+			final V stored = get(key);
+			final Object raw = stored instanceof JsonNode ? ((JsonNode) stored)
+					.deepCopy() : stored;
+			final Object result = update.apply(raw);
+			if (result == UNCHANGED) {
+				return result;
+			}
+			Object value = result;
+			if (raw instanceof JsonNode && value != null
+					&& !(value instanceof JsonNode)) {
+				value = JOM.getInstance().valueToTree(value);
+			}
+			if (putIfVersion(key, value, version)) {
+				return result;
+			}
+		}
+		throw new IllegalStateException("Couldn't update key '" + key
+				+ "' of state " + agentId + " in " + MAX_UPDATES
+				+ " attempts");
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#getVersioned(com.almende.eve.state.TypedKey)
+	 */
+	@Override
+	public synchronized <T> Versioned<T> getVersioned(final TypedKey<T> key) {
+		final long version = getVersion(key.getKey());
+		final T value = TypeUtil.inject(get(key.getKey()), key.getType());
+		return new Versioned<T>(value, version);
+	}
+	
+	/**
+	 * Put the value if the key still has the given version. This default
+	 * implementation checks the version and writes under the lock of this
+	 * object, and checks afterwards that the write changed the version: a
+	 * write that failed in the store fails the put. Backends that can write
+	 * conditionally in the store itself override this method.
+	 *
+	 * @param key the key
+	 * @param value the value, null to remove the key
+	 * @param version the expected version
+	 * @return true, if successful
+	 */
+	@Override
+	public synchronized boolean putIfVersion(final String key,
+			final Object value, final long version) {
+		if (getVersion(key) != version) {
+			return false;
+		}
+		if (value == null) {
+			if (version == 0) {
+				return true;
+			}
+			remove(key);
+			return getVersion(key) == 0;
+		}
+		put(key, value);
+		return getVersion(key) != version;
+	}
+	
+	/**
+	 * Gets the version of the given key. States that persist versions
+	 * override this method.
+	 *
+	 * @param key the key
+	 * @return the version, 0 if the key has no value
+	 */
+	@Override
+	public long getVersion(final String key) {
+		final Versions local = versions;
+		final Long version = local != null ? local.versions.get(key) : null;
+		return version == null ? 0 : version;
+	}
+	
+	/**
+	 * Give the key a new version, called by states using the default,
+	 * in-memory versions on each change of a key.
+	 *
+	 * @param key the key
+	 */
+	protected void changed(final String key) {
+		final Versions local = versions();
+		local.versions.put(key, local.clock.incrementAndGet());
+		fireChange(key);
+	}
+	
+	/**
+	 * Drop the version of a removed key, called by states using the default,
+	 * in-memory versions.
+	 *
+	 * @param key the key
+	 */
+	protected void removed(final String key) {
+		forget(key);
+		final Versions local = versions;
+		if (local != null) {
+			local.versions.remove(key);
+		}
+		fireChange(key);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#watch(java.lang.String, com.almende.eve.state.StateListener)
+	 */
+	@Override
+	public void watch(final String key, final StateListener listener) {
+		final ConcurrentHashMap<String, List<StateListener>> listeners = watches().listeners;
+		List<StateListener> list = listeners.get(key);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<StateListener>();
+			final List<StateListener> existing = listeners.putIfAbsent(key,
+					list);
+			if (existing != null) {
+				list = existing;
+			}
+		}
+		list.add(listener);
+		startWatch();
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#unwatch(java.lang.String, com.almende.eve.state.StateListener)
+	 */
+	@Override
+	public void unwatch(final String key, final StateListener listener) {
+		final Watches known = watches;
+		final List<StateListener> list = known != null ? known.listeners
+				.get(key) : null;
+		if (list != null && list.remove(listener)) {
+			stopWatch();
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.State#awaitChange(java.lang.String, long, long)
+	 */
+	@Override
+	public long awaitChange(final String key, final long version,
+			final long timeout) throws InterruptedException {
+		final long now = System.currentTimeMillis();
+		final long deadline = timeout > Long.MAX_VALUE - now ? Long.MAX_VALUE
+				: now + timeout;
+		final Watches known = watches();
+		startWatch();
+		try {
+			while (true) {
+				// Count first: a change after this point wakes us up.
+				final long seen = known.changes.get();
+				final long current = getVersion(key);
+				final long remaining = deadline - System.currentTimeMillis();
+				if (current != version || remaining <= 0) {
+					return current;
+				}
+				synchronized (known) {
+					if (known.changes.get() == seen) {
+						known.wait(remaining);
+					}
+				}
+			}
+		} finally {
+			stopWatch();
+		}
+	}
+	
+	/**
+	 * Notify the watchers of the given key, and wake up all waiting threads.
+	 * Must be called after the change is complete.
+	 *
+	 * @param key the key, or null if unknown (only wakes up waiting threads)
+	 */
+	protected void fireChange(final String key) {
+		final Watches known = watches;
+		if (known == null || known.watching.get() == 0) {
+			return;
+		}
+		known.changes.incrementAndGet();
+		synchronized (known) {
+			known.notifyAll();
+		}
+		final List<StateListener> list = key != null ? known.listeners
+				.get(key) : null;
+		if (list != null) {
+			for (final StateListener listener : list) {
+				try {
+					listener.onChange(this, key);
+				} catch (final RuntimeException e) {
+					LOG.log(Level.WARNING, "State listener failed on key:"
+							+ key, e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Notify the watchers of all keys whose version differs between the given
+	 * versions, e.g. after reloading a state that was changed elsewhere.
+	 *
+	 * @param previous the versions by key before
+	 * @param current the versions by key now
+	 */
+	protected void fireChanges(final Map<String, Long> previous,
+			final Map<String, Long> current) {
+		for (final Entry<String, Long> entry : current.entrySet()) {
+			if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+				fireChange(entry.getKey());
+			}
+		}
+		for (final String key : previous.keySet()) {
+			if (!current.containsKey(key)) {
+				fireChange(key);
+			}
+		}
+	}
+	
+	/**
+	 * Called when the first listener or waiting thread arrives. States that
+	 * can be changed by other processes start watching for those changes.
+	 */
+	protected void startWatching() {
+	}
+	
+	/**
+	 * Called when the last listener or waiting thread is gone.
+	 */
+	protected void stopWatching() {
+	}
+	
+	/**
+	 * Count a new listener or waiting thread.
+	 */
+	private void startWatch() {
+		final Watches known = watches();
+		synchronized (known.watching) {
+			if (known.watching.getAndIncrement() == 0) {
+				startWatching();
+			}
+		}
+	}
+	
+	/**
+	 * Count a removed listener or waiting thread.
+	 */
+	private void stopWatch() {
+		final Watches known = watches();
+		synchronized (known.watching) {
+			if (known.watching.decrementAndGet() == 0) {
+				stopWatching();
+			}
+		}
+	}
+	
+	/**
+	 * Compare two JSON values, treating numbers of different types (e.g.
+	 * IntNode versus LongNode) with the same value as equal. Used by the
+	 * putIfUnchanged implementations.
+	 *
+	 * @param a the a
+	 * @param b the b
+	 * @return true, if equal
+	 */
+	protected static boolean equal(final JsonNode a, final JsonNode b) {
+		if (a == b || a.equals(b)) {
+			return true;
+		}
+		if (a.isNumber() && b.isNumber()) {
+			if (a.isIntegralNumber() && b.isIntegralNumber()) {
+				return a.bigIntegerValue().equals(b.bigIntegerValue());
+			}
+			return a.decimalValue().compareTo(b.decimalValue()) == 0;
+		}
+		if (a.size() != b.size() || a.isObject() != b.isObject()
+				|| a.isArray() != b.isArray()) {
+			return false;
+		}
+		if (a.isArray()) {
+			for (int i = 0; i < a.size(); i++) {
+				if (!equal(a.get(i), b.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (a.isObject()) {
+			final Iterator<Entry<String, JsonNode>> fields = a.fields();
+			while (fields.hasNext()) {
+				final Entry<String, JsonNode> field = fields.next();
+				final JsonNode other = b.get(field.getKey());
+				if (other == null || !equal(field.getValue(), other)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Copy the given map, keeping its type where possible.
+	 *
+	 * @param map the map
+	 * @return the copy
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> copy(final Map<String, ?> map) {
+		final Map<String, Object> result;
+		if (map instanceof SortedMap) {
+			result = new TreeMap<String, Object>((SortedMap<String, ?>) map);
+		} else {
+			result = (Map<String, Object>) newInstance(map.getClass(),
+					new LinkedHashMap<String, Object>());
+			result.putAll(map);
+		}
+		return result;
+	}
+	
+	/**
+	 * Copy the given value through serialization, including its nested
+	 * values. A value that can't be serialized is returned as is.
+	 *
+	 * @param value the value
+	 * @return the copy
+	 */
+	private static Object deepCopy(final Object value) {
+		if (value instanceof Serializable) {
+			try {
+				return ClassUtil.cloneThroughSerialize((Serializable) value);
+			} catch (final Exception e) {
+				LOG.log(Level.FINE, "Can't copy " + value.getClass(), e);
+			}
+		}
+		return value;
+	}
+	
+	/**
+	 * Create a new (empty) instance of the given collection type.
+	 *
+	 * @param type the type
+	 * @param fallback the instance to use for abstract types
+	 * @return the object
+	 */
+	private static Object newInstance(final Class<?> type, final Object fallback) {
+		if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+			try {
+				return type.newInstance();
+			} catch (final Exception e) {
+				LOG.log(Level.FINE, "Can't instantiate " + type, e);
+			}
+		}
+		return fallback;
+	}
+	
+	/**
+	 * An update of a stored value.
+	 */
+	private interface Update {
+		
+		/**
+		 * Compute the new value.
+		 *
+		 * @param raw the current stored value
+		 * @return the new value, or UNCHANGED
+		 */
+		Object apply(Object raw);
+	}
+	
+	/**
+	 * Put (or replace) a single field of a stored map.
+	 */
+	private static final class MapUpdate implements Update {
+		private final JavaType	type;
+		private final String	field;
+		private final Object	value;
+		private final boolean	onlyIfExists;
+		
+		/**
+		 * Instantiates a new map update.
+		 *
+		 * @param type the type of the map
+		 * @param field the field
+		 * @param value the value
+		 * @param onlyIfExists only replace an existing field
+		 */
+		private MapUpdate(final JavaType type, final String field,
+				final Object value, final boolean onlyIfExists) {
+			this.type = type;
+			this.field = field;
+			this.value = value;
+			this.onlyIfExists = onlyIfExists;
+		}
+		
+		/* (non-Javadoc)
+		 * @see com.almende.eve.state.AbstractState.Update#apply(java.lang.Object)
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		public Object apply(final Object raw) {
+			if (raw instanceof JsonNode) {
+				if (onlyIfExists && !((JsonNode) raw).has(field)) {
+					return UNCHANGED;
+				}
+				final ObjectNode result = raw instanceof ObjectNode ? (ObjectNode) raw
+						: JOM.createObjectNode();
+				result.put(field,
+						(JsonNode) JOM.getInstance().valueToTree(value));
+				return result;
+			}
+			if (raw instanceof Map) {
+				if (onlyIfExists && !((Map<String, ?>) raw).containsKey(field)) {
+					return UNCHANGED;
+				}
+				final Map<String, Object> result = copy((Map<String, ?>) raw);
+				result.put(field, value);
+				return result;
+			}
+			if (onlyIfExists) {
+				return UNCHANGED;
+			}
+			final Map<String, Object> result = (Map<String, Object>) newInstance(
+					type.getRawClass(), new LinkedHashMap<String, Object>());
+			result.put(field, value);
+			return result;
+		}
+	}
+	
+	/**
+	 * Get the value of the given key, converted to the given type. The
+	 * converted object is cached if it can be shared, and reused as long as the
+	 * version of the key stays the same. Shared maps and collections are
+	 * frozen first, other mutable types are never shared.
+	 *
+	 * @param <T> the generic type
+	 * @param key the key
+	 * @param type the type
+	 * @param shared the caller won't modify the result
+	 * @return the t
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T decode(final String key, final JavaType type,
+			final boolean shared) {
+		track(key);
+		if (isExpired(key)) {
+			return null;
+		}
+		final boolean frozen = shared
+				&& FREEZABLES.contains(type.getRawClass());
+		final boolean cacheable = frozen || isImmutable(type);
+		// Version first: if the value changes in between, the entry never hits.
+		final long version = cacheable ? getVersion(key) : 0;
+		Map<JavaType, Decoded> entries = null;
+		if (version != 0) {
+			final Map<String, Map<JavaType, Decoded>> cache = decoded;
+			entries = cache != null ? cache.get(key) : null;
+			final Decoded entry = entries != null ? entries.get(type) : null;
+			if (entry != null && entry.version == version) {
+				return (T) entry.value;
+			}
+		}
+		final V raw = get(key);
+		if (!(raw instanceof JsonNode)) {
+			// Nothing to convert, or stored as Java object already.
+			final T result = TypeUtil.inject(raw, type);
+			return frozen ? (T) freeze(result) : result;
+		}
+		T result = TypeUtil.inject(raw, type);
+		if (frozen) {
+			result = (T) freeze(result);
+		}
+		if (result != null && version != 0) {
+			if (entries == null) {
+				final Map<String, Map<JavaType, Decoded>> cache = decoded();
+				if (cache.size() >= MAX_DECODED) {
+					cache.clear();
+				}
+				entries = new ConcurrentHashMap<JavaType, Decoded>(4);
+				final Map<JavaType, Decoded> existing = cache.put(key, entries);
+				if (existing != null) {
+					entries.putAll(existing);
+				}
+			}
+			entries.put(type, new Decoded(version, result));
+		}
+		return result;
+	}
+	
+	/**
+	 * Make a frozen copy of a map or collection: the copy, and the maps and
+	 * collections in it, can't be modified. Other values are returned as is.
+	 *
+	 * @param value the value
+	 * @return the frozen copy
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object freeze(final Object value) {
+		if (value instanceof Map) {
+			final Map<Object, Object> map = (Map<Object, Object>) value;
+			final Map<Object, Object> result = value instanceof SortedMap ? new TreeMap<Object, Object>(
+					((SortedMap<Object, Object>) value).comparator())
+					: new LinkedHashMap<Object, Object>(map.size() * 2);
+			for (final Entry<Object, Object> entry : map.entrySet()) {
+				result.put(entry.getKey(), freeze(entry.getValue()));
+			}
+			return result instanceof SortedMap ? Collections
+					.unmodifiableSortedMap((SortedMap<Object, Object>) result)
+					: Collections.unmodifiableMap(result);
+		}
+		if (value instanceof SortedSet) {
+			final SortedSet<Object> result = new TreeSet<Object>(
+					((SortedSet<Object>) value).comparator());
+			result.addAll((SortedSet<Object>) value);
+			return Collections.unmodifiableSortedSet(result);
+		}
+		if (value instanceof Set) {
+			final Set<Object> result = new LinkedHashSet<Object>();
+			for (final Object item : (Set<?>) value) {
+				result.add(freeze(item));
+			}
+			return Collections.unmodifiableSet(result);
+		}
+		if (value instanceof Collection) {
+			final List<Object> result = new ArrayList<Object>(
+					((Collection<?>) value).size());
+			for (final Object item : (Collection<?>) value) {
+				result.add(freeze(item));
+			}
+			return Collections.unmodifiableList(result);
+		}
+		return value;
+	}
+	
+	/**
+	 * Checks if values of the given type can't be modified.
+	 *
+	 * @param type the type
+	 * @return true, if is immutable
+	 */
+	private static boolean isImmutable(final JavaType type) {
+		return type.isEnumType() || IMMUTABLES.contains(type.getRawClass());
+	}
+	
 	/**
 	 * Loc put.
 	 *
@@ -228,6 +1407,160 @@ public abstract class AbstractState<V> implements State {
 				om.valueToTree(oldVal));
 	}
 	
+	/**
+	 * A cached typed value, valid as long as the key keeps its version.
+	 */
+	private static final class Decoded {
+		private final long		version;
+		private final Object	value;
+		
+		/**
+		 * Instantiates a new decoded value.
+		 *
+		 * @param version the version of the key
+		 * @param value the converted value
+		 */
+		private Decoded(final long version, final Object value) {
+			this.version = version;
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * Gets the cache of decoded values, creating it on first use.
+	 *
+	 * @return the decoded values by key
+	 */
+	private Map<String, Map<JavaType, Decoded>> decoded() {
+		Map<String, Map<JavaType, Decoded>> result = decoded;
+		if (result == null) {
+			synchronized (this) {
+				result = decoded;
+				if (result == null) {
+					result = new ConcurrentHashMap<String, Map<JavaType, Decoded>>();
+					decoded = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Drop the decoded values of the given key.
+	 *
+	 * @param key the key
+	 */
+	private void forget(final String key) {
+		final Map<String, Map<JavaType, Decoded>> cache = decoded;
+		if (cache != null) {
+			cache.remove(key);
+		}
+	}
+	
+	/**
+	 * Gets the in-memory versions, creating them on first use.
+	 *
+	 * @return the versions
+	 */
+	private Versions versions() {
+		Versions result = versions;
+		if (result == null) {
+			synchronized (this) {
+				result = versions;
+				if (result == null) {
+					result = new Versions();
+					versions = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the listeners and waiting threads, creating them on first use.
+	 *
+	 * @return the watches
+	 */
+	private Watches watches() {
+		Watches result = watches;
+		if (result == null) {
+			synchronized (this) {
+				result = watches;
+				if (result == null) {
+					result = new Watches();
+					watches = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the last known expiry times, creating them on first use.
+	 *
+	 * @return the expiry times by key
+	 */
+	private Map<String, Long> expires() {
+		Map<String, Long> result = expires;
+		if (result == null) {
+			synchronized (this) {
+				result = expires;
+				if (result == null) {
+					result = new ConcurrentHashMap<String, Long>();
+					expires = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the quota bookkeeping, creating it on first use.
+	 *
+	 * @return the usage
+	 */
+	private Usage usage() {
+		Usage result = usage;
+		if (result == null) {
+			synchronized (this) {
+				result = usage;
+				if (result == null) {
+					result = new Usage();
+					usage = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * The in-memory versions, of states that don't persist them.
+	 */
+	private static final class Versions {
+		private final Map<String, Long>	versions	= new ConcurrentHashMap<String, Long>();
+		private final AtomicLong		clock		= new AtomicLong();
+	}
+	
+	/**
+	 * The listeners and waiting threads. Waiting threads wait on this object.
+	 */
+	private static final class Watches {
+		private final ConcurrentHashMap<String, List<StateListener>>	listeners	= new ConcurrentHashMap<String, List<StateListener>>();
+		/** Number of listeners and waiting threads, also the watch lock. */
+		private final AtomicInteger										watching	= new AtomicInteger();
+		private final AtomicLong										changes		= new AtomicLong();
+	}
+	
+	/**
+	 * The bookkeeping of the quota: the access order and the value sizes.
+	 */
+	private static final class Usage {
+		private final Map<String, Long>		accessed	= new ConcurrentHashMap<String, Long>();
+		private final AtomicLong			accesses	= new AtomicLong();
+		/** Value sizes in bytes, with the version they were measured at. */
+		private final Map<String, long[]>	sizes		= new ConcurrentHashMap<String, long[]>();
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
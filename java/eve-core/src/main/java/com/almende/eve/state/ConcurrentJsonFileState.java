@@ -24,6 +24,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.rpc.jsonrpc.jackson.JsonNullAwareDeserializer;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -48,6 +49,10 @@ import com.fasterxml.jackson.databind.node.NullNode;
  *        All operations on this FileState are thread-safe. It also provides two
  *        aditional methods: PutIfNotChanged() and PutAllIfNotChanged().
  * 
+ *        The versions of the keys are stored in the file as well, see
+ *        {@link StateVersions}. While the state is watched, changes of the
+ *        file by other processes are reported too.
+ * 
  *        Usage:<br>
  *        AgentHost factory = AgentHost.getInstance(config);<br>
  *        ConcurrentFileState state = new
@@ -66,8 +71,22 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	private OutputStream				fos			= null;
 	private ObjectMapper				om			= null;
 	private static Map<String, Boolean>	locked		= new ConcurrentHashMap<String, Boolean>();
+	/** False once the file watcher turned out to be unavailable. */
+	private static volatile boolean		watchable	= true;
 	private final Map<String, JsonNode>	properties	= Collections
 															.synchronizedMap(new HashMap<String, JsonNode>());
+	/** The last seen versions, only kept while the state is watched. */
+	private Map<String, Long>			known		= null;
+	/** The modification time and size of the file, when last read. */
+	private long						modified	= 0;
+	private long						length		= -1;
+	private long						stamped		= 0;
+	private final Runnable				fileChanged	= new Runnable() {
+														@Override
+														public void run() {
+															checkFile();
+														}
+													};
 	
 	/**
 	 * Instantiates a new concurrent json file state.
@@ -78,9 +97,25 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	 *            the filename
 	 */
 	public ConcurrentJsonFileState(final String agentId, final String filename) {
+		this(agentId, filename, Codec.JSON);
+	}
+	
+	/**
+	 * Instantiates a new concurrent json file state. The file is written in
+	 * the given encoding, but read in whichever encoding it was stored.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @param filename
+	 *            the filename
+	 * @param codec
+	 *            the encoding to write
+	 */
+	public ConcurrentJsonFileState(final String agentId, final String filename,
+			final Codec codec) {
 		super(agentId);
 		this.filename = filename;
-		om = JOM.getInstance();
+		om = JOM.getInstance(codec);
 	}
 	
 	/*
@@ -194,7 +229,7 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 		if (channel != null) {
 			channel.truncate(channel.position());
 		}
-		
+		stamp();
 	}
 	
 	/**
@@ -207,12 +242,15 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	 */
 	@JsonDeserialize(using = JsonNullAwareDeserializer.class)
 	private void read() throws IOException, ClassNotFoundException {
+		if (isCurrent()) {
+			return;
+		}
 		try {
 			if (channel != null) {
 				channel.position(0);
 			}
 			properties.clear();
-			final JsonNode data = om.readTree(fis);
+			final JsonNode data = Codec.decode(fis);
 			final Iterator<Entry<String, JsonNode>> fieldIter = data.fields();
 			
 			while (fieldIter.hasNext()) {
@@ -224,6 +262,53 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 		} catch (final JsonMappingException jme) {
 			// empty file, new agent?
 		}
+		stamp();
+	}
+	
+	/**
+	 * Make sure the properties are current, the file is only opened and read
+	 * if it has changed since it was last read or written.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws ClassNotFoundException
+	 *             the class not found exception
+	 */
+	private void load() throws IOException, ClassNotFoundException {
+		if (isCurrent()) {
+			return;
+		}
+		openFile();
+		try {
+			read();
+		} finally {
+			closeFile();
+		}
+	}
+	
+	/**
+	 * Check if the properties match the file: its modification time and size
+	 * are unchanged. Like git's racy index entries, a file modified within a
+	 * second of being read could have changed again within the granularity of
+	 * its modification time, so it is always re-read.
+	 * 
+	 * @return true, if the properties are current
+	 */
+	private boolean isCurrent() {
+		final File file = new File(filename);
+		return modified != 0 && modified < stamped - 1000
+				&& file.lastModified() == modified && file.length() == length;
+	}
+	
+	/**
+	 * Remember the modification time and size of the file, which match the
+	 * properties just read or written.
+	 */
+	private void stamp() {
+		final File file = new File(filename);
+		modified = file.lastModified();
+		length = file.length();
+		stamped = System.currentTimeMillis();
 	}
 	
 	/**
@@ -250,15 +335,24 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	public synchronized void clear() {
 		try {
 			openFile();
+			read();
 			final String agentType = properties.get(KEY_AGENT_TYPE).textValue();
+			final JsonNode versions = properties.get(StateVersions.KEY);
 			properties.clear();
 			properties.put(KEY_AGENT_TYPE,
 					JOM.getInstance().valueToTree(agentType));
+			if (versions != null) {
+				properties.put(StateVersions.KEY, versions);
+				StateVersions.removed(properties);
+			}
 			write();
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
+			// The properties may be changed but not written: read them again.
+			modified = 0;
 		}
 		closeFile();
+		fireChanges();
 	}
 	
 	/*
@@ -270,13 +364,30 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	public synchronized Set<String> keySet() {
 		Set<String> result = null;
 		try {
-			openFile();
-			read();
-			result = new HashSet<String>(properties.keySet());
+			load();
+			result = StateVersions.strip(new HashSet<String>(properties
+					.keySet()));
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#getAll()
+	 */
+	@Override
+	public synchronized Map<String, Object> getAll() {
+		final Map<String, Object> result = new HashMap<String, Object>();
+		try {
+			load();
+			result.putAll(properties);
+			result.remove(StateVersions.KEY);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
-		closeFile();
 		return result;
 	}
 	
@@ -289,13 +400,11 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	public synchronized boolean containsKey(final String key) {
 		boolean result = false;
 		try {
-			openFile();
-			read();
+			load();
 			result = properties.containsKey(key);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
-		closeFile();
 		return result;
 	}
 	
@@ -307,20 +416,12 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	@Override
 	public synchronized JsonNode get(final String key) {
 		JsonNode result = NullNode.getInstance();
-		boolean open = false;
 		try {
-			if (properties == null) {
-				open=true;
-				openFile();
-				read();
-			}
+			load();
 			result = properties.get(key);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
-		if (open){
-			closeFile();
-		}
 		return result;
 	}
 	
@@ -340,14 +441,47 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 				value = NullNode.getInstance();
 			}
 			result = properties.put(key, value);
+			StateVersions.changed(properties, key);
 			write();
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
+			// The properties may be changed but not written: read them again.
+			modified = 0;
 		}
 		closeFile();
+		fireChanges();
 		return result;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#putAll(java.util.Map)
+	 */
+	@Override
+	public synchronized void putAll(final Map<String, ?> values) {
+		try {
+			openFile();
+			read();
+			for (final Entry<String, ?> entry : values.entrySet()) {
+				JsonNode value = JOM.getInstance().valueToTree(
+						entry.getValue());
+				if (value == null) {
+					value = NullNode.getInstance();
+				}
+				properties.put(entry.getKey(), value);
+				StateVersions.changed(properties, entry.getKey());
+			}
+			write();
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+			// The properties may be changed but not written: read them again.
+			modified = 0;
+		}
+		closeFile();
+		fireChanges();
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -372,23 +506,147 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 				oldVal = NullNode.getInstance();
 			}
 			
-			// Poor mans equality as some Numbers are compared incorrectly: e.g.
-			// IntNode versus LongNode
-			if (oldVal.equals(cur) || oldVal.toString().equals(cur.toString())) {
+			if (equal(oldVal, cur)) {
 				properties.put(key, newVal);
+				StateVersions.changed(properties, key);
 				write();
 				result = true;
 			}
+		} catch (final Exception e) {
+			throw failed(key, e);
+		}
+		closeFile();
+		fireChanges();
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#getVersion(java.lang.String)
+	 */
+	@Override
+	public synchronized long getVersion(final String key) {
+		long result = 0;
+		try {
+			load();
+			result = StateVersions.get(properties, key);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
-			// Don't let users loop if exception is thrown. They
-			// would get into a deadlock....
-			result = true;
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#getVersions()
+	 */
+	@Override
+	protected synchronized Map<String, Long> getVersions() {
+		final Map<String, Long> result = new HashMap<String, Long>();
+		try {
+			load();
+			final Map<String, Long> versions = StateVersions.getAll(properties);
+			for (final String key : StateVersions.strip(new HashSet<String>(
+					properties.keySet()))) {
+				final Long version = versions.get(key);
+				result.put(key, version == null ? 0 : version);
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#putIfVersion(java.lang.String,
+	 * java.lang.Object, long)
+	 */
+	@Override
+	public synchronized boolean putIfVersion(final String key,
+			final Object value, final long version) {
+		// Check and write under a single file lock, other processes may
+		// share the file.
+		boolean result = false;
+		try {
+			openFile();
+			read();
+			if (StateVersions.get(properties, key) == version) {
+				if (value == null) {
+					properties.remove(key);
+					StateVersions.removed(properties);
+				} else {
+					properties.put(key, value instanceof JsonNode ? (JsonNode) value
+							: (JsonNode) JOM.getInstance().valueToTree(value));
+					StateVersions.changed(properties, key);
+				}
+				write();
+				result = true;
+			}
+		} catch (final Exception e) {
+			throw failed(key, e);
+		}
+		closeFile();
+		fireChanges();
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#putAllIfVersion(java.util.Map,
+	 * java.lang.String, long)
+	 */
+	@Override
+	protected synchronized boolean putAllIfVersion(
+			final Map<String, ?> values, final String key, final long version) {
+		boolean result = false;
+		try {
+			openFile();
+			read();
+			if (StateVersions.get(properties, key) == version) {
+				for (final Entry<String, ?> entry : values.entrySet()) {
+					JsonNode value = JOM.getInstance().valueToTree(
+							entry.getValue());
+					if (value == null) {
+						value = NullNode.getInstance();
+					}
+					properties.put(entry.getKey(), value);
+					StateVersions.changed(properties, entry.getKey());
+				}
+				write();
+				result = true;
+			}
+		} catch (final Exception e) {
+			throw failed(key, e);
 		}
 		closeFile();
+		fireChanges();
 		return result;
 	}
 	
+	/**
+	 * Handle a failed conditional put: the properties may be changed but not
+	 * written, so they are read again on the next access, and the caller
+	 * gets an exception instead of a success it can't rely on.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param cause
+	 *            the cause
+	 * @return the exception to throw
+	 */
+	private IllegalStateException failed(final String key,
+			final Exception cause) {
+		modified = 0;
+		closeFile();
+		return new IllegalStateException("Couldn't write key '" + key
+				+ "' of state " + getAgentId(), cause);
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -401,12 +659,16 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 			openFile();
 			read();
 			result = properties.remove(key);
-			
+			StateVersions.removed(properties);
 			write();
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
+			// The properties may be changed but not written: read them again.
+			modified = 0;
 		}
 		closeFile();
+		fireChanges();
+		removeExpiry(key);
 		return result;
 	}
 	
@@ -418,16 +680,102 @@ public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
 	@Override
 	public synchronized int size() {
 		int result = -1;
+		try {
+			load();
+			result = properties.size();
+			if (properties.containsKey(StateVersions.KEY)) {
+				result--;
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#startWatching()
+	 */
+	@Override
+	protected synchronized void startWatching() {
 		try {
 			openFile();
 			read();
-			result = properties.size();
-			
+			known = StateVersions.getAll(properties);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
+			known = new HashMap<String, Long>();
 		}
 		closeFile();
-		return result;
+		final StateFileWatcher watcher = getWatcher();
+		if (watcher != null) {
+			watcher.register(new File(filename), fileChanged);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#stopWatching()
+	 */
+	@Override
+	protected synchronized void stopWatching() {
+		final StateFileWatcher watcher = getWatcher();
+		if (watcher != null) {
+			watcher.unregister(new File(filename), fileChanged);
+		}
+		known = null;
+	}
+	
+	/**
+	 * Gets the file watcher. Platforms without java.nio.file (e.g. older
+	 * Android versions) fail to load it with a LinkageError: states are not
+	 * watched for changes by other processes there.
+	 * 
+	 * @return the watcher, or null
+	 */
+	private static StateFileWatcher getWatcher() {
+		if (!watchable) {
+			return null;
+		}
+		try {
+			return StateFileWatcher.getInstance();
+		} catch (final LinkageError e) {
+			LOG.log(Level.WARNING, "Can't watch state files", e);
+			watchable = false;
+			return null;
+		}
+	}
+	
+	/**
+	 * Re-read the file after it has been changed on disk.
+	 */
+	private synchronized void checkFile() {
+		if (known == null) {
+			return;
+		}
+		try {
+			openFile();
+			read();
+		} catch (final Exception e) {
+			LOG.log(Level.FINE, "", e);
+		}
+		closeFile();
+		fireChanges();
 	}
 	
+	/**
+	 * Notify the watchers of all keys whose version differs from the last
+	 * seen one. Must be called with the last read properties.
+	 */
+	private void fireChanges() {
+		final Map<String, Long> previous = known;
+		if (previous == null) {
+			return;
+		}
+		final Map<String, Long> current = StateVersions.getAll(properties);
+		known = current;
+		fireChanges(previous, current);
+	}
 }
@@ -242,10 +242,17 @@ public class ConcurrentSerializableFileState extends
 	public synchronized void clear() {
 		try {
 			openFile();
+			read();
 			final String agentType = (String) properties.get(KEY_AGENT_TYPE);
+			final Set<String> keys = new HashSet<String>(properties.keySet());
 			properties.clear();
 			properties.put(KEY_AGENT_TYPE, agentType);
 			write();
+			for (final String key : keys) {
+				if (!KEY_AGENT_TYPE.equals(key)) {
+					removed(key);
+				}
+			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
@@ -272,6 +279,25 @@ public class ConcurrentSerializableFileState extends
 		return result;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#getAll()
+	 */
+	@Override
+	public synchronized Map<String, Object> getAll() {
+		final Map<String, Object> result = new HashMap<String, Object>();
+		try {
+			openFile();
+			read();
+			result.putAll(properties);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		closeFile();
+		return result;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -326,6 +352,7 @@ public class ConcurrentSerializableFileState extends
 			read();
 			result = properties.put(key, value);
 			write();
+			changed(key);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
@@ -347,19 +374,17 @@ public class ConcurrentSerializableFileState extends
 		try {
 			openFile();
 			read();
-			if (!(oldVal == null && properties.containsKey(key) && properties
-					.get(key) != null)
-					|| (properties.get(key) != null && properties.get(key)
-							.equals(oldVal))) {
+			final Serializable cur = properties.get(key);
+			if (oldVal == null ? cur == null : oldVal.equals(cur)) {
 				properties.put(key, newVal);
 				write();
+				changed(key);
 				result = true;
 			}
 		} catch (final Exception e) {
-			LOG.log(Level.WARNING, "", e);
-			// Don't let users loop if exception is thrown. They
-			// would get into a deadlock....
-			result = true;
+			closeFile();
+			throw new IllegalStateException("Couldn't write key '" + key
+					+ "' of state " + getAgentId(), e);
 		}
 		closeFile();
 		return result;
@@ -378,10 +403,12 @@ public class ConcurrentSerializableFileState extends
 			read();
 			result = properties.remove(key);
 			write();
+			removed(key);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
 		closeFile();
+		removeExpiry(key);
 		return result;
 	}
 	
@@ -7,22 +7,65 @@ package com.almende.eve.state;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
 
 /**
  * A factory for creating FileState objects.
+ * 
+ * Agent states are stored as separate files below the configured path. When
+ * the "sharded" parameter is set, new states are placed in a two level,
+ * hash-prefixed directory structure (e.g. "3f/a2/agentId"), which keeps the
+ * number of entries per directory small. Existing flat (and single subdir)
+ * layouts remain readable, and can be converted through {@link #migrate()}.
+ * A sharded factory marks its path with a file in the {@link #SERVICES}
+ * folder; without that marker, every subfolder is taken for the single subdir
+ * layout, whatever its name.
+ * 
+ * All lookups go through an in-memory index (agentId -> filename), which is
+ * built once when the path is set. This prevents directory scans on every
+ * lookup. Files of services that aren't agent states, like the journal of a
+ * scheduler, go in the {@link #SERVICES} folder, which is never indexed.
+ * Hidden, temporary, journal and lock files are never indexed either, so
+ * agentIds with such names are stored under an escaped filename, "%agentId%".
+ * States stored under such names by earlier versions aren't indexed, but are
+ * still found when looked up by their agentId.
+ * 
+ * JSON states are written in the encoding given by the "codec" parameter
+ * ("json" or "smile", default "json"), existing states are read in whichever
+ * encoding they were stored.
  */
 public class FileStateFactory implements StateFactory {
-	private static final Logger			LOG		= Logger.getLogger(FileStateFactory.class
-														.getSimpleName());
-	private String						path	= null;
-	private Boolean						json	= false;
-	private final Map<String, State>	states	= new HashMap<String, State>();
+	private static final Logger					LOG			= Logger.getLogger(FileStateFactory.class
+																			.getSimpleName());
+	private static final int					DEPTH		= 2;
+	/** The folder below the path for files that aren't agent states. */
+	public static final String					SERVICES	= "_services";
+	/** The file in the services folder marking the sharded layout. */
+	private static final String					MARKER		= "sharded";
+	/** Names of files that are not agent states. */
+	private static final Pattern				NOT_STATE	= Pattern.compile("^\\..*|.*(~|\\.tmp|\\.journal|\\.lock)$");
+	/** Enclosing the filename of agentIds that can't be used as is. */
+	private static final String					ESCAPE		= "%";
+	private String								path		= null;
+	private Boolean								json		= false;
+	private Boolean								sharded		= false;
+	private Codec								codec		= Codec.JSON;
+	private final ConcurrentMap<String, State>	states		= new ConcurrentHashMap<String, State>();
+	private final Map<String, String>			index		= new ConcurrentHashMap<String, String>();
+	private final List<String>					legacy		= new CopyOnWriteArrayList<String>();
 	
 	/**
 	 * This constructor is called when constructed by the AgentHost.
@@ -38,10 +81,32 @@ public class FileStateFactory implements StateFactory {
 		if (params.containsKey("json")) {
 			json = (Boolean) params.get("json");
 		}
-		
-		if (params.containsKey("path")) {
-			setPath((String) params.get("path"));
+		if (params.containsKey("sharded")) {
+			sharded = (Boolean) params.get("sharded");
+		}
+		if (params.containsKey("codec")) {
+			codec = Codec.forName((String) params.get("codec"));
 		}
+		
+		// Without "path" param, setPath() falls back to the default path
+		setPath((String) params.get("path"));
+	}
+	
+	/**
+	 * Instantiates a new file state factory.
+	 * 
+	 * @param path
+	 *            the path
+	 * @param json
+	 *            the json
+	 * @param sharded
+	 *            store new states in a hash-prefixed directory structure
+	 */
+	public FileStateFactory(final String path, final Boolean json,
+			final Boolean sharded) {
+		this.json = json;
+		this.sharded = sharded;
+		setPath(path);
 	}
 	
 	/**
@@ -90,6 +155,9 @@ public class FileStateFactory implements StateFactory {
 			LOG.severe("Could not create State folder!");
 			throw new IllegalStateException();
 		}
+		if (sharded) {
+			markSharded();
+		}
 		
 		// log info
 		String info = "Agents will be stored in ";
@@ -100,8 +168,67 @@ public class FileStateFactory implements StateFactory {
 		}
 		LOG.info(info
 				+ ". "
-				+ (json ? "(stored in JSON format)"
-						: "(stored in JavaObject format)"));
+				+ (json ? "(stored in JSON format, encoded as "
+						+ codec.getName() + ")"
+						: "(stored in JavaObject format)")
+				+ (sharded ? " (sharded)" : ""));
+		
+		buildIndex();
+	}
+	
+	/**
+	 * (Re)build the in-memory index of all states below the path. States are
+	 * found in the root folder and in up to two levels of subfolders, which
+	 * covers both the flat and the sharded layout.
+	 */
+	private void buildIndex() {
+		index.clear();
+		legacy.clear();
+		scan(new File(path), 0, isSharded());
+		LOG.info("Indexed " + index.size() + " agent states.");
+	}
+	
+	/**
+	 * Add all state files in the given folder to the index.
+	 * 
+	 * @param folder
+	 *            the folder
+	 * @param depth
+	 *            the depth of this folder below the path
+	 * @param shards
+	 *            whether hex named folders in the path are shards
+	 */
+	private void scan(final File folder, final int depth, final boolean shards) {
+		final File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (final File file : files) {
+			if (file.isHidden() || !file.canRead()) {
+				continue;
+			}
+			if (file.isDirectory()) {
+				if (depth == 0 && file.getName().equals(SERVICES)) {
+					continue;
+				}
+				if (depth == 0
+						&& !(shards && file.getName().matches("[0-9a-f]{2}"))) {
+					// a folder of the old, single subdir layout
+					legacy.add(path + file.getName() + "/");
+				}
+				if (depth < DEPTH) {
+					scan(file, depth + 1, shards);
+				}
+			} else if (file.isFile() && isStateName(file.getName())) {
+				final String filename = file.getPath();
+				final String agentId = unescape(file.getName());
+				final String old = index.put(agentId, filename);
+				if (old != null && !old.equals(filename)) {
+					LOG.warning("Duplicate state found for agent '" + agentId
+							+ "': '" + filename + "' hides '" + old + "'");
+				}
+			}
+		}
 	}
 	
 	/**
@@ -115,18 +242,21 @@ public class FileStateFactory implements StateFactory {
 	 */
 	public State get(final String agentId, final boolean json) {
 		State state = null;
-		if (exists(agentId)) {
-			if (states.containsKey(agentId)) {
-				state = states.get(agentId);
-			} else {
+		final String filename = getFilename(agentId);
+		if (filename != null) {
+			state = states.get(agentId);
+			if (state == null) {
 				if (json) {
-					state = new ConcurrentJsonFileState(agentId,
-							getFilename(agentId));
+					state = new ConcurrentJsonFileState(agentId, filename,
+							codec);
 				} else {
 					state = new ConcurrentSerializableFileState(agentId,
-							getFilename(agentId));
+							filename);
+				}
+				final State existing = states.putIfAbsent(agentId, state);
+				if (existing != null) {
+					state = existing;
 				}
-				states.put(agentId, state);
 			}
 		}
 		return state;
@@ -164,14 +294,19 @@ public class FileStateFactory implements StateFactory {
 		// store the new (empty) file
 		// TODO: it is not so nice solution to create an empty file to mark the
 		// state as created.
-		final String filename = getFilename(agentId);
+		final String filename = getNewFilename(agentId);
 		final File file = new File(filename);
+		final File folder = file.getParentFile();
+		if (folder != null && !folder.exists() && !folder.mkdirs()) {
+			throw new IOException("Could not create State folder: " + folder);
+		}
 		file.createNewFile();
+		index.put(agentId, filename);
 		
 		State state = null;
 		// instantiate the state
 		if (json) {
-			state = new ConcurrentJsonFileState(agentId, filename);
+			state = new ConcurrentJsonFileState(agentId, filename, codec);
 		} else {
 			state = new ConcurrentSerializableFileState(agentId, filename);
 		}
@@ -197,10 +332,14 @@ public class FileStateFactory implements StateFactory {
 	 */
 	@Override
 	public void delete(final String agentId) {
-		final File file = new File(getFilename(agentId));
-		if (file.exists()) {
-			file.delete();
+		final String filename = getFilename(agentId);
+		if (filename != null) {
+			final File file = new File(filename);
+			if (file.exists()) {
+				file.delete();
+			}
 		}
+		index.remove(agentId);
 		states.remove(agentId);
 	}
 	
@@ -213,36 +352,285 @@ public class FileStateFactory implements StateFactory {
 	 */
 	@Override
 	public boolean exists(final String agentId) {
-		final File file = new File(getFilename(agentId));
-		return file.exists();
+		return getFilename(agentId) != null;
 	}
 	
 	/**
-	 * Get the filename of the saved.
+	 * Get the filename of the saved state. Returns null if no state exists for
+	 * this agent.
 	 * 
 	 * @param agentId
 	 *            the agent id
 	 * @return the filename
 	 */
 	private String getFilename(final String agentId) {
+		final String filename = index.get(agentId);
+		if (filename != null) {
+			if (new File(filename).exists()) {
+				return filename;
+			}
+			// Removed behind our back, e.g. by another host on this path.
+			index.remove(agentId);
+			return null;
+		}
 		
+		// Not indexed: the state might have been created by another host
+		// sharing this path. Only check the default locations and the known
+		// single subdir folders, no scanning.
+		final List<String> candidates = new ArrayList<String>(
+				2 * legacy.size() + 4);
+		candidates.add(getShardedFilename(agentId));
+		candidates.add(getFlatFilename(agentId));
+		for (final String folder : legacy) {
+			candidates.add(folder + escape(agentId));
+		}
+		if (!isStateName(agentId)) {
+			// stored unescaped by an earlier version
+			final String apath = path != null ? path : "./";
+			candidates.add(apath + agentId);
+			for (final String folder : legacy) {
+				candidates.add(folder + agentId);
+			}
+		}
+		for (final String candidate : candidates) {
+			if (new File(candidate).isFile()) {
+				index.put(agentId, candidate);
+				return candidate;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Check whether a file with this name can be an agent state, rather than a
+	 * hidden, temporary, journal or lock file.
+	 * 
+	 * @param name
+	 *            the file name
+	 * @return true, if it can be a state
+	 */
+	private static boolean isStateName(final String name) {
+		return !NOT_STATE.matcher(name).matches();
+	}
+	
+	/**
+	 * Check whether the filename is an escaped agentId, see
+	 * {@link #escape(String)}.
+	 * 
+	 * @param name
+	 *            the file name
+	 * @return true, if escaped
+	 */
+	private static boolean isEscaped(final String name) {
+		return name.length() > 1 && name.startsWith(ESCAPE)
+				&& name.endsWith(ESCAPE)
+				&& needsEscape(name.substring(1, name.length() - 1));
+	}
+	
+	/**
+	 * Check whether the agentId can't be used as filename as is: it isn't a
+	 * state name, or it would be taken for an escaped agentId.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @return true, if the agentId must be escaped
+	 */
+	private static boolean needsEscape(final String agentId) {
+		return !isStateName(agentId) || isEscaped(agentId);
+	}
+	
+	/**
+	 * Get the filename of the given agentId, enclosing it in "%" if it can't
+	 * be used as is.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @return the filename
+	 */
+	private static String escape(final String agentId) {
+		return needsEscape(agentId) ? ESCAPE + agentId + ESCAPE : agentId;
+	}
+	
+	/**
+	 * Get the agentId of the given filename, see {@link #escape(String)}.
+	 * 
+	 * @param name
+	 *            the file name
+	 * @return the agent id
+	 */
+	private static String unescape(final String name) {
+		return isEscaped(name) ? name.substring(1, name.length() - 1) : name;
+	}
+	
+	/**
+	 * Check whether the path is marked as being in the sharded layout.
+	 * 
+	 * @return true, if sharded
+	 */
+	private boolean isSharded() {
+		return new File(path + SERVICES + "/" + MARKER).isFile();
+	}
+	
+	/**
+	 * Mark the path as being in the sharded layout, so its hex named folders
+	 * are taken for shards rather than for single subdir layout folders.
+	 */
+	private void markSharded() {
+		try {
+			new File(getServicesPath() + MARKER).createNewFile();
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Could not mark the sharded layout of "
+					+ path, e);
+		}
+	}
+	
+	/**
+	 * Get the filename for a new state, depending on the configured layout.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @return the filename
+	 */
+	private String getNewFilename(final String agentId) {
+		return sharded ? getShardedFilename(agentId) : getFlatFilename(agentId);
+	}
+	
+	/**
+	 * Get the filename of the state in the flat layout.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @return the filename
+	 */
+	private String getFlatFilename(final String agentId) {
 		final String apath = path != null ? path : "./";
-		
-		// try 1 level of subdirs. I need this badly, tymon
-		final File folder = new File(apath);
-		final File[] files = folder.listFiles();
-		final List<File> totalList = Arrays.asList(files);
-		for (final File file : totalList) {
-			if (!file.isDirectory()) {
+		return apath + escape(agentId);
+	}
+	
+	/**
+	 * Get the filename of the state in the sharded layout: two levels of
+	 * folders, named after the hash of the agentId.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @return the filename
+	 */
+	private String getShardedFilename(final String agentId) {
+		final String apath = path != null ? path : "./";
+		final String hash = String.format("%08x", spread(agentId.hashCode()));
+		return apath + hash.substring(0, 2) + "/" + hash.substring(2, 4) + "/"
+				+ escape(agentId);
+	}
+	
+	/**
+	 * Spread the bits of the hashcode over the high bits (Fibonacci hashing),
+	 * as agentIds often only differ in their last characters.
+	 * 
+	 * @param hash
+	 *            the hash
+	 * @return the int
+	 */
+	private static int spread(final int hash) {
+		return hash * 0x9E3779B9;
+	}
+	
+	/**
+	 * Move all states which are not yet in the sharded layout into their
+	 * sharded location. Should be run when no agents are active on this path.
+	 * 
+	 * @return the number of migrated states
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public synchronized int migrate() throws IOException {
+		markSharded();
+		int count = 0;
+		for (final Entry<String, String> entry : index.entrySet()) {
+			final String agentId = entry.getKey();
+			final String target = getShardedFilename(agentId);
+			if (target.equals(entry.getValue())) {
+				continue;
+			}
+			final File file = new File(target);
+			final File folder = file.getParentFile();
+			if (!folder.exists() && !folder.mkdirs()) {
+				throw new IOException("Could not create State folder: "
+						+ folder);
+			}
+			if (file.exists()) {
+				LOG.warning("Not migrating '" + entry.getValue()
+						+ "', target already exists: '" + target + "'");
 				continue;
 			}
-			final String ret = apath + file.getName() + "/" + agentId;
-			if (new File(ret).exists()) {
-				return ret;
+			if (!new File(entry.getValue()).renameTo(file)) {
+				throw new IOException("Could not move '" + entry.getValue()
+						+ "' to '" + target + "'");
 			}
+			// Open states still refer to the old filename.
+			states.remove(agentId);
+			index.put(agentId, target);
+			count++;
 		}
-		
-		return apath + agentId;
+		LOG.info("Migrated " + count + " agent states to the sharded layout.");
+		return count;
+	}
+	
+	/**
+	 * Migration tool, converting an existing (flat) state folder to the
+	 * sharded layout.
+	 * 
+	 * Usage: FileStateFactory &lt;path&gt;
+	 * 
+	 * @param args
+	 *            the arguments
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static void main(final String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: "
+					+ FileStateFactory.class.getCanonicalName() + " <path>");
+			return;
+		}
+		final FileStateFactory factory = new FileStateFactory(args[0], false,
+				true);
+		System.out.println("Migrated " + factory.migrate() + " states.");
+	}
+	
+	/**
+	 * Gets the path where the agents data is stored.
+	 * 
+	 * @return the path, ending with a slash
+	 */
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * Checks whether states are stored in JSON, which keeps the versions of
+	 * their keys in the files, rather than as serialized Java objects.
+	 * 
+	 * @return true, if stored in JSON
+	 */
+	public boolean isJson() {
+		return json;
+	}
+	
+	/**
+	 * Gets the folder for files of services that aren't agent states, e.g.
+	 * journals, creating it if needed. Its files are never taken for states.
+	 * 
+	 * @return the folder, ending with a slash
+	 * @throws IOException
+	 *             Signals that the folder couldn't be created.
+	 */
+	public String getServicesPath() throws IOException {
+		final File folder = new File(path + SERVICES);
+		if (!folder.isDirectory() && !folder.mkdirs()) {
+			throw new IOException("Could not create services folder: "
+					+ folder);
+		}
+		return folder.getPath() + "/";
 	}
 	
 	/*
@@ -255,6 +643,8 @@ public class FileStateFactory implements StateFactory {
 		final Map<String, Object> data = new HashMap<String, Object>();
 		data.put("class", this.getClass().getName());
 		data.put("path", path);
+		data.put("sharded", sharded);
+		data.put("codec", codec.getName());
 		return data.toString();
 	}
 	
@@ -265,51 +655,52 @@ public class FileStateFactory implements StateFactory {
 	 */
 	@Override
 	public Iterator<String> getAllAgentIds() {
-		final File folder = new File(path);
-		File[] files = folder.listFiles();
-		if (files == null) {
-			files = new File[0];
-		}
-		final List<File> list = new ArrayList<File>(files.length);
-		
-		if (files.length > 0) {
-			final List<File> totalList = Arrays.asList(files);
-			for (final File file : totalList) {
-				if (file.isFile() && file.canRead() && !file.isHidden()
-						&& file.length() > 2) {
-					list.add(file);
-				}
-				
-				// try 1 level of subdirs. i need this badly, tymon
-				if (file.isDirectory() && file.canRead()) {
-					final File folder2 = new File(path + file.getName());
-					final File[] files2 = folder2.listFiles();
-					final List<File> totalList2 = Arrays.asList(files2);
-					for (final File file2 : totalList2) {
-						if (file2.isFile() && file2.canRead()) {
-							list.add(file2);
-						}
+		final Iterator<Entry<String, String>> entries = index.entrySet()
+				.iterator();
+		return new Iterator<String>() {
+			private String	next	= advance();
+			private String	current	= null;
+			
+			/**
+			 * Find the next agent, skipping empty or stray files.
+			 * 
+			 * @return the agent id, or null if there are no more agents
+			 */
+			private String advance() {
+				while (entries.hasNext()) {
+					final Entry<String, String> entry = entries.next();
+					if (new File(entry.getValue()).length() > 2) {
+						return entry.getKey();
 					}
 				}
-				
+				return null;
 			}
-		}
-		return new Iterator<String>() {
-			private int	pivot	= 0;
 			
 			@Override
 			public boolean hasNext() {
-				return pivot < list.size();
+				return next != null;
 			}
 			
 			@Override
 			public String next() {
-				return (list.get(pivot++).getName());
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				current = next;
+				next = advance();
+				return current;
 			}
 			
+			/**
+			 * Delete the state of the last returned agent.
+			 */
 			@Override
 			public void remove() {
-				list.remove(pivot);
+				if (current == null) {
+					throw new IllegalStateException();
+				}
+				delete(current);
+				current = null;
 			}
 		};
 	}
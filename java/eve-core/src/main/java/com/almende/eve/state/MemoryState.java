@@ -5,6 +5,7 @@
 package com.almende.eve.state;
 
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -62,11 +63,17 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 	 * @see com.almende.eve.state.State#clear()
 	 */
 	@Override
-	public void clear() {
+	public synchronized void clear() {
 		
 		final String agentType = (String) properties.get(KEY_AGENT_TYPE);
+		final Set<String> keys = keySet();
 		properties.clear();
 		properties.put(KEY_AGENT_TYPE, agentType);
+		for (final String key : keys) {
+			if (!KEY_AGENT_TYPE.equals(key)) {
+				removed(key);
+			}
+		}
 	}
 	
 	/*
@@ -79,6 +86,16 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 		return new HashSet<String>(properties.keySet());
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.AbstractState#getAll()
+	 */
+	@Override
+	public Map<String, Object> getAll() {
+		return new HashMap<String, Object>(properties);
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -123,7 +140,9 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 	 */
 	@Override
 	public Serializable locPut(final String key, final Serializable value) {
-		return properties.put(key, value);
+		final Serializable result = properties.put(key, value);
+		changed(key);
+		return result;
 	}
 	
 	/*
@@ -137,11 +156,10 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 	public boolean locPutIfUnchanged(final String key,
 			final Serializable newVal, final Serializable oldVal) {
 		boolean result = false;
-		if (!(oldVal == null && properties.containsKey(key) && properties
-				.get(key) != null)
-				|| (properties.get(key) != null && properties.get(key).equals(
-						oldVal))) {
+		final Serializable cur = properties.get(key);
+		if (oldVal == null ? cur == null : oldVal.equals(cur)) {
 			properties.put(key, newVal);
+			changed(key);
 			result = true;
 		}
 		return result;
@@ -153,8 +171,11 @@ public class MemoryState extends AbstractState<Serializable> implements State {
 	 * @see com.almende.eve.state.State#remove(java.lang.String)
 	 */
 	@Override
-	public Serializable remove(final String key) {
-		return properties.remove(key);
+	public synchronized Serializable remove(final String key) {
+		final Serializable result = properties.remove(key);
+		removed(key);
+		removeExpiry(key);
+		return result;
 	}
 	
 	/*
@@ -5,6 +5,8 @@
 package com.almende.eve.state;
 
 import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 import com.almende.util.TypeUtil;
@@ -16,6 +18,8 @@ import com.fasterxml.jackson.databind.JavaType;
 public interface State {
 	/** key name for agent type. */
 	String	KEY_AGENT_TYPE	= "_type";
+	/** key name for the expiry times of keys. */
+	String	KEY_EXPIRES		= "_expires";
 	
 	/**
 	 * Inits the State
@@ -62,6 +66,24 @@ public interface State {
 	 */
 	Object put(String key, Object value);
 	
+	/**
+	 * Put all given values at once. States that store all values together
+	 * write them in a single operation.
+	 * 
+	 * @param values
+	 *            the values
+	 */
+	void putAll(Map<String, ?> values);
+	
+	/**
+	 * Get all values at once, as stored: JSON states return JsonNodes, other
+	 * states their Java objects. States that store all values together read
+	 * them in a single operation.
+	 * 
+	 * @return the values by key
+	 */
+	Map<String, Object> getAll();
+	
 	/**
 	 * Removes the.
 	 * 
@@ -174,4 +196,244 @@ public interface State {
 	 * @return the t
 	 */
 	<T> T get(TypedKey<T> key);
+	
+	/**
+	 * Gets the value of the given key as a shared, cached object. The object
+	 * is decoded once and returned again on later calls, until the value is
+	 * changed. Maps and collections requested by their interface (Map,
+	 * SortedMap, Collection, List, Set, SortedSet) are returned as frozen
+	 * copies, which throw an UnsupportedOperationException when modified: to
+	 * change one, copy it, modify the copy and store that (copy-on-write).
+	 * Other mutable types are not shared, each call returns a new object.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key
+	 * @return the t
+	 */
+	<T> T getShared(TypedKey<T> key);
+	
+	/**
+	 * Atomically replace the value of the given key by the result of the
+	 * function. Concurrent changes are retried, without recursion.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key
+	 * @param function
+	 *            the function
+	 * @return the new value
+	 */
+	<T> T compute(TypedKey<T> key, StateFunction<T> function);
+	
+	/**
+	 * Atomically merge the given value into the value of the given key. If the
+	 * key has no value, the given value is stored as is.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @param function
+	 *            the merge function
+	 * @return the new value
+	 */
+	<T> T merge(TypedKey<T> key, T value, StateMergeFunction<T> function);
+	
+	/**
+	 * Atomically put a field in the map stored at the given key, creating the
+	 * map if needed. Only the changed field is converted, not the whole map.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key
+	 * @param field
+	 *            the field
+	 * @param value
+	 *            the value
+	 */
+	<T> void mapPut(TypedKey<? extends Map<String, T>> key, String field,
+			T value);
+	
+	/**
+	 * Atomically replace a field in the map stored at the given key, only if
+	 * the field already exists.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key
+	 * @param field
+	 *            the field
+	 * @param value
+	 *            the value
+	 * @return true, if the field existed and is replaced
+	 */
+	<T> boolean mapReplace(TypedKey<? extends Map<String, T>> key,
+			String field, T value);
+	
+	/**
+	 * Atomically remove a field from the map stored at the given key.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param field
+	 *            the field
+	 * @return true, if the field existed and is removed
+	 */
+	boolean mapRemove(TypedKey<? extends Map<String, ?>> key, String field);
+	
+	/**
+	 * Atomically append a value to the list (or other collection) stored at
+	 * the given key, creating it if needed.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 */
+	<T> void listAppend(TypedKey<? extends Collection<T>> key, T value);
+	
+	/**
+	 * Gets the value of the given key together with its version. Each change
+	 * of a key gives it a higher version, a key without value has version 0.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key
+	 * @return the versioned value
+	 */
+	<T> Versioned<T> getVersioned(TypedKey<T> key);
+	
+	/**
+	 * Gets the version of the given key, without reading or converting its
+	 * value. Use it to check if a key has changed since it was last read.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the version, 0 if the key has no value
+	 */
+	long getVersion(String key);
+	
+	/**
+	 * Put the value, only if the key still has the given version
+	 * (compare-and-set). Use version 0 to only put a value if the key has no
+	 * value yet.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value, null removes the key
+	 * @param version
+	 *            the expected version
+	 * @return true, if successful
+	 */
+	boolean putIfVersion(String key, Object value, long version);
+	
+	/**
+	 * Watch the given key: the listener is called on each change or removal
+	 * of the key.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param listener
+	 *            the listener
+	 */
+	void watch(String key, StateListener listener);
+	
+	/**
+	 * Stop watching the given key.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param listener
+	 *            the listener
+	 */
+	void unwatch(String key, StateListener listener);
+	
+	/**
+	 * Wait until the given key no longer has the given version, i.e. until it
+	 * is changed or removed, or the timeout has passed.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param version
+	 *            the last seen version, see {@link #getVersioned(TypedKey)}
+	 * @param timeout
+	 *            the timeout in milliseconds
+	 * @return the current version of the key
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	long awaitChange(String key, long version, long timeout)
+			throws InterruptedException;
+	
+	/**
+	 * Put a value which expires after the given time to live. The expiry
+	 * time is stored next to the value, under {@link #KEY_EXPIRES} + "." +
+	 * key, and written together with it. Typed reads treat an expired key as absent, the key itself is
+	 * removed in the background. A later put without time to live leaves the
+	 * expiry of the key in place.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @param ttl
+	 *            the time to live in milliseconds, 0 to remove an expiry
+	 */
+	void put(String key, Object value, long ttl);
+	
+	/**
+	 * Put a value which expires after the given time to live, only if the
+	 * key still has the given version, see
+	 * {@link #putIfVersion(String, Object, long)}. The value and its expiry
+	 * time are written in a single conditional write.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @param version
+	 *            the expected version
+	 * @param ttl
+	 *            the time to live in milliseconds, 0 to remove an expiry
+	 * @return true, if successful
+	 */
+	boolean putIfVersion(String key, Object value, long version, long ttl);
+	
+	/**
+	 * Limit the number of keys and the size of this state. The quota is
+	 * enforced in the background, by evicting keys according to its policy.
+	 * Reserved keys, starting with an underscore, are neither counted nor
+	 * evicted. It is not stored, agents should set it again after a restart
+	 * (e.g. in onInit()).
+	 * 
+	 * @param quota
+	 *            the quota, null for no limits
+	 */
+	void setQuota(StateQuota quota);
+	
+	/**
+	 * Gets the quota.
+	 * 
+	 * @return the quota, or null
+	 */
+	StateQuota getQuota();
+	
+	/**
+	 * Remove a batch of expired keys, and evict keys beyond the quota. This is
+	 * done in the background as well.
+	 * 
+	 * @return the number of removed keys
+	 */
+	int expire();
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches state files for changes by other processes, using a single daemon
+ * thread for all files. Directories are registered with the
+ * {@link WatchService} as long as one of their files is watched.
+ */
+final class StateFileWatcher implements Runnable {
+	private static final Logger				LOG			= Logger.getLogger(StateFileWatcher.class
+																.getName());
+	private static StateFileWatcher			instance	= null;
+	private final WatchService				service;
+	private final Map<Path, WatchKey>		directories	= new HashMap<Path, WatchKey>();
+	private final Map<Path, List<Runnable>>	callbacks	= new HashMap<Path, List<Runnable>>();
+	
+	/**
+	 * Instantiates a new state file watcher.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private StateFileWatcher() throws IOException {
+		service = FileSystems.getDefault().newWatchService();
+		final Thread thread = new Thread(this, "StateFileWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Gets the single instance.
+	 * 
+	 * @return the instance, null if the file system can't be watched
+	 */
+	static synchronized StateFileWatcher getInstance() {
+		if (instance == null) {
+			try {
+				instance = new StateFileWatcher();
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Can't watch state files", e);
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Call the callback on each change of the given file.
+	 * 
+	 * @param file
+	 *            the file
+	 * @param callback
+	 *            the callback
+	 */
+	synchronized void register(final File file, final Runnable callback) {
+		final Path path = file.getAbsoluteFile().toPath();
+		final Path dir = path.getParent();
+		try {
+			if (!directories.containsKey(dir)) {
+				directories.put(dir, dir.register(service,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY));
+			}
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Can't watch directory:" + dir, e);
+			return;
+		}
+		List<Runnable> list = callbacks.get(path);
+		if (list == null) {
+			list = new ArrayList<Runnable>(1);
+			callbacks.put(path, list);
+		}
+		list.add(callback);
+	}
+	
+	/**
+	 * Remove the callback of the given file.
+	 * 
+	 * @param file
+	 *            the file
+	 * @param callback
+	 *            the callback
+	 */
+	synchronized void unregister(final File file, final Runnable callback) {
+		final Path path = file.getAbsoluteFile().toPath();
+		final List<Runnable> list = callbacks.get(path);
+		if (list == null || !list.remove(callback)) {
+			return;
+		}
+		if (list.isEmpty()) {
+			callbacks.remove(path);
+		}
+		final Path dir = path.getParent();
+		for (final Path other : callbacks.keySet()) {
+			if (dir.equals(other.getParent())) {
+				return;
+			}
+		}
+		final WatchKey key = directories.remove(dir);
+		if (key != null) {
+			key.cancel();
+		}
+	}
+	
+	/**
+	 * Gets the callbacks of the given file, or of all files in the directory
+	 * if the file is unknown (events were lost).
+	 * 
+	 * @param dir
+	 *            the directory
+	 * @param name
+	 *            the file name, or null
+	 * @return the callbacks
+	 */
+	private synchronized List<Runnable> getCallbacks(final Path dir,
+			final Path name) {
+		final List<Runnable> result = new ArrayList<Runnable>();
+		if (name != null) {
+			final List<Runnable> list = callbacks.get(dir.resolve(name));
+			if (list != null) {
+				result.addAll(list);
+			}
+			return result;
+		}
+		for (final Entry<Path, List<Runnable>> entry : callbacks.entrySet()) {
+			if (dir.equals(entry.getKey().getParent())) {
+				result.addAll(entry.getValue());
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = service.take();
+			} catch (final InterruptedException e) {
+				return;
+			}
+			final Path dir = (Path) key.watchable();
+			for (final WatchEvent<?> event : key.pollEvents()) {
+				final Path name = event.kind() == StandardWatchEventKinds.OVERFLOW ? null
+						: (Path) event.context();
+				for (final Runnable callback : getCallbacks(dir, name)) {
+					try {
+						callback.run();
+					} catch (final RuntimeException e) {
+						LOG.log(Level.WARNING, "State file callback failed", e);
+					}
+				}
+			}
+			key.reset();
+		}
+	}
+}
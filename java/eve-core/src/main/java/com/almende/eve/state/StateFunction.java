@@ -0,0 +1,28 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+/**
+ * A function computing a new state value from the current one, see
+ * {@link State#compute(TypedKey, StateFunction)}.
+ * 
+ * @param <T>
+ *            the value type
+ */
+public interface StateFunction<T> {
+	
+	/**
+	 * Compute the new value. The function can be called more than once, when
+	 * the value is changed concurrently, so it should not have side effects.
+	 * The current value is a copy of the stored one, which may be modified
+	 * and returned.
+	 * 
+	 * @param current
+	 *            the current value, or null if the key has no value
+	 * @return the new value, the current value to leave the state unchanged,
+	 *         or null to remove the key
+	 */
+	T apply(T current);
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+/**
+ * A listener on changes of a state key, see
+ * {@link State#watch(String, StateListener)}.
+ */
+public interface StateListener {
+	
+	/**
+	 * Called after the key has been changed or removed. Local changes are
+	 * reported on the writing thread, which may hold the lock of the state,
+	 * so the listener should return quickly and not block.
+	 * 
+	 * @param state
+	 *            the state
+	 * @param key
+	 *            the key
+	 */
+	void onChange(State state, String key);
+}
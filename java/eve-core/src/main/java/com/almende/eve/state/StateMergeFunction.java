@@ -0,0 +1,29 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+/**
+ * A function merging a value into the current state value, see
+ * {@link State#merge(TypedKey, Object, StateMergeFunction)}.
+ * 
+ * @param <T>
+ *            the value type
+ */
+public interface StateMergeFunction<T> {
+	
+	/**
+	 * Merge the given value into the current value. The function can be called
+	 * more than once, when the value is changed concurrently, so it should not
+	 * have side effects. The current value must not be modified: return a
+	 * modified copy.
+	 * 
+	 * @param current
+	 *            the current value, never null
+	 * @param value
+	 *            the value to merge
+	 * @return the new value, or null to remove the key
+	 */
+	T apply(T current, T value);
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.config.Config;
+
+/**
+ * Polls states that can be changed by other hosts, like the database states,
+ * which can't be notified of those changes. A single task runs all registered
+ * polls once per {@link #INTERVAL}, as long as there are any. States register
+ * while they have listeners or waiting threads, and each poll reloads the
+ * state and notifies the keys whose version has changed.
+ */
+public final class StatePoller implements Runnable {
+	private static final Logger			LOG			= Logger.getLogger(StatePoller.class
+																	.getName());
+	/** Milliseconds between two polls of a state. */
+	public static final long			INTERVAL	= 500;
+	private static final StatePoller	INSTANCE	= new StatePoller();
+	private final List<Runnable>		polls		= new CopyOnWriteArrayList<Runnable>();
+	private ScheduledThreadPoolExecutor	scheduler	= null;
+	
+	/**
+	 * Instantiates a new state poller.
+	 */
+	private StatePoller() {
+	}
+	
+	/**
+	 * Run the given poll periodically, until unregistered.
+	 *
+	 * @param poll
+	 *            the poll
+	 */
+	public static void register(final Runnable poll) {
+		INSTANCE.add(poll);
+	}
+	
+	/**
+	 * Stop running the given poll.
+	 *
+	 * @param poll
+	 *            the poll
+	 */
+	public static void unregister(final Runnable poll) {
+		INSTANCE.remove(poll);
+	}
+	
+	/**
+	 * Adds the poll, starting the task if needed.
+	 *
+	 * @param poll
+	 *            the poll
+	 */
+	private synchronized void add(final Runnable poll) {
+		polls.add(poll);
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(1,
+					Config.getThreadFactory());
+			scheduler.scheduleWithFixedDelay(this, INTERVAL, INTERVAL,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Removes the poll, stopping the task when none are left.
+	 *
+	 * @param poll
+	 *            the poll
+	 */
+	private synchronized void remove(final Runnable poll) {
+		polls.remove(poll);
+		if (polls.isEmpty() && scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		for (final Runnable poll : polls) {
+			try {
+				poll.run();
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "State poll failed", e);
+			}
+		}
+	}
+}
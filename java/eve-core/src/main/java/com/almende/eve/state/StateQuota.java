@@ -0,0 +1,82 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+/**
+ * Limits on the number of keys and the size of a state, see
+ * {@link State#setQuota(StateQuota)}. When a state grows beyond its quota,
+ * keys are evicted in the background according to the policy.
+ */
+public final class StateQuota {
+	
+	/**
+	 * The eviction policy.
+	 */
+	public enum Policy {
+		/** Evict the least recently read or written keys first. */
+		LRU,
+		/** Evict the least recently written keys first. */
+		OLDEST
+	}
+	
+	private final int		maxKeys;
+	private final long		maxBytes;
+	private final Policy	policy;
+	
+	/**
+	 * Instantiates a new state quota.
+	 * 
+	 * @param maxKeys
+	 *            the maximum number of keys, 0 for no limit
+	 * @param maxBytes
+	 *            the maximum size of all values in (JSON) bytes, 0 for no
+	 *            limit
+	 * @param policy
+	 *            the eviction policy
+	 */
+	public StateQuota(final int maxKeys, final long maxBytes,
+			final Policy policy) {
+		this.maxKeys = maxKeys;
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+	}
+	
+	/**
+	 * Gets the maximum number of keys.
+	 * 
+	 * @return the max keys, 0 for no limit
+	 */
+	public int getMaxKeys() {
+		return maxKeys;
+	}
+	
+	/**
+	 * Gets the maximum size of all values.
+	 * 
+	 * @return the max bytes, 0 for no limit
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * Gets the eviction policy.
+	 * 
+	 * @return the policy
+	 */
+	public Policy getPolicy() {
+		return policy;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return policy + "(keys:" + maxKeys + ", bytes:" + maxBytes + ")";
+	}
+}
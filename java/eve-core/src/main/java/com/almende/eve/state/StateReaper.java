@@ -0,0 +1,93 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.config.Config;
+
+/**
+ * Background expiry of states with expiring keys or a quota. A single task
+ * visits all registered states once per {@link #INTERVAL}, and each visit
+ * removes a bounded number of keys (see {@link AbstractState#expire()}), so
+ * large backlogs are worked off incrementally. States are only weakly
+ * referenced and unregister themselves once they have nothing to expire.
+ */
+final class StateReaper implements Runnable {
+	private static final Logger						LOG			= Logger.getLogger(StateReaper.class
+																		.getName());
+	/** Milliseconds between two visits of a state. */
+	static final long								INTERVAL	= 1000;
+	private static final StateReaper				INSTANCE	= new StateReaper();
+	private final Set<AbstractState<?>>				states		= Collections
+																		.newSetFromMap(new WeakHashMap<AbstractState<?>, Boolean>());
+	private ScheduledThreadPoolExecutor				scheduler	= null;
+	
+	/**
+	 * Instantiates a new state reaper.
+	 */
+	private StateReaper() {
+	}
+	
+	/**
+	 * Make sure the given state is visited.
+	 * 
+	 * @param state
+	 *            the state
+	 */
+	static void register(final AbstractState<?> state) {
+		INSTANCE.add(state);
+	}
+	
+	/**
+	 * Adds the state, starting the task if needed.
+	 * 
+	 * @param state
+	 *            the state
+	 */
+	private synchronized void add(final AbstractState<?> state) {
+		states.add(state);
+		if (scheduler == null) {
+			scheduler = new ScheduledThreadPoolExecutor(1,
+					Config.getThreadFactory());
+			scheduler.scheduleWithFixedDelay(this, INTERVAL, INTERVAL,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final List<AbstractState<?>> todo;
+		synchronized (this) {
+			todo = new ArrayList<AbstractState<?>>(states);
+		}
+		for (final AbstractState<?> state : todo) {
+			try {
+				state.expire();
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "Expiry failed for agent:"
+						+ state.getAgentId(), e);
+			}
+			if (!state.isExpiring()) {
+				synchronized (this) {
+					states.remove(state);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.almende.eve.config.Config;
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.util.ClassUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Bulk export, import and migration of all agent states of a
+ * {@link StateFactory}.
+ *
+ * A snapshot is a stream of independently compressed chunks, each holding a
+ * fixed number of agents. Exporting only keeps a single chunk in memory;
+ * importing reads the chunks sequentially and decodes and stores them in
+ * parallel.
+ *
+ * Snapshot layout: [magic:6 bytes][chunk]*[0:int], with chunk:
+ * [length:int][gzip of a Smile encoded array of {"id":..,"state":{..}}].
+ *
+ * Usage (command line):
+ * <ul>
+ * <li>StateSnapshot export &lt;eve.yaml&gt; &lt;file&gt;</li>
+ * <li>StateSnapshot import &lt;eve.yaml&gt; &lt;file&gt; [threads]</li>
+ * <li>StateSnapshot migrate &lt;from.yaml&gt; &lt;to.yaml&gt; [threads]</li>
+ * </ul>
+ * The state factories are taken from the "state" section of the given
+ * configuration files.
+ */
+public final class StateSnapshot {
+	private static final Logger	LOG		= Logger.getLogger(StateSnapshot.class
+												.getName());
+	private static final byte[]	MAGIC	= new byte[] { 'E', 'V', 'E', 'S',
+			'N', '1'					};
+	private static final int	CHUNK	= 1000;
+	
+	/**
+	 * Instantiates a new state snapshot.
+	 */
+	private StateSnapshot() {
+	}
+	
+	/**
+	 * Write all agent states of the factory to the stream.
+	 *
+	 * @param factory
+	 *            the factory
+	 * @param out
+	 *            the stream, not closed by this method
+	 * @return the number of exported agents
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static long export(final StateFactory factory,
+			final OutputStream out) throws IOException {
+		final DataOutputStream data = new DataOutputStream(
+				new BufferedOutputStream(out));
+		data.write(MAGIC);
+		long count = 0;
+		ArrayNode chunk = JOM.createArrayNode();
+		final Iterator<String> iter = factory.getAllAgentIds();
+		while (iter.hasNext()) {
+			final String agentId = iter.next();
+			final State state = factory.get(agentId);
+			if (state == null) {
+				continue;
+			}
+			final ObjectNode agent = JOM.createObjectNode();
+			agent.put("id", agentId);
+			agent.put("state", read(state));
+			chunk.add(agent);
+			count++;
+			if (chunk.size() == CHUNK) {
+				writeChunk(data, chunk);
+				chunk = JOM.createArrayNode();
+			}
+		}
+		if (chunk.size() > 0) {
+			writeChunk(data, chunk);
+		}
+		data.writeInt(0);
+		data.flush();
+		LOG.info("Exported " + count + " agent states.");
+		return count;
+	}
+	
+	/**
+	 * Read all agent states from the stream into the factory. Existing
+	 * agents are replaced.
+	 *
+	 * @param factory
+	 *            the factory
+	 * @param in
+	 *            the stream, not closed by this method
+	 * @param threads
+	 *            the number of threads storing the states
+	 * @return the number of imported agents
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static long restore(final StateFactory factory,
+			final InputStream in, final int threads) throws IOException {
+		final DataInputStream data = new DataInputStream(
+				new BufferedInputStream(in));
+		final byte[] magic = new byte[MAGIC.length];
+		data.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("Not a state snapshot.");
+		}
+		
+		final AtomicLong count = new AtomicLong();
+		final Pool pool = new Pool(threads);
+		try {
+			int length = data.readInt();
+			while (length > 0) {
+				final byte[] chunk = new byte[length];
+				data.readFully(chunk);
+				pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for (final JsonNode agent : Codec
+									.decode(new GZIPInputStream(
+											new ByteArrayInputStream(chunk)))) {
+								write(factory, agent.get("id").textValue(),
+										agent.get("state"));
+								count.incrementAndGet();
+							}
+						} catch (final IOException e) {
+							throw new IllegalStateException(
+									"Couldn't read snapshot chunk", e);
+						}
+					}
+				});
+				length = data.readInt();
+			}
+			pool.await();
+		} finally {
+			pool.shutdown();
+		}
+		LOG.info("Imported " + count + " agent states.");
+		return count.get();
+	}
+	
+	/**
+	 * Copy all agent states from one factory into another, without an
+	 * intermediate snapshot. Existing agents in the target are replaced.
+	 *
+	 * @param from
+	 *            the source factory
+	 * @param to
+	 *            the target factory
+	 * @param threads
+	 *            the number of threads copying the states
+	 * @return the number of migrated agents
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static long migrate(final StateFactory from, final StateFactory to,
+			final int threads) throws IOException {
+		final AtomicLong count = new AtomicLong();
+		final Pool pool = new Pool(threads);
+		try {
+			final Iterator<String> iter = from.getAllAgentIds();
+			while (iter.hasNext()) {
+				final String agentId = iter.next();
+				pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						final State state = from.get(agentId);
+						if (state != null) {
+							try {
+								write(to, agentId, read(state));
+							} catch (final IOException e) {
+								throw new IllegalStateException(
+										"Couldn't migrate agent " + agentId, e);
+							}
+							count.incrementAndGet();
+						}
+					}
+				});
+			}
+			pool.await();
+		} finally {
+			pool.shutdown();
+		}
+		LOG.info("Migrated " + count + " agent states.");
+		return count.get();
+	}
+	
+	/**
+	 * Read all values of a state.
+	 *
+	 * @param state
+	 *            the state
+	 * @return the values
+	 */
+	private static ObjectNode read(final State state) {
+		final ObjectNode result = JOM.createObjectNode();
+		// Take the stored values as is, JSON states don't need a conversion.
+		for (final Map.Entry<String, Object> entry : state.getAll().entrySet()) {
+			final Object value = entry.getValue();
+			if (value instanceof JsonNode) {
+				result.put(entry.getKey(), (JsonNode) value);
+			} else if (value != null) {
+				result.put(entry.getKey(), JOM.getInstance().valueToTree(value));
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * (Re)create a state with the given values.
+	 *
+	 * @param factory
+	 *            the factory
+	 * @param agentId
+	 *            the agent id
+	 * @param values
+	 *            the values
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void write(final StateFactory factory,
+			final String agentId, final JsonNode values) throws IOException {
+		if (factory.exists(agentId)) {
+			factory.delete(agentId);
+		}
+		final State state = factory.create(agentId);
+		// Plain java values, as not all states can store JsonNodes.
+		final Map<String, Object> map = new HashMap<String, Object>();
+		final Iterator<Map.Entry<String, JsonNode>> fields = values.fields();
+		while (fields.hasNext()) {
+			final Map.Entry<String, JsonNode> field = fields.next();
+			map.put(field.getKey(), JOM.getInstance().treeToValue(
+					field.getValue(), Object.class));
+		}
+		state.putAll(map);
+	}
+	
+	/**
+	 * Compress and write a single chunk.
+	 *
+	 * @param out
+	 *            the out
+	 * @param chunk
+	 *            the chunk
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeChunk(final DataOutputStream out,
+			final ArrayNode chunk) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final GZIPOutputStream zip = new GZIPOutputStream(buffer);
+		zip.write(Codec.SMILE.encode(chunk));
+		zip.close();
+		out.writeInt(buffer.size());
+		buffer.writeTo(out);
+	}
+	
+	/**
+	 * A thread pool with a bounded number of pending tasks, so the reader
+	 * can't run far ahead of the writers.
+	 */
+	private static final class Pool {
+		private final ExecutorService	executor;
+		private final Semaphore			pending;
+		private final List<Future<?>>	futures	= new ArrayList<Future<?>>();
+		
+		/**
+		 * Instantiates a new pool.
+		 *
+		 * @param threads
+		 *            the threads
+		 */
+		private Pool(final int threads) {
+			executor = Executors.newFixedThreadPool(Math.max(1, threads),
+					Config.getThreadFactory());
+			pending = new Semaphore(Math.max(1, threads) * 2);
+		}
+		
+		/**
+		 * Submit a task, blocking while too many tasks are pending.
+		 *
+		 * @param task
+		 *            the task
+		 * @throws IOException
+		 *             Signals that an earlier task failed.
+		 */
+		private void submit(final Runnable task) throws IOException {
+			pending.acquireUninterruptibly();
+			check();
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						pending.release();
+					}
+				}
+			}));
+		}
+		
+		/**
+		 * Drop finished tasks, rethrowing their failure.
+		 *
+		 * @throws IOException
+		 *             Signals that a task failed.
+		 */
+		private void check() throws IOException {
+			final Iterator<Future<?>> iter = futures.iterator();
+			while (iter.hasNext()) {
+				final Future<?> future = iter.next();
+				if (future.isDone()) {
+					get(future);
+					iter.remove();
+				}
+			}
+		}
+		
+		/**
+		 * Wait for all tasks.
+		 *
+		 * @throws IOException
+		 *             Signals that a task failed.
+		 */
+		private void await() throws IOException {
+			for (final Future<?> future : futures) {
+				get(future);
+			}
+			futures.clear();
+		}
+		
+		/**
+		 * Get the result of a task.
+		 *
+		 * @param future
+		 *            the future
+		 * @throws IOException
+		 *             Signals that the task failed.
+		 */
+		private void get(final Future<?> future) throws IOException {
+			try {
+				future.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", e);
+			} catch (final ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+		
+		/**
+		 * Shutdown.
+		 */
+		private void shutdown() {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Create the state factory from the "state" section of a configuration
+	 * file.
+	 *
+	 * @param filename
+	 *            the filename
+	 * @return the state factory
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static StateFactory getFactory(final String filename)
+			throws Exception {
+		final Config config = new Config(filename);
+		final String className = config.get("state", "class");
+		if (className == null) {
+			throw new IllegalArgumentException(
+					"Config parameter 'state.class' missing in " + filename);
+		}
+		final Class<?> stateClass = Class.forName(className);
+		if (!ClassUtil.hasInterface(stateClass, StateFactory.class)) {
+			throw new IllegalArgumentException("State factory class "
+					+ stateClass.getName() + " must implement "
+					+ StateFactory.class.getName());
+		}
+		final Map<String, Object> params = config.get("state");
+		return (StateFactory) stateClass.getConstructor(Map.class)
+				.newInstance(params);
+	}
+	
+	/**
+	 * Export, import or migration tool.
+	 *
+	 * @param args
+	 *            the arguments
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(final String[] args) throws Exception {
+		final int threads = args.length > 3 ? Integer.parseInt(args[3])
+				: Runtime.getRuntime().availableProcessors();
+		if (args.length >= 3 && "export".equals(args[0])) {
+			final OutputStream out = new FileOutputStream(args[2]);
+			try {
+				System.out.println("Exported "
+						+ export(getFactory(args[1]), out) + " states.");
+			} finally {
+				out.close();
+			}
+		} else if (args.length >= 3 && "import".equals(args[0])) {
+			final InputStream in = new FileInputStream(args[2]);
+			try {
+				System.out.println("Imported "
+						+ restore(getFactory(args[1]), in, threads)
+						+ " states.");
+			} finally {
+				in.close();
+			}
+		} else if (args.length >= 3 && "migrate".equals(args[0])) {
+			System.out.println("Migrated "
+					+ migrate(getFactory(args[1]), getFactory(args[2]),
+							threads) + " states.");
+		} else {
+			final String name = StateSnapshot.class.getCanonicalName();
+			System.err.println("Usage: " + name
+					+ " export <eve.yaml> <file>\n       " + name
+					+ " import <eve.yaml> <file> [threads]\n       " + name
+					+ " migrate <from.yaml> <to.yaml> [threads]");
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Key versions of states that store all their values as a single JSON
+ * document (e.g. a file or a database document). The versions are stored in
+ * the document itself, under the reserved key {@link #KEY}, so they are
+ * written together with the values:
+ * <code>{"clock":12,"keys":{"a":11,"b":12}}</code>.
+ * 
+ * The clock only increases, also when keys are removed, so a removed and
+ * recreated key never gets an old version back.
+ */
+public final class StateVersions {
+	/** The reserved key of the versions in the document. */
+	public static final String	KEY		= "_versions";
+	private static final String	CLOCK	= "clock";
+	private static final String	KEYS	= "keys";
+	
+	/**
+	 * Instantiates a new state versions.
+	 */
+	private StateVersions() {
+	}
+	
+	/**
+	 * Gets the version of the given key.
+	 * 
+	 * @param properties
+	 *            the properties of the state
+	 * @param key
+	 *            the key
+	 * @return the version, 0 if the key has no version
+	 */
+	public static long get(final Map<String, JsonNode> properties,
+			final String key) {
+		final JsonNode versions = properties.get(KEY);
+		if (versions == null || !versions.has(KEYS)) {
+			return 0;
+		}
+		final JsonNode version = versions.get(KEYS).get(key);
+		return version == null ? 0 : version.asLong();
+	}
+	
+	/**
+	 * Gets the versions of all keys.
+	 * 
+	 * @param properties
+	 *            the properties of the state
+	 * @return the versions by key
+	 */
+	public static Map<String, Long> getAll(
+			final Map<String, JsonNode> properties) {
+		final Map<String, Long> result = new HashMap<String, Long>();
+		final JsonNode versions = properties.get(KEY);
+		if (versions != null && versions.has(KEYS)) {
+			final Iterator<Map.Entry<String, JsonNode>> iter = versions.get(
+					KEYS).fields();
+			while (iter.hasNext()) {
+				final Map.Entry<String, JsonNode> entry = iter.next();
+				result.put(entry.getKey(), entry.getValue().asLong());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Give the given key a new version.
+	 * 
+	 * @param properties
+	 *            the properties of the state
+	 * @param key
+	 *            the key
+	 * @return the new version
+	 */
+	public static long changed(final Map<String, JsonNode> properties,
+			final String key) {
+		final ObjectNode versions = getVersions(properties);
+		final long version = versions.path(CLOCK).asLong() + 1;
+		versions.put(CLOCK, version);
+		((ObjectNode) versions.get(KEYS)).put(key, version);
+		return version;
+	}
+	
+	/**
+	 * Drop the versions of all keys that are no longer in the properties.
+	 * 
+	 * @param properties
+	 *            the properties of the state
+	 */
+	public static void removed(final Map<String, JsonNode> properties) {
+		final ObjectNode keys = (ObjectNode) getVersions(properties).get(KEYS);
+		final List<String> removed = new ArrayList<String>();
+		final Iterator<String> iter = keys.fieldNames();
+		while (iter.hasNext()) {
+			final String key = iter.next();
+			if (!properties.containsKey(key)) {
+				removed.add(key);
+			}
+		}
+		keys.remove(removed);
+	}
+	
+	/**
+	 * Remove the reserved key from a set of keys.
+	 * 
+	 * @param keys
+	 *            the keys
+	 * @return the keys
+	 */
+	public static Set<String> strip(final Set<String> keys) {
+		keys.remove(KEY);
+		return keys;
+	}
+	
+	/**
+	 * Get the versions node, creating it if needed.
+	 * 
+	 * @param properties
+	 *            the properties
+	 * @return the versions
+	 */
+	private static ObjectNode getVersions(final Map<String, JsonNode> properties) {
+		final JsonNode node = properties.get(KEY);
+		final ObjectNode versions = node instanceof ObjectNode ? (ObjectNode) node
+				: JOM.createObjectNode();
+		if (!(versions.get(KEYS) instanceof ObjectNode)) {
+			versions.put(KEYS, JOM.createObjectNode());
+		}
+		properties.put(KEY, versions);
+		return versions;
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state;
+
+/**
+ * A state value together with its version, see
+ * {@link State#getVersioned(TypedKey)}.
+ * 
+ * @param <T>
+ *            the value type
+ */
+public final class Versioned<T> {
+	private final T		value;
+	private final long	version;
+	
+	/**
+	 * Instantiates a new versioned value.
+	 * 
+	 * @param value
+	 *            the value
+	 * @param version
+	 *            the version
+	 */
+	public Versioned(final T value, final long version) {
+		this.value = value;
+		this.version = version;
+	}
+	
+	/**
+	 * Gets the value.
+	 * 
+	 * @return the value, or null if the key has no value
+	 */
+	public T getValue() {
+		return value;
+	}
+	
+	/**
+	 * Gets the version.
+	 * 
+	 * @return the version, 0 if the key has no value
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return version + ":" + value;
+	}
+}
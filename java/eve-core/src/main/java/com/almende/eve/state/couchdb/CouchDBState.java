@@ -17,6 +17,8 @@ import org.ektorp.UpdateConflictException;
 
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.state.AbstractState;
+import com.almende.eve.state.StatePoller;
+import com.almende.eve.state.StateVersions;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -26,6 +28,12 @@ import com.fasterxml.jackson.databind.node.NullNode;
 
 /**
  * The Class CouchDBState.
+ * 
+ * The key versions are stored in the document, with the properties (see
+ * {@link StateVersions}), so all instances of the state share them. Writes
+ * are conditional on the revision of the document: on a conflict the document
+ * is read again and the change is applied again, or, for putIfVersion,
+ * checked against the version of the key in the latest revision.
  */
 public class CouchDBState extends AbstractState<JsonNode> {
 	private static final Logger		LOG			= Logger.getLogger("CouchDBState");
@@ -34,6 +42,14 @@ public class CouchDBState extends AbstractState<JsonNode> {
 														.synchronizedMap(new HashMap<String, JsonNode>());
 	private CouchDbConnector		db			= null;
 	private String					id			= null;
+	/** Versions last seen by the poll, while watched. */
+	private Map<String, Long>		known		= null;
+	private final Runnable			poll		= new Runnable() {
+													@Override
+													public void run() {
+														refresh();
+													}
+												};
 	
 	/**
 	 * Instantiates a new couch db state.
@@ -78,7 +94,9 @@ public class CouchDBState extends AbstractState<JsonNode> {
 		JsonNode result = null;
 		try {
 			result = properties.put(ckey, value);
+			StateVersions.changed(properties, ckey);
 			update();
+			fireChanges();
 		} catch (final UpdateConflictException uce) {
 			read();
 			return locPut(ckey, value);
@@ -106,11 +124,11 @@ public class CouchDBState extends AbstractState<JsonNode> {
 				oldVal = NullNode.getInstance();
 			}
 			
-			// Poor mans equality as some Numbers are compared incorrectly: e.g.
-			// IntNode versus LongNode
-			if (oldVal.equals(cur) || oldVal.toString().equals(cur.toString())) {
+			if (equal(oldVal, cur)) {
 				properties.put(ckey, newVal);
+				StateVersions.changed(properties, ckey);
 				update();
+				fireChanges();
 				result = true;
 			}
 		} catch (final UpdateConflictException uce) {
@@ -123,6 +141,111 @@ public class CouchDBState extends AbstractState<JsonNode> {
 		return result;
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#putIfVersion(java.lang.String, java.lang.Object, long)
+	 */
+	@Override
+	public synchronized boolean putIfVersion(final String key,
+			final Object value, final long version) {
+		final String ckey = couchify(key);
+		try {
+			while (StateVersions.get(properties, ckey) == version) {
+				if (value == null) {
+					if (!properties.containsKey(ckey)) {
+						return true;
+					}
+					properties.remove(ckey);
+					StateVersions.removed(properties);
+				} else {
+					properties.put(ckey, value instanceof JsonNode ? (JsonNode) value
+							: (JsonNode) JOM.getInstance().valueToTree(value));
+					StateVersions.changed(properties, ckey);
+				}
+				try {
+					update();
+					fireChanges();
+					return true;
+				} catch (final UpdateConflictException uce) {
+					// written by another instance: check the version again
+					read();
+				}
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "", e);
+			read();
+		}
+		return false;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#getVersion(java.lang.String)
+	 */
+	@Override
+	public synchronized long getVersion(final String key) {
+		return StateVersions.get(properties, couchify(key));
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#getVersions()
+	 */
+	@Override
+	protected synchronized Map<String, Long> getVersions() {
+		final Map<String, Long> versions = StateVersions.getAll(properties);
+		final Map<String, Long> result = new HashMap<String, Long>();
+		for (final String ckey : properties.keySet()) {
+			if (!StateVersions.KEY.equals(ckey)) {
+				final Long version = versions.get(ckey);
+				result.put(decouchify(ckey), version == null ? 0 : version);
+			}
+		}
+		return result;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#startWatching()
+	 */
+	@Override
+	protected synchronized void startWatching() {
+		known = getVersions();
+		StatePoller.register(poll);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#stopWatching()
+	 */
+	@Override
+	protected synchronized void stopWatching() {
+		StatePoller.unregister(poll);
+		known = null;
+	}
+	
+	/**
+	 * Read the document again, and notify the keys changed by other
+	 * instances.
+	 */
+	private synchronized void refresh() {
+		if (known != null && db != null) {
+			try {
+				read();
+			} catch (final Exception e) {
+				LOG.log(Level.FINE, "", e);
+			}
+			fireChanges();
+		}
+	}
+	
+	/**
+	 * Notify the keys whose version changed since the last notification,
+	 * while the state is watched.
+	 */
+	private void fireChanges() {
+		final Map<String, Long> previous = known;
+		if (previous != null) {
+			known = getVersions();
+			fireChanges(previous, known);
+		}
+	}
+	
 	/**
 	 * Check the key if it starts with a _
 	 * Add a prefix if this is the case, because _ properties are reserved.
@@ -172,10 +295,17 @@ public class CouchDBState extends AbstractState<JsonNode> {
 	 */
 	@Override
 	public synchronized Object remove(final String key) {
+		final String ckey = couchify(key);
 		Object result = null;
 		try {
-			result = properties.remove(key);
+			result = properties.remove(ckey);
+			StateVersions.removed(properties);
 			update();
+			fireChanges();
+			removeExpiry(key);
+		} catch (final UpdateConflictException uce) {
+			read();
+			return remove(ckey);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
@@ -206,6 +336,7 @@ public class CouchDBState extends AbstractState<JsonNode> {
 		Set<String> keys = null;
 		try {
 			keys = new HashSet<String>(properties.keySet());
+			keys.remove(StateVersions.KEY);
 			for (final String key : keys) {
 				result.add(decouchify(key));
 			}
@@ -215,6 +346,20 @@ public class CouchDBState extends AbstractState<JsonNode> {
 		return result;
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#getAll()
+	 */
+	@Override
+	public synchronized Map<String, Object> getAll() {
+		final Map<String, Object> result = new HashMap<String, Object>();
+		for (final Map.Entry<String, JsonNode> entry : properties.entrySet()) {
+			if (!StateVersions.KEY.equals(entry.getKey())) {
+				result.put(decouchify(entry.getKey()), entry.getValue());
+			}
+		}
+		return result;
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.almende.eve.state.State#clear()
 	 */
@@ -223,10 +368,14 @@ public class CouchDBState extends AbstractState<JsonNode> {
 		try {
 			final String agentType = properties
 					.get(couchify(KEY_AGENT_TYPE)).textValue();
-			properties.clear();
+			// keep the versions, so a recreated key gets a new version
+			properties.keySet().retainAll(
+					Collections.singleton(StateVersions.KEY));
 			properties.put(couchify(KEY_AGENT_TYPE), JOM.getInstance()
 					.valueToTree(agentType));
+			StateVersions.removed(properties);
 			update();
+			fireChanges();
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Failed clearing state", e);
 		}
@@ -239,7 +388,7 @@ public class CouchDBState extends AbstractState<JsonNode> {
 	public int size() {
 		int result = -1;
 		try {
-			result = properties.size();
+			result = keySet().size();
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
 		}
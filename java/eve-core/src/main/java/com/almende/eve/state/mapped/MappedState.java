@@ -0,0 +1,205 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.mapped;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.almende.eve.state.AbstractState;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+/**
+ * The Class MappedState.
+ *
+ * A persistent state for an Eve Agent, stored in the shared, memory mapped
+ * record log of its {@link MappedStateFactory}. Each change only appends a
+ * single record, instead of rewriting the whole state.
+ *
+ * All operations on this state are thread-safe.
+ */
+public class MappedState extends AbstractState<JsonNode> {
+	private static final Logger	LOG	= Logger.getLogger(MappedState.class
+											.getName());
+	private final SegmentStore	store;
+	private final Codec			codec;
+	
+	/**
+	 * Instantiates a new mapped state.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param store
+	 *            the store
+	 * @param codec
+	 *            the encoding of new values
+	 */
+	MappedState(final String agentId, final SegmentStore store,
+			final Codec codec) {
+		super(agentId);
+		this.store = store;
+		this.codec = codec;
+	}
+	
+	/**
+	 * init is executed once before the agent method is invoked.
+	 */
+	@Override
+	public void init() {
+	}
+	
+	/**
+	 * destroy is executed once after the agent method is invoked.
+	 */
+	@Override
+	public void destroy() {
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.AbstractState#get(java.lang.String)
+	 */
+	@Override
+	public synchronized JsonNode get(final String key) {
+		return store.read(getAgentId(), key);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.AbstractState#locPut(java.lang.String,
+	 * com.fasterxml.jackson.databind.JsonNode)
+	 */
+	@Override
+	public synchronized JsonNode locPut(final String key, JsonNode value) {
+		if (value == null) {
+			value = NullNode.getInstance();
+		}
+		final JsonNode result = get(key);
+		write(key, value);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.almende.eve.state.AbstractState#locPutIfUnchanged(java.lang.String,
+	 * com.fasterxml.jackson.databind.JsonNode,
+	 * com.fasterxml.jackson.databind.JsonNode)
+	 */
+	@Override
+	public synchronized boolean locPutIfUnchanged(final String key,
+			final JsonNode newVal, JsonNode oldVal) {
+		JsonNode cur = get(key);
+		if (cur == null) {
+			cur = NullNode.getInstance();
+		}
+		if (oldVal == null) {
+			oldVal = NullNode.getInstance();
+		}
+		
+		if (equal(oldVal, cur)) {
+			write(key, newVal != null ? newVal : NullNode.getInstance());
+			return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.AbstractState#getVersion(java.lang.String)
+	 */
+	@Override
+	public long getVersion(final String key) {
+		// The version of a value is persisted in its record.
+		return store.version(getAgentId(), key);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#remove(java.lang.String)
+	 */
+	@Override
+	public synchronized Object remove(final String key) {
+		final JsonNode result = get(key);
+		if (result != null) {
+			store.append(SegmentStore.REMOVE, getAgentId(), key, null);
+			fireChange(key);
+		}
+		removeExpiry(key);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#containsKey(java.lang.String)
+	 */
+	@Override
+	public boolean containsKey(final String key) {
+		return store.containsKey(getAgentId(), key);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#keySet()
+	 */
+	@Override
+	public Set<String> keySet() {
+		return new HashSet<String>(store.keySet(getAgentId()));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#clear()
+	 */
+	@Override
+	public synchronized void clear() {
+		for (final String key : keySet()) {
+			if (!KEY_AGENT_TYPE.equals(key)) {
+				store.append(SegmentStore.REMOVE, getAgentId(), key, null);
+				fireChange(key);
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#size()
+	 */
+	@Override
+	public int size() {
+		return store.size(getAgentId());
+	}
+	
+	/**
+	 * Append the serialized value to the store.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 */
+	private void write(final String key, final JsonNode value) {
+		try {
+			store.append(SegmentStore.PUT, getAgentId(), key,
+					codec.encode(value));
+			fireChange(key);
+		} catch (final JsonProcessingException e) {
+			LOG.log(Level.WARNING, "Couldn't serialize value:" + key, e);
+		}
+	}
+}
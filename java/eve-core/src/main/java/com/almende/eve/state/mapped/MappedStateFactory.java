@@ -0,0 +1,301 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.config.Config;
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
+
+/**
+ * A factory for creating MappedState objects.
+ *
+ * All agent states are stored in a single, append-only log of memory mapped
+ * segment files below the configured path, instead of one file per agent.
+ * This keeps the number of files and file handles constant, independent of
+ * the number of agents, and turns each put into a single sequential append.
+ * The folder is locked while the factory is open: a second factory on the
+ * same path, in this or another process, fails with an IOException.
+ *
+ * Configuration parameters:
+ * <ul>
+ * <li>path: folder of the segment files, default ".eveagents_mapped"</li>
+ * <li>segmentSize: size of a single segment file in bytes, default 64MB</li>
+ * <li>sync: force each write to disk, default false</li>
+ * <li>codec: encoding of new values, "json" or "smile", default "json"</li>
+ * <li>compactRatio: compact the log when the ratio of live data drops below
+ * this value, default 0.5</li>
+ * <li>compactInterval: how often the ratio is checked in the background, in
+ * milliseconds, default 60000, 0 to only check at startup</li>
+ * </ul>
+ */
+public class MappedStateFactory implements StateFactory {
+	private static final Logger			LOG				= Logger.getLogger(MappedStateFactory.class
+															.getSimpleName());
+	private static final int			SEGMENTSIZE		= 64 * 1024 * 1024;
+	private static final double			COMPACTRATIO	= 0.5;
+	private static final long			COMPACTINTERVAL	= 60000;
+	private String						path			= null;
+	private SegmentStore				store			= null;
+	private Codec						codec			= Codec.JSON;
+	private ScheduledThreadPoolExecutor	compactor		= null;
+	private final Map<String, State>	states			= new ConcurrentHashMap<String, State>();
+	
+	/**
+	 * This constructor is called when constructed by the AgentHost.
+	 *
+	 * @param params
+	 *            the params
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public MappedStateFactory(Map<String, Object> params) throws IOException {
+		if (params == null) {
+			params = new HashMap<String, Object>();
+		}
+		int segmentSize = SEGMENTSIZE;
+		boolean sync = false;
+		double compactRatio = COMPACTRATIO;
+		long compactInterval = COMPACTINTERVAL;
+		if (params.containsKey("segmentSize")) {
+			segmentSize = ((Number) params.get("segmentSize")).intValue();
+		}
+		if (params.containsKey("sync")) {
+			sync = (Boolean) params.get("sync");
+		}
+		if (params.containsKey("codec")) {
+			codec = Codec.forName((String) params.get("codec"));
+		}
+		if (params.containsKey("compactRatio")) {
+			compactRatio = ((Number) params.get("compactRatio"))
+					.doubleValue();
+		}
+		if (params.containsKey("compactInterval")) {
+			compactInterval = ((Number) params.get("compactInterval"))
+					.longValue();
+		}
+		open((String) params.get("path"), segmentSize, sync, compactRatio,
+				compactInterval);
+	}
+	
+	/**
+	 * Instantiates a new mapped state factory.
+	 *
+	 * @param path
+	 *            the path
+	 * @param segmentSize
+	 *            the segment size
+	 * @param sync
+	 *            force each write to disk
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public MappedStateFactory(final String path, final int segmentSize,
+			final boolean sync) throws IOException {
+		open(path, segmentSize, sync, COMPACTRATIO, COMPACTINTERVAL);
+	}
+	
+	/**
+	 * Instantiates a new mapped state factory.
+	 *
+	 * @param path
+	 *            the path
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public MappedStateFactory(final String path) throws IOException {
+		this(path, SEGMENTSIZE, false);
+	}
+	
+	/**
+	 * Open the store at the given path.
+	 *
+	 * @param path
+	 *            the path
+	 * @param segmentSize
+	 *            the segment size
+	 * @param sync
+	 *            the sync
+	 * @param compactRatio
+	 *            the compact ratio
+	 * @param compactInterval
+	 *            the compact interval
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void open(String path, final int segmentSize, final boolean sync,
+			final double compactRatio, final long compactInterval)
+			throws IOException {
+		if (path == null) {
+			path = ".eveagents_mapped";
+			LOG.warning("Config parameter 'state.path' missing in Eve "
+					+ "configuration. Using the default path '" + path + "'");
+		}
+		this.path = path;
+		
+		final File folder = new File(path);
+		if (!folder.exists() && !folder.mkdirs()) {
+			LOG.severe("Could not create State folder!");
+			throw new IllegalStateException();
+		}
+		store = new SegmentStore(folder, segmentSize, sync);
+		if (store.getLiveRatio() < compactRatio) {
+			store.compact();
+		}
+		if (compactInterval > 0) {
+			compactor = new ScheduledThreadPoolExecutor(1,
+					Config.getThreadFactory());
+			compactor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (store.getLiveRatio() < compactRatio) {
+							store.compact();
+						}
+					} catch (final Exception e) {
+						LOG.log(Level.WARNING, "Couldn't compact state store "
+								+ MappedStateFactory.this.path, e);
+					}
+				}
+			}, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.StateFactory#get(java.lang.String)
+	 */
+	@Override
+	public State get(final String agentId) {
+		if (!store.exists(agentId)) {
+			return null;
+		}
+		State state = states.get(agentId);
+		if (state == null) {
+			synchronized (states) {
+				state = states.get(agentId);
+				if (state == null) {
+					state = new MappedState(agentId, store, codec);
+					states.put(agentId, state);
+				}
+			}
+		}
+		return state;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.StateFactory#create(java.lang.String)
+	 */
+	@Override
+	public synchronized State create(final String agentId) throws IOException {
+		if (exists(agentId)) {
+			throw new IllegalStateException("Cannot create state, "
+					+ "state with id '" + agentId + "' already exists.");
+		}
+		store.append(SegmentStore.CREATE, agentId, null, null);
+		return get(agentId);
+	}
+	
+	/**
+	 * Delete a state. If the state does not exist, nothing will happen.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 */
+	@Override
+	public synchronized void delete(final String agentId) {
+		if (store.exists(agentId)) {
+			store.append(SegmentStore.DELETE, agentId, null, null);
+		}
+		states.remove(agentId);
+	}
+	
+	/**
+	 * Test if a state with given agentId exists.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return true, if successful
+	 */
+	@Override
+	public boolean exists(final String agentId) {
+		return store.exists(agentId);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.StateFactory#getAllAgentIds()
+	 */
+	@Override
+	public Iterator<String> getAllAgentIds() {
+		return store.getAgentIds();
+	}
+	
+	/**
+	 * Rewrite the log, dropping all overwritten and removed values.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void compact() throws IOException {
+		store.compact();
+	}
+	
+	/**
+	 * Gets the ratio of live data versus the total size of the log.
+	 *
+	 * @return the live ratio
+	 */
+	public double getLiveRatio() {
+		return store.getLiveRatio();
+	}
+	
+	/**
+	 * Flush all pending writes to disk.
+	 */
+	public void flush() {
+		store.flush();
+	}
+	
+	/**
+	 * Flush and close the store, the factory can't be used afterwards.
+	 */
+	public void close() {
+		if (compactor != null) {
+			compactor.shutdown();
+		}
+		states.clear();
+		store.close();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final Map<String, Object> data = new HashMap<String, Object>();
+		data.put("class", this.getClass().getName());
+		data.put("path", path);
+		data.put("codec", codec.getName());
+		return data.toString();
+	}
+}
@@ -0,0 +1,1124 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Append-only, memory mapped record log, shared by all agents of a
+ * {@link MappedStateFactory}.
+ *
+ * All changes are appended as checksummed records to a list of fixed size,
+ * memory mapped segment files. The log itself serves as write-ahead log: on
+ * startup all segments are replayed into the in-memory index (agentId -> key
+ * -> value location), and a torn record at the tail (e.g. after a crash) is
+ * detected by its checksum and discarded.
+ *
+ * Record layout: [crc:int][length:int][type:byte][agentId:short+bytes]
+ * [key:short+bytes][version:long][value:int+bytes], the crc covers everything
+ * after itself. Each record gets the next version of the store-wide clock, so
+ * the version of a PUT record is the version of its key. On replay the clock
+ * continues from the highest version seen.
+ *
+ * Segment files are named "&lt;generation&gt;-&lt;index&gt;.seg". Compaction
+ * writes the live records into a new generation, which only becomes active
+ * once its "&lt;generation&gt;.done" marker is written. Appends continue
+ * while the live records are copied, only the records appended meanwhile are
+ * copied while holding the store's lock.
+ *
+ * The index is kept on heap, one small {@link KeyDir} per agent.
+ *
+ * The store holds a lock on the "store.lock" file of its folder while it is
+ * open, so a second store on the same folder, in this or another process,
+ * fails instead of appending to and compacting the same log.
+ */
+final class SegmentStore {
+	private static final Logger								LOG			= Logger.getLogger(SegmentStore.class
+																				.getCanonicalName());
+	private static final Charset							UTF8		= Charset
+																				.forName("UTF-8");
+	private static final Pattern							SEGMENT		= Pattern
+																				.compile("^(\\d+)-(\\d+)\\.seg$");
+	private static final Pattern							DONE		= Pattern
+																				.compile("^(\\d+)\\.done$");
+	private static final int								HEADER		= 8;
+	private static final String								LOCKFILE	= "store.lock";
+	
+	/** Record types. */
+	static final byte										PUT			= 1;
+	static final byte										REMOVE		= 2;
+	static final byte										CREATE		= 3;
+	static final byte										DELETE		= 4;
+	static final byte										CLOCK		= 5;
+	
+	private final File				folder;
+	private final int				segmentSize;
+	private final boolean			sync;
+	/** Guards against reading from a generation that is being dropped. */
+	private final ReadWriteLock		lock		= new ReentrantReadWriteLock();
+	/** Only one compaction at a time. */
+	private final Object			compacting	= new Object();
+	private volatile Generation		current		= null;
+	/** The lock on the folder, held while the store is open. */
+	private final FileLock			owner;
+	
+	/**
+	 * An immutable list of keys and the locations of their values.
+	 */
+	private static final class Table {
+		private static final Table	EMPTY	= new Table(new String[0],
+													new long[0]);
+		private final String[]		keys;
+		private final long[]		locations;
+		
+		/**
+		 * Instantiates a new table.
+		 *
+		 * @param keys
+		 *            the keys
+		 * @param locations
+		 *            the locations
+		 */
+		private Table(final String[] keys, final long[] locations) {
+			this.keys = keys;
+			this.locations = locations;
+		}
+		
+		/**
+		 * Find a key.
+		 *
+		 * @param key
+		 *            the key
+		 * @return the index, or -1 if not found
+		 */
+		private int indexOf(final String key) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		/**
+		 * Copy this table, replacing or adding a key.
+		 *
+		 * @param index
+		 *            the index to replace, or -1 to add the key
+		 * @param key
+		 *            the key
+		 * @param location
+		 *            the location
+		 * @return the table
+		 */
+		private Table with(final int index, final String key,
+				final long location) {
+			final int size = index < 0 ? keys.length + 1 : keys.length;
+			final String[] newKeys = Arrays.copyOf(keys, size);
+			final long[] newLocations = Arrays.copyOf(locations, size);
+			final int target = index < 0 ? keys.length : index;
+			newKeys[target] = key;
+			newLocations[target] = location;
+			return new Table(newKeys, newLocations);
+		}
+		
+		/**
+		 * Copy this table, without the given key.
+		 *
+		 * @param index
+		 *            the index of the key
+		 * @return the table
+		 */
+		private Table without(final int index) {
+			final int last = keys.length - 1;
+			final String[] newKeys = Arrays.copyOf(keys, last);
+			final long[] newLocations = Arrays.copyOf(locations, last);
+			if (index < last) {
+				newKeys[index] = keys[last];
+				newLocations[index] = locations[last];
+			}
+			return new Table(newKeys, newLocations);
+		}
+	}
+	
+	/**
+	 * The keys of a single agent, with the locations of their values.
+	 *
+	 * Small agents keep their keys in an immutable {@link Table}, which is
+	 * replaced as a whole on each change. Readers don't need locking, and an
+	 * agent costs a few small objects instead of a hash map. Agents with many
+	 * keys switch to a hash map. Changes are only made while holding the
+	 * store's lock.
+	 */
+	private static final class KeyDir {
+		private static final int	SMALL	= 16;
+		/** Either a Table, or a Map for large agents. */
+		private volatile Object		index	= Table.EMPTY;
+		
+		/**
+		 * Get the location of a value.
+		 *
+		 * @param key
+		 *            the key
+		 * @return the location, or null if not found
+		 */
+		@SuppressWarnings("unchecked")
+		private Long get(final String key) {
+			final Object current = index;
+			if (current instanceof Table) {
+				final Table table = (Table) current;
+				final int i = table.indexOf(key);
+				return i < 0 ? null : table.locations[i];
+			}
+			return ((Map<String, Long>) current).get(key);
+		}
+		
+		/**
+		 * Set the location of a value.
+		 *
+		 * @param key
+		 *            the key
+		 * @param location
+		 *            the location
+		 * @return the previous location, or null
+		 */
+		@SuppressWarnings("unchecked")
+		private Long put(final String key, final long location) {
+			final Object current = index;
+			if (current instanceof Table) {
+				final Table table = (Table) current;
+				final int i = table.indexOf(key);
+				if (i >= 0 || table.keys.length < SMALL) {
+					index = table.with(i, key, location);
+					return i < 0 ? null : table.locations[i];
+				}
+				final Map<String, Long> map = new ConcurrentHashMap<String, Long>(
+						entries());
+				map.put(key, location);
+				index = map;
+				return null;
+			}
+			return ((Map<String, Long>) current).put(key, location);
+		}
+		
+		/**
+		 * Remove a key.
+		 *
+		 * @param key
+		 *            the key
+		 * @return the previous location, or null
+		 */
+		@SuppressWarnings("unchecked")
+		private Long remove(final String key) {
+			final Object current = index;
+			if (current instanceof Table) {
+				final Table table = (Table) current;
+				final int i = table.indexOf(key);
+				if (i < 0) {
+					return null;
+				}
+				index = table.without(i);
+				return table.locations[i];
+			}
+			return ((Map<String, Long>) current).remove(key);
+		}
+		
+		/**
+		 * Get a snapshot of all keys and locations.
+		 *
+		 * @return the entries
+		 */
+		@SuppressWarnings("unchecked")
+		private Map<String, Long> entries() {
+			final Object current = index;
+			if (current instanceof Table) {
+				final Table table = (Table) current;
+				final Map<String, Long> result = new HashMap<String, Long>(
+						table.keys.length * 2);
+				for (int i = 0; i < table.keys.length; i++) {
+					result.put(table.keys[i], table.locations[i]);
+				}
+				return result;
+			}
+			return new HashMap<String, Long>((Map<String, Long>) current);
+		}
+		
+		/**
+		 * Get the keys.
+		 *
+		 * @return the keys
+		 */
+		@SuppressWarnings("unchecked")
+		private Set<String> keySet() {
+			final Object current = index;
+			if (current instanceof Table) {
+				return new HashSet<String>(Arrays.asList(((Table) current).keys));
+			}
+			return Collections.unmodifiableSet(((Map<String, Long>) current)
+					.keySet());
+		}
+		
+		/**
+		 * Get the number of keys.
+		 *
+		 * @return the size
+		 */
+		@SuppressWarnings("unchecked")
+		private int size() {
+			final Object current = index;
+			if (current instanceof Table) {
+				return ((Table) current).keys.length;
+			}
+			return ((Map<String, Long>) current).size();
+		}
+	}
+	
+	/**
+	 * A single memory mapped segment file.
+	 */
+	private static final class Segment {
+		private final File				file;
+		private final FileChannel		channel;
+		private final MappedByteBuffer	buffer;
+		private int						writePos	= 0;
+		
+		/**
+		 * Instantiates a new segment, mapping (and if needed creating) the
+		 * file.
+		 *
+		 * @param file
+		 *            the file
+		 * @param size
+		 *            the minimal size
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		@SuppressWarnings("resource")
+		private Segment(final File file, final int size) throws IOException {
+			this.file = file;
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			final long length = Math.max(channel.size(), size);
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+		
+		/**
+		 * Close the segment.
+		 */
+		private void close() {
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				LOG.log(Level.WARNING, "Couldn't close segment:" + file, e);
+			}
+		}
+	}
+	
+	/**
+	 * A generation of segments, with its index (agentId -> key -> value
+	 * location).
+	 */
+	private final class Generation {
+		private final int								number;
+		private final List<Segment>						segments	= new CopyOnWriteArrayList<Segment>();
+		private final Map<String, KeyDir>				keydir		= new ConcurrentHashMap<String, KeyDir>();
+		private long									liveBytes	= 0;
+		private long									totalBytes	= 0;
+		private long									clock		= 0;
+		
+		/**
+		 * Instantiates a new generation.
+		 *
+		 * @param number
+		 *            the number
+		 */
+		private Generation(final int number) {
+			this.number = number;
+		}
+		
+		/**
+		 * Add a new segment to this generation.
+		 *
+		 * @param size
+		 *            the size
+		 * @return the segment
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		private Segment addSegment(final int size) throws IOException {
+			final Segment segment = new Segment(new File(folder, segmentName(
+					number, segments.size())), size);
+			segments.add(segment);
+			return segment;
+		}
+		
+		/**
+		 * Replay all records of a segment into the index.
+		 *
+		 * @param segment
+		 *            the segment
+		 * @return false if a torn or corrupt record was found
+		 */
+		private boolean replay(final Segment segment) {
+			final ByteBuffer buf = segment.buffer;
+			final int index = segments.indexOf(segment);
+			int pos = 0;
+			while (pos + HEADER <= buf.capacity()) {
+				final int crc = buf.getInt(pos);
+				final int length = buf.getInt(pos + 4);
+				if (length == 0) {
+					// End of data in this segment.
+					break;
+				}
+				if (length < 0 || pos + HEADER + length > buf.capacity()
+						|| crc != checksum(buf, pos + 4, length + 4)) {
+					LOG.warning("Discarding torn record in " + segment.file
+							+ " at " + pos);
+					truncate(segment, pos);
+					return false;
+				}
+				apply(index, pos);
+				totalBytes += HEADER + length;
+				pos += HEADER + length;
+			}
+			segment.writePos = pos;
+			return true;
+		}
+		
+		/**
+		 * Apply the record at the given position to the index.
+		 *
+		 * @param index
+		 *            the segment index
+		 * @param pos
+		 *            the record position
+		 */
+		private void apply(final int index, final int pos) {
+			final ByteBuffer buf = segments.get(index).buffer;
+			int cursor = pos + HEADER;
+			final byte type = buf.get(cursor);
+			cursor++;
+			final int agentLength = buf.getShort(cursor) & 0xFFFF;
+			final String agentId = decode(buf, cursor + 2, agentLength);
+			cursor += 2 + agentLength;
+			final int keyLength = buf.getShort(cursor) & 0xFFFF;
+			final String key = decode(buf, cursor + 2, keyLength);
+			cursor += 2 + keyLength;
+			clock = Math.max(clock, buf.getLong(cursor));
+			cursor += 8;
+			cursor += 4;
+			
+			final int size = HEADER + buf.getInt(pos + 4);
+			switch (type) {
+				case CREATE:
+					if (!keydir.containsKey(agentId)) {
+						keydir.put(agentId, new KeyDir());
+						liveBytes += size;
+					}
+					break;
+				case DELETE:
+					final KeyDir removed = keydir.remove(agentId);
+					if (removed != null) {
+						for (final Entry<String, Long> entry : removed
+								.entries().entrySet()) {
+							liveBytes -= recordSize(agentId, entry.getKey(),
+									valueLength(entry.getValue()));
+						}
+						liveBytes -= recordSize(agentId, "", 0);
+					}
+					break;
+				case PUT:
+					KeyDir keys = keydir.get(agentId);
+					if (keys == null) {
+						keys = new KeyDir();
+						keydir.put(agentId, keys);
+						liveBytes += recordSize(agentId, "", 0);
+					}
+					final Long old = keys.put(key, location(index, cursor));
+					if (old != null) {
+						liveBytes -= recordSize(agentId, key, valueLength(old));
+					}
+					liveBytes += size;
+					break;
+				case REMOVE:
+					final KeyDir current = keydir.get(agentId);
+					if (current != null) {
+						final Long prev = current.remove(key);
+						if (prev != null) {
+							liveBytes -= recordSize(agentId, key,
+									valueLength(prev));
+						}
+					}
+					break;
+				case CLOCK:
+					liveBytes += size;
+					break;
+				default:
+					LOG.warning("Unknown record type:" + type);
+			}
+		}
+		
+		/**
+		 * Write a record at the end of this generation, and apply it.
+		 *
+		 * @param record
+		 *            the record
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		private void write(final ByteBuffer record) throws IOException {
+			Segment segment = segments.get(segments.size() - 1);
+			if (segment.writePos + record.capacity() + HEADER > segment.buffer
+					.capacity()) {
+				segment = addSegment(Math.max(segmentSize, record.capacity()
+						+ HEADER));
+			}
+			final int pos = segment.writePos;
+			final ByteBuffer target = segment.buffer.duplicate();
+			target.position(pos);
+			target.put(record.array());
+			segment.writePos = pos + record.capacity();
+			if (sync) {
+				segment.buffer.force();
+			}
+			totalBytes += record.capacity();
+			apply(segments.size() - 1, pos);
+		}
+		
+		/**
+		 * Get a read-only view on the value at the given location.
+		 *
+		 * @param location
+		 *            the location
+		 * @return the byte buffer
+		 */
+		private ByteBuffer slice(final long location) {
+			final Segment segment = segments.get((int) (location >>> 32));
+			final int offset = (int) location;
+			final ByteBuffer buf = segment.buffer.asReadOnlyBuffer();
+			buf.limit(offset + buf.getInt(offset - 4));
+			buf.position(offset);
+			return buf;
+		}
+		
+		/**
+		 * Get the version of the value at the given location.
+		 *
+		 * @param location
+		 *            the location
+		 * @return the version
+		 */
+		private long version(final long location) {
+			final Segment segment = segments.get((int) (location >>> 32));
+			return segment.buffer.getLong((int) location - 12);
+		}
+		
+		/**
+		 * Get the length of the value at the given location.
+		 *
+		 * @param location
+		 *            the location
+		 * @return the length
+		 */
+		private int valueLength(final long location) {
+			final Segment segment = segments.get((int) (location >>> 32));
+			return segment.buffer.getInt((int) location - 4);
+		}
+		
+		/**
+		 * Flush all segments to disk.
+		 */
+		private void flush() {
+			for (final Segment segment : segments) {
+				segment.buffer.force();
+			}
+		}
+		
+		/**
+		 * Close all segments, optionally removing their files.
+		 *
+		 * @param delete
+		 *            the delete
+		 */
+		private void close(final boolean delete) {
+			for (final Segment segment : segments) {
+				segment.close();
+				if (delete) {
+					segment.file.delete();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Instantiates a new segment store, replaying all existing segments.
+	 *
+	 * @param folder
+	 *            the folder
+	 * @param segmentSize
+	 *            the segment size
+	 * @param sync
+	 *            force each write to disk
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	SegmentStore(final File folder, final int segmentSize, final boolean sync)
+			throws IOException {
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		owner = lockFolder(folder);
+		try {
+			open();
+		} catch (final IOException e) {
+			release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Lock the folder for this store.
+	 *
+	 * @param folder
+	 *            the folder
+	 * @return the lock
+	 * @throws IOException
+	 *             if the folder is in use by another store, or can't be
+	 *             locked
+	 */
+	@SuppressWarnings("resource")
+	private static FileLock lockFolder(final File folder) throws IOException {
+		final FileChannel channel = new RandomAccessFile(new File(folder,
+				LOCKFILE), "rw").getChannel();
+		FileLock result = null;
+		try {
+			result = channel.tryLock();
+		} catch (final OverlappingFileLockException e) {
+			// Locked by another store in this process.
+			result = null;
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+		if (result == null) {
+			channel.close();
+			throw new IOException("State store " + folder
+					+ " is already in use by another store or process.");
+		}
+		return result;
+	}
+	
+	/**
+	 * Release the lock on the folder.
+	 */
+	private void release() {
+		try {
+			owner.release();
+			owner.channel().close();
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't unlock state store " + folder, e);
+		}
+	}
+	
+	/**
+	 * Open the latest complete generation, and replay its records.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void open() throws IOException {
+		String[] names = folder.list();
+		if (names == null) {
+			names = new String[0];
+		}
+		int number = 0;
+		for (final String name : names) {
+			final Matcher matcher = DONE.matcher(name);
+			if (matcher.matches()) {
+				number = Math.max(number, Integer.parseInt(matcher.group(1)));
+			}
+		}
+		final List<String> files = new ArrayList<String>();
+		for (final String name : names) {
+			Matcher matcher = SEGMENT.matcher(name);
+			if (matcher.matches()) {
+				if (Integer.parseInt(matcher.group(1)) == number) {
+					files.add(name);
+				} else {
+					// Older generation, or unfinished compaction.
+					new File(folder, name).delete();
+				}
+			}
+			matcher = DONE.matcher(name);
+			if (matcher.matches()
+					&& Integer.parseInt(matcher.group(1)) != number) {
+				new File(folder, name).delete();
+			}
+		}
+		Collections.sort(files);
+		
+		final Generation generation = new Generation(number);
+		boolean torn = false;
+		for (final String name : files) {
+			final File file = new File(folder, name);
+			if (torn) {
+				// Everything after a torn record is invalid.
+				file.delete();
+				continue;
+			}
+			final Segment segment = new Segment(file, 0);
+			generation.segments.add(segment);
+			torn = !generation.replay(segment);
+		}
+		if (generation.segments.isEmpty()) {
+			generation.addSegment(segmentSize);
+		}
+		current = generation;
+		LOG.info("Opened state store " + folder + ": "
+				+ generation.keydir.size() + " agents in "
+				+ generation.segments.size() + " segment(s).");
+	}
+	
+	/**
+	 * Zero the segment from the given position, so a later replay stops
+	 * there.
+	 *
+	 * @param segment
+	 *            the segment
+	 * @param from
+	 *            the from
+	 */
+	private static void truncate(final Segment segment, final int from) {
+		final ByteBuffer buf = segment.buffer;
+		for (int i = from; i < buf.capacity(); i++) {
+			buf.put(i, (byte) 0);
+		}
+		segment.writePos = from;
+		segment.buffer.force();
+	}
+	
+	/**
+	 * Build a checksummed record.
+	 *
+	 * @param type
+	 *            the type
+	 * @param agentId
+	 *            the agent id
+	 * @param key
+	 *            the key, may be null
+	 * @param version
+	 *            the version
+	 * @param value
+	 *            the value, may be null
+	 * @return the byte buffer
+	 */
+	private static ByteBuffer record(final byte type, final String agentId,
+			final String key, final long version, final byte[] value) {
+		final byte[] agent = agentId.getBytes(UTF8);
+		final byte[] keyBytes = key != null ? key.getBytes(UTF8) : new byte[0];
+		final int valueLength = value != null ? value.length : 0;
+		if (agent.length > 0xFFFF || keyBytes.length > 0xFFFF) {
+			throw new IllegalArgumentException(
+					"AgentId or key too long for this State.");
+		}
+		final int length = 1 + 2 + agent.length + 2 + keyBytes.length + 8 + 4
+				+ valueLength;
+		
+		final ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+		record.putInt(0);
+		record.putInt(length);
+		record.put(type);
+		record.putShort((short) agent.length);
+		record.put(agent);
+		record.putShort((short) keyBytes.length);
+		record.put(keyBytes);
+		record.putLong(version);
+		record.putInt(valueLength);
+		if (value != null) {
+			record.put(value);
+		}
+		record.putInt(0, checksum(record, 4, length + 4));
+		return record;
+	}
+	
+	/**
+	 * Append a record to the log, and apply it to the index.
+	 *
+	 * @param type
+	 *            the type
+	 * @param agentId
+	 *            the agent id
+	 * @param key
+	 *            the key, may be null
+	 * @param value
+	 *            the value, may be null
+	 * @return the version of the record
+	 */
+	synchronized long append(final byte type, final String agentId,
+			final String key, final byte[] value) {
+		// Records are never overwritten, so readers don't need to be excluded.
+		final long version = current.clock + 1;
+		try {
+			current.write(record(type, agentId, key, version, value));
+			return version;
+		} catch (final IOException e) {
+			throw new IllegalStateException("Couldn't write to state store "
+					+ folder, e);
+		}
+	}
+	
+	/**
+	 * Read a value, parsing it directly from the mapped segment, in whichever
+	 * encoding it was written.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param key
+	 *            the key
+	 * @return the json node, or null if not found
+	 */
+	JsonNode read(final String agentId, final String key) {
+		lock.readLock().lock();
+		try {
+			final Generation generation = current;
+			final KeyDir keys = generation.keydir.get(agentId);
+			if (keys == null) {
+				return null;
+			}
+			final Long location = keys.get(key);
+			if (location == null) {
+				return null;
+			}
+			return Codec.decode(generation.slice(location));
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't read value:" + agentId + "."
+					+ key, e);
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Get the version of a value.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param key
+	 *            the key
+	 * @return the version, or 0 if not found
+	 */
+	long version(final String agentId, final String key) {
+		lock.readLock().lock();
+		try {
+			final Generation generation = current;
+			final KeyDir keys = generation.keydir.get(agentId);
+			if (keys == null) {
+				return 0;
+			}
+			final Long location = keys.get(key);
+			return location == null ? 0 : generation.version(location);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Check if the agent exists.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return true, if successful
+	 */
+	boolean exists(final String agentId) {
+		return current.keydir.containsKey(agentId);
+	}
+	
+	/**
+	 * Check if the agent has the given key.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param key
+	 *            the key
+	 * @return true, if successful
+	 */
+	boolean containsKey(final String agentId, final String key) {
+		final KeyDir keys = current.keydir.get(agentId);
+		return keys != null && keys.get(key) != null;
+	}
+	
+	/**
+	 * Get the keys of the given agent.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return the sets the
+	 */
+	Set<String> keySet(final String agentId) {
+		final KeyDir keys = current.keydir.get(agentId);
+		if (keys == null) {
+			return Collections.emptySet();
+		}
+		return keys.keySet();
+	}
+	
+	/**
+	 * Get the number of keys of the given agent.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return the size
+	 */
+	int size(final String agentId) {
+		final KeyDir keys = current.keydir.get(agentId);
+		return keys == null ? 0 : keys.size();
+	}
+	
+	/**
+	 * Gets the agent ids.
+	 *
+	 * @return the agent ids
+	 */
+	Iterator<String> getAgentIds() {
+		return Collections.unmodifiableSet(current.keydir.keySet()).iterator();
+	}
+	
+	/**
+	 * Ratio of the size of the live records versus the total size of the
+	 * log, a low ratio indicates compaction is useful.
+	 *
+	 * @return the ratio
+	 */
+	synchronized double getLiveRatio() {
+		final Generation generation = current;
+		return generation.totalBytes == 0 ? 1.0
+				: (double) generation.liveBytes / generation.totalBytes;
+	}
+	
+	/**
+	 * Rewrite all live records into a new generation of segments, and drop
+	 * the old generation. Appends continue while the live records are copied,
+	 * the records appended meanwhile are replayed into the new generation
+	 * before the switch.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void compact() throws IOException {
+		synchronized (compacting) {
+			final Generation old;
+			final int markSegment;
+			final int markPos;
+			final long clock;
+			synchronized (this) {
+				old = current;
+				markSegment = old.segments.size() - 1;
+				markPos = old.segments.get(markSegment).writePos;
+				clock = old.clock;
+			}
+			final Generation next = new Generation(old.number + 1);
+			next.addSegment(segmentSize);
+			try {
+				// Keep the clock, also for removed keys, so versions never
+				// repeat.
+				next.write(record(CLOCK, "", null, clock, null));
+				for (final Entry<String, KeyDir> agent : old.keydir.entrySet()) {
+					next.write(record(CREATE, agent.getKey(), null, clock, null));
+					for (final Entry<String, Long> key : agent.getValue()
+							.entries().entrySet()) {
+						final ByteBuffer value = old.slice(key.getValue());
+						final byte[] bytes = new byte[value.remaining()];
+						value.get(bytes);
+						next.write(record(PUT, agent.getKey(), key.getKey(),
+								old.version(key.getValue()), bytes));
+					}
+				}
+			} catch (final IOException e) {
+				next.close(true);
+				throw e;
+			}
+			
+			synchronized (this) {
+				try {
+					// Changes made during the copy are applied on top of it,
+					// in order.
+					for (int i = markSegment; i < old.segments.size(); i++) {
+						final Segment segment = old.segments.get(i);
+						int pos = i == markSegment ? markPos : 0;
+						while (pos < segment.writePos) {
+							final int size = HEADER
+									+ segment.buffer.getInt(pos + 4);
+							final ByteBuffer source = segment.buffer
+									.duplicate();
+							source.limit(pos + size);
+							source.position(pos);
+							final ByteBuffer record = ByteBuffer.allocate(size);
+							record.put(source);
+							next.write(record);
+							pos += size;
+						}
+					}
+					next.flush();
+					new File(folder, next.number + ".done").createNewFile();
+				} catch (final IOException e) {
+					next.close(true);
+					throw e;
+				}
+				
+				lock.writeLock().lock();
+				try {
+					current = next;
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+			// Switch complete, drop the old generation.
+			old.close(true);
+			new File(folder, old.number + ".done").delete();
+			LOG.info("Compacted state store " + folder + " into "
+					+ next.segments.size() + " segment(s).");
+		}
+	}
+	
+	/**
+	 * Flush all segments to disk.
+	 */
+	synchronized void flush() {
+		current.flush();
+	}
+	
+	/**
+	 * Close all segments, after a running compaction has finished, and
+	 * unlock the folder.
+	 */
+	void close() {
+		synchronized (compacting) {
+			synchronized (this) {
+				current.flush();
+				current.close(false);
+				release();
+			}
+		}
+	}
+	
+	/**
+	 * Compute the checksum of a region of the buffer.
+	 *
+	 * @param buf
+	 *            the buf
+	 * @param from
+	 *            the from
+	 * @param length
+	 *            the length
+	 * @return the int
+	 */
+	private static int checksum(final ByteBuffer buf, final int from,
+			final int length) {
+		final CRC32 crc = new CRC32();
+		if (buf.hasArray()) {
+			crc.update(buf.array(), buf.arrayOffset() + from, length);
+		} else {
+			final byte[] bytes = new byte[length];
+			final ByteBuffer dup = buf.duplicate();
+			dup.position(from);
+			dup.get(bytes);
+			crc.update(bytes, 0, length);
+		}
+		return (int) crc.getValue();
+	}
+	
+	/**
+	 * Compute the size of a record.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param key
+	 *            the key
+	 * @param valueLength
+	 *            the value length
+	 * @return the size, including the header
+	 */
+	private static int recordSize(final String agentId, final String key,
+			final int valueLength) {
+		return HEADER + 1 + 2 + agentId.getBytes(UTF8).length + 2
+				+ key.getBytes(UTF8).length + 8 + 4 + valueLength;
+	}
+	
+	/**
+	 * Decode an UTF-8 string from the buffer.
+	 *
+	 * @param buf
+	 *            the buf
+	 * @param from
+	 *            the from
+	 * @param length
+	 *            the length
+	 * @return the string
+	 */
+	private static String decode(final ByteBuffer buf, final int from,
+			final int length) {
+		final byte[] bytes = new byte[length];
+		final ByteBuffer dup = buf.duplicate();
+		dup.position(from);
+		dup.get(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	/**
+	 * Encode a segment index and offset into a single location.
+	 *
+	 * @param index
+	 *            the index
+	 * @param offset
+	 *            the offset
+	 * @return the long
+	 */
+	private static long location(final int index, final int offset) {
+		return ((long) index << 32) | (offset & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Segment name.
+	 *
+	 * @param generation
+	 *            the generation
+	 * @param index
+	 *            the index
+	 * @return the string
+	 */
+	private static String segmentName(final int generation, final int index) {
+		return String.format("%08d-%05d.seg", generation, index);
+	}
+}
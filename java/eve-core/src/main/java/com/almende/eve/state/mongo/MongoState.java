@@ -8,6 +8,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -16,7 +17,10 @@ import java.util.logging.Logger;
 import org.jongo.MongoCollection;
 import org.jongo.marshall.jackson.oid.Id;
 
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.state.AbstractState;
+import com.almende.eve.state.StatePoller;
+import com.almende.eve.state.StateVersions;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -27,6 +31,12 @@ import com.mongodb.WriteResult;
 /**
  * Simple representation of Eve agents state based on MongoDB.
  * 
+ * The key versions are stored in the document, with the properties (see
+ * {@link StateVersions}), so all instances of the state share them. Writes are
+ * conditional on the timestamp of the document; on a conflict the document is
+ * reloaded and the change is applied again, or, for putIfVersion, checked
+ * against the reloaded version of the key.
+ * 
  * @author ronny
  */
 public class MongoState extends AbstractState<JsonNode> {
@@ -44,6 +54,17 @@ public class MongoState extends AbstractState<JsonNode> {
 	@JsonIgnore
 	private MongoCollection collection;
 	
+	/* versions last seen by the poll, while watched */
+	@JsonIgnore
+	private Map<String, Long> known = null;
+	@JsonIgnore
+	private final Runnable poll = new Runnable() {
+		@Override
+		public void run() {
+			refresh();
+		}
+	};
+	
 	/**
 	 * default constructor, used when instantiating state while fetching the
 	 * appropriate agents.
@@ -152,8 +173,16 @@ public class MongoState extends AbstractState<JsonNode> {
 	public synchronized Object remove(final String key) {
 		Object result = null;
 		try {
-			result = properties.remove(key);
-			updateProperties(false);
+			do {
+				result = properties.remove(key);
+				StateVersions.removed(properties);
+				if (updateProperties(false)) {
+					fireChanges();
+					removeExpiry(key);
+					return result;
+				}
+			} while (reload());
+			LOG.warning("remove failed, state is gone: " + getAgentId());
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "remove error", e);
 		}
@@ -167,7 +196,8 @@ public class MongoState extends AbstractState<JsonNode> {
 	public boolean containsKey(final String key) {
 		boolean result = false;
 		try {
-			result = properties.containsKey(key);
+			result = !StateVersions.KEY.equals(key)
+					&& properties.containsKey(key);
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "containsKey error", e);
 		}
@@ -181,21 +211,45 @@ public class MongoState extends AbstractState<JsonNode> {
 	public Set<String> keySet() {
 		Set<String> result = null;
 		try {
-			result = properties.keySet();
+			synchronized (properties) {
+				result = StateVersions.strip(new HashSet<String>(properties
+						.keySet()));
+			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "keySet error", e);
 		}
 		return result;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#getAll()
+	 */
+	@Override
+	public Map<String, Object> getAll() {
+		final Map<String, Object> result = new HashMap<String, Object>();
+		synchronized (properties) {
+			result.putAll(properties);
+		}
+		result.remove(StateVersions.KEY);
+		return result;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.almende.eve.state.State#clear()
 	 */
 	@Override
-	public void clear() {
+	public synchronized void clear() {
 		try {
-			properties.clear();
-			updateProperties(false);
+			do {
+				// keep the versions, so a recreated key gets a new version
+				properties.keySet().retainAll(
+						Collections.singleton(StateVersions.KEY));
+				StateVersions.removed(properties);
+				if (updateProperties(false)) {
+					fireChanges();
+					return;
+				}
+			} while (reload());
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "clear error", e);
 		}	
@@ -209,7 +263,7 @@ public class MongoState extends AbstractState<JsonNode> {
 	public int size() {
 		int result = 0;
 		try {
-			result = properties.size();
+			result = keySet().size();
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "size error", e);
 		}
@@ -223,7 +277,9 @@ public class MongoState extends AbstractState<JsonNode> {
 	public JsonNode get(String key) {
 		JsonNode result = null;
 		try {
-			result = properties.get(key);
+			if (!StateVersions.KEY.equals(key)) {
+				result = properties.get(key);
+			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "get error", e);
 		}
@@ -237,8 +293,16 @@ public class MongoState extends AbstractState<JsonNode> {
 	public synchronized JsonNode locPut(final String key, final JsonNode value) {
 		JsonNode result = null;
 		try {
-			result = properties.put(key, value);
-			updateProperties(false); // updateField(key, value);
+			// on a conflict, apply the put to the latest stored properties
+			do {
+				result = properties.put(key, value);
+				StateVersions.changed(properties, key);
+				if (updateProperties(false)) {
+					fireChanges();
+					return result;
+				}
+			} while (reload());
+			LOG.warning("locPut failed, state is gone: " + getAgentId());
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "locPut error", e);
 		}
@@ -262,11 +326,16 @@ public class MongoState extends AbstractState<JsonNode> {
 				oldVal = NullNode.getInstance();
 			}
 			
-			// Poor man's equality as some Numbers are compared incorrectly: e.g.
-			// IntNode versus LongNode
-			if (oldVal.equals(cur) || oldVal.toString().equals(cur.toString())) {
+			if (equal(oldVal, cur)) {
 				properties.put(key, newVal);
+				StateVersions.changed(properties, key);
 				result = updateProperties(false); // updateField(key, newVal);
+				if (result) {
+					fireChanges();
+				} else {
+					// conflict: drop the local change, the caller retries
+					reload();
+				}
 			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "locPutIfUnchanged error", e);
@@ -275,6 +344,120 @@ public class MongoState extends AbstractState<JsonNode> {
 		return result;
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#putIfVersion(java.lang.String, java.lang.Object, long)
+	 */
+	@Override
+	public synchronized boolean putIfVersion(final String key,
+			final Object value, final long version) {
+		try {
+			while (StateVersions.get(properties, key) == version) {
+				if (value == null) {
+					if (!properties.containsKey(key)) {
+						return true;
+					}
+					properties.remove(key);
+					StateVersions.removed(properties);
+				} else {
+					properties.put(key, value instanceof JsonNode ? (JsonNode) value
+							: (JsonNode) JOM.getInstance().valueToTree(value));
+					StateVersions.changed(properties, key);
+				}
+				if (updateProperties(false)) {
+					fireChanges();
+					return true;
+				}
+				// written by another instance: check the version again
+				if (!reload()) {
+					return false;
+				}
+			}
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "putIfVersion error", e);
+			reload();
+		}
+		return false;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#getVersion(java.lang.String)
+	 */
+	@Override
+	public synchronized long getVersion(final String key) {
+		return StateVersions.get(properties, key);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#getVersions()
+	 */
+	@Override
+	protected synchronized Map<String, Long> getVersions() {
+		final Map<String, Long> versions = StateVersions.getAll(properties);
+		final Map<String, Long> result = new HashMap<String, Long>();
+		for (final String key : keySet()) {
+			final Long version = versions.get(key);
+			result.put(key, version == null ? 0 : version);
+		}
+		return result;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#startWatching()
+	 */
+	@Override
+	protected synchronized void startWatching() {
+		known = StateVersions.getAll(properties);
+		StatePoller.register(poll);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.state.AbstractState#stopWatching()
+	 */
+	@Override
+	protected synchronized void stopWatching() {
+		StatePoller.unregister(poll);
+		known = null;
+	}
+	
+	/**
+	 * Reload the document, and notify the keys changed by other instances.
+	 */
+	private synchronized void refresh() {
+		if (known != null && collection != null && reload()) {
+			fireChanges();
+		}
+	}
+	
+	/**
+	 * Notify the keys whose version changed since the last notification,
+	 * while the state is watched.
+	 */
+	private void fireChanges() {
+		final Map<String, Long> previous = known;
+		if (previous != null) {
+			known = StateVersions.getAll(properties);
+			fireChanges(previous, known);
+		}
+	}
+	
+	/**
+	 * Reload the properties and timestamp from the database, after a
+	 * conflicting update by another instance of this state.
+	 * 
+	 * @return true, if the state still exists
+	 */
+	private synchronized boolean reload() {
+		final MongoState state = collection.findOne("{_id: #}", getAgentId())
+				.as(MongoState.class);
+		if (state == null) {
+			return false;
+		}
+		properties.clear();
+		properties.putAll(state.properties);
+		timestamp = state.timestamp;
+		return true;
+	}
+	
 	/**
 	 * returns agent properties as a mapped collection of JSON nodes.
 	 * 
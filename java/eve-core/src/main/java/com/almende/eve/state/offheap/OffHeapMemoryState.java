@@ -0,0 +1,312 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.offheap;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.almende.eve.state.AbstractState;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+/**
+ * The Class OffHeapMemoryState.
+ *
+ * A state for an Eve Agent, which stores its values as serialized JSON (text
+ * or Smile) in direct memory, outside of the Java heap. (After a restart of
+ * the application, the data will be gone!)
+ *
+ * On the heap only two small arrays are kept: the (interned) keys and the
+ * handles of the values. Agents with many keys get an additional hash index
+ * on the keys. Values are decoded lazily, on each get.
+ *
+ * All operations on this state are thread-safe.
+ */
+public class OffHeapMemoryState extends AbstractState<JsonNode> {
+	private static final Logger				LOG			= Logger.getLogger(OffHeapMemoryState.class
+																.getName());
+	private static final String[]			NOKEYS		= new String[0];
+	private static final long[]				NOHANDLES	= new long[0];
+	/** Above this number of keys, the keys are indexed in a hash map. */
+	private static final int				INDEXED		= 16;
+	private final OffHeapMemoryStateFactory	factory;
+	private final SlabAllocator				allocator;
+	private String[]						keys		= NOKEYS;
+	private long[]							handles		= NOHANDLES;
+	private int								size		= 0;
+	private Map<String, Integer>			lookup		= null;
+	
+	/**
+	 * Instantiates a new off heap memory state.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @param factory
+	 *            the factory
+	 */
+	OffHeapMemoryState(final String agentId,
+			final OffHeapMemoryStateFactory factory) {
+		super(agentId);
+		this.factory = factory;
+		allocator = factory.getAllocator(agentId);
+	}
+	
+	/**
+	 * init is executed once before the agent method is invoked.
+	 */
+	@Override
+	public void init() {
+	}
+	
+	/**
+	 * destroy is executed once after the agent method is invoked.
+	 */
+	@Override
+	public void destroy() {
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.AbstractState#get(java.lang.String)
+	 */
+	@Override
+	public synchronized JsonNode get(final String key) {
+		final int index = indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		try {
+			return Codec.decode(allocator.read(handles[index]));
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't decode value:" + key, e);
+			return null;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.AbstractState#locPut(java.lang.String,
+	 * com.fasterxml.jackson.databind.JsonNode)
+	 */
+	@Override
+	public synchronized JsonNode locPut(final String key, JsonNode value) {
+		if (value == null) {
+			value = NullNode.getInstance();
+		}
+		final JsonNode result = get(key);
+		write(key, value);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * com.almende.eve.state.AbstractState#locPutIfUnchanged(java.lang.String,
+	 * com.fasterxml.jackson.databind.JsonNode,
+	 * com.fasterxml.jackson.databind.JsonNode)
+	 */
+	@Override
+	public synchronized boolean locPutIfUnchanged(final String key,
+			final JsonNode newVal, JsonNode oldVal) {
+		JsonNode cur = get(key);
+		if (cur == null) {
+			cur = NullNode.getInstance();
+		}
+		if (oldVal == null) {
+			oldVal = NullNode.getInstance();
+		}
+		
+		if (equal(oldVal, cur)) {
+			write(key, newVal != null ? newVal : NullNode.getInstance());
+			return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#remove(java.lang.String)
+	 */
+	@Override
+	public synchronized Object remove(final String key) {
+		final int index = indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		final JsonNode result = get(key);
+		allocator.release(handles[index]);
+		factory.release(keys[index]);
+		size--;
+		keys[index] = keys[size];
+		handles[index] = handles[size];
+		keys[size] = null;
+		if (lookup != null) {
+			lookup.remove(key);
+			if (index < size) {
+				lookup.put(keys[index], index);
+			}
+		}
+		removed(key);
+		removeExpiry(key);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#containsKey(java.lang.String)
+	 */
+	@Override
+	public synchronized boolean containsKey(final String key) {
+		return indexOf(key) >= 0;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#keySet()
+	 */
+	@Override
+	public synchronized Set<String> keySet() {
+		final Set<String> result = new HashSet<String>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(keys[i]);
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#clear()
+	 */
+	@Override
+	public synchronized void clear() {
+		for (final String key : keySet()) {
+			if (!KEY_AGENT_TYPE.equals(key)) {
+				remove(key);
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.State#size()
+	 */
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Gets the memory footprint of this state: direct memory used by its
+	 * values, plus an estimate of its on-heap index.
+	 *
+	 * @return the footprint in bytes
+	 */
+	public synchronized long getFootprint() {
+		long result = 16 + 4 * keys.length + 8 * handles.length;
+		if (lookup != null) {
+			// table plus entries
+			result += 16 + 4 * lookup.size() * 2 + 32 * lookup.size();
+		}
+		for (int i = 0; i < size; i++) {
+			result += allocator.size(handles[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Release all values, called when the state is deleted.
+	 */
+	synchronized void release() {
+		for (int i = 0; i < size; i++) {
+			allocator.release(handles[i]);
+			factory.release(keys[i]);
+			keys[i] = null;
+		}
+		size = 0;
+		keys = NOKEYS;
+		handles = NOHANDLES;
+		lookup = null;
+	}
+	
+	/**
+	 * Store the serialized value, replacing (and releasing) the old value.
+	 *
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 */
+	private void write(final String key, final JsonNode value) {
+		final byte[] bytes;
+		try {
+			bytes = factory.getCodec().encode(value);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Couldn't serialize value:" + key, e);
+			return;
+		}
+		final long handle = allocator.store(bytes);
+		final int index = indexOf(key);
+		if (index >= 0) {
+			allocator.release(handles[index]);
+			handles[index] = handle;
+			changed(key);
+			return;
+		}
+		if (size == keys.length) {
+			final int capacity = Math.max(4, size + (size >> 1));
+			keys = Arrays.copyOf(keys, capacity);
+			handles = Arrays.copyOf(handles, capacity);
+		}
+		keys[size] = factory.intern(key);
+		handles[size] = handle;
+		if (lookup != null) {
+			lookup.put(keys[size], size);
+		} else if (size >= INDEXED) {
+			lookup = new HashMap<String, Integer>(size * 2);
+			for (int i = 0; i <= size; i++) {
+				lookup.put(keys[i], i);
+			}
+		}
+		size++;
+		changed(key);
+	}
+	
+	/**
+	 * Index of the given key, agents typically have few keys, so a linear
+	 * scan is cheaper than a hash table. Agents with many keys use the hash
+	 * index.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the index, or -1 if not found
+	 */
+	private int indexOf(final String key) {
+		if (lookup != null) {
+			final Integer result = lookup.get(key);
+			return result == null ? -1 : result;
+		}
+		for (int i = 0; i < size; i++) {
+			if (keys[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
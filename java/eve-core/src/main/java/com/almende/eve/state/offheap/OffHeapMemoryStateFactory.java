@@ -0,0 +1,296 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.offheap;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
+
+/**
+ * A factory for creating OffHeapMemoryState objects.
+ *
+ * Like the MemoryStateFactory, but the agent values are kept as compact
+ * serialized records in slab allocated direct memory. This reduces heap usage
+ * and GC pressure for very large numbers of (small) agents. Keys are interned
+ * in the factory, as most agents share the same keys. Interned keys are
+ * reference counted, and dropped once no state uses them anymore.
+ *
+ * The memory is divided over a number of independent allocators (stripes),
+ * each agent uses the allocator chosen by the hash of its id, so agents on
+ * different stripes don't contend for the same lock.
+ *
+ * Direct memory is limited by the JVM option -XX:MaxDirectMemorySize.
+ *
+ * Configuration parameters:
+ * <ul>
+ * <li>slabSize: size of a single slab in bytes, default 1MB</li>
+ * <li>stripes: number of allocators, default the number of processors</li>
+ * <li>codec: encoding of the values, "json" or "smile", default "json"</li>
+ * </ul>
+ */
+public class OffHeapMemoryStateFactory implements StateFactory {
+	private static final int						SLABSIZE	= 1024 * 1024;
+	private final Map<String, OffHeapMemoryState>	states		= new ConcurrentHashMap<String, OffHeapMemoryState>();
+	private final ConcurrentMap<String, Interned>	keys		= new ConcurrentHashMap<String, Interned>();
+	private final SlabAllocator[]					allocators;
+	private Codec									codec		= Codec.JSON;
+	
+	/**
+	 * An interned key, with the number of keys referring to it.
+	 */
+	private static final class Interned extends AtomicInteger {
+		private static final long	serialVersionUID	= 1L;
+		private final String		key;
+		
+		/**
+		 * Instantiates a new interned key, with a single reference.
+		 *
+		 * @param key
+		 *            the key
+		 */
+		private Interned(final String key) {
+			super(1);
+			this.key = key;
+		}
+		
+		/**
+		 * Add a reference, unless the key has already been dropped.
+		 *
+		 * @return true, if successful
+		 */
+		private boolean acquire() {
+			int refs = get();
+			while (refs > 0) {
+				if (compareAndSet(refs, refs + 1)) {
+					return true;
+				}
+				refs = get();
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * This constructor is called when constructed by the AgentHost.
+	 *
+	 * @param params
+	 *            the params
+	 */
+	public OffHeapMemoryStateFactory(final Map<String, Object> params) {
+		int slabSize = SLABSIZE;
+		int stripes = Runtime.getRuntime().availableProcessors();
+		if (params != null && params.containsKey("slabSize")) {
+			slabSize = ((Number) params.get("slabSize")).intValue();
+		}
+		if (params != null && params.containsKey("stripes")) {
+			stripes = ((Number) params.get("stripes")).intValue();
+		}
+		if (params != null && params.containsKey("codec")) {
+			codec = Codec.forName((String) params.get("codec"));
+		}
+		allocators = createAllocators(slabSize, stripes);
+	}
+	
+	/**
+	 * Instantiates a new off heap memory state factory.
+	 */
+	public OffHeapMemoryStateFactory() {
+		allocators = createAllocators(SLABSIZE, Runtime.getRuntime()
+				.availableProcessors());
+	}
+	
+	/**
+	 * Create the allocators.
+	 *
+	 * @param slabSize
+	 *            the slab size
+	 * @param stripes
+	 *            the number of allocators
+	 * @return the allocators
+	 */
+	private static SlabAllocator[] createAllocators(final int slabSize,
+			final int stripes) {
+		final SlabAllocator[] result = new SlabAllocator[Math.max(1, stripes)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new SlabAllocator(slabSize);
+		}
+		return result;
+	}
+	
+	/**
+	 * Get state with given id. Will return null if not found
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return state
+	 */
+	@Override
+	public State get(final String agentId) {
+		return states.get(agentId);
+	}
+	
+	/**
+	 * Create a state with given id. Will throw an exception when already.
+	 * existing.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return state
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public synchronized State create(final String agentId) throws IOException {
+		if (states.containsKey(agentId)) {
+			throw new IllegalStateException("Cannot create state, "
+					+ "state with id '" + agentId + "' already exists.");
+		}
+		
+		final OffHeapMemoryState state = new OffHeapMemoryState(agentId, this);
+		states.put(agentId, state);
+		
+		return state;
+	}
+	
+	/**
+	 * Delete a state. If the state does not exist, nothing will happen.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 */
+	@Override
+	public void delete(final String agentId) {
+		final OffHeapMemoryState state = states.remove(agentId);
+		if (state != null) {
+			state.release();
+		}
+	}
+	
+	/**
+	 * Test if a state with given id exists.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return exists
+	 */
+	@Override
+	public boolean exists(final String agentId) {
+		return states.containsKey(agentId);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.almende.eve.state.StateFactory#getAllAgentIds()
+	 */
+	@Override
+	public Iterator<String> getAllAgentIds() {
+		return states.keySet().iterator();
+	}
+	
+	/**
+	 * Gets the memory footprint of all states: the number of agents, interned
+	 * keys and slabs, and the reserved and used direct memory in bytes.
+	 *
+	 * @return the footprint
+	 */
+	public Map<String, Long> getFootprint() {
+		long slabs = 0;
+		long reserved = 0;
+		long used = 0;
+		for (final SlabAllocator allocator : allocators) {
+			slabs += allocator.getSlabCount();
+			reserved += allocator.getReserved();
+			used += allocator.getUsed();
+		}
+		final Map<String, Long> result = new HashMap<String, Long>();
+		result.put("agents", (long) states.size());
+		result.put("keys", (long) keys.size());
+		result.put("slabs", slabs);
+		result.put("reserved", reserved);
+		result.put("used", used);
+		return result;
+	}
+	
+	/**
+	 * Gets the allocator of an agent.
+	 *
+	 * @param agentId
+	 *            the agent id
+	 * @return the allocator
+	 */
+	SlabAllocator getAllocator(final String agentId) {
+		final int hash = agentId.hashCode() * 0x9E3779B9;
+		return allocators[(hash >>> 1) % allocators.length];
+	}
+	
+	/**
+	 * Gets the encoding of the values.
+	 *
+	 * @return the codec
+	 */
+	Codec getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Get the shared instance of the given key, each call must be matched by
+	 * a call to {@link #release(String)} once the key is no longer used.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the string
+	 */
+	String intern(final String key) {
+		while (true) {
+			final Interned interned = keys.get(key);
+			if (interned == null) {
+				if (keys.putIfAbsent(key, new Interned(key)) == null) {
+					return key;
+				}
+			} else if (interned.acquire()) {
+				return interned.key;
+			} else {
+				// Dropped meanwhile, make sure it's gone before retrying.
+				keys.remove(key, interned);
+			}
+		}
+	}
+	
+	/**
+	 * Release a key obtained from {@link #intern(String)}, the key is dropped
+	 * when no state uses it anymore.
+	 *
+	 * @param key
+	 *            the key
+	 */
+	void release(final String key) {
+		final Interned interned = keys.get(key);
+		if (interned != null && interned.decrementAndGet() == 0) {
+			keys.remove(key, interned);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final Map<String, Object> data = new HashMap<String, Object>();
+		data.put("class", this.getClass().getName());
+		data.put("footprint", getFootprint());
+		return data.toString();
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.state.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocator of variable sized records in direct (off-heap) memory.
+ *
+ * Memory is reserved in fixed size slabs, each slab is dedicated to a single
+ * size class (powers of two, starting at 16 bytes). Freed blocks are kept on a
+ * free list per size class and reused. Records larger than a slab get their
+ * own direct buffer, which is released when freed.
+ *
+ * A block is addressed through a long handle: slab index (high 32 bits) and
+ * offset within the slab (low 32 bits). Each block starts with the length of
+ * its content as int.
+ */
+final class SlabAllocator {
+	private static final int			MINBLOCK	= 16;
+	private static final int			HUGE		= -1;
+	private final int					slabSize;
+	private final List<ByteBuffer>		slabs		= new ArrayList<ByteBuffer>();
+	private final List<Integer>			classes		= new ArrayList<Integer>();
+	private final LongStack[]			free;
+	private final int[]					next;
+	private final int[]					current;
+	private final LongStack				freeSlabs	= new LongStack();
+	private long						reserved	= 0;
+	private long						used		= 0;
+	
+	/**
+	 * Simple growable stack of primitive longs.
+	 */
+	private static final class LongStack {
+		private long[]	values	= new long[16];
+		private int		size	= 0;
+		
+		/**
+		 * Push.
+		 *
+		 * @param value
+		 *            the value
+		 */
+		private void push(final long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+		
+		/**
+		 * Pop.
+		 *
+		 * @return the long
+		 */
+		private long pop() {
+			return values[--size];
+		}
+		
+		/**
+		 * Checks if is empty.
+		 *
+		 * @return true, if is empty
+		 */
+		private boolean isEmpty() {
+			return size == 0;
+		}
+	}
+	
+	/**
+	 * Instantiates a new slab allocator.
+	 *
+	 * @param slabSize
+	 *            the slab size, rounded up to a power of two
+	 */
+	SlabAllocator(final int slabSize) {
+		this.slabSize = Integer.highestOneBit(Math.max(slabSize, MINBLOCK) - 1) << 1;
+		final int count = sizeClass(this.slabSize) + 1;
+		free = new LongStack[count];
+		next = new int[count];
+		current = new int[count];
+		for (int i = 0; i < count; i++) {
+			free[i] = new LongStack();
+			current[i] = -1;
+		}
+	}
+	
+	/**
+	 * Store the given bytes in a new block.
+	 *
+	 * @param bytes
+	 *            the bytes
+	 * @return the handle
+	 */
+	synchronized long store(final byte[] bytes) {
+		final int size = bytes.length + 4;
+		final long handle;
+		if (size > slabSize) {
+			handle = allocateHuge(size);
+		} else {
+			handle = allocate(sizeClass(size));
+		}
+		final ByteBuffer buf = slabs.get(slab(handle)).duplicate();
+		buf.position(offset(handle));
+		buf.putInt(bytes.length);
+		buf.put(bytes);
+		return handle;
+	}
+	
+	/**
+	 * Get a read-only view on the content of the given block.
+	 *
+	 * @param handle
+	 *            the handle
+	 * @return the byte buffer
+	 */
+	synchronized ByteBuffer read(final long handle) {
+		final ByteBuffer buf = slabs.get(slab(handle)).asReadOnlyBuffer();
+		final int offset = offset(handle);
+		buf.limit(offset + 4 + buf.getInt(offset));
+		buf.position(offset + 4);
+		return buf;
+	}
+	
+	/**
+	 * Release the given block.
+	 *
+	 * @param handle
+	 *            the handle
+	 */
+	synchronized void release(final long handle) {
+		final int slab = slab(handle);
+		final int sizeClass = classes.get(slab);
+		if (sizeClass == HUGE) {
+			final int capacity = slabs.get(slab).capacity();
+			reserved -= capacity;
+			used -= capacity;
+			slabs.set(slab, null);
+			freeSlabs.push(slab);
+		} else {
+			used -= blockSize(sizeClass);
+			free[sizeClass].push(handle);
+		}
+	}
+	
+	/**
+	 * Size of the block behind the given handle.
+	 *
+	 * @param handle
+	 *            the handle
+	 * @return the size in bytes
+	 */
+	synchronized int size(final long handle) {
+		final int slab = slab(handle);
+		final int sizeClass = classes.get(slab);
+		return sizeClass == HUGE ? slabs.get(slab).capacity()
+				: blockSize(sizeClass);
+	}
+	
+	/**
+	 * Gets the reserved direct memory, in bytes.
+	 *
+	 * @return the reserved
+	 */
+	synchronized long getReserved() {
+		return reserved;
+	}
+	
+	/**
+	 * Gets the direct memory in use by blocks, in bytes.
+	 *
+	 * @return the used
+	 */
+	synchronized long getUsed() {
+		return used;
+	}
+	
+	/**
+	 * Gets the number of slabs.
+	 *
+	 * @return the slab count
+	 */
+	synchronized int getSlabCount() {
+		return slabs.size() - freeSlabs.size;
+	}
+	
+	/**
+	 * Allocate a block of the given size class.
+	 *
+	 * @param sizeClass
+	 *            the size class
+	 * @return the handle
+	 */
+	private long allocate(final int sizeClass) {
+		final int blockSize = blockSize(sizeClass);
+		used += blockSize;
+		if (!free[sizeClass].isEmpty()) {
+			return free[sizeClass].pop();
+		}
+		if (current[sizeClass] < 0 || next[sizeClass] + blockSize > slabSize) {
+			current[sizeClass] = addSlab(ByteBuffer.allocateDirect(slabSize),
+					sizeClass);
+			reserved += slabSize;
+			next[sizeClass] = 0;
+		}
+		final long handle = handle(current[sizeClass], next[sizeClass]);
+		next[sizeClass] += blockSize;
+		return handle;
+	}
+	
+	/**
+	 * Allocate a dedicated buffer for a record larger than a slab.
+	 *
+	 * @param size
+	 *            the size
+	 * @return the handle
+	 */
+	private long allocateHuge(final int size) {
+		reserved += size;
+		used += size;
+		return handle(addSlab(ByteBuffer.allocateDirect(size), HUGE), 0);
+	}
+	
+	/**
+	 * Register a new slab, reusing a released slot if available.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @param sizeClass
+	 *            the size class
+	 * @return the slab index
+	 */
+	private int addSlab(final ByteBuffer buffer, final int sizeClass) {
+		if (!freeSlabs.isEmpty()) {
+			final int slab = (int) freeSlabs.pop();
+			slabs.set(slab, buffer);
+			classes.set(slab, sizeClass);
+			return slab;
+		}
+		slabs.add(buffer);
+		classes.add(sizeClass);
+		return slabs.size() - 1;
+	}
+	
+	/**
+	 * Smallest size class fitting the given size.
+	 *
+	 * @param size
+	 *            the size
+	 * @return the size class
+	 */
+	private static int sizeClass(final int size) {
+		int sizeClass = 0;
+		while (blockSize(sizeClass) < size) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+	
+	/**
+	 * Block size of the given size class.
+	 *
+	 * @param sizeClass
+	 *            the size class
+	 * @return the block size
+	 */
+	private static int blockSize(final int sizeClass) {
+		return MINBLOCK << sizeClass;
+	}
+	
+	/**
+	 * Handle.
+	 *
+	 * @param slab
+	 *            the slab
+	 * @param offset
+	 *            the offset
+	 * @return the long
+	 */
+	private static long handle(final int slab, final int offset) {
+		return ((long) slab << 32) | (offset & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Slab index of a handle.
+	 *
+	 * @param handle
+	 *            the handle
+	 * @return the int
+	 */
+	private static int slab(final long handle) {
+		return (int) (handle >>> 32);
+	}
+	
+	/**
+	 * Offset of a handle.
+	 *
+	 * @param handle
+	 *            the handle
+	 * @return the int
+	 */
+	private static int offset(final long handle) {
+		return (int) handle;
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport;
+
+import java.net.URI;
+
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+
+/**
+ * A TransportService which can send JSON-RPC messages in a binary encoding.
+ * 
+ * The service negotiates the encoding with its peers, e.g. through a header
+ * or a frame flag. When {@link #getCodec(URI, String)} returns a binary
+ * codec, the AgentHost sends the encoded message through
+ * {@link TransportService#sendAsync(URI, URI, byte[], String)}; the encoding
+ * is self-describing, see {@link Codec#detect(byte[])}.
+ */
+public interface EncodingTransportService extends TransportService {
+	
+	/**
+	 * Get the encoding to use for a message to the given receiver.
+	 * 
+	 * @param receiverUri
+	 *            the receiver url
+	 * @param tag
+	 *            the tag, set when replying to an incoming request
+	 * @return the codec, Codec.JSON if the receiver doesn't support a binary
+	 *         encoding
+	 */
+	Codec getCodec(URI receiverUri, String tag);
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.util;
+
+import java.util.Iterator;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Minimal JSON Patch (RFC 6902) support: computing a diff between two JSON
+ * trees, using the "add", "remove" and "replace" operations, and applying it.
+ */
+public final class JsonPatch {
+	
+	/**
+	 * Instantiates a new json patch.
+	 */
+	private JsonPatch() {
+	}
+	
+	/**
+	 * Compute the patch that turns source into target.
+	 *
+	 * @param source
+	 *            the source
+	 * @param target
+	 *            the target
+	 * @return the patch, empty if both are equal
+	 */
+	public static ArrayNode diff(final JsonNode source, final JsonNode target) {
+		final ArrayNode patch = JOM.createArrayNode();
+		diff(source, target, "", patch);
+		return patch;
+	}
+	
+	/**
+	 * Apply a patch to a copy of the given tree.
+	 *
+	 * @param source
+	 *            the source, not modified
+	 * @param patch
+	 *            the patch
+	 * @return the patched tree
+	 * @throws IllegalArgumentException
+	 *             if the patch doesn't fit the source
+	 */
+	public static JsonNode apply(final JsonNode source, final ArrayNode patch) {
+		JsonNode result = source == null ? null : source.deepCopy();
+		for (final JsonNode operation : patch) {
+			final String op = operation.path("op").asText();
+			final String path = operation.path("path").asText();
+			final JsonNode value = operation.get("value");
+			if (path.isEmpty()) {
+				if ("remove".equals(op)) {
+					result = null;
+				} else {
+					result = value;
+				}
+				continue;
+			}
+			final int index = path.lastIndexOf('/');
+			final JsonNode parent = find(result, path.substring(0, index));
+			final String last = unescape(path.substring(index + 1));
+			if (parent instanceof ObjectNode) {
+				if ("remove".equals(op)) {
+					((ObjectNode) parent).remove(last);
+				} else {
+					((ObjectNode) parent).set(last, value);
+				}
+			} else if (parent instanceof ArrayNode) {
+				final ArrayNode array = (ArrayNode) parent;
+				final int pos = "-".equals(last) ? array.size() : Integer
+						.parseInt(last);
+				if ("add".equals(op)) {
+					array.insert(pos, value);
+				} else if ("remove".equals(op)) {
+					array.remove(pos);
+				} else {
+					array.set(pos, value);
+				}
+			} else {
+				throw new IllegalArgumentException("Path not found:" + path);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Add the operations that turn source into target at the given path.
+	 *
+	 * @param source
+	 *            the source
+	 * @param target
+	 *            the target
+	 * @param path
+	 *            the path
+	 * @param patch
+	 *            the patch
+	 */
+	private static void diff(final JsonNode source, final JsonNode target,
+			final String path, final ArrayNode patch) {
+		if (source == null ? target == null : source.equals(target)) {
+			return;
+		}
+		if (source instanceof ObjectNode && target instanceof ObjectNode) {
+			final Iterator<String> names = source.fieldNames();
+			while (names.hasNext()) {
+				final String name = names.next();
+				if (!target.has(name)) {
+					patch.addObject().put("op", "remove")
+							.put("path", path + "/" + escape(name));
+				}
+			}
+			final Iterator<String> fields = target.fieldNames();
+			while (fields.hasNext()) {
+				final String name = fields.next();
+				final String sub = path + "/" + escape(name);
+				if (source.has(name)) {
+					diff(source.get(name), target.get(name), sub, patch);
+				} else {
+					patch.addObject().put("op", "add").put("path", sub)
+							.set("value", target.get(name));
+				}
+			}
+		} else if (source instanceof ArrayNode && target instanceof ArrayNode) {
+			final int common = Math.min(source.size(), target.size());
+			for (int i = 0; i < common; i++) {
+				diff(source.get(i), target.get(i), path + "/" + i, patch);
+			}
+			for (int i = source.size() - 1; i >= common; i--) {
+				patch.addObject().put("op", "remove").put("path", path + "/" + i);
+			}
+			for (int i = common; i < target.size(); i++) {
+				patch.addObject().put("op", "add").put("path", path + "/" + i)
+						.set("value", target.get(i));
+			}
+		} else {
+			patch.addObject().put("op", "replace").put("path", path)
+					.set("value", target);
+		}
+	}
+	
+	/**
+	 * Find the node a JSON pointer refers to.
+	 *
+	 * @param root
+	 *            the root
+	 * @param pointer
+	 *            the pointer
+	 * @return the node, or null if not found
+	 */
+	private static JsonNode find(final JsonNode root, final String pointer) {
+		JsonNode node = root;
+		if (pointer.isEmpty()) {
+			return node;
+		}
+		for (final String token : pointer.substring(1).split("/", -1)) {
+			if (node == null) {
+				return null;
+			}
+			if (node.isArray()) {
+				node = node.get(Integer.parseInt(token));
+			} else {
+				node = node.get(unescape(token));
+			}
+		}
+		return node;
+	}
+	
+	/**
+	 * Escape a field name for use in a JSON pointer.
+	 *
+	 * @param name
+	 *            the name
+	 * @return the escaped name
+	 */
+	private static String escape(final String name) {
+		return name.replace("~", "~0").replace("/", "~1");
+	}
+	
+	/**
+	 * Unescape a JSON pointer token.
+	 *
+	 * @param token
+	 *            the token
+	 * @return the field name
+	 */
+	private static String unescape(final String token) {
+		return token.replace("~1", "/").replace("~0", "~");
+	}
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.AgentHostDefImpl;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.ClockScheduler;
+import com.almende.eve.scheduler.ClockSchedulerFactory;
+import com.almende.eve.scheduler.OverlapPolicy;
+import com.almende.eve.scheduler.Scheduler;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.test.agents.TestSchedulerAgent;
+import com.almende.util.uuid.UUID;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestClockScheduler.
+ */
+public class TestClockScheduler extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger("TestClockScheduler");
+	private static final String	INDEX	= "_clockScheduler";
+	private static final int	TASKS	= 10000;
+	private static final int	BATCH	= 20;
+	private static final long	JITTER	= 300;
+	private static final String	PATH	= ".eveagents_clockRecovery";
+	private static final int	AGENTS	= 500;
+	
+	/**
+	 * With many pending timers, the earliest task should still fire, and
+	 * changes should only touch their own task.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testManyTasks() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "clockStore");
+		final Scheduler scheduler = agent.getScheduler();
+		
+		final List<String> ids = new ArrayList<String>(TASKS);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < TASKS; i++) {
+			ids.add(scheduler.createTask(new JSONRequest("getCount",
+					JOM.createObjectNode()), 3600000 + i));
+		}
+		LOG.info("createTask: " + (System.currentTimeMillis() - start)
+				+ " ms for " + TASKS + " tasks");
+		
+		// Added last, due first.
+		agent.setTest("clockStore", 200, false, false);
+		assertEquals(TASKS + 1, scheduler.getTasks().size());
+		Thread.sleep(1000);
+		assertEquals(1, agent.getCount());
+		assertEquals(TASKS, scheduler.getTasks().size());
+		
+		start = System.currentTimeMillis();
+		for (int i = 0; i < TASKS / 2; i++) {
+			scheduler.cancelTask(ids.get(i));
+		}
+		LOG.info("cancelTask: " + (System.currentTimeMillis() - start)
+				+ " ms for " + TASKS / 2 + " tasks");
+		
+		int records = 0;
+		for (final String key : agent.getState().keySet()) {
+			if (key.startsWith(ClockScheduler.PREFIX)) {
+				records++;
+			}
+		}
+		assertEquals(TASKS / 2, records);
+		assertFalse(agent.getState().containsKey("_taskList"));
+		
+		scheduler.cancelAllTasks();
+		assertEquals(0, scheduler.getTasks().size());
+		host.deleteAgent("clockStore");
+	}
+	
+	/**
+	 * Aligned repeating tasks with the same interval should run together, at
+	 * the agent's jitter offset. Other repeating tasks keep the phase of their
+	 * first run.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBatch() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("jitter", JITTER);
+		host.setSchedulerFactory(new ClockSchedulerFactory(host, params));
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "clockBatch");
+		final Scheduler scheduler = agent.getScheduler();
+		for (int i = 0; i < BATCH; i++) {
+			scheduler.createTask(doTest(), 1000, true, OverlapPolicy.SKIP,
+					null, true);
+		}
+		final long before = System.currentTimeMillis();
+		final String single = scheduler.createTask(doTest(), 1000, true,
+				OverlapPolicy.SKIP, null, false);
+		final long after = System.currentTimeMillis();
+		Thread.sleep(2500);
+		// Each task runs once at creation, and then at least once more: the
+		// aligned ones at least one interval later, on the grid.
+		assertTrue(agent.getCount() >= 2 * (BATCH + 1));
+		
+		final long offset = ("clockBatch".hashCode() & Integer.MAX_VALUE)
+				% JITTER;
+		final long phase = getDue(agent, single) - before;
+		assertTrue(phase >= 1000 && phase % 1000 <= after - before);
+		// All aligned tasks are on the grid. A run in flight keeps its old
+		// due time until it completes, see testInFlight(), so the tasks may
+		// be read on either side of one run, but no further apart.
+		scheduler.cancelTask(single);
+		final Set<Long> dues = getDues(agent);
+		for (final Long due : dues) {
+			assertEquals(offset, due % 1000);
+		}
+		assertTrue(dues.size() <= 2);
+		assertTrue(Collections.max(dues) - Collections.min(dues) <= 1000);
+		
+		scheduler.cancelAllTasks();
+		host.deleteAgent("clockBatch");
+	}
+	
+	/**
+	 * One-shot tasks are sent with a callback too: while a run is in flight,
+	 * the task is still listed and stored with its old due time. It is only
+	 * removed, or rescheduled if it repeats, once the run has completed.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testInFlight() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "clockInFlight");
+		final Scheduler scheduler = agent.getScheduler();
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("sleep", 500);
+		
+		final String id = scheduler.createTask(new JSONRequest("doSlow",
+				params), 100);
+		final long due = getDue(agent, id);
+		Thread.sleep(300);
+		assertEquals(0, agent.getCount());
+		assertTrue(scheduler.getTasks().contains(id));
+		assertEquals(due, getDue(agent, id));
+		Thread.sleep(800);
+		assertEquals(1, agent.getCount());
+		assertFalse(scheduler.getTasks().contains(id));
+		assertFalse(agent.getState().containsKey(ClockScheduler.PREFIX + id));
+		
+		agent.getState().remove("slept");
+		final String repeating = scheduler.createTask(new JSONRequest(
+				"doSlow", params), 1000, true, OverlapPolicy.SKIP, null, false);
+		final long first = getDue(agent, repeating);
+		Thread.sleep(300);
+		assertEquals(first, getDue(agent, repeating));
+		Thread.sleep(500);
+		assertEquals(2, agent.getCount());
+		assertTrue(getDue(agent, repeating) >= first + 1000);
+		
+		scheduler.cancelAllTasks();
+		host.deleteAgent("clockInFlight");
+	}
+	
+	/**
+	 * Gets a new doTest request of a repeating task.
+	 * 
+	 * @return the request
+	 */
+	private JSONRequest doTest() {
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("time", DateTime.now().toString());
+		params.put("expected", DateTime.now().toString());
+		params.put("interval", true);
+		params.put("sequential", false);
+		params.put("someId", new UUID().toString());
+		params.put("delay", 1000);
+		return new JSONRequest("doTest", params);
+	}
+	
+	/**
+	 * Gets the due time of a stored task.
+	 * 
+	 * @param agent
+	 *            the agent
+	 * @param id
+	 *            the task id
+	 * @return the due time
+	 */
+	private long getDue(final TestSchedulerAgent agent, final String id) {
+		final JsonNode task = JOM.getInstance().valueToTree(
+				agent.getState().get(ClockScheduler.PREFIX + id, Object.class));
+		return new DateTime(task.get("dueAsString").asText()).getMillis();
+	}
+	
+	/**
+	 * Gets the due times of the stored tasks of an agent.
+	 * 
+	 * @param agent
+	 *            the agent
+	 * @return the due times
+	 */
+	private Set<Long> getDues(final TestSchedulerAgent agent) {
+		final Set<Long> dues = new HashSet<Long>();
+		for (final String key : agent.getState().keySet()) {
+			if (key.startsWith(ClockScheduler.PREFIX)) {
+				final JsonNode task = JOM.getInstance().valueToTree(
+						agent.getState().get(key, Object.class));
+				dues.add(new DateTime(task.get("dueAsString").asText())
+						.getMillis());
+			}
+		}
+		return dues;
+	}
+	
+	/**
+	 * Agents should be indexed by the due time of their first task, next to
+	 * their tasks and in the index state, and dropped once they have none.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDueIndex() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final ClockSchedulerFactory factory = new ClockSchedulerFactory(host,
+				"");
+		host.setSchedulerFactory(factory);
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "clockIndexed");
+		final Scheduler scheduler = agent.getScheduler();
+		
+		final String later = scheduler.createTask(new JSONRequest("getCount",
+				JOM.createObjectNode()), 7200000);
+		final Long due = agent.getState().get(ClockScheduler.DUE, Long.class);
+		assertNotNull(due);
+		assertTrue(isIndexed(host, "clockIndexed", due));
+		
+		// An earlier task moves the agent at once, the later entry is only
+		// dropped on the next bucket tick.
+		final String first = scheduler.createTask(new JSONRequest("getCount",
+				JOM.createObjectNode()), 3600000);
+		final Long moved = agent.getState().get(ClockScheduler.DUE, Long.class);
+		assertTrue(moved < due);
+		assertTrue(isIndexed(host, "clockIndexed", moved));
+		factory.flushIndex();
+		assertFalse(isIndexed(host, "clockIndexed", due));
+		
+		// A first task in a later bucket moves it back, on the next bucket
+		// tick: until then it is only found early.
+		scheduler.cancelTask(first);
+		assertEquals(due, agent.getState().get(ClockScheduler.DUE, Long.class));
+		assertFalse(isIndexed(host, "clockIndexed", due));
+		assertTrue(isIndexed(host, "clockIndexed", moved));
+		factory.flushIndex();
+		assertTrue(isIndexed(host, "clockIndexed", due));
+		assertFalse(isIndexed(host, "clockIndexed", moved));
+		
+		scheduler.cancelTask(later);
+		assertFalse(agent.getState().containsKey(ClockScheduler.DUE));
+		factory.flushIndex();
+		assertFalse(isIndexed(host, "clockIndexed", due));
+		
+		host.deleteAgent("clockIndexed");
+	}
+	
+	/**
+	 * A restarted host on a file based state should build the due index of
+	 * many agents in a single write, and run the overdue task of each of them
+	 * once.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFileRecovery() throws Exception {
+		clean(PATH);
+		final AgentHost host = new AgentHostDefImpl();
+		host.setStateFactory(new FileStateFactory(PATH, true));
+		final ClockSchedulerFactory factory = new ClockSchedulerFactory(host,
+				"");
+		host.setSchedulerFactory(factory);
+		final List<TestSchedulerAgent> agents = new ArrayList<TestSchedulerAgent>(
+				AGENTS);
+		for (int i = 0; i < AGENTS; i++) {
+			final TestSchedulerAgent agent = host.createAgent(
+					TestSchedulerAgent.class, "clockFile" + i);
+			agents.add(agent);
+			
+			// Persist a task, and make it overdue behind the scheduler's
+			// back.
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("sleep", 0);
+			final String id = agent.getScheduler().createTask(
+					new JSONRequest("doSlow", params), 3600000);
+			final String key = ClockScheduler.PREFIX + id;
+			final ObjectNode task = JOM.getInstance().valueToTree(
+					agent.getState().get(key, Object.class));
+			agent.getScheduler().cancelTask(id);
+			task.put("dueAsString", DateTime.now().minus(1000).toString());
+			agent.getState().put(key, task);
+		}
+		factory.flushIndex();
+		host.getStateFactory().delete(INDEX);
+		
+		final long start = System.currentTimeMillis();
+		host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+		final long deadline = start + 30000;
+		int done = 0;
+		while (done < AGENTS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			done = 0;
+			for (final TestSchedulerAgent agent : agents) {
+				if (agent.getCount() > 0) {
+					done++;
+				}
+			}
+		}
+		LOG.info("Recovered " + done + " agents from files in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		Thread.sleep(500);
+		for (final TestSchedulerAgent agent : agents) {
+			assertEquals(agent.getId(), 1, agent.getCount());
+		}
+		
+		for (final TestSchedulerAgent agent : agents) {
+			host.deleteAgent(agent.getId());
+		}
+		clean(PATH);
+	}
+	
+	/**
+	 * Remove a test folder.
+	 * 
+	 * @param path
+	 *            the path
+	 */
+	private static void clean(final String path) {
+		final File folder = new File(path);
+		final File[] files = folder.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				if (file.isDirectory()) {
+					clean(file.getPath());
+				} else {
+					file.delete();
+				}
+			}
+		}
+		folder.delete();
+	}
+	
+	/**
+	 * Checks if an agent is in the due index at the given due time.
+	 * 
+	 * @param host
+	 *            the host
+	 * @param agentId
+	 *            the agent id
+	 * @param due
+	 *            the due time
+	 * @return true, if indexed
+	 */
+	private boolean isIndexed(final AgentHost host, final String agentId,
+			final long due) {
+		final State index = host.getStateFactory().get(INDEX);
+		for (final String key : index.keySet()) {
+			if (!key.startsWith("due.")) {
+				continue;
+			}
+			final Map<?, ?> agents = index.get(key, Map.class);
+			if (agents.containsKey(agentId)
+					&& ((Number) agents.get(agentId)).longValue() == due) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * A new factory should run the overdue tasks of agents nobody touches,
+	 * skipping records that are not tasks.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "clockIdle");
+		
+		// Persist a task, and make it overdue behind the scheduler's back.
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("time", DateTime.now().toString());
+		params.put("expected", DateTime.now().toString());
+		params.put("interval", false);
+		params.put("sequential", false);
+		params.put("someId", "idle");
+		params.put("delay", 0);
+		final String id = agent.getScheduler().createTask(
+				new JSONRequest("doTest", params), 3600000);
+		final String key = ClockScheduler.PREFIX + id;
+		final Object entry = agent.getState().get(key, Object.class);
+		final ObjectNode task = JOM.getInstance().valueToTree(entry);
+		agent.getScheduler().cancelTask(id);
+		task.put("dueAsString", DateTime.now().minus(1000).toString());
+		// Stored as a task entry again, like the scheduler does: a memory
+		// state keeps a JSON tree as a string.
+		agent.getState().put(key,
+				JOM.getInstance().treeToValue(task, entry.getClass()));
+		// A record that isn't a task shouldn't stop the recovery.
+		agent.getState().put(ClockScheduler.PREFIX + "bogus", "no task");
+		
+		// A restarted host from before the due index builds it from the
+		// agent states, then only recovers, it doesn't touch the agent.
+		host.getStateFactory().delete(INDEX);
+		final Map<String, Object> config = new HashMap<String, Object>();
+		config.put("catchUpRate", 10);
+		host.setSchedulerFactory(new ClockSchedulerFactory(host, config));
+		Thread.sleep(1000);
+		assertEquals(1, agent.getCount());
+		assertFalse(agent.getState().containsKey(key));
+		
+		host.deleteAgent("clockIdle");
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.AgentHostDefImpl;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.ClusteredSchedulerFactory;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryState;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.test.agents.TestSchedulerAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestClusteredScheduler.
+ */
+public class TestClusteredScheduler extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger("TestClusteredScheduler");
+	private static final int	HOSTS	= 3;
+	private static final int	BUCKETS	= 6;
+	private static final int	AGENTS	= 12;
+	private static final int	LEASE	= 1000;
+	private static final File	FOLDER	= new File(
+												System.getProperty("java.io.tmpdir"),
+												"eveagents_testCluster");
+	
+	/**
+	 * Hosts sharing a state folder should divide the buckets, run each task
+	 * once, and take over the buckets of a failed host. Each host has its own
+	 * agent host and file state factory on the shared folder, so the agents
+	 * and the cluster state are only shared through the files.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCluster() throws Exception {
+		runCluster(true);
+	}
+	
+	/**
+	 * As {@link #testCluster()}, with states stored as serialized objects,
+	 * whose key versions aren't stored in the files: the cluster state is kept
+	 * in JSON next to them.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSerializedCluster() throws Exception {
+		runCluster(false);
+	}
+	
+	/**
+	 * Run a cluster of hosts on a shared state folder.
+	 * 
+	 * @param json
+	 *            whether the hosts store their states in JSON
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void runCluster(final boolean json) throws Exception {
+		// The hosts signal through the shared instance, so create that first.
+		AgentHost.getInstance();
+		final List<AgentHost> agentHosts = new ArrayList<AgentHost>();
+		final List<ClusteredSchedulerFactory> hosts = new ArrayList<ClusteredSchedulerFactory>();
+		for (int i = 0; i < HOSTS; i++) {
+			final AgentHost host = new AgentHostDefImpl();
+			host.setStateFactory(new FileStateFactory(FOLDER.getPath(), json));
+			final Map<String, Object> config = new HashMap<String, Object>();
+			config.put("hostId", "host" + i);
+			config.put("buckets", BUCKETS);
+			config.put("leaseTime", LEASE);
+			config.put("heartbeat", 100);
+			final ClusteredSchedulerFactory factory = new ClusteredSchedulerFactory(
+					host, config);
+			host.setSchedulerFactory(factory);
+			agentHosts.add(host);
+			hosts.add(factory);
+		}
+		Thread.sleep(1000);
+		assertOwners(hosts);
+		for (final ClusteredSchedulerFactory factory : hosts) {
+			assertEquals(BUCKETS / HOSTS, factory.getBuckets().size());
+		}
+		
+		final AgentHost first = agentHosts.get(0);
+		final List<TestSchedulerAgent> agents = new ArrayList<TestSchedulerAgent>();
+		for (int i = 0; i < AGENTS; i++) {
+			agents.add(first.createAgent(TestSchedulerAgent.class, "cluster"
+					+ i));
+		}
+		// Created on the first host, which owns only some of the agents.
+		schedule(hosts.get(0), agents);
+		Thread.sleep(1000);
+		assertCounts(agents, 1);
+		
+		// The index of agents with tasks is kept per bucket.
+		final FileStateFactory states = new FileStateFactory(FOLDER.getPath(),
+				json);
+		final State cluster = (json ? states : new FileStateFactory(
+				states.getServicesPath() + ClusteredSchedulerFactory.CLUSTER,
+				true)).get(ClusteredSchedulerFactory.DEFAULTID);
+		assertFalse(cluster.containsKey("agents"));
+		int indexed = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			final Map<?, ?> index = cluster.get("agents." + i, Map.class);
+			indexed += index != null ? index.size() : 0;
+		}
+		assertEquals(AGENTS, indexed);
+		
+		// The first host fails right after scheduling, the others take over
+		// its buckets once its leases expire, and run its tasks once.
+		final Set<Integer> failed = hosts.get(0).getBuckets();
+		schedule(hosts.get(0), agents);
+		hosts.get(0).shutdown(false);
+		final List<ClusteredSchedulerFactory> alive = hosts.subList(1, HOSTS);
+		Thread.sleep(LEASE + 1000);
+		assertOwners(alive);
+		final Set<Integer> taken = new HashSet<Integer>();
+		for (final ClusteredSchedulerFactory factory : alive) {
+			taken.addAll(factory.getBuckets());
+		}
+		assertTrue(taken.containsAll(failed));
+		assertCounts(agents, 2);
+		Thread.sleep(1000);
+		assertCounts(agents, 2);
+		
+		for (final ClusteredSchedulerFactory factory : alive) {
+			factory.shutdown(true);
+		}
+		for (final TestSchedulerAgent agent : agents) {
+			first.deleteAgent(agent.getId());
+		}
+	}
+	
+	/**
+	 * A host should only own the buckets whose leases were stored, not those
+	 * of a write that the store reported but lost.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLostLeases() throws Exception {
+		final boolean[] lossy = new boolean[] { true };
+		final State cluster = new MemoryState("_lossyCluster") {
+			@Override
+			public synchronized boolean putIfVersion(final String key,
+					final Object value, final long version) {
+				if (lossy[0] && "leases".equals(key)) {
+					// reported as written, but lost
+					return getVersion(key) == version;
+				}
+				return super.putIfVersion(key, value, version);
+			}
+		};
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final Map<String, Object> config = new HashMap<String, Object>();
+		config.put("hostId", "lossy");
+		config.put("buckets", BUCKETS);
+		config.put("leaseTime", LEASE);
+		config.put("heartbeat", 100);
+		final ClusteredSchedulerFactory factory = new ClusteredSchedulerFactory(
+				host, cluster, config);
+		Thread.sleep(500);
+		assertTrue(factory.getBuckets().isEmpty());
+		
+		lossy[0] = false;
+		Thread.sleep(500);
+		assertEquals(BUCKETS, factory.getBuckets().size());
+		factory.shutdown(true);
+	}
+	
+	/**
+	 * Schedule a task on each agent, through the given host.
+	 * 
+	 * @param factory
+	 *            the host
+	 * @param agents
+	 *            the agents
+	 */
+	private void schedule(final ClusteredSchedulerFactory factory,
+			final List<TestSchedulerAgent> agents) {
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("sleep", 0);
+		for (final TestSchedulerAgent agent : agents) {
+			factory.getScheduler(agent).createTask(
+					new JSONRequest("doSlow", params), 300);
+		}
+	}
+	
+	/**
+	 * Assert that each bucket is owned by exactly one of the hosts.
+	 * 
+	 * @param hosts
+	 *            the hosts
+	 */
+	private void assertOwners(final List<ClusteredSchedulerFactory> hosts) {
+		final Set<Integer> all = new HashSet<Integer>();
+		int total = 0;
+		for (final ClusteredSchedulerFactory factory : hosts) {
+			LOG.info(factory.getHostId() + " owns " + factory.getBuckets());
+			all.addAll(factory.getBuckets());
+			total += factory.getBuckets().size();
+		}
+		assertEquals(BUCKETS, all.size());
+		assertEquals(BUCKETS, total);
+	}
+	
+	/**
+	 * Assert that each agent ran its tasks exactly once.
+	 * 
+	 * @param agents
+	 *            the agents
+	 * @param expected
+	 *            the expected count
+	 */
+	private void assertCounts(final List<TestSchedulerAgent> agents,
+			final int expected) {
+		for (final TestSchedulerAgent agent : agents) {
+			assertEquals(agent.getId(), expected, agent.getCount());
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		delete(FOLDER);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		delete(FOLDER);
+		super.tearDown();
+	}
+	
+	/**
+	 * Delete a file, or a folder with all its contents.
+	 * 
+	 * @param file
+	 *            the file
+	 */
+	private void delete(final File file) {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (final File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
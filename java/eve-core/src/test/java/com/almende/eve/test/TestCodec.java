@@ -0,0 +1,84 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.State;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestCodec.
+ */
+public class TestCodec extends TestCase {
+	
+	/**
+	 * Test encoding and decoding with each codec.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+		final ObjectNode value = JOM.createObjectNode();
+		value.put("name", "test");
+		value.put("count", 42);
+		
+		for (final Codec codec : Codec.values()) {
+			final byte[] data = codec.encode(value);
+			assertEquals(codec, Codec.detect(data));
+			final JsonNode result = Codec.decode(data);
+			assertEquals("test", result.get("name").asText());
+			assertEquals(42, result.get("count").asInt());
+			assertEquals(codec, Codec.forName(codec.getName()));
+			assertEquals(codec, Codec.forContentType(codec.getContentType()));
+			assertTrue(codec.isIn(Codec.getNames()));
+		}
+		assertEquals(Codec.JSON, Codec.forName(null));
+		try {
+			Codec.forName("xml");
+			fail("Unknown codec accepted");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * Test a FileStateFactory with Smile encoding.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFileState() throws Exception {
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("path", ".eveagents_testCodec");
+		params.put("codec", "smile");
+		final FileStateFactory factory = new FileStateFactory(params);
+		if (factory.exists("codec")) {
+			factory.delete("codec");
+		}
+		final State state = factory.create("codec");
+		state.put("name", "codec");
+		state.put("count", 5);
+		
+		// a new factory detects the encoding, whatever its own codec
+		final FileStateFactory reader = new FileStateFactory(
+				".eveagents_testCodec");
+		final State result = reader.get("codec");
+		assertEquals("codec", result.get("name", String.class));
+		assertEquals(Integer.valueOf(5), result.get("count", Integer.class));
+		reader.delete("codec");
+	}
+}
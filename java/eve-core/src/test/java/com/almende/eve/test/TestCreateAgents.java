@@ -0,0 +1,192 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.AgentHostDefImpl;
+import com.almende.eve.state.MemoryState;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
+import com.almende.eve.test.agents.TestAgent;
+
+/**
+ * The Class TestCreateAgents.
+ */
+public class TestCreateAgents extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger("TestCreateAgents");
+	private static final int	AGENTS	= 2000;
+	private AgentHost			host	= null;
+	private final List<String>	created	= new ArrayList<String>();
+	
+	/**
+	 * Compare creating agents one by one with a single batch, on a host of
+	 * its own.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCreateAgents() throws Exception {
+		final CountingStateFactory states = new CountingStateFactory();
+		// The host signals through the shared instance, so create that first.
+		AgentHost.getInstance();
+		host = new AgentHostDefImpl();
+		host.setStateFactory(states);
+		
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < AGENTS; i++) {
+			host.createAgent(TestAgent.class, "single" + i).getState()
+					.put("count", 1);
+			created.add("single" + i);
+		}
+		final long singleWrites = states.writes.getAndSet(0);
+		LOG.info("createAgent: " + (System.currentTimeMillis() - start)
+				+ " ms, " + singleWrites + " writes for " + AGENTS + " agents");
+		
+		final List<String> ids = new ArrayList<String>(AGENTS);
+		for (int i = 0; i < AGENTS; i++) {
+			ids.add("batch" + i);
+		}
+		created.addAll(ids);
+		// A duplicate id is reported, the rest of the batch is created.
+		ids.add("single0");
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("count", 1);
+		
+		start = System.currentTimeMillis();
+		final Map<String, Exception> failures = host.createAgents(
+				TestAgent.class, ids, params);
+		final long batchWrites = states.writes.getAndSet(0);
+		LOG.info("createAgents: " + (System.currentTimeMillis() - start)
+				+ " ms, " + batchWrites + " writes for " + AGENTS + " agents");
+		
+		assertEquals(1, failures.size());
+		assertTrue(failures.containsKey("single0"));
+		assertTrue(host.hasAgent("batch" + (AGENTS - 1)));
+		assertEquals(TestAgent.class, host.getAgent("batch0").getClass());
+		assertEquals(Integer.valueOf(1), host.getAgent("batch0").getState()
+				.get("count", Integer.class));
+		
+		// The type and params of a batch agent are written at once.
+		assertTrue(batchWrites + " writes, " + singleWrites + " one by one",
+				batchWrites <= singleWrites - AGENTS);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		for (final String agentId : created) {
+			host.deleteAgent(agentId);
+		}
+		created.clear();
+		super.tearDown();
+	}
+	
+	/**
+	 * A factory of memory states counting their writes, a putAll counting as
+	 * a single write.
+	 */
+	private static class CountingStateFactory implements StateFactory {
+		private final Map<String, State>	states	= new ConcurrentHashMap<String, State>();
+		private final AtomicLong			writes	= new AtomicLong();
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.almende.eve.state.StateFactory#get(java.lang.String)
+		 */
+		@Override
+		public State get(final String agentId) {
+			return states.get(agentId);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.almende.eve.state.StateFactory#create(java.lang.String)
+		 */
+		@Override
+		public synchronized State create(final String agentId)
+				throws IOException {
+			if (states.containsKey(agentId)) {
+				throw new IllegalStateException("Cannot create state, "
+						+ "state with id '" + agentId + "' already exists.");
+			}
+			final State state = new MemoryState(agentId) {
+				private boolean	batch	= false;
+				
+				@Override
+				public synchronized Object put(final String key,
+						final Object value) {
+					if (!batch) {
+						writes.incrementAndGet();
+					}
+					return super.put(key, value);
+				}
+				
+				@Override
+				public synchronized void putAll(final Map<String, ?> values) {
+					writes.incrementAndGet();
+					batch = true;
+					try {
+						super.putAll(values);
+					} finally {
+						batch = false;
+					}
+				}
+			};
+			states.put(agentId, state);
+			return state;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.almende.eve.state.StateFactory#delete(java.lang.String)
+		 */
+		@Override
+		public void delete(final String agentId) {
+			states.remove(agentId);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.almende.eve.state.StateFactory#exists(java.lang.String)
+		 */
+		@Override
+		public boolean exists(final String agentId) {
+			return states.containsKey(agentId);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see com.almende.eve.state.StateFactory#getAllAgentIds()
+		 */
+		@Override
+		public Iterator<String> getAllAgentIds() {
+			return states.keySet().iterator();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.event.EventsInterface;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestSchedulerAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestEventDispatch.
+ */
+public class TestEventDispatch extends TestCase {
+	private static final Logger	LOG				= Logger.getLogger("TestEventDispatch");
+	private static final int	SUBSCRIBERS		= 10;
+	private static final int	SUBSCRIPTIONS	= 50;
+	/** The sends in flight per destination, as in the dispatcher. */
+	private static final int	CONCURRENCY		= 4;
+	/** The deliveries per batch, as in the dispatcher. */
+	private static final int	BATCH			= 64;
+	
+	/**
+	 * A trigger should reach all subscribers without scheduler tasks, only a
+	 * failed delivery should be stored for a retry.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDispatch() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+				"_eventsTest"));
+		final TestSchedulerAgent publisher = host.createAgent(
+				TestSchedulerAgent.class, "eventsPublisher");
+		final EventsInterface events = publisher.getEventsFactory();
+		
+		final List<TestSchedulerAgent> subscribers = new ArrayList<TestSchedulerAgent>();
+		for (int i = 0; i < SUBSCRIBERS; i++) {
+			final TestSchedulerAgent subscriber = host.createAgent(
+					TestSchedulerAgent.class, "eventsSubscriber" + i);
+			subscribers.add(subscriber);
+			for (int j = 0; j < SUBSCRIPTIONS; j++) {
+				final ObjectNode params = JOM.createObjectNode();
+				params.put("sleep", 0);
+				params.put("subscription", j);
+				events.createSubscription("tick", "local:" + subscriber.getId(),
+						"doSlow", params);
+			}
+		}
+		// A subscriber that can't be reached.
+		events.createSubscription("tick", "unknown://nowhere/agents/nobody",
+				"doSlow", null);
+		
+		final long start = System.currentTimeMillis();
+		events.trigger("tick");
+		LOG.info("trigger: " + (System.currentTimeMillis() - start) + " ms for "
+				+ (SUBSCRIBERS * SUBSCRIPTIONS + 1) + " subscriptions");
+		Thread.sleep(1000);
+		
+		for (final TestSchedulerAgent subscriber : subscribers) {
+			assertEquals(SUBSCRIPTIONS, subscriber.getCount());
+		}
+		assertEquals(1, publisher.getScheduler().getTasks().size());
+		
+		publisher.getScheduler().cancelAllTasks();
+		for (final TestSchedulerAgent subscriber : subscribers) {
+			host.deleteAgent(subscriber.getId());
+		}
+		host.deleteAgent(publisher.getId());
+	}
+	
+	/**
+	 * A slow subscriber should only hold up the next deliveries of its batch
+	 * for a short timeout, and its late response should still be handled.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSlowSubscriber() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+				"_eventsTest"));
+		final TestSchedulerAgent publisher = host.createAgent(
+				TestSchedulerAgent.class, "eventsSlowPublisher");
+		final EventsInterface events = publisher.getEventsFactory();
+		
+		final TestSchedulerAgent slow = host.createAgent(
+				TestSchedulerAgent.class, "eventsSlowSubscriber");
+		final ObjectNode slowParams = JOM.createObjectNode();
+		slowParams.put("sleep", 4000);
+		events.createSubscription("tick", "local:" + slow.getId(), "doSlow",
+				slowParams);
+		final TestSchedulerAgent fast = host.createAgent(
+				TestSchedulerAgent.class, "eventsFastSubscriber");
+		for (int j = 0; j < SUBSCRIPTIONS; j++) {
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("sleep", 0);
+			params.put("subscription", j);
+			events.createSubscription("tick", "local:" + fast.getId(),
+					"doSlow", params);
+		}
+		
+		events.trigger("tick");
+		// Well before the callback timeout of 30 seconds.
+		Thread.sleep(3000);
+		assertEquals(0, slow.getCount());
+		assertEquals(SUBSCRIPTIONS, fast.getCount());
+		
+		Thread.sleep(2000);
+		assertEquals(1, slow.getCount());
+		assertEquals(0, publisher.getScheduler().getTasks().size());
+		
+		host.deleteAgent(slow.getId());
+		host.deleteAgent(fast.getId());
+		host.deleteAgent(publisher.getId());
+	}
+	
+	/**
+	 * Sends that timed out should keep their place until they are answered,
+	 * so slow subscribers hold up at most a fixed number of sends of their
+	 * destination, and are not retried.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testConcurrency() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+				"_eventsTest"));
+		final TestSchedulerAgent publisher = host.createAgent(
+				TestSchedulerAgent.class, "eventsBusyPublisher");
+		final EventsInterface events = publisher.getEventsFactory();
+		
+		// A batch per slow subscriber, which it starts with.
+		final TestSchedulerAgent fast = host.createAgent(
+				TestSchedulerAgent.class, "eventsBusyFast");
+		final List<TestSchedulerAgent> slow = new ArrayList<TestSchedulerAgent>();
+		for (int i = 0; i <= CONCURRENCY; i++) {
+			final TestSchedulerAgent subscriber = host.createAgent(
+					TestSchedulerAgent.class, "eventsBusySlow" + i);
+			slow.add(subscriber);
+			final ObjectNode slowParams = JOM.createObjectNode();
+			slowParams.put("sleep", 5000);
+			events.createSubscription("tick", "local:" + subscriber.getId(),
+					"doSlow", slowParams);
+			for (int j = 0; j < BATCH - 1; j++) {
+				final ObjectNode params = JOM.createObjectNode();
+				params.put("sleep", 0);
+				params.put("subscription", i * BATCH + j);
+				events.createSubscription("tick", "local:" + fast.getId(),
+						"doSlow", params);
+			}
+		}
+		
+		events.trigger("tick");
+		// Past the timeout, the sends are still taken by the first ones.
+		Thread.sleep(3500);
+		assertEquals(0, fast.getCount());
+		assertFalse(slow.get(CONCURRENCY).getState().containsKey("slept"));
+		
+		// Once they are answered, the others go on.
+		Thread.sleep(3000);
+		assertTrue(slow.get(CONCURRENCY).getState().containsKey("slept"));
+		assertEquals(CONCURRENCY * (BATCH - 1), fast.getCount());
+		
+		Thread.sleep(5000);
+		assertEquals((CONCURRENCY + 1) * (BATCH - 1), fast.getCount());
+		for (final TestSchedulerAgent subscriber : slow) {
+			assertEquals(1, subscriber.getCount());
+		}
+		assertEquals(0, publisher.getScheduler().getTasks().size());
+		
+		for (final TestSchedulerAgent subscriber : slow) {
+			host.deleteAgent(subscriber.getId());
+		}
+		host.deleteAgent(fast.getId());
+		host.deleteAgent(publisher.getId());
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.State;
+
+/**
+ * The Class TestFileStateFactory.
+ */
+public class TestFileStateFactory extends TestCase {
+	private static final String	PATH	= ".eveagents_testShards";
+	
+	/**
+	 * Test migration from the flat layout to the sharded layout.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMigrate() throws Exception {
+		final String[] agentIds = { "flat1", "flat2", "flat3" };
+		
+		final FileStateFactory flat = new FileStateFactory(PATH, true, false);
+		for (final String agentId : agentIds) {
+			if (flat.exists(agentId)) {
+				flat.delete(agentId);
+			}
+			final State state = flat.create(agentId);
+			state.put("name", agentId);
+			assertTrue(new File(PATH + "/" + agentId).exists());
+		}
+		
+		final FileStateFactory sharded = new FileStateFactory(PATH, true, true);
+		sharded.migrate();
+		
+		final Set<String> found = new HashSet<String>();
+		final Iterator<String> iter = sharded.getAllAgentIds();
+		while (iter.hasNext()) {
+			found.add(iter.next());
+		}
+		for (final String agentId : agentIds) {
+			assertFalse(new File(PATH + "/" + agentId).exists());
+			assertTrue(found.contains(agentId));
+			assertTrue(sharded.exists(agentId));
+			assertEquals(agentId,
+					sharded.get(agentId).get("name", String.class));
+			sharded.delete(agentId);
+			assertFalse(sharded.exists(agentId));
+		}
+	}
+	
+	/**
+	 * States in the old single subdir layout are found, also when created
+	 * after the index was built, and empty files are not listed as agents.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLegacy() throws Exception {
+		final File folder = new File(PATH + "/old");
+		folder.mkdirs();
+		final File stray = new File(PATH + "/stray");
+		stray.createNewFile();
+		final FileStateFactory factory = new FileStateFactory(PATH, true, true);
+		
+		// written by an older host, sharing the path
+		final File legacy = new File(folder, "legacy1");
+		final FileWriter writer = new FileWriter(legacy);
+		writer.write("{\"name\":\"legacy1\"}");
+		writer.close();
+		assertTrue(factory.exists("legacy1"));
+		assertEquals("legacy1", factory.get("legacy1").get("name", String.class));
+		
+		final Set<String> found = new HashSet<String>();
+		final Iterator<String> iter = factory.getAllAgentIds();
+		while (iter.hasNext()) {
+			found.add(iter.next());
+		}
+		assertTrue(found.contains("legacy1"));
+		assertFalse(found.contains("stray"));
+		
+		factory.delete("legacy1");
+		stray.delete();
+		folder.delete();
+	}
+	
+	/**
+	 * Without the sharded marker, a hex named folder is a single subdir layout
+	 * folder, and only files named like states are indexed. States of
+	 * agentIds not named like states are stored under an escaped name.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testNaming() throws Exception {
+		final File root = new File(PATH + "_naming");
+		delete(root);
+		final File folder = new File(root, "ab");
+		folder.mkdirs();
+		final String[] names = { "ab/inAb", ".hidden", "agent.tmp",
+				"agent.journal", "agent.lock", "agent~" };
+		for (final String name : names) {
+			final FileWriter writer = new FileWriter(new File(root, name));
+			writer.write("{\"name\":\"" + name + "\"}");
+			writer.close();
+		}
+		
+		final FileStateFactory flat = new FileStateFactory(root.getPath(),
+				true, false);
+		final Set<String> found = new HashSet<String>();
+		final Iterator<String> iter = flat.getAllAgentIds();
+		while (iter.hasNext()) {
+			found.add(iter.next());
+		}
+		assertEquals(1, found.size());
+		assertTrue(found.contains("inAb"));
+		
+		// stored unescaped by an earlier version: still found by its id
+		assertTrue(flat.exists("agent.lock"));
+		assertEquals("agent.lock",
+				flat.get("agent.lock").get("name", String.class));
+		
+		// escaped, also an agentId looking like an escaped one
+		final String[] agentIds = { "new.tmp", "%new.tmp%", ".new" };
+		for (final String agentId : agentIds) {
+			flat.create(agentId).put("name", agentId);
+		}
+		assertTrue(new File(root, "%new.tmp%").isFile());
+		assertTrue(new File(root, "%%new.tmp%%").isFile());
+		assertTrue(new File(root, "%.new%").isFile());
+		final FileStateFactory reopened = new FileStateFactory(
+				root.getPath(), true, false);
+		found.clear();
+		final Iterator<String> all = reopened.getAllAgentIds();
+		while (all.hasNext()) {
+			final String agentId = all.next();
+			found.add(agentId);
+			if (!agentId.equals("inAb")) {
+				assertEquals(agentId,
+						reopened.get(agentId).get("name", String.class));
+				all.remove();
+			}
+		}
+		assertEquals(4, found.size());
+		for (final String agentId : agentIds) {
+			assertTrue(found.contains(agentId));
+			assertFalse(reopened.exists(agentId));
+		}
+		assertFalse(new File(root, "%new.tmp%").exists());
+		
+		// A sharded factory marks the path, so hex named folders are shards.
+		new FileStateFactory(root.getPath(), true, true).create("shard1");
+		final FileStateFactory marked = new FileStateFactory(root.getPath(),
+				true, false);
+		assertTrue(marked.exists("shard1"));
+		marked.delete("shard1");
+		
+		delete(root);
+	}
+	
+	/**
+	 * Changes written through another state object on the same file are seen.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReload() throws Exception {
+		final FileStateFactory first = new FileStateFactory(PATH, true, true);
+		if (first.exists("reload")) {
+			first.delete("reload");
+		}
+		first.create("reload").put("count", 1);
+		final FileStateFactory second = new FileStateFactory(PATH, true, true);
+		final State state = second.get("reload");
+		assertEquals(Integer.valueOf(1), state.get("count", Integer.class));
+		first.get("reload").put("count", 2);
+		assertEquals(Integer.valueOf(2), state.get("count", Integer.class));
+		Thread.sleep(1100);
+		// unchanged and no longer racy: served without reading the file
+		assertEquals(Integer.valueOf(2), state.get("count", Integer.class));
+		first.get("reload").put("count", 3);
+		assertEquals(Integer.valueOf(3), state.get("count", Integer.class));
+		first.delete("reload");
+	}
+	
+	/**
+	 * Delete a folder and everything below it.
+	 * 
+	 * @param file
+	 *            the file or folder
+	 */
+	private static void delete(final File file) {
+		final File[] files = file.listFiles();
+		if (files != null) {
+			for (final File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
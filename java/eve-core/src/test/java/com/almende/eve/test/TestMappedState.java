@@ -0,0 +1,239 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
+import com.almende.eve.state.mapped.MappedStateFactory;
+
+/**
+ * The Class TestMappedState.
+ */
+public class TestMappedState extends TestCase {
+	private static final Logger	LOG		= Logger.getLogger("TestMappedState");
+	private static final String	PATH	= ".eveagents_testMapped";
+	private static final String	BENCH	= ".eveagents_testBench";
+	private static final int	SEGMENT	= 64 * 1024;
+	
+	/**
+	 * Clean up the test folder.
+	 *
+	 * @param path
+	 *            the path
+	 */
+	private void clean(final String path) {
+		final File folder = new File(path);
+		final File[] files = folder.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				if (file.isDirectory()) {
+					clean(file.getPath());
+				}
+				file.delete();
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		clean(PATH);
+		new File(PATH).delete();
+		clean(BENCH);
+		new File(BENCH).delete();
+		super.tearDown();
+	}
+	
+	/**
+	 * Test the basic State contract, and replay after reopening the store.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMappedState() throws Exception {
+		clean(PATH);
+		MappedStateFactory factory = new MappedStateFactory(PATH, SEGMENT,
+				false);
+		
+		try {
+			new MappedStateFactory(PATH, SEGMENT, false);
+			fail("Opened a store that is in use");
+		} catch (final IOException e) {
+			// The folder is locked by the first factory.
+		}
+		
+		final State state = factory.create("mapped1");
+		assertTrue(factory.exists("mapped1"));
+		state.put("name", "mapped1");
+		state.put("count", 1);
+		assertEquals("mapped1", state.get("name", String.class));
+		assertTrue(state.putIfUnchanged("count", 2, 1));
+		assertFalse(state.putIfUnchanged("count", 3, 1));
+		assertEquals(Integer.valueOf(2), state.get("count", Integer.class));
+		state.put("removed", true);
+		state.remove("removed");
+		assertFalse(state.containsKey("removed"));
+		assertEquals(2, state.size());
+		
+		factory.create("mapped2").put("name", "mapped2");
+		factory.delete("mapped2");
+		assertFalse(factory.exists("mapped2"));
+		
+		// Overflow into multiple segments
+		for (int i = 0; i < 2000; i++) {
+			state.put("large", "value " + i);
+		}
+		factory.close();
+		
+		factory = new MappedStateFactory(PATH, SEGMENT, false);
+		assertTrue(factory.exists("mapped1"));
+		assertFalse(factory.exists("mapped2"));
+		assertEquals("value 1999",
+				factory.get("mapped1").get("large", String.class));
+		assertEquals(Integer.valueOf(2),
+				factory.get("mapped1").get("count", Integer.class));
+		
+		factory.compact();
+		assertEquals("mapped1",
+				factory.get("mapped1").get("name", String.class));
+		final Set<String> found = new HashSet<String>();
+		final Iterator<String> iter = factory.getAllAgentIds();
+		while (iter.hasNext()) {
+			found.add(iter.next());
+		}
+		assertEquals(1, found.size());
+		factory.close();
+		
+		factory = new MappedStateFactory(PATH, SEGMENT, false);
+		assertEquals("value 1999",
+				factory.get("mapped1").get("large", String.class));
+		factory.delete("mapped1");
+		factory.close();
+	}
+	
+	/**
+	 * The log should be compacted in the background once the live ratio
+	 * drops, without losing writes made during the compaction.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBackgroundCompaction() throws Exception {
+		clean(PATH);
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("path", PATH);
+		params.put("segmentSize", SEGMENT);
+		params.put("compactInterval", 50);
+		final MappedStateFactory factory = new MappedStateFactory(params);
+		final State state = factory.create("compacted");
+		for (int i = 0; i < 5000; i++) {
+			state.put("key" + (i % 10), i);
+		}
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (factory.getLiveRatio() <= 0.5
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(factory.getLiveRatio() > 0.5);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Integer.valueOf(4990 + i),
+					state.get("key" + i, Integer.class));
+		}
+		
+		// Keep writing while compactions run.
+		final long end = System.currentTimeMillis() + 500;
+		int count = 0;
+		while (System.currentTimeMillis() < end) {
+			state.put("key" + (count % 10), count);
+			count++;
+		}
+		factory.close();
+		final MappedStateFactory reopened = new MappedStateFactory(PATH,
+				SEGMENT, false);
+		for (int i = 0; i < 10; i++) {
+			final int last = count - 1 - ((count - 1 - i) % 10);
+			assertEquals(Integer.valueOf(last), reopened.get("compacted")
+					.get("key" + i, Integer.class));
+		}
+		reopened.delete("compacted");
+		reopened.close();
+	}
+	
+	/**
+	 * Compare put/get throughput with the file and memory state factories.
+	 * The numbers are only logged: timings are too noisy to assert on.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+		clean(PATH);
+		final MappedStateFactory mapped = new MappedStateFactory(PATH);
+		final FileStateFactory file = new FileStateFactory(BENCH, true);
+		final MemoryStateFactory memory = new MemoryStateFactory();
+		// warm up
+		run(mapped);
+		run(memory);
+		
+		final long mappedTime = run(mapped);
+		final long fileTime = run(file);
+		final long memoryTime = run(memory);
+		LOG.info("Mapped: " + mappedTime + " ms, File: " + fileTime
+				+ " ms, Memory: " + memoryTime + " ms");
+		mapped.close();
+	}
+	
+	/**
+	 * Run a simple put/get load on the given factory.
+	 *
+	 * @param factory
+	 *            the factory
+	 * @return the duration in ms
+	 * @throws Exception
+	 *             the exception
+	 */
+	private long run(final StateFactory factory) throws Exception {
+		final int agents = 100;
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < agents; i++) {
+			final String agentId = "bench" + i;
+			if (factory.exists(agentId)) {
+				factory.delete(agentId);
+			}
+			final State state = factory.create(agentId);
+			for (int j = 0; j < 20; j++) {
+				state.put("key" + j, j);
+				assertEquals(Integer.valueOf(j),
+						state.get("key" + j, Integer.class));
+			}
+		}
+		for (int i = 0; i < agents; i++) {
+			factory.delete("bench" + i);
+		}
+		return System.currentTimeMillis() - start;
+	}
+}
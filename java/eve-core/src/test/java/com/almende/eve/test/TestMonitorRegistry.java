@@ -0,0 +1,114 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.monitor.Cache;
+import com.almende.eve.monitor.ResultMonitor;
+import com.almende.eve.monitor.ResultMonitorFactory;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.test.agents.TestResultMonitorAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestMonitorRegistry.
+ */
+public class TestMonitorRegistry extends TestCase {
+	
+	/**
+	 * Cached results should survive between calls, per agent, and each
+	 * monitor should be stored as its own record.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRegistry() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		
+		final TestResultMonitorAgent source = host.createAgent(
+				TestResultMonitorAgent.class, "registrySource");
+		final TestResultMonitorAgent first = host.createAgent(
+				TestResultMonitorAgent.class, "registryFirst");
+		final TestResultMonitorAgent second = host.createAgent(
+				TestResultMonitorAgent.class, "registrySecond");
+		for (final TestResultMonitorAgent agent : new TestResultMonitorAgent[] {
+				first, second }) {
+			agent.getResultMonitorFactory().create("data",
+					URI.create("local:registrySource"), "getData",
+					JOM.createObjectNode(), null, new Cache());
+		}
+		
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("maxAge", 60000);
+		final int start = source.getDataCalls();
+		for (int i = 0; i < 5; i++) {
+			assertNotNull(first.getResultMonitorFactory().getResult("data",
+					params, Integer.class));
+		}
+		assertEquals(1, source.getDataCalls() - start);
+		
+		// Same monitor id on another agent: its own cache.
+		assertNotNull(second.getResultMonitorFactory().getResult("data",
+				params, Integer.class));
+		assertEquals(2, source.getDataCalls() - start);
+		
+		final State state = first.getState();
+		assertTrue(state.containsKey("_monitor_data"));
+		assertFalse(state.containsKey("_monitors"));
+		
+		// Reloaded from the state, including the old single map.
+		final HashMap<String, ResultMonitor> legacy = new HashMap<String, ResultMonitor>();
+		legacy.put("old", new ResultMonitor("old", "registryFirst",
+				URI.create("local:registrySource"), "getData",
+				JOM.createObjectNode()));
+		state.put("_monitors", legacy);
+		ResultMonitorFactory.unload("registryFirst");
+		assertNotNull(first.getResultMonitorFactory().getMonitorById("data"));
+		assertNotNull(first.getResultMonitorFactory().getMonitorById("old"));
+		assertEquals(2, first.getResultMonitorFactory().getMonitors().size());
+		assertTrue(state.containsKey("_monitor_old"));
+		assertFalse(state.containsKey("_monitors"));
+		
+		first.getResultMonitorFactory().cancel("old");
+		assertFalse(state.containsKey("_monitor_old"));
+		assertNull(first.getResultMonitorFactory().getMonitorById("old"));
+		
+		// Records written or removed by another instance are picked up once
+		// it touches the change marker, records alone are not scanned for.
+		final ResultMonitor live = first.getResultMonitorFactory()
+				.getMonitorById("data");
+		assertSame(live, first.getResultMonitorFactory().getMonitorById("data"));
+		state.put("_monitor_other", new ResultMonitor("other", "registryFirst",
+				URI.create("local:registrySource"), "getData",
+				JOM.createObjectNode()));
+		assertNull(first.getResultMonitorFactory().getMonitorById("other"));
+		state.put(ResultMonitorFactory.CHANGED, System.currentTimeMillis());
+		assertNotNull(first.getResultMonitorFactory().getMonitorById("other"));
+		state.put("_monitor_data", new ResultMonitor("data", "registryFirst",
+				URI.create("local:registrySource"), "getOther",
+				JOM.createObjectNode()));
+		state.put(ResultMonitorFactory.CHANGED, System.currentTimeMillis());
+		assertEquals("getOther", first.getResultMonitorFactory()
+				.getMonitorById("data").getMethod());
+		state.remove("_monitor_other");
+		state.put(ResultMonitorFactory.CHANGED, System.currentTimeMillis());
+		assertNull(first.getResultMonitorFactory().getMonitorById("other"));
+		
+		host.deleteAgent("registryFirst");
+		host.deleteAgent("registrySecond");
+		host.deleteAgent("registrySource");
+	}
+}
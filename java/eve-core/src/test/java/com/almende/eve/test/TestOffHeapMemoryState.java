@@ -0,0 +1,104 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.State;
+import com.almende.eve.state.offheap.OffHeapMemoryState;
+import com.almende.eve.state.offheap.OffHeapMemoryStateFactory;
+
+/**
+ * The Class TestOffHeapMemoryState.
+ */
+public class TestOffHeapMemoryState extends TestCase {
+	
+	/**
+	 * Test the State contract, and the memory footprint reporting.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testOffHeapState() throws Exception {
+		final OffHeapMemoryStateFactory factory = new OffHeapMemoryStateFactory();
+		
+		final State state = factory.create("offheap1");
+		state.put("name", "offheap1");
+		state.put("count", 1);
+		assertEquals("offheap1", state.get("name", String.class));
+		assertTrue(state.putIfUnchanged("count", 2, 1));
+		assertFalse(state.putIfUnchanged("count", 3, 1));
+		assertEquals(Integer.valueOf(2), state.get("count", Integer.class));
+		
+		final List<String> list = new ArrayList<String>();
+		for (int i = 0; i < 10000; i++) {
+			list.add("item " + i);
+		}
+		// Larger than a slab
+		state.put("list", list);
+		assertEquals(list, state.get("list", ArrayList.class));
+		assertEquals("offheap1", state.remove("name").toString()
+				.replace("\"", ""));
+		assertFalse(state.containsKey("name"));
+		assertEquals(2, state.size());
+		assertTrue(((OffHeapMemoryState) state).getFootprint() > 0);
+		
+		for (int i = 0; i < 1000; i++) {
+			factory.create("agent" + i).put("name", "agent" + i);
+		}
+		Map<String, Long> footprint = factory.getFootprint();
+		assertEquals(Long.valueOf(1001), footprint.get("agents"));
+		assertEquals(Long.valueOf(3), footprint.get("keys"));
+		
+		factory.delete("offheap1");
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("agent" + i,
+					factory.get("agent" + i).get("name", String.class));
+			factory.delete("agent" + i);
+		}
+		footprint = factory.getFootprint();
+		assertEquals(Long.valueOf(0), footprint.get("used"));
+		assertEquals(Long.valueOf(0), footprint.get("keys"));
+	}
+	
+	/**
+	 * Agents with many, changing keys: lookups go through the hash index,
+	 * and keys which are no longer used are dropped from the intern table.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testManyKeys() throws Exception {
+		final OffHeapMemoryStateFactory factory = new OffHeapMemoryStateFactory();
+		final State state = factory.create("offheap2");
+		for (int cycle = 0; cycle < 10; cycle++) {
+			for (int i = 0; i < 100; i++) {
+				state.put("_task_" + cycle + "_" + i, i);
+			}
+			for (int i = 0; i < 100; i += 2) {
+				state.remove("_task_" + cycle + "_" + i);
+			}
+			for (int i = 0; i < 100; i++) {
+				final Integer value = state.get("_task_" + cycle + "_" + i,
+						Integer.class);
+				assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), value);
+			}
+			for (int i = 1; i < 100; i += 2) {
+				state.remove("_task_" + cycle + "_" + i);
+			}
+		}
+		assertEquals(0, state.size());
+		assertEquals(Long.valueOf(0), factory.getFootprint().get("keys"));
+		factory.delete("offheap2");
+	}
+}
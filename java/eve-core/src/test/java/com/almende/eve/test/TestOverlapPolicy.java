@@ -0,0 +1,95 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.ClockSchedulerFactory;
+import com.almende.eve.scheduler.OverlapPolicy;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestSchedulerAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestOverlapPolicy.
+ */
+public class TestOverlapPolicy extends TestCase {
+	private static final Logger	LOG			= Logger.getLogger("TestOverlapPolicy");
+	private static final long	INTERVAL	= 100;
+	private static final int	SLEEP		= 600;
+	private static final long	DURATION	= 1100;
+	
+	/**
+	 * Runs of a slow repeating task shouldn't overlap, and the runs it missed
+	 * should be skipped, coalesced or queued.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testOverlap() throws Exception {
+		schedule(false);
+		schedule(true);
+	}
+	
+	/**
+	 * Run a slow task with each policy, on one of the schedulers.
+	 *
+	 * @param clock
+	 *            use the clock scheduler
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void schedule(final boolean clock) throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (clock) {
+			host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+		} else {
+			host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+					"_overlapTest"));
+		}
+		
+		final Map<OverlapPolicy, TestSchedulerAgent> agents = new HashMap<OverlapPolicy, TestSchedulerAgent>();
+		for (final OverlapPolicy policy : OverlapPolicy.values()) {
+			final TestSchedulerAgent agent = host.createAgent(
+					TestSchedulerAgent.class, "overlap" + policy + clock);
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("sleep", SLEEP);
+			agent.getScheduler().createTask(new JSONRequest("doSlow", params),
+					INTERVAL, true, policy);
+			agents.put(policy, agent);
+		}
+		Thread.sleep(DURATION);
+		
+		final Map<OverlapPolicy, Integer> counts = new HashMap<OverlapPolicy, Integer>();
+		for (final TestSchedulerAgent agent : agents.values()) {
+			agent.getScheduler().cancelAllTasks();
+		}
+		for (final Map.Entry<OverlapPolicy, TestSchedulerAgent> entry : agents
+				.entrySet()) {
+			final TestSchedulerAgent agent = entry.getValue();
+			counts.put(entry.getKey(), agent.getCount());
+			assertEquals(1, agent.getOverlap());
+			host.deleteAgent(agent.getId());
+		}
+		LOG.info((clock ? "Clock" : "Runnable") + " scheduler runs: " + counts);
+		assertTrue(counts.get(OverlapPolicy.SKIP) >= 3);
+		assertTrue(counts.get(OverlapPolicy.SKIP) < counts
+				.get(OverlapPolicy.QUEUE));
+		assertTrue(counts.get(OverlapPolicy.COALESCE) < counts
+				.get(OverlapPolicy.QUEUE));
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.monitor.Cache;
+import com.almende.eve.monitor.Poll;
+import com.almende.eve.monitor.ResultMonitor;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestResultMonitorAgent;
+
+/**
+ * The Class TestPollCoalescing.
+ */
+public class TestPollCoalescing extends TestCase {
+	private static final Logger	LOG			= Logger.getLogger("TestPollCoalescing");
+	private static final int	MONITORS	= 50;
+	private static final int	AGENTS		= 50;
+	private static final int	INTERVAL	= 1000;
+	
+	/**
+	 * Many monitors, of one agent or of many agents, polling the same remote
+	 * method should share their requests: about one call per interval.
+	 * Monitors of which the result depends on the sender only share requests
+	 * within their own agent.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPollCoalescing() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host, ""));
+		
+		final TestResultMonitorAgent status = host.createAgent(
+				TestResultMonitorAgent.class, "pollStatus");
+		final TestResultMonitorAgent dashboard = host.createAgent(
+				TestResultMonitorAgent.class, "pollDashboard");
+		for (int i = 0; i < MONITORS; i++) {
+			dashboard.getResultMonitorFactory().create("status" + i,
+					URI.create("local:pollStatus"), "getData",
+					JOM.createObjectNode(), null, new Poll(INTERVAL),
+					new Cache());
+		}
+		
+		int start = status.getDataCalls();
+		Thread.sleep(3 * INTERVAL + 100);
+		int calls = status.getDataCalls() - start;
+		LOG.info(calls + " calls for " + MONITORS + " monitors in 3 intervals");
+		assertTrue(calls < MONITORS);
+		assertNotNull(dashboard.getResultMonitorFactory()
+				.getMonitorById("status0").getCache().getValue());
+		for (int i = 0; i < MONITORS; i++) {
+			dashboard.getResultMonitorFactory().cancel("status" + i);
+		}
+		host.deleteAgent("pollDashboard");
+		
+		// Many agents polling the same method share their requests too.
+		final List<TestResultMonitorAgent> agents = new ArrayList<TestResultMonitorAgent>(
+				AGENTS);
+		for (int i = 0; i < AGENTS; i++) {
+			final TestResultMonitorAgent agent = host.createAgent(
+					TestResultMonitorAgent.class, "pollAgent" + i);
+			agent.getResultMonitorFactory().create("status",
+					URI.create("local:pollStatus"), "getData",
+					JOM.createObjectNode(), null, new Poll(INTERVAL),
+					new Cache());
+			agents.add(agent);
+		}
+		start = status.getDataCalls();
+		Thread.sleep(5 * INTERVAL + 100);
+		calls = status.getDataCalls() - start;
+		LOG.info(calls + " calls for " + AGENTS + " agents in 5 intervals");
+		// About one call per interval, some slack for unaligned first runs.
+		assertTrue(calls <= 2 * 5 + 2);
+		for (final TestResultMonitorAgent agent : agents) {
+			assertNotNull(agent.getResultMonitorFactory()
+					.getMonitorById("status").getCache().getValue());
+			agent.getResultMonitorFactory().cancel("status");
+		}
+		
+		// Unless the result depends on the sender.
+		for (int i = 0; i < 2; i++) {
+			final ResultMonitor monitor = new ResultMonitor("sender",
+					agents.get(i).getId(), URI.create("local:pollStatus"),
+					"getData", JOM.createObjectNode());
+			monitor.setPerSender(true);
+			monitor.add(new Poll(INTERVAL)).add(new Cache()).store();
+		}
+		start = status.getDataCalls();
+		Thread.sleep(5 * INTERVAL + 100);
+		calls = status.getDataCalls() - start;
+		LOG.info(calls + " calls for 2 per sender monitors in 5 intervals");
+		assertTrue(calls > 6);
+		for (int i = 0; i < AGENTS; i++) {
+			if (i < 2) {
+				agents.get(i).getResultMonitorFactory().cancel("sender");
+			}
+			host.deleteAgent("pollAgent" + i);
+		}
+		host.deleteAgent("pollStatus");
+	}
+}
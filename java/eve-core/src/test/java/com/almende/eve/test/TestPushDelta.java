@@ -0,0 +1,167 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.monitor.Push;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestResultMonitorAgent;
+import com.almende.util.JsonPatch;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+/**
+ * The Class TestPushDelta.
+ */
+public class TestPushDelta extends TestCase {
+	private static final long	TIMEOUT	= 5000;
+	
+	/**
+	 * Test JSON Patch diffs round trip.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testJsonPatch() throws Exception {
+		final String[][] cases = {
+				{ "{\"a\":1,\"b\":[1,2,3],\"c\":{\"d\":\"e\"}}",
+						"{\"a\":2,\"b\":[1,3],\"c\":{\"f\":\"e\"},\"g/h\":null}" },
+				{ "[1,2]", "[1,2,3,{\"a\":[]}]" }, { "[1,2,3]", "[]" },
+				{ "{\"a\":1}", "[1]" }, { "1", "1" } };
+		for (final String[] pair : cases) {
+			final JsonNode source = JOM.getInstance().readTree(pair[0]);
+			final JsonNode target = JOM.getInstance().readTree(pair[1]);
+			final ArrayNode patch = JsonPatch.diff(source, target);
+			assertEquals(target, JsonPatch.apply(source, patch));
+			assertEquals(JOM.getInstance().readTree(pair[0]), source);
+		}
+		assertEquals(0, JsonPatch.diff(JOM.getInstance().readTree("[1]"),
+				JOM.getInstance().readTree("[1]")).size());
+	}
+	
+	/**
+	 * A push should only send changed results, as patches once the
+	 * subscriber signalled it can apply them. The pushes are run directly,
+	 * the test only waits for their delivery.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testPush() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host, ""));
+		
+		final TestResultMonitorAgent source = host.createAgent(
+				TestResultMonitorAgent.class, "deltaSource");
+		final TestResultMonitorAgent target = host.createAgent(
+				TestResultMonitorAgent.class, "deltaTarget");
+		source.setTableHead(0);
+		target.getResultMonitorFactory().create("table",
+				URI.create("local:deltaSource"), "getTable",
+				JOM.createObjectNode(), "countRes", new Push());
+		final String pushKey = awaitPushKey(source);
+		final JsonNode config = JOM.getInstance()
+				.readTree(source.getState().get(pushKey, String.class))
+				.get("config");
+		assertTrue(config.get("patches").asBoolean());
+		
+		source.getResultMonitorFactory().doPush(pushKey, null);
+		awaitCount(target, 1);
+		checkLast(source, target);
+		
+		// Unchanged: nothing is sent.
+		source.getResultMonitorFactory().doPush(pushKey, null);
+		for (int i = 1; i <= 3; i++) {
+			source.setTableHead(i);
+			source.getResultMonitorFactory().doPush(pushKey, null);
+			awaitCount(target, 1 + i);
+			checkLast(source, target);
+		}
+		assertEquals(Integer.valueOf(4),
+				target.getState().get("resCount", Integer.class));
+		
+		target.getResultMonitorFactory().cancel("table");
+		host.deleteAgent("deltaTarget");
+		host.deleteAgent("deltaSource");
+	}
+	
+	/**
+	 * Wait until the source has registered the push of the target.
+	 *
+	 * @param source
+	 *            the source
+	 * @return the push key
+	 * @throws Exception
+	 *             the exception
+	 */
+	private String awaitPushKey(final TestResultMonitorAgent source)
+			throws Exception {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			for (final String key : source.getState().keySet()) {
+				if (key.startsWith("_push_")) {
+					return key;
+				}
+			}
+			Thread.sleep(10);
+		}
+		fail("Push not registered");
+		return null;
+	}
+	
+	/**
+	 * Wait until the target has received the given number of results.
+	 *
+	 * @param target
+	 *            the target
+	 * @param count
+	 *            the count
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void awaitCount(final TestResultMonitorAgent target,
+			final int count) throws Exception {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		Integer current = target.getState().get("resCount", Integer.class);
+		while ((current == null || current < count)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			current = target.getState().get("resCount", Integer.class);
+		}
+		assertEquals(Integer.valueOf(count), current);
+	}
+	
+	/**
+	 * Check that the last received result equals the current table.
+	 *
+	 * @param source
+	 *            the source
+	 * @param target
+	 *            the target
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void checkLast(final TestResultMonitorAgent source,
+			final TestResultMonitorAgent target) throws Exception {
+		final List<Integer> last = JOM.getInstance().readValue(
+				target.getState().get("lastRes", String.class),
+				new TypeReference<List<Integer>>() {
+				});
+		assertEquals(source.getTable(), last);
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.rpc.jsonrpc.JSONRPC;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.RpcCache;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestRpcCache.
+ */
+public class TestRpcCache extends TestCase {
+	
+	/**
+	 * Repeated calls of a cacheable method should be served from the cache,
+	 * until its ttl passes or a state key it depends on changes.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCache() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final TestAgent agent = host.createAgent(TestAgent.class, "rpcCache");
+		
+		final int first = call(agent, "{\"a\":1}");
+		assertEquals(first, call(agent, "{\"a\":1}"));
+		// Not part of the key.
+		assertEquals(first, call(agent, "{\"b\":2,\"a\":1}"));
+		final int second = call(agent, "{\"a\":2}");
+		assertTrue(second > first);
+		
+		// A dependency changes.
+		agent.getState().put("cacheDep", 1);
+		final int third = call(agent, "{\"a\":1}");
+		assertTrue(third > second);
+		assertEquals(third, call(agent, "{\"a\":1}"));
+		
+		// The ttl passes.
+		Thread.sleep(600);
+		assertTrue(call(agent, "{\"a\":1}") > third);
+		
+		final Map<String, Object> stats = RpcCache.get("rpcCache").getStats();
+		assertEquals(3L, stats.get("hits"));
+		assertEquals(4L, stats.get("misses"));
+		assertEquals(2L, stats.get("invalidations"));
+		
+		host.deleteAgent("rpcCache");
+	}
+	
+	/**
+	 * Call the cacheable method.
+	 *
+	 * @param agent
+	 *            the agent
+	 * @param params
+	 *            the params
+	 * @return the result
+	 * @throws Exception
+	 *             the exception
+	 */
+	private int call(final TestAgent agent, final String params)
+			throws Exception {
+		return JSONRPC
+				.invoke(agent,
+						new JSONRequest("cachedCall", (ObjectNode) JOM
+								.getInstance().readTree(params)), agent)
+				.getResult().intValue();
+	}
+}
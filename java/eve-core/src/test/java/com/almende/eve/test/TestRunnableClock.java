@@ -0,0 +1,144 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.almende.eve.scheduler.clock.Clock;
+import com.almende.eve.scheduler.clock.RunnableClock;
+
+/**
+ * The Class TestRunnableClock.
+ */
+public class TestRunnableClock extends TestCase {
+	private static final Logger		LOG			= Logger.getLogger("TestRunnableClock");
+	private static final int		TRIGGERS	= 1000000;
+	private static final Executor	DIRECT		= new Executor() {
+													@Override
+													public void execute(
+															final Runnable command) {
+														command.run();
+													}
+												};
+	
+	/**
+	 * Triggers of different ids with the same due time should all fire, and
+	 * cancelled ones not.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testTriggers() throws Exception {
+		final Clock clock = new RunnableClock(DIRECT);
+		final Set<String> fired = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final DateTime due = DateTime.now().plus(200);
+		for (final String id : new String[] { "a", "b", "c", "d" }) {
+			clock.requestTrigger(id, due, new Runnable() {
+				@Override
+				public void run() {
+					fired.add(id);
+				}
+			});
+		}
+		clock.cancel("b");
+		// A later request doesn't replace the pending one, an earlier does.
+		clock.requestTrigger("c", due.plus(5000), null);
+		clock.requestTrigger("d", due.minus(100), new Runnable() {
+			@Override
+			public void run() {
+				fired.add("d-early");
+			}
+		});
+		Thread.sleep(500);
+		assertTrue(fired.contains("a"));
+		assertFalse(fired.contains("b"));
+		assertTrue(fired.contains("c"));
+		assertFalse(fired.contains("d"));
+		assertTrue(fired.contains("d-early"));
+	}
+	
+	/**
+	 * The tick of a clock should not change the resolution of other clocks.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testTicks() throws Exception {
+		final Clock coarse = new RunnableClock(DIRECT, 500,
+				TimeUnit.MILLISECONDS);
+		final Clock fine = new RunnableClock(DIRECT);
+		final Set<String> fired = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final DateTime due = DateTime.now().plus(20);
+		for (final Clock clock : new Clock[] { coarse, fine }) {
+			final String id = clock == coarse ? "coarse" : "fine";
+			clock.requestTrigger(id, due, new Runnable() {
+				@Override
+				public void run() {
+					fired.add(id);
+				}
+			});
+		}
+		Thread.sleep(200);
+		assertTrue(fired.contains("fine"));
+		Thread.sleep(1000);
+		assertTrue(fired.contains("coarse"));
+	}
+	
+	/**
+	 * Benchmark a million pending triggers.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testManyTriggers() throws Exception {
+		final Clock clock = new RunnableClock(DIRECT);
+		final AtomicInteger count = new AtomicInteger(0);
+		final Runnable callback = new Runnable() {
+			@Override
+			public void run() {
+				count.incrementAndGet();
+			}
+		};
+		final int pending = RunnableClock.getPendingCount();
+		final DateTime due = DateTime.now().plus(10000);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < TRIGGERS; i++) {
+			clock.requestTrigger("trigger" + i, due.plus(i % 1000), callback);
+		}
+		LOG.info("requestTrigger: " + (System.currentTimeMillis() - start)
+				+ " ms for " + TRIGGERS + " triggers");
+		assertEquals(pending + TRIGGERS, RunnableClock.getPendingCount());
+		
+		for (int i = 0; i < TRIGGERS; i += 2) {
+			clock.cancel("trigger" + i);
+		}
+		start = System.currentTimeMillis();
+		while (count.get() < TRIGGERS / 2
+				&& System.currentTimeMillis() - start < 40000) {
+			Thread.sleep(10);
+		}
+		LOG.info("fired " + count.get() + " triggers, last one "
+				+ (System.currentTimeMillis() - due.plus(999).getMillis())
+				+ " ms late");
+		assertEquals(TRIGGERS / 2, count.get());
+		assertEquals(pending, RunnableClock.getPendingCount());
+	}
+}
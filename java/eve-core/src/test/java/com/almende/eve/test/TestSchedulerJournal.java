@@ -0,0 +1,277 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.AgentHostDefImpl;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.scheduler.Scheduler;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.test.agents.TestSchedulerAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestSchedulerJournal.
+ */
+public class TestSchedulerJournal extends TestCase {
+	private static final Logger	LOG			= Logger.getLogger("TestSchedulerJournal");
+	private static final String	STATEID		= "_journalTest";
+	private static final String	FILESTATEID	= "_fileJournalTest";
+	private static final int	TASKS		= 2500;
+	private static final int	OVERDUE		= 100;
+	private static final int	LATER		= 10;
+	
+	/**
+	 * Tasks should be journaled one by one, and replayed on restart without
+	 * writing.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testJournal() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final RunnableSchedulerFactory factory = new RunnableSchedulerFactory(
+				host, STATEID);
+		host.setSchedulerFactory(factory);
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "journalAgent");
+		final Scheduler scheduler = agent.getScheduler();
+		
+		final List<String> ids = new ArrayList<String>(TASKS);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < TASKS; i++) {
+			ids.add(scheduler.createTask(new JSONRequest("getCount",
+					JOM.createObjectNode()), 3600000 + i));
+		}
+		LOG.info("createTask: " + (System.currentTimeMillis() - start)
+				+ " ms for " + TASKS + " tasks");
+		for (int i = 0; i < TASKS / 2; i++) {
+			scheduler.cancelTask(ids.get(i));
+		}
+		agent.setTest("journalAgent", 100, true, false);
+		Thread.sleep(200);
+		
+		final State state = host.getStateFactory().get(STATEID);
+		final Set<String> keys = new HashSet<String>(state.keySet());
+		final Long checkpoint = state.get("checkpoint", Long.class);
+		assertNotNull(checkpoint);
+		assertTrue(keys.size() <= RunnableSchedulerFactory.CHECKPOINT + 3);
+		
+		// The repeating task shouldn't write.
+		Thread.sleep(500);
+		assertTrue(agent.getCount() >= 4);
+		assertEquals(keys, state.keySet());
+		assertEquals(checkpoint, state.get("checkpoint", Long.class));
+		
+		// Restart: replay without writing.
+		start = System.currentTimeMillis();
+		final RunnableSchedulerFactory restarted = new RunnableSchedulerFactory(
+				host, STATEID);
+		LOG.info("replay: " + (System.currentTimeMillis() - start) + " ms");
+		assertEquals(keys, state.keySet());
+		assertEquals(checkpoint, state.get("checkpoint", Long.class));
+		final Scheduler replayed = restarted.getScheduler(agent);
+		assertEquals(new HashSet<String>(scheduler.getTasks()),
+				new HashSet<String>(replayed.getTasks()));
+		assertEquals(TASKS - TASKS / 2 + 1, replayed.getTasks().size());
+		
+		// New ids shouldn't collide with replayed ones.
+		final String id = replayed.createTask(new JSONRequest("getCount",
+				JOM.createObjectNode()), 3600000);
+		assertFalse(scheduler.getTasks().contains(id));
+		
+		replayed.cancelAllTasks();
+		scheduler.cancelAllTasks();
+		host.deleteAgent("journalAgent");
+	}
+	
+	/**
+	 * With a journal file, the journal should be appended to it, leaving only
+	 * the checkpoint in the state, and be replayed from there.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFileJournal() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final File journal = new File(System.getProperty("java.io.tmpdir"),
+				"." + FILESTATEID + ".journal");
+		journal.delete();
+		final Map<String, Object> config = new HashMap<String, Object>();
+		config.put("id", FILESTATEID);
+		config.put("journal", journal.getPath());
+		final RunnableSchedulerFactory factory = new RunnableSchedulerFactory(
+				host, config);
+		host.setSchedulerFactory(factory);
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "fileJournalAgent");
+		final Scheduler scheduler = agent.getScheduler();
+		
+		final List<String> ids = new ArrayList<String>(TASKS);
+		for (int i = 0; i < TASKS; i++) {
+			ids.add(scheduler.createTask(new JSONRequest("getCount",
+					JOM.createObjectNode()), 3600000 + i));
+		}
+		for (int i = 0; i < TASKS / 2; i++) {
+			scheduler.cancelTask(ids.get(i));
+		}
+		Thread.sleep(200);
+		
+		final State state = host.getStateFactory().get(FILESTATEID);
+		for (final String key : state.keySet()) {
+			assertFalse(key, key.startsWith("journal."));
+		}
+		final Long checkpoint = state.get("checkpoint", Long.class);
+		assertNotNull(checkpoint);
+		
+		// After the checkpoint, a new task is only appended to the file.
+		final long length = journal.length();
+		scheduler.createTask(new JSONRequest("getCount", JOM.createObjectNode()),
+				3600000);
+		assertTrue(journal.length() > length);
+		
+		final RunnableSchedulerFactory restarted = new RunnableSchedulerFactory(
+				host, config);
+		assertEquals(checkpoint, state.get("checkpoint", Long.class));
+		final Scheduler replayed = restarted.getScheduler(agent);
+		assertEquals(new HashSet<String>(scheduler.getTasks()),
+				new HashSet<String>(replayed.getTasks()));
+		assertEquals(TASKS - TASKS / 2 + 1, replayed.getTasks().size());
+		
+		replayed.cancelAllTasks();
+		scheduler.cancelAllTasks();
+		host.deleteAgent("fileJournalAgent");
+		assertTrue(journal.delete());
+	}
+	
+	/**
+	 * With a file state factory, the journal should go in its services folder,
+	 * where it isn't taken for an agent state.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testServicesJournal() throws Exception {
+		// A host of its own, as the shared one keeps its first state factory.
+		AgentHost.getInstance();
+		final AgentHost host = new AgentHostDefImpl();
+		final File folder = new File(System.getProperty("java.io.tmpdir"),
+				"eveagents_testServicesJournal");
+		final FileStateFactory files = new FileStateFactory(folder.getPath());
+		host.setStateFactory(files);
+		final Map<String, Object> config = new HashMap<String, Object>();
+		config.put("id", FILESTATEID);
+		final RunnableSchedulerFactory factory = new RunnableSchedulerFactory(
+				host, config);
+		host.setSchedulerFactory(factory);
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "servicesJournalAgent");
+		final Scheduler scheduler = agent.getScheduler();
+		scheduler.createTask(new JSONRequest("getCount", JOM.createObjectNode()),
+				3600000);
+		
+		final File journal = new File(files.getServicesPath() + FILESTATEID
+				+ ".journal");
+		assertTrue(journal.length() > 0);
+		final Set<String> ids = new HashSet<String>();
+		final Iterator<String> iter = files.getAllAgentIds();
+		while (iter.hasNext()) {
+			ids.add(iter.next());
+		}
+		assertTrue(ids.contains("servicesJournalAgent"));
+		for (final String id : ids) {
+			assertFalse(id, id.endsWith(".journal"));
+		}
+		
+		scheduler.cancelAllTasks();
+		host.deleteAgent("servicesJournalAgent");
+		files.delete(FILESTATEID);
+		assertTrue(journal.delete());
+	}
+	
+	/**
+	 * Recovered tasks should be paged in: overdue ones at the catch up rate,
+	 * later ones once they are within the horizon.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host, ""));
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "recoveryAgent");
+		
+		final ArrayList<Map<String, String>> tasks = new ArrayList<Map<String, String>>();
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < OVERDUE + LATER; i++) {
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("time", new DateTime(now).toString());
+			params.put("expected", new DateTime(now).toString());
+			params.put("interval", false);
+			params.put("sequential", false);
+			params.put("someId", "task" + i);
+			params.put("delay", 0);
+			final Map<String, String> task = new HashMap<String, String>();
+			task.put("taskId", Integer.toString(i + 1));
+			task.put("agentId", "recoveryAgent");
+			task.put("request", new JSONRequest("doTest", params).toString());
+			task.put("timestamp", new DateTime(i < OVERDUE ? now - 10000
+					: now + 2500).toString());
+			task.put("interval", "0");
+			task.put("sequential", "false");
+			tasks.add(task);
+		}
+		host.getStateFactory().create("_recoveryTest").put("tasks", tasks);
+		
+		final Map<String, Object> config = new HashMap<String, Object>();
+		config.put("id", "_recoveryTest");
+		config.put("horizon", 1000);
+		config.put("catchUpRate", 50);
+		final RunnableSchedulerFactory factory = new RunnableSchedulerFactory(
+				host, config);
+		final Scheduler scheduler = factory.getScheduler(agent);
+		// Parked tasks are listed, though only the first overdue ones run.
+		assertTrue(scheduler.getTasks().size() > OVERDUE / 2 + LATER);
+		
+		Thread.sleep(500);
+		final int count = agent.getCount();
+		LOG.info("Ran " + count + " overdue tasks after 500 ms");
+		assertTrue(count > 0 && count < OVERDUE / 2 + 10);
+		Thread.sleep(1800);
+		assertEquals(OVERDUE, agent.getCount());
+		Thread.sleep(1200);
+		assertEquals(OVERDUE + LATER, agent.getCount());
+		assertEquals(0, scheduler.getTasks().size());
+		
+		host.deleteAgent("recoveryAgent");
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.system.HostManagerAgent;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.ClockSchedulerFactory;
+import com.almende.eve.scheduler.MetricsSink;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.scheduler.SchedulerMetrics;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestSchedulerAgent;
+
+/**
+ * The Class TestSchedulerMetrics.
+ */
+public class TestSchedulerMetrics extends TestCase {
+	private static final Logger			LOG		= Logger.getLogger("TestSchedulerMetrics");
+	private static final int			TASKS	= 10;
+	private static final AtomicInteger	LAGS	= new AtomicInteger(0);
+	private static final String			CLOCK	= ClockSchedulerFactory.NAME
+														+ ":_metricsClock";
+	
+	/**
+	 * A sink counting the lag measurements.
+	 */
+	public static class CountingSink implements MetricsSink {
+		@Override
+		public void record(final String scheduler, final String metric,
+				final String agentId, final long value) {
+			if (SchedulerMetrics.LAG.equals(metric)) {
+				LAGS.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Both schedulers should record the lag and execution time of their
+	 * tasks, and report them through the host manager.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final Map<String, Object> config = new HashMap<String, Object>();
+		config.put("id", "_metricsTest");
+		config.put("metricsSink", CountingSink.class.getName());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host, config));
+		schedule(host, "metricsRunnable");
+		final Map<String, Object> runnable = SchedulerMetrics.get(
+				"runnable:_metricsTest").getStats();
+		assertEquals(TASKS, LAGS.get());
+		
+		// Each factory has a sink of its own: this one has none.
+		host.setSchedulerFactory(new ClockSchedulerFactory(host,
+				"_metricsClock"));
+		schedule(host, "metricsClock");
+		final Map<String, Object> clock = SchedulerMetrics.get(CLOCK)
+				.getStats();
+		assertEquals(TASKS, LAGS.get());
+		
+		for (final Map<String, Object> stats : new Map[] { runnable, clock }) {
+			LOG.info("Scheduler stats: " + stats);
+			assertTrue(count(stats, SchedulerMetrics.LAG) >= TASKS);
+			assertTrue(count(stats, SchedulerMetrics.EXECUTION) >= TASKS);
+			assertTrue(stats.containsKey("pending"));
+			assertTrue(stats.containsKey("tasksPerAgent"));
+		}
+		
+		final HostManagerAgent manager = host.createAgent(
+				HostManagerAgent.class, "metricsManager");
+		final Map<String, Map<String, Object>> all = manager
+				.getSchedulerStats();
+		assertTrue(all.containsKey("runnable:_metricsTest"));
+		assertTrue(all.containsKey(CLOCK));
+		host.deleteAgent("metricsManager");
+	}
+	
+	/**
+	 * Run some tasks on the current scheduler.
+	 *
+	 * @param host
+	 *            the host
+	 * @param agentId
+	 *            the agent id
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void schedule(final AgentHost host, final String agentId)
+			throws Exception {
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, agentId);
+		for (int i = 0; i < TASKS; i++) {
+			agent.getScheduler().createTask(
+					new JSONRequest("getCount", JOM.createObjectNode()),
+					50 + i * 10);
+		}
+		Thread.sleep(500);
+		host.deleteAgent(agentId);
+	}
+	
+	/**
+	 * Gets the count of a histogram.
+	 *
+	 * @param stats
+	 *            the scheduler statistics
+	 * @param histogram
+	 *            the name of the histogram
+	 * @return the count
+	 */
+	@SuppressWarnings("unchecked")
+	private long count(final Map<String, Object> stats, final String histogram) {
+		return ((Number) ((Map<String, Object>) stats.get(histogram))
+				.get("count")).longValue();
+	}
+}
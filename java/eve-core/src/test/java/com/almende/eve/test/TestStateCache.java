@@ -0,0 +1,118 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.state.TypedKey;
+import com.almende.eve.state.offheap.OffHeapMemoryStateFactory;
+
+/**
+ * The Class TestStateCache.
+ */
+public class TestStateCache extends TestCase {
+	private static final TypedKey<Map<String, Integer>>			MAP		= new TypedKey<Map<String, Integer>>(
+																				"map") {
+																		};
+	private static final TypedKey<HashMap<String, Integer>>		HASHMAP	= new TypedKey<HashMap<String, Integer>>(
+																				"map") {
+																		};
+	private static final TypedKey<Map<String, List<Integer>>>	NESTED	= new TypedKey<Map<String, List<Integer>>>(
+																				"nested") {
+																		};
+	
+	/**
+	 * Test the typed value cache.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testCache() throws Exception {
+		final OffHeapMemoryStateFactory factory = new OffHeapMemoryStateFactory();
+		final State state = factory.create("cache");
+		
+		state.put("name", "first");
+		final String name = state.get("name", String.class);
+		assertEquals("first", name);
+		assertSame(name, state.get("name", String.class));
+		state.put("name", "second");
+		assertEquals("second", state.get("name", String.class));
+		
+		final HashMap<String, Integer> map = new HashMap<String, Integer>();
+		map.put("a", 1);
+		state.put(MAP.getKey(), map);
+		
+		// mutable values are only shared on request, frozen
+		final Map<String, Integer> shared = state.getShared(MAP);
+		assertSame(shared, state.getShared(MAP));
+		assertNotSame(shared, state.get(MAP));
+		try {
+			shared.put("b", 2);
+			fail("Modified a shared value");
+		} catch (final UnsupportedOperationException e) {
+			// frozen
+		}
+		assertEquals(1, state.getShared(MAP).size());
+		
+		// concrete collection types can't be frozen, and aren't shared
+		assertNotSame(state.getShared(HASHMAP), state.getShared(HASHMAP));
+		state.getShared(HASHMAP).put("b", 2);
+		assertEquals(1, state.getShared(MAP).size());
+		
+		// nested collections are frozen as well
+		final HashMap<String, List<Integer>> nested = new HashMap<String, List<Integer>>();
+		nested.put("list", new ArrayList<Integer>());
+		state.put(NESTED.getKey(), nested);
+		try {
+			state.getShared(NESTED).get("list").add(1);
+			fail("Modified a shared nested value");
+		} catch (final UnsupportedOperationException e) {
+			// frozen
+		}
+		assertTrue(state.getShared(NESTED).get("list").isEmpty());
+		
+		// copy-on-write
+		final HashMap<String, Integer> copy = new HashMap<String, Integer>(
+				shared);
+		copy.put("b", 2);
+		assertTrue(state.putIfUnchanged(MAP.getKey(), copy, shared));
+		assertEquals(2, state.getShared(MAP).size());
+		assertEquals(1, shared.size());
+		
+		// another type for the same key, both stay cached
+		final TypedKey<Map<String, Object>> other = new TypedKey<Map<String, Object>>(
+				MAP.getKey()) {
+		};
+		assertEquals(2, state.getShared(other).size());
+		final Map<String, Integer> current = state.getShared(MAP);
+		assertSame(current, state.getShared(MAP));
+		assertSame(state.getShared(other), state.getShared(other));
+		factory.delete("cache");
+		
+		// a change through another state object on the same file is seen
+		final FileStateFactory files = new FileStateFactory(".eveagents_cache");
+		if (files.exists("cache")) {
+			files.delete("cache");
+		}
+		final State first = files.create("cache");
+		first.put("name", "first");
+		final State second = new FileStateFactory(".eveagents_cache")
+				.get("cache");
+		assertEquals("first", second.get("name", String.class));
+		first.put("name", "second");
+		assertEquals("second", second.get("name", String.class));
+		files.delete("cache");
+	}
+}
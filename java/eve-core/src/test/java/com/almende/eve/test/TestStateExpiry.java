@@ -0,0 +1,186 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateQuota;
+import com.almende.eve.state.StateQuota.Policy;
+import com.almende.eve.state.offheap.OffHeapMemoryStateFactory;
+
+/**
+ * The Class TestStateExpiry.
+ */
+public class TestStateExpiry extends TestCase {
+	private static final String	FILE	= ".eveagents_testExpiry";
+	
+	/**
+	 * Test expiry and quotas of the in-memory states.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMemoryStates() throws Exception {
+		testState(new MemoryStateFactory().create("expiry"));
+		testState(new OffHeapMemoryStateFactory().create("expiry"));
+	}
+	
+	/**
+	 * Test expiry and quotas of a file state, and that stored expiry times
+	 * are picked up by a new instance.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFileState() throws Exception {
+		final FileStateFactory factory = new FileStateFactory(FILE, true);
+		if (factory.exists("expiry")) {
+			factory.delete("expiry");
+		}
+		testState(factory.create("expiry"));
+		
+		factory.get("expiry").put("later", 1, 200);
+		final State other = new FileStateFactory(FILE, true).get("expiry");
+		assertEquals(Integer.valueOf(1), other.get("later", Integer.class));
+		Thread.sleep(300);
+		other.expire();
+		assertFalse(other.containsKey("later"));
+		factory.delete("expiry");
+	}
+	
+	/**
+	 * Test that a map of expiry times written by an older version is split
+	 * into one expiry per key.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLegacy() throws Exception {
+		final State state = new MemoryStateFactory().create("legacy");
+		final HashMap<String, Long> legacy = new HashMap<String, Long>();
+		legacy.put("old", 0L);
+		legacy.put("new", System.currentTimeMillis() + 60000);
+		state.put("old", 1);
+		state.put("new", 2);
+		state.put(State.KEY_EXPIRES, legacy);
+		assertEquals(1, state.expire());
+		assertFalse(state.containsKey(State.KEY_EXPIRES));
+		assertFalse(state.containsKey("old"));
+		assertTrue(state.containsKey(State.KEY_EXPIRES + ".new"));
+		assertEquals(Integer.valueOf(2), state.get("new", Integer.class));
+	}
+	
+	/**
+	 * Test that expired keys are removed in the background.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBackground() throws Exception {
+		final State state = new MemoryStateFactory().create("background");
+		for (int i = 0; i < 250; i++) {
+			state.put("key" + i, i, 10);
+		}
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (state.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertEquals(0, state.size());
+	}
+	
+	/**
+	 * Run the expiry and quota contract on the given state.
+	 *
+	 * @param state
+	 *            the state
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void testState(final State state) throws Exception {
+		state.setAgentType(TestStateExpiry.class);
+		state.put("short", "value", 500);
+		state.put("long", "value", 60000);
+		state.put("plain", "value");
+		assertEquals("value", state.get("short", String.class));
+		Thread.sleep(600);
+		assertNull(state.get("short", String.class));
+		// The reaper may have been first.
+		state.expire();
+		assertFalse(state.containsKey("short"));
+		assertTrue(state.containsKey("long"));
+		
+		// Each expiry is stored next to its key, a ttl of 0 removes it.
+		assertTrue(state.containsKey(State.KEY_EXPIRES + ".long"));
+		assertFalse(state.containsKey(State.KEY_EXPIRES + ".short"));
+		state.put("long", "value", 0);
+		state.expire();
+		assertFalse(state.containsKey(State.KEY_EXPIRES + ".long"));
+		assertFalse(state.containsKey(State.KEY_EXPIRES));
+		assertTrue(state.containsKey("long"));
+		state.clear();
+		
+		// A conditional put writes the value with its expiry, or neither.
+		assertTrue(state.putIfVersion("claimed", "value", 0, 500));
+		assertTrue(state.containsKey(State.KEY_EXPIRES + ".claimed"));
+		assertFalse(state.putIfVersion("claimed", "other", 0, 60000));
+		assertEquals("value", state.get("claimed", String.class));
+		Thread.sleep(600);
+		assertNull(state.get("claimed", String.class));
+		state.clear();
+		
+		// Removing a key drops its expiry, a plain put doesn't inherit it.
+		state.put("cleared", "value", 100);
+		state.clear();
+		state.put("cleared", "value");
+		state.put("gone", "value", 100);
+		state.remove("gone");
+		assertFalse(state.containsKey(State.KEY_EXPIRES + ".gone"));
+		state.put("gone", "value");
+		Thread.sleep(200);
+		assertEquals("value", state.get("gone", String.class));
+		assertEquals("value", state.get("cleared", String.class));
+		state.clear();
+		
+		// Oldest first: the first written keys go, reserved keys stay.
+		state.put("_reserved", 1);
+		state.setQuota(new StateQuota(5, 0, Policy.OLDEST));
+		for (int i = 0; i < 10; i++) {
+			state.put("key" + i, i);
+		}
+		state.expire();
+		assertEquals(7, state.size());
+		assertFalse(state.containsKey("key4"));
+		assertTrue(state.containsKey("key5"));
+		
+		// LRU: a read key survives.
+		state.setQuota(new StateQuota(3, 0, Policy.LRU));
+		state.get("key5", Integer.class);
+		state.put("key10", 10);
+		state.expire();
+		assertTrue(state.containsKey("key5"));
+		assertTrue(state.containsKey("key10"));
+		assertFalse(state.containsKey("key6"));
+		
+		// Size limit.
+		state.setQuota(new StateQuota(0, 10, Policy.OLDEST));
+		state.put("big", "a value of more than ten bytes");
+		state.expire();
+		assertEquals(2, state.size());
+		assertTrue(state.containsKey(State.KEY_AGENT_TYPE));
+		assertTrue(state.containsKey("_reserved"));
+		state.setQuota(null);
+	}
+}
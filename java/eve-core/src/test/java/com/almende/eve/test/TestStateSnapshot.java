@@ -0,0 +1,83 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
+import com.almende.eve.state.StateSnapshot;
+import com.almende.eve.state.offheap.OffHeapMemoryStateFactory;
+
+/**
+ * The Class TestStateSnapshot.
+ */
+public class TestStateSnapshot extends TestCase {
+	private static final int	AGENTS	= 2500;
+	
+	/**
+	 * Test a snapshot round trip, and a direct migration.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSnapshot() throws Exception {
+		final MemoryStateFactory source = new MemoryStateFactory();
+		for (int i = 0; i < AGENTS; i++) {
+			final State state = source.create("agent" + i);
+			state.put("name", "agent" + i);
+			state.put("count", i);
+			final HashMap<String, Integer> map = new HashMap<String, Integer>();
+			map.put("a", i);
+			state.put("map", map);
+		}
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(AGENTS, StateSnapshot.export(source, out));
+		
+		final OffHeapMemoryStateFactory target = new OffHeapMemoryStateFactory();
+		target.create("agent1").put("name", "old");
+		assertEquals(AGENTS, StateSnapshot.restore(target,
+				new ByteArrayInputStream(out.toByteArray()), 4));
+		check(target);
+		
+		final FileStateFactory files = new FileStateFactory(
+				".eveagents_testSnapshot", true);
+		assertEquals(AGENTS, StateSnapshot.migrate(target, files, 4));
+		check(files);
+		for (int i = 0; i < AGENTS; i++) {
+			files.delete("agent" + i);
+		}
+	}
+	
+	/**
+	 * Check the migrated states.
+	 *
+	 * @param factory
+	 *            the factory
+	 */
+	@SuppressWarnings("unchecked")
+	private void check(final StateFactory factory) {
+		for (int i = 0; i < AGENTS; i++) {
+			final State state = factory.get("agent" + i);
+			assertEquals("agent" + i, state.get("name", String.class));
+			assertEquals(Integer.valueOf(i), state.get("count", Integer.class));
+			assertEquals(i, ((Map<String, Integer>) state.get("map", Map.class))
+					.get("a").intValue());
+			assertEquals(3, state.size());
+			assertEquals(state.keySet(), state.getAll().keySet());
+		}
+	}
+}
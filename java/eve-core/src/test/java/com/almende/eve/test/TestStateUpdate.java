@@ -0,0 +1,275 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.ConcurrentJsonFileState;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryState;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
+import com.almende.eve.state.StateFunction;
+import com.almende.eve.state.StateListener;
+import com.almende.eve.state.StateMergeFunction;
+import com.almende.eve.state.TypedKey;
+import com.almende.eve.state.offheap.OffHeapMemoryStateFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The Class TestStateUpdate.
+ */
+public class TestStateUpdate extends TestCase {
+	private static final TypedKey<Integer>						COUNT	= new TypedKey<Integer>(
+																				"count") {
+																		};
+	private static final TypedKey<TreeMap<String, Integer>>	MAP		= new TypedKey<TreeMap<String, Integer>>(
+																				"map") {
+																		};
+	private static final TypedKey<ArrayList<String>>			LIST	= new TypedKey<ArrayList<String>>(
+																				"list") {
+																		};
+	private static final TypedKey<TreeMap<String, ArrayList<String>>>	NESTED	= new TypedKey<TreeMap<String, ArrayList<String>>>(
+																				"nested") {
+																		};
+	
+	/**
+	 * Test the atomic operations on a MemoryState (java objects).
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMemoryState() throws Exception {
+		testState(new MemoryStateFactory());
+	}
+	
+	/**
+	 * Test the atomic operations on a JSON based state.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testJsonState() throws Exception {
+		testState(new OffHeapMemoryStateFactory());
+	}
+	
+	/**
+	 * The map and list operations don't change the stored tree of a JSON
+	 * file state, which get() returns to readers without the lock.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testStoredTreeUnchanged() throws Exception {
+		final FileStateFactory factory = new FileStateFactory(
+				".eveagents_update", true);
+		if (factory.exists("update")) {
+			factory.delete("update");
+		}
+		final ConcurrentJsonFileState state = (ConcurrentJsonFileState) factory
+				.create("update");
+		state.mapPut(MAP, "a", 1);
+		state.listAppend(LIST, "one");
+		// Files read within a second of their last change are read again on
+		// each access, wait until the stored tree is kept.
+		Thread.sleep(1100);
+		state.get(MAP.getKey());
+		final JsonNode map = state.get(MAP.getKey());
+		final JsonNode list = state.get(LIST.getKey());
+		state.mapPut(MAP, "b", 2);
+		state.mapRemove(MAP, "a");
+		state.listAppend(LIST, "two");
+		assertTrue(map.has("a"));
+		assertFalse(map.has("b"));
+		assertEquals(1, list.size());
+		assertEquals(Integer.valueOf(2), state.get(MAP).get("b"));
+		assertEquals(2, state.get(LIST).size());
+		factory.delete("update");
+		
+		testState(factory);
+	}
+	
+	/**
+	 * A write that fails in the store fails putIfVersion, and the atomic
+	 * updates built on it.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFailedWrite() throws Exception {
+		final boolean[] fail = new boolean[1];
+		final State state = new MemoryState("failing") {
+			@Override
+			public Serializable locPut(final String key,
+					final Serializable value) {
+				return fail[0] ? null : super.locPut(key, value);
+			}
+		};
+		state.put(COUNT.getKey(), 1);
+		final long version = state.getVersioned(COUNT).getVersion();
+		fail[0] = true;
+		assertFalse(state.putIfVersion(COUNT.getKey(), 2, version));
+		assertEquals(Integer.valueOf(1), state.get(COUNT));
+		fail[0] = false;
+		assertTrue(state.putIfVersion(COUNT.getKey(), 2, version));
+		assertEquals(Integer.valueOf(2), state.get(COUNT));
+		
+		// an update that can't be written fails, instead of looping
+		fail[0] = true;
+		try {
+			state.compute(COUNT, new StateFunction<Integer>() {
+				@Override
+				public Integer apply(final Integer current) {
+					return current + 1;
+				}
+			});
+			fail("Reported a failed write as stored");
+		} catch (final IllegalStateException e) {
+			// the store keeps failing
+		}
+		assertEquals(Integer.valueOf(2), state.get(COUNT));
+	}
+	
+	/**
+	 * Run the tests on the given factory.
+	 *
+	 * @param factory
+	 *            the factory
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void testState(final StateFactory factory) throws Exception {
+		final State state = factory.create("update");
+		
+		// concurrent compute
+		final StateFunction<Integer> increment = new StateFunction<Integer>() {
+			@Override
+			public Integer apply(final Integer current) {
+				return current == null ? 1 : current + 1;
+			}
+		};
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 10; i++) {
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						state.compute(COUNT, increment);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Integer.valueOf(1000), state.get(COUNT));
+		
+		// merge
+		final StateMergeFunction<Integer> sum = new StateMergeFunction<Integer>() {
+			@Override
+			public Integer apply(final Integer current, final Integer value) {
+				return current + value;
+			}
+		};
+		assertEquals(Integer.valueOf(1005), state.merge(COUNT, 5, sum));
+		state.remove(COUNT.getKey());
+		assertEquals(Integer.valueOf(5), state.merge(COUNT, 5, sum));
+		
+		// compute returning null removes the key
+		state.compute(COUNT, new StateFunction<Integer>() {
+			@Override
+			public Integer apply(final Integer current) {
+				return null;
+			}
+		});
+		assertFalse(state.containsKey(COUNT.getKey()));
+		
+		// map operations
+		state.mapPut(MAP, "b", 2);
+		state.mapPut(MAP, "a", 1);
+		final TreeMap<String, Integer> shared = state.getShared(MAP);
+		assertEquals("a", shared.firstKey());
+		assertTrue(state.mapReplace(MAP, "a", 3));
+		assertFalse(state.mapReplace(MAP, "c", 3));
+		assertEquals(Integer.valueOf(3), state.get(MAP).get("a"));
+		assertEquals(Integer.valueOf(1), shared.get("a"));
+		assertTrue(state.mapRemove(MAP, "a"));
+		assertFalse(state.mapRemove(MAP, "a"));
+		assertEquals(1, state.get(MAP).size());
+		
+		// list operations
+		state.listAppend(LIST, "one");
+		state.listAppend(LIST, "two");
+		assertEquals("two", state.get(LIST).get(1));
+		
+		// compute changing the current value in place is a write
+		final TreeMap<String, Integer> before = state.get(MAP);
+		state.compute(MAP, new StateFunction<TreeMap<String, Integer>>() {
+			@Override
+			public TreeMap<String, Integer> apply(
+					final TreeMap<String, Integer> current) {
+				current.put("c", 4);
+				return current;
+			}
+		});
+		assertEquals(Integer.valueOf(4), state.get(MAP).get("c"));
+		assertFalse(before.containsKey("c"));
+		
+		// compute returning an equal value doesn't write
+		final long version = state.getVersioned(MAP).getVersion();
+		state.compute(MAP, new StateFunction<TreeMap<String, Integer>>() {
+			@Override
+			public TreeMap<String, Integer> apply(
+					final TreeMap<String, Integer> current) {
+				return new TreeMap<String, Integer>(current);
+			}
+		});
+		assertEquals(version, state.getVersioned(MAP).getVersion());
+		
+		// compute changing a nested value in place is a write, and notified
+		final TreeMap<String, ArrayList<String>> nested = new TreeMap<String, ArrayList<String>>();
+		nested.put("a", new ArrayList<String>());
+		state.put(NESTED.getKey(), nested);
+		final long nestedVersion = state.getVersion(NESTED.getKey());
+		final AtomicInteger changes = new AtomicInteger();
+		final StateListener listener = new StateListener() {
+			@Override
+			public void onChange(final State changed, final String key) {
+				changes.incrementAndGet();
+			}
+		};
+		state.watch(NESTED.getKey(), listener);
+		state.compute(NESTED,
+				new StateFunction<TreeMap<String, ArrayList<String>>>() {
+					@Override
+					public TreeMap<String, ArrayList<String>> apply(
+							final TreeMap<String, ArrayList<String>> current) {
+						current.get("a").add("one");
+						return current;
+					}
+				});
+		state.unwatch(NESTED.getKey(), listener);
+		assertEquals("one", state.get(NESTED).get("a").get(0));
+		assertTrue(state.getVersion(NESTED.getKey()) > nestedVersion);
+		assertEquals(1, changes.get());
+		
+		factory.delete("update");
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateFactory;
+import com.almende.eve.state.TypedKey;
+import com.almende.eve.state.Versioned;
+import com.almende.eve.state.mapped.MappedStateFactory;
+import com.almende.eve.state.offheap.OffHeapMemoryStateFactory;
+
+/**
+ * The Class TestStateVersions.
+ */
+public class TestStateVersions extends TestCase {
+	private static final TypedKey<Integer>	COUNT		= new TypedKey<Integer>(
+																"count") {
+														};
+	private static final String				MAPPED		= ".eveagents_testVersionsMapped";
+	private static final String				FILE		= ".eveagents_testVersionsFile";
+	
+	/**
+	 * Test versions of the in-memory states.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMemoryStates() throws Exception {
+		testState(new MemoryStateFactory().create("versions"));
+		testState(new OffHeapMemoryStateFactory().create("versions"));
+	}
+	
+	/**
+	 * Test that the versions of a MappedState survive a restart and a
+	 * compaction.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMappedState() throws Exception {
+		clean(MAPPED);
+		MappedStateFactory factory = new MappedStateFactory(MAPPED);
+		final long version = testState(factory.create("versions"));
+		factory.close();
+		
+		factory = new MappedStateFactory(MAPPED);
+		assertEquals(version, factory.get("versions").getVersioned(COUNT)
+				.getVersion());
+		factory.compact();
+		assertEquals(version, factory.get("versions").getVersioned(COUNT)
+				.getVersion());
+		factory.close();
+		
+		factory = new MappedStateFactory(MAPPED);
+		final State state = factory.get("versions");
+		assertEquals(version, state.getVersioned(COUNT).getVersion());
+		state.put("other", 1);
+		assertTrue(state.getVersioned(COUNT).getVersion() < state
+				.getVersioned(new TypedKey<Integer>("other") {
+				}).getVersion());
+		factory.delete("versions");
+		factory.close();
+		clean(MAPPED);
+	}
+	
+	/**
+	 * Test that the versions of a file state are stored in its file.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFileState() throws Exception {
+		final FileStateFactory factory = new FileStateFactory(FILE, true);
+		if (factory.exists("versions")) {
+			factory.delete("versions");
+		}
+		final long version = testState(factory.create("versions"));
+		
+		final State state = new FileStateFactory(FILE, true).get("versions");
+		assertEquals(version, state.getVersioned(COUNT).getVersion());
+		assertFalse(state.keySet().contains("_versions"));
+		factory.delete("versions");
+	}
+	
+	/**
+	 * Run the version contract on the given state.
+	 *
+	 * @param state
+	 *            the state
+	 * @return the final version of the COUNT key
+	 */
+	private long testState(final State state) {
+		Versioned<Integer> current = state.getVersioned(COUNT);
+		assertNull(current.getValue());
+		assertEquals(0, current.getVersion());
+		
+		assertTrue(state.putIfVersion(COUNT.getKey(), 1, 0));
+		assertFalse(state.putIfVersion(COUNT.getKey(), 1, 0));
+		current = state.getVersioned(COUNT);
+		assertEquals(Integer.valueOf(1), current.getValue());
+		assertTrue(current.getVersion() > 0);
+		
+		// Any change increases the version, even to an equal value.
+		state.put(COUNT.getKey(), 1);
+		final Versioned<Integer> next = state.getVersioned(COUNT);
+		assertTrue(next.getVersion() > current.getVersion());
+		assertEquals(next.getVersion(), state.getVersion(COUNT.getKey()));
+		assertFalse(state.putIfVersion(COUNT.getKey(), 2,
+				current.getVersion()));
+		assertTrue(state.putIfVersion(COUNT.getKey(), 2, next.getVersion()));
+		
+		// Removal resets the version, a new value never gets an old version.
+		final long removed = state.getVersioned(COUNT).getVersion();
+		assertTrue(state.putIfVersion(COUNT.getKey(), null, removed));
+		assertEquals(0, state.getVersioned(COUNT).getVersion());
+		assertEquals(0, state.getVersion(COUNT.getKey()));
+		assertTrue(state.putIfVersion(COUNT.getKey(), 3, 0));
+		final Versioned<Integer> result = state.getVersioned(COUNT);
+		assertEquals(Integer.valueOf(3), result.getValue());
+		assertTrue(result.getVersion() > removed);
+		return result.getVersion();
+	}
+	
+	/**
+	 * Clean up the test folder.
+	 *
+	 * @param path
+	 *            the path
+	 */
+	private void clean(final String path) {
+		final File folder = new File(path);
+		final File[] files = folder.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.lock.StateLock;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.state.State;
+import com.almende.eve.state.StateListener;
+import com.almende.eve.state.TypedKey;
+import com.almende.eve.state.offheap.OffHeapMemoryStateFactory;
+import com.almende.eve.test.agents.TestAgent;
+
+/**
+ * The Class TestStateWatch.
+ */
+public class TestStateWatch extends TestCase {
+	private static final TypedKey<Integer>	COUNT	= new TypedKey<Integer>(
+															"count") {
+													};
+	private static final String				FILE	= ".eveagents_testWatch";
+	
+	/**
+	 * Test watching the in-memory states.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testMemoryStates() throws Exception {
+		testState(new MemoryStateFactory().create("watch"));
+		testState(new OffHeapMemoryStateFactory().create("watch"));
+	}
+	
+	/**
+	 * Test watching a file state, also for changes through another instance
+	 * of the same file.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFileState() throws Exception {
+		final FileStateFactory factory = new FileStateFactory(FILE, true);
+		if (factory.exists("watch")) {
+			factory.delete("watch");
+		}
+		final State state = factory.create("watch");
+		testState(state);
+		
+		final State other = new FileStateFactory(FILE, true).get("watch");
+		final CountDownLatch called = new CountDownLatch(1);
+		final StateListener listener = new StateListener() {
+			@Override
+			public void onChange(final State changed, final String key) {
+				called.countDown();
+			}
+		};
+		state.watch(COUNT.getKey(), listener);
+		other.put(COUNT.getKey(), 42);
+		assertTrue(called.await(5, TimeUnit.SECONDS));
+		state.unwatch(COUNT.getKey(), listener);
+		factory.delete("watch");
+	}
+	
+	/**
+	 * Test that a blocking lock is taken as soon as it is released.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testStateLock() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final Agent agent = host.createAgent(TestAgent.class, "watchLock");
+		final StateLock lock = new StateLock(agent);
+		assertTrue(lock.lock("sem", 10000, false));
+		assertFalse(lock.lock("sem", 10000, false));
+		
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (final InterruptedException e) {
+				}
+				lock.unlock("sem");
+			}
+		}.start();
+		final long start = System.currentTimeMillis();
+		assertTrue(lock.lock("sem", 10000, true));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertTrue(lock.isLocked("sem"));
+		host.deleteAgent("watchLock");
+	}
+	
+	/**
+	 * Run the watch contract on the given state.
+	 *
+	 * @param state
+	 *            the state
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void testState(final State state) throws Exception {
+		final CountDownLatch called = new CountDownLatch(2);
+		final StateListener listener = new StateListener() {
+			@Override
+			public void onChange(final State changed, final String key) {
+				assertEquals(COUNT.getKey(), key);
+				called.countDown();
+			}
+		};
+		state.watch(COUNT.getKey(), listener);
+		state.put("other", 1);
+		state.put(COUNT.getKey(), 1);
+		state.remove(COUNT.getKey());
+		assertTrue(called.await(5, TimeUnit.SECONDS));
+		state.unwatch(COUNT.getKey(), listener);
+		
+		// Times out without a change.
+		final long version = state.getVersioned(COUNT).getVersion();
+		long start = System.currentTimeMillis();
+		assertEquals(version, state.awaitChange(COUNT.getKey(), version, 100));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		
+		// Wakes up on a change by another thread.
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (final InterruptedException e) {
+				}
+				state.put(COUNT.getKey(), 2);
+			}
+		}.start();
+		start = System.currentTimeMillis();
+		final long changed = state.awaitChange(COUNT.getKey(), version, 10000);
+		assertTrue(changed != version);
+		assertEquals(changed, state.getVersioned(COUNT).getVersion());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.ClockSchedulerFactory;
+import com.almende.eve.scheduler.OverlapPolicy;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.scheduler.Scheduler;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestSchedulerAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestTaskKeys.
+ */
+public class TestTaskKeys extends TestCase {
+	
+	/**
+	 * Tasks with the same key should be scheduled once, tasks without a key
+	 * always.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDuplicates() throws Exception {
+		schedule(false);
+		schedule(true);
+	}
+	
+	/**
+	 * Persisted tasks with the same key should be dropped on recovery.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRecoveredDuplicates() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host, ""));
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "keysRecovered");
+		
+		final ArrayList<Map<String, String>> tasks = new ArrayList<Map<String, String>>();
+		for (int i = 0; i < 3; i++) {
+			final Map<String, String> task = new HashMap<String, String>();
+			task.put("taskId", Integer.toString(i + 1));
+			task.put("agentId", "keysRecovered");
+			task.put("request", new JSONRequest("getCount",
+					JOM.createObjectNode()).toString());
+			task.put("timestamp", DateTime.now().plus(3600000).toString());
+			task.put("interval", "3600000");
+			task.put("sequential", "false");
+			task.put("key", "poll");
+			tasks.add(task);
+		}
+		host.getStateFactory().create("_keysTest").put("tasks", tasks);
+		
+		final Scheduler scheduler = new RunnableSchedulerFactory(host,
+				"_keysTest").getScheduler(agent);
+		assertEquals(1, scheduler.getTasks().size());
+		
+		scheduler.cancelAllTasks();
+		host.deleteAgent("keysRecovered");
+	}
+	
+	/**
+	 * Schedule duplicate tasks on one of the schedulers.
+	 *
+	 * @param clock
+	 *            use the clock scheduler
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void schedule(final boolean clock) throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (clock) {
+			host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+		} else {
+			host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+					"_keysScheduler"));
+		}
+		final String agentId = "keys" + clock;
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, agentId);
+		final Scheduler scheduler = agent.getScheduler();
+		
+		// Identical tasks without a key are separate: cancelling one doesn't
+		// stop the other caller's.
+		final String mine = scheduler.createTask(new JSONRequest("getCount",
+				JOM.createObjectNode()), 3600000, true, false);
+		final String theirs = scheduler.createTask(new JSONRequest(
+				"getCount", JOM.createObjectNode()), 3600000, true, true);
+		assertFalse(mine.equals(theirs));
+		scheduler.cancelTask(mine);
+		assertTrue(scheduler.getTasks().contains(theirs));
+		// Tasks with the same key collapse.
+		final String poll = scheduler.createTask(new JSONRequest("getCount",
+				JOM.createObjectNode()), 3600000, true, OverlapPolicy.SKIP,
+				"poll");
+		assertEquals(poll, scheduler.createTask(new JSONRequest("getCount",
+				JOM.createObjectNode()), 3600000, true, OverlapPolicy.QUEUE,
+				"poll"));
+		scheduler.createTask(new JSONRequest("getCount",
+				JOM.createObjectNode()), 3600000);
+		scheduler.createTask(new JSONRequest("getCount",
+				JOM.createObjectNode()), 3600000);
+		assertEquals(4, scheduler.getTasks().size());
+		
+		agent.resetCount();
+		final String first = scheduler.createTask(slow(), 100, "slow");
+		assertEquals(first, scheduler.createTask(slow(), 100, "slow"));
+		assertEquals(5, scheduler.getTasks().size());
+		Thread.sleep(500);
+		assertEquals(1, agent.getCount());
+		// After it ran, the key is free again.
+		final String second = scheduler.createTask(slow(), 100, "slow");
+		assertFalse(first.equals(second));
+		Thread.sleep(500);
+		assertEquals(2, agent.getCount());
+		
+		scheduler.cancelAllTasks();
+		host.deleteAgent(agentId);
+	}
+	
+	/**
+	 * A quick run of the slow task.
+	 *
+	 * @return the request
+	 */
+	private JSONRequest slow() {
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("sleep", 0);
+		return new JSONRequest("doSlow", params);
+	}
+}
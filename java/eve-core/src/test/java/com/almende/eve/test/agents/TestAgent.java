@@ -7,10 +7,14 @@ package com.almende.eve.test.agents;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.almende.eve.agent.Agent;
 import com.almende.eve.rpc.annotation.Access;
 import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Cacheable;
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.annotation.Optional;
 import com.almende.eve.test.agents.entity.Person;
 
 /**
@@ -18,6 +22,20 @@ import com.almende.eve.test.agents.entity.Person;
  */
 @Access(AccessType.PUBLIC)
 public class TestAgent extends Agent implements TestInterface {
+	private static final AtomicInteger	CACHEDCALLS	= new AtomicInteger();
+	
+	/**
+	 * A cacheable method, keyed on its first parameter only.
+	 *
+	 * @param a the a
+	 * @param b the b, not part of the cache key
+	 * @return the number of times this method really ran
+	 */
+	@Cacheable(ttl = 500, key = "a", depends = "cacheDep")
+	public int cachedCall(@Name("a") final int a,
+			@Optional @Name("b") final Integer b) {
+		return CACHEDCALLS.incrementAndGet();
+	}
 	
 	/*
 	 * (non-Javadoc)
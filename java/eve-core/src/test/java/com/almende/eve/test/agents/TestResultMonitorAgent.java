@@ -7,6 +7,7 @@ package com.almende.eve.test.agents;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.joda.time.DateTime;
 
@@ -27,6 +28,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  */
 @Access(AccessType.PUBLIC)
 public class TestResultMonitorAgent extends Agent {
+	private static final AtomicInteger	DATACALLS	= new AtomicInteger();
+	private static final AtomicInteger	TABLEHEAD	= new AtomicInteger();
 	
 	/**
 	 * Gets the data.
@@ -35,9 +38,55 @@ public class TestResultMonitorAgent extends Agent {
 	 */
 	@EventTriggered("Go")
 	public Integer getData() {
+		DATACALLS.incrementAndGet();
 		return DateTime.now().getSecondOfDay();
 	}
 	
+	/**
+	 * Gets the number of getData calls, of all agents of this class.
+	 *
+	 * @return the data calls
+	 */
+	public int getDataCalls() {
+		return DATACALLS.get();
+	}
+	
+	/**
+	 * Gets a larger result, of which only the first element changes, see
+	 * {@link #setTableHead(int)}.
+	 *
+	 * @return the table
+	 */
+	public List<Integer> getTable() {
+		final List<Integer> result = new ArrayList<Integer>(100);
+		result.add(TABLEHEAD.get());
+		for (int i = 1; i < 100; i++) {
+			result.add(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * Sets the first element of the table, of all agents of this class.
+	 *
+	 * @param head the head
+	 */
+	public void setTableHead(@Name("head") final int head) {
+		TABLEHEAD.set(head);
+	}
+	
+	/**
+	 * Count the received callback results.
+	 *
+	 * @param result the result
+	 */
+	public void countRes(@Name("result") final String result) {
+		getState().put("lastRes", result);
+		getState().put("resCount",
+				getState().get("resCount", Integer.class) == null ? 1
+						: getState().get("resCount", Integer.class) + 1);
+	}
+	
 	/**
 	 * Bob event.
 	 *
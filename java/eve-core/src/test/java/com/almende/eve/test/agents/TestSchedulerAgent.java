@@ -4,6 +4,8 @@
  */
 package com.almende.eve.test.agents;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
@@ -23,7 +25,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  */
 @Access(AccessType.PUBLIC)
 public class TestSchedulerAgent extends Agent {
-	private static final Logger	LOG	= Logger.getLogger("testScheduler");
+	private static final Logger										LOG		= Logger.getLogger("testScheduler");
+	private static final ConcurrentHashMap<String, AtomicInteger>	RUNNING	= new ConcurrentHashMap<String, AtomicInteger>();
+	private static final ConcurrentHashMap<String, AtomicInteger>	OVERLAP	= new ConcurrentHashMap<String, AtomicInteger>();
 	
 	/**
 	 * Sets the test.
@@ -86,6 +90,61 @@ public class TestSchedulerAgent extends Agent {
 					+ (new Duration(expected, DateTime.now()).getMillis()
 							+ "ms of planned delay:" + delay + "ms "));
 		}
+		increment();
+	}
+	
+	/**
+	 * A slow task: the first run sleeps, and the overlap of runs is tracked.
+	 * 
+	 * @param sleep
+	 *            the duration of the first run in milliseconds
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	public void doSlow(@Name("sleep") final int sleep)
+			throws InterruptedException {
+		final AtomicInteger running = counter(RUNNING);
+		final AtomicInteger overlap = counter(OVERLAP);
+		final int now = running.incrementAndGet();
+		int max = overlap.get();
+		while (now > max && !overlap.compareAndSet(max, now)) {
+			max = overlap.get();
+		}
+		if (!getState().containsKey("slept")) {
+			getState().put("slept", true);
+			Thread.sleep(sleep);
+		}
+		increment();
+		running.decrementAndGet();
+	}
+	
+	/**
+	 * Gets the maximum number of runs of slow tasks of this agent that ran at
+	 * the same time.
+	 * 
+	 * @return the overlap
+	 */
+	public int getOverlap() {
+		return counter(OVERLAP).get();
+	}
+	
+	/**
+	 * Gets the counter of this agent.
+	 * 
+	 * @param counters
+	 *            the counters, by agent id
+	 * @return the counter
+	 */
+	private AtomicInteger counter(
+			final ConcurrentHashMap<String, AtomicInteger> counters) {
+		counters.putIfAbsent(getId(), new AtomicInteger(0));
+		return counters.get(getId());
+	}
+	
+	/**
+	 * Increment the run count.
+	 */
+	private void increment() {
 		Integer oldCnt = getState().get("runCount", Integer.class);
 		Integer newCnt = 1;
 		if (oldCnt != null) {
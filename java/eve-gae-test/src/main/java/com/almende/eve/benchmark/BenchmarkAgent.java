@@ -1,7 +1,12 @@
 package com.almende.eve.benchmark;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.almende.eve.agent.Agent;
 import com.almende.eve.agent.AgentHost;
@@ -22,6 +27,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  */
 @Access(AccessType.PUBLIC)
 public class BenchmarkAgent extends Agent {
+	private static final Logger LOG = Logger.getLogger(BenchmarkAgent.class
+			.getName());
+	
 	@Override
 	public void onCreate () {
 		getState().put("status", "none");
@@ -56,14 +64,16 @@ public class BenchmarkAgent extends Agent {
 		TransportService service = host.getTransportService("http");
 		
 		// create the required number of agents
+		List<String> ids = new ArrayList<String>(num);
 		for (int i = 0; i < num; i++) {
-			try {
-				String id = HelloAgent.numToAgentId(i, num);
-				host.createAgent(HelloAgent.class, id);
-			} catch (Exception e) {
-				e.printStackTrace();
-				// TODO: handle error
-			}
+			ids.add(HelloAgent.numToAgentId(i, num));
+		}
+		Map<String, Exception> failures = host.createAgents(HelloAgent.class,
+				ids, null);
+		for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+			// TODO: handle error
+			LOG.log(Level.WARNING, "Couldn't create agent " + failure.getKey(),
+					failure.getValue());
 		}
 		int pairs = num * (num - 1) / 2;
 		int messages = num * (num - 1);
@@ -17,6 +17,7 @@ import com.almende.eve.rpc.annotation.Access;
 import com.almende.eve.rpc.annotation.AccessType;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.scheduler.AbstractScheduler;
+import com.almende.eve.scheduler.OverlapPolicy;
 import com.almende.eve.scheduler.SchedulerFactory;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.TwigUtil;
@@ -58,6 +59,9 @@ public class GaeSchedulerFactory implements SchedulerFactory {
 	/**
 	 * AppEngineScheduler
 	 * A scheduler for a single agent.
+	 * 
+	 * Idempotency keys are not supported: a task created with a key is always
+	 * scheduled, even if a task with the same key is pending.
 	 *
 	 */
 	public class AppEngineScheduler extends AbstractScheduler {
@@ -80,6 +84,24 @@ public class GaeSchedulerFactory implements SchedulerFactory {
 		public String createTask(JSONRequest request, long delay) {
 			return createTask(request, delay, false, false);
 		}
+		/**
+		 * Schedule a task. The key is ignored: the task queue can't look up a
+		 * pending task by key, so tasks with the same key are not merged.
+		 * @param request   A JSONRequest with method and params
+		 * @param delay     The delay in milliseconds
+		 * @param interval   Should the task be repeated at an interval?
+		 * @param policy    What to do with the runs missed while running
+		 * @param key       The idempotency key, ignored
+		 * @param aligned   Run on the interval grid, not supported by the task queue
+		 * @return taskId
+		 */
+		@Override
+		public String createTask(JSONRequest request, long delay, boolean interval, OverlapPolicy policy, String key, boolean aligned) {
+			if (key != null) {
+				System.err.println("WARNING: idempotency keys are not supported by Eve on Google App Engine, scheduling a new task!");
+			}
+			return createTask(request, delay, interval, policy != OverlapPolicy.SKIP);
+		}
 		/**
 		 * Schedule a task
 		 * @param request   A JSONRequest with method and params
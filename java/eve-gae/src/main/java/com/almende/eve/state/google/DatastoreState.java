@@ -2,13 +2,19 @@ package com.almende.eve.state.google;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.almende.eve.state.AbstractState;
+import com.almende.eve.state.StatePoller;
+import com.almende.eve.state.StateVersions;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
 import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
@@ -31,6 +37,10 @@ import com.google.code.twig.annotation.AnnotationObjectDatastore;
  * During the lifetime of a DatastoreState, the state synchronized over all
  * running instances of the same DatastoreState using MemCache.
  * 
+ * The key versions are stored with the properties, under 
+ * {@link StateVersions#KEY}, so all instances share them. putIfVersion checks
+ * the version and writes in a single Datastore transaction.
+ * 
  * Usage:<br>
  *     AgentFactory factory = new AgentFactory(config);<br>
  *     DatastoreState state = 
@@ -41,10 +51,18 @@ import com.google.code.twig.annotation.AnnotationObjectDatastore;
  * @author jos
  */
 public class DatastoreState extends AbstractState<Serializable> {
+	private static final Logger LOG = Logger.getLogger(DatastoreState.class.getName());
 	private Map<String, Serializable> properties = new ConcurrentHashMap<String, Serializable>();
 	private MemcacheService cache = MemcacheServiceFactory.getMemcacheService();
 	private IdentifiableValue cacheValue = null;
 	private boolean isChanged = false;
+	private Map<String, Long> known = null;
+	private final Runnable poll = new Runnable() {
+		@Override
+		public void run() {
+			refresh();
+		}
+	};
 	
 	public DatastoreState() {}
 
@@ -189,20 +207,13 @@ public class DatastoreState extends AbstractState<Serializable> {
 	 * @throws ClassNotFoundException 
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
 	private boolean loadFromDatastore () {
 		try {
 			ObjectDatastore datastore = new AnnotationObjectDatastore();
 			KeyValue entity = datastore.load(KeyValue.class, getAgentId());
 			
-			@SuppressWarnings("rawtypes")
-			Class<? extends HashMap> MAP_OBJECT_CLASS = 
-				(new HashMap<String, Serializable>()).getClass();
-			
 			if (entity != null) {
-				// TODO: can this be simplified with the following?:
-				//       Map<String, Object> newProperties = entity.getValue(Map.class);
-				Map<String, Serializable> newProperties = entity.getValue(MAP_OBJECT_CLASS);
+				Map<String, Serializable> newProperties = getValue(entity);
 				if (newProperties != null) {
 					properties = newProperties;
 				}
@@ -218,6 +229,21 @@ public class DatastoreState extends AbstractState<Serializable> {
 		return false;
 	}
 	
+	/**
+	 * Get the properties stored in the given entity
+	 * @param entity
+	 * @return properties
+	 * @throws IOException 
+	 * @throws ClassNotFoundException 
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Serializable> getValue(KeyValue entity)
+			throws ClassNotFoundException, IOException {
+		// TODO: can this be simplified with the following?:
+		//       Map<String, Object> newProperties = entity.getValue(Map.class);
+		return entity.getValue(HashMap.class);
+	}
+	
 	/**
 	 * Write the properties to the datastore when they are changed
 	 * @param entity
@@ -289,70 +315,250 @@ public class DatastoreState extends AbstractState<Serializable> {
 	@Override
 	public Serializable get(String key) {
 		load();
-		return properties.get(key);
+		return StateVersions.KEY.equals(key) ? null : properties.get(key);
 	}
 
 	@Override
-	public Serializable locPut(String key, Serializable value) {
+	public synchronized Serializable locPut(String key, Serializable value) {
 		load();
 		Serializable ret = properties.put(key, value);
+		Versions.changed(properties, key);
 		boolean success = save();
 		if (!success) {
 			ret = null;
 		}
+		fireChanges();
 		return ret;
 	}
 
+	@Override
+	public Map<String, Object> getAll() {
+		load();
+		Map<String, Object> result = new HashMap<String, Object>(properties);
+		result.remove(StateVersions.KEY);
+		return result;
+	}
+
 	@Override
 	public boolean containsKey(String key) {
 		load();
-		return properties.containsKey(key);
+		return !StateVersions.KEY.equals(key) && properties.containsKey(key);
 	}
 
 	@Override
-	public Serializable remove(String key) {
+	public synchronized Serializable remove(String key) {
 		load();
 		Serializable value = properties.remove(key);
+		Versions.removed(properties);
 		save();
+		fireChanges();
+		removeExpiry(key);
 		return value;
 	}
 
 	@Override
-	public void clear() {
+	public synchronized void clear() {
 		load();
 		String agentType = (String) properties.get(KEY_AGENT_TYPE);
+		Serializable versions = properties.get(StateVersions.KEY);
 		properties.clear();
 		properties.put(KEY_AGENT_TYPE, agentType);
+		// keep the versions, so a recreated key gets a new version
+		if (versions != null) {
+			properties.put(StateVersions.KEY, versions);
+			Versions.removed(properties);
+		}
 		save();
+		fireChanges();
 	}
 
 	public boolean isEmpty() {
-		load();
-		return properties.isEmpty();
+		return keySet().isEmpty();
 	}
 
 	@Override
 	public Set<String> keySet() {
 		load();
-		return new HashSet<String>(properties.keySet());
+		return StateVersions.strip(new HashSet<String>(properties.keySet()));
 	}
 
 	@Override
-	public boolean locPutIfUnchanged(String key, Serializable newVal, Serializable oldVal) {
+	public synchronized boolean locPutIfUnchanged(String key, Serializable newVal, Serializable oldVal) {
 		boolean result=false;
 		load();
 		if ((oldVal == null && properties.containsKey(key)) || properties.get(key).equals(oldVal)){
 			properties.put(key,newVal);
+			Versions.changed(properties, key);
 			save();
+			fireChanges();
 			result=true;
 		}
 		return result;
 	}
 	
+	/**
+	 * Check the version and write the value in a single Datastore 
+	 * transaction. The change is applied to the stored properties read in
+	 * the transaction, and memcache is updated afterwards.
+	 */
 	@Override
-	public int size() {
+	public synchronized boolean putIfVersion(String key, Object value, long version) {
+		if (value != null && !(value instanceof Serializable)) {
+			throw new IllegalArgumentException("Can't store value that is not Serializable.");
+		}
+		ObjectDatastore datastore = new AnnotationObjectDatastore();
+		while (true) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				KeyValue entity = datastore.load(KeyValue.class, getAgentId());
+				Map<String, Serializable> stored = new HashMap<String, Serializable>();
+				if (entity != null && getValue(entity) != null) {
+					stored.putAll(getValue(entity));
+				}
+				if (Versions.get(stored, key) != version) {
+					txn.rollback();
+					properties = stored;
+					return false;
+				}
+				if (value == null) {
+					if (!stored.containsKey(key)) {
+						txn.rollback();
+						return true;
+					}
+					stored.remove(key);
+					Versions.removed(stored);
+				} else {
+					stored.put(key, (Serializable) value);
+					Versions.changed(stored, key);
+				}
+				if (entity != null) {
+					entity.setValue(stored);
+					datastore.update(entity);
+				} else {
+					datastore.store(new KeyValue(getAgentId(), stored));
+				}
+				txn.commit();
+				
+				properties = stored;
+				cache.put(getAgentId(), stored);
+				cacheValue = null;
+				fireChanges();
+				return true;
+			} catch (ConcurrentModificationException e) {
+				// written by another instance: check the version again
+			} catch (Exception e) {
+				LOG.log(Level.WARNING, "putIfVersion failed", e);
+				return false;
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+	
+	@Override
+	public synchronized long getVersion(String key) {
+		load();
+		return Versions.get(properties, key);
+	}
+	
+	@Override
+	protected synchronized Map<String, Long> getVersions() {
 		load();
-		return properties.size();
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (String key : keySet()) {
+			result.put(key, Versions.get(properties, key));
+		}
+		return result;
+	}
+	
+	@Override
+	protected synchronized void startWatching() {
+		known = getVersions();
+		StatePoller.register(poll);
+	}
+	
+	@Override
+	protected synchronized void stopWatching() {
+		StatePoller.unregister(poll);
+		known = null;
+	}
+	
+	/**
+	 * Load the state again, and notify the keys changed by other instances.
+	 */
+	private synchronized void refresh() {
+		if (known != null) {
+			fireChanges();
+		}
+	}
+	
+	/**
+	 * Notify the keys whose version changed since the last notification,
+	 * while the state is watched.
+	 */
+	private void fireChanges() {
+		Map<String, Long> previous = known;
+		if (previous != null) {
+			known = getVersions();
+			fireChanges(previous, known);
+		}
+	}
+	
+	@Override
+	public int size() {
+		return keySet().size();
+	}
+	
+	/**
+	 * The versions of the keys, stored in the properties under
+	 * {@link StateVersions#KEY}. The clock only increases, also when keys
+	 * are removed, so a recreated key never gets an old version back.
+	 */
+	private static final class Versions implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private long clock = 0;
+		private final HashMap<String, Long> keys = new HashMap<String, Long>();
+		
+		/**
+		 * Get the version of the given key
+		 * @param properties
+		 * @param key
+		 * @return version, 0 if the key has no version
+		 */
+		private static long get(Map<String, Serializable> properties, String key) {
+			Serializable versions = properties.get(StateVersions.KEY);
+			if (!(versions instanceof Versions)) {
+				return 0;
+			}
+			Long version = ((Versions) versions).keys.get(key);
+			return version == null ? 0 : version;
+		}
+		
+		/**
+		 * Give the given key a new version
+		 * @param properties
+		 * @param key
+		 */
+		private static void changed(Map<String, Serializable> properties, String key) {
+			Serializable current = properties.get(StateVersions.KEY);
+			Versions versions = current instanceof Versions ? (Versions) current : new Versions();
+			versions.clock++;
+			versions.keys.put(key, versions.clock);
+			properties.put(StateVersions.KEY, versions);
+		}
+		
+		/**
+		 * Drop the versions of all keys that are no longer in the properties
+		 * @param properties
+		 */
+		private static void removed(Map<String, Serializable> properties) {
+			Serializable current = properties.get(StateVersions.KEY);
+			if (current instanceof Versions) {
+				((Versions) current).keys.keySet().retainAll(properties.keySet());
+			}
+		}
 	}
 }
 
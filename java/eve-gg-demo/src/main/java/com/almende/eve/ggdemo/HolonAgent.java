@@ -19,6 +19,9 @@ import com.almende.eve.rpc.annotation.Sender;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.State;
+import com.almende.eve.state.TypedKey;
+import com.almende.eve.state.Versioned;
 import com.almende.util.TypeUtil;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -29,6 +32,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 @Access(AccessType.PUBLIC)
 @ThreadSafe(true)
 public class HolonAgent extends Agent implements LampAgent {
+	private static final TypedKey<Boolean>	LAMP	= new TypedKey<Boolean>("lamp") {
+															};
 	private Set<String>								neighbours	= null;
 	private static final TypeUtil<ArrayList<Sub>>	type		= new TypeUtil<ArrayList<Sub>>() {
 																};
@@ -48,7 +53,7 @@ public class HolonAgent extends Agent implements LampAgent {
 		}
 		getState().put("stepSize", stepSize);
 		
-		String taskId = getScheduler().createTask(new JSONRequest("checkMerge", null), (int)Math.random() * 1500);
+		String taskId = getScheduler().createTask(new JSONRequest("checkMerge", null), (int) (Math.random() * 1500), "checkMerge");
 		System.out.println(getId()+ ": schedulertask created:"+taskId + " --> "+getScheduler());
 	}
 	
@@ -79,12 +84,13 @@ public class HolonAgent extends Agent implements LampAgent {
 	 * @see com.almende.eve.ggdemo.LampAgent#isOnBlock()
 	 */
 	public boolean isOnBlock() throws InterruptedException {
-		Boolean isOn = getState().get("lamp", Boolean.class);
-		while (isOn == null) {
-			Thread.sleep(1000);
-			isOn = getState().get("lamp", Boolean.class);
+		final State state = getState();
+		Versioned<Boolean> isOn = state.getVersioned(LAMP);
+		while (isOn.getValue() == null) {
+			state.awaitChange(LAMP.getKey(), isOn.getVersion(), 60000);
+			isOn = state.getVersioned(LAMP);
 		}
-		return isOn;
+		return isOn.getValue();
 	}
 	
 	/* (non-Javadoc)
@@ -141,13 +147,13 @@ public class HolonAgent extends Agent implements LampAgent {
 				if (!res){
 					getState().remove("parent");
 					getScheduler().createTask(new JSONRequest("checkMerge", null),
-							(int)Math.random() * 500);
+							(int) (Math.random() * 500), "checkMerge");
 				} else {
 					System.out.println(getId() + ": Merged with "+neighbour);	
 				}
 			} catch (Exception e) {
 				getScheduler().createTask(new JSONRequest("checkMerge", null),
-						(int)Math.random() * 500);
+						(int) (Math.random() * 500), "checkMerge");
 			}
 		}
 	}
@@ -198,7 +204,7 @@ public class HolonAgent extends Agent implements LampAgent {
 		if (!getState().putIfUnchanged("subs", subs, oldsubs)) {
 			merge(size, sender);
 		}
-		getScheduler().createTask(new JSONRequest("checkMerge", null), 0);
+		getScheduler().createTask(new JSONRequest("checkMerge", null), 0, "checkMerge");
 		return true;
 	}
 	
@@ -16,6 +16,9 @@ import com.almende.eve.rpc.annotation.Name;
 import com.almende.eve.rpc.annotation.Sender;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.State;
+import com.almende.eve.state.TypedKey;
+import com.almende.eve.state.Versioned;
 import com.almende.util.TypeUtil;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -26,6 +29,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 @Access(AccessType.PUBLIC)
 @ThreadSafe(true)
 public class LinPathAgent extends Agent implements LampAgent  {
+	private static final TypedKey<Boolean>	LAMP	= new TypedKey<Boolean>("lamp") {
+															};
 	private ArrayList<String>	neighbours	= null;
 	
 	/* (non-Javadoc)
@@ -66,13 +71,14 @@ public class LinPathAgent extends Agent implements LampAgent  {
 	/* (non-Javadoc)
 	 * @see com.almende.eve.ggdemo.LampAgent#isOnBlock()
 	 */
-	public boolean isOnBlock() throws InterruptedException{
-		Boolean isOn = getState().get("lamp", Boolean.class);
-		while (isOn == null){
-			Thread.sleep(1000);
-			isOn = getState().get("lamp", Boolean.class);	
+	public boolean isOnBlock() throws InterruptedException {
+		final State state = getState();
+		Versioned<Boolean> isOn = state.getVersioned(LAMP);
+		while (isOn.getValue() == null) {
+			state.awaitChange(LAMP.getKey(), isOn.getVersion(), 60000);
+			isOn = state.getVersioned(LAMP);
 		}
-		return isOn;
+		return isOn.getValue();
 	}
 	
 	/* (non-Javadoc)
@@ -28,7 +28,11 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 @Access(AccessType.PUBLIC)
 @ThreadSafe(true)
 public class Cell extends Agent {
-	private ArrayList<String>	neighbors	= null;
+	/** Received neighbor states are consumed within a cycle. */
+	private static final long	NEIGHBOR_TTL	= 60000;
+	/** Own cycle states are kept a while, for getAllCycleStates. */
+	private static final long	HISTORY_TTL		= 600000;
+	private ArrayList<String>	neighbors		= null;
 	
 	/**
 	 * Creates the.
@@ -213,7 +217,7 @@ public class Cell extends Agent {
 					public void onSuccess(CycleState state) {
 						if (state != null) {
 							getState().put(neighborId + "_" + state.getCycle(),
-									state);
+									state, NEIGHBOR_TTL);
 							try {
 								calcCycle(false);
 							} catch (URISyntaxException e) {
@@ -245,7 +249,8 @@ public class Cell extends Agent {
 		}
 		CycleState state = new CycleState(cycle, alive);
 //		System.out.println(getId()+": Received state:" + state + " from:" + neighborNo);
-		getState().put(neighborNo + "_" + state.getCycle(), state);
+		getState().put(neighborNo + "_" + state.getCycle(), state,
+				NEIGHBOR_TTL);
 		try {
 			calcCycle(true);
 		} catch (URISyntaxException e) {
@@ -291,8 +296,9 @@ public class Cell extends Agent {
 			} else {
 				newState = new CycleState(currentCycle, myState.isAlive());
 			}
-			if (getState()
-					.putIfUnchanged("val_" + currentCycle, newState, null)) {
+			// Claim the cycle and set its expiry in a single write.
+			if (getState().putIfVersion("val_" + currentCycle, newState, 0,
+					HISTORY_TTL)) {
 //				System.out.println(getId()+" :"+newState);
 				getState().put("current_cycle", currentCycle + 1);
 				if (getState().get("Stopped", Boolean.class)) {
@@ -348,16 +354,19 @@ public class Cell extends Agent {
 	}
 	
 	/**
-	 * Gets the all cycle states.
+	 * Gets the all cycle states, as far as they haven't expired yet.
 	 * 
 	 * @return the all cycle states
 	 */
 	public ArrayList<CycleState> getAllCycleStates() {
 		ArrayList<CycleState> result = new ArrayList<CycleState>();
-		int count = 0;
-		while (getState().containsKey("val_" + count)) {
-			result.add(getState().get("val_" + count, CycleState.class));
-			count++;
+		Integer current = getState().get("current_cycle", Integer.class);
+		int count = current == null ? -1 : current - 1;
+		CycleState state = null;
+		while (count >= 0
+				&& (state = getState().get("val_" + count, CycleState.class)) != null) {
+			result.add(0, state);
+			count--;
 		}
 		return result;
 	}
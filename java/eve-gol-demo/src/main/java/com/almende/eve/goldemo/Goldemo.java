@@ -11,6 +11,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
@@ -94,6 +96,7 @@ public class Goldemo {
 		
 		int cN = 0;
 		int no = 0;
+		List<Boolean> alive = new ArrayList<Boolean>(N * M);
 		while ((input = br.readLine()) != null && cN < N) {
 			String trimmedInput = input.trim();
 			if (trimmedInput.isEmpty()) break;
@@ -101,10 +104,7 @@ public class Goldemo {
 					"Incorrect input line detected:" + input);
 			for (int cM = 0; cM < M; cM++) {
 				if (NEW) {
-					String agentId = AGENTPREFIX + no++;
-					Cell cell = host.createAgent(Cell.class, agentId);
-					cell.new_create(PATHodd, PATHeven,
-							(trimmedInput.charAt(cM) == '+'), M * N);
+					alive.add(trimmedInput.charAt(cM) == '+');
 				} else {
 					createAgent(host, N, M, cN, cM,
 							(trimmedInput.charAt(cM) == '+'));
@@ -112,6 +112,25 @@ public class Goldemo {
 			}
 			cN++;
 		}
+		if (NEW) {
+			// Create all cells in one batch, then set them up.
+			List<String> ids = new ArrayList<String>(alive.size());
+			for (no = 0; no < alive.size(); no++) {
+				ids.add(AGENTPREFIX + no);
+			}
+			Map<String, Exception> failures = host.createAgents(Cell.class,
+					ids, null);
+			if (!failures.isEmpty()) {
+				throw new IllegalStateException("Couldn't create "
+						+ failures.size() + " cells, e.g. "
+						+ failures.keySet().iterator().next(), failures
+						.values().iterator().next());
+			}
+			for (no = 0; no < alive.size(); no++) {
+				Cell cell = (Cell) host.getAgent(AGENTPREFIX + no);
+				cell.new_create(PATHodd, PATHeven, alive.get(no), M * N);
+			}
+		}
 		if (NEW) {
 			for (no = 0; no < (N * M); no=no+2) {
 				Cell cell = (Cell) host.getAgent(AGENTPREFIX + no);
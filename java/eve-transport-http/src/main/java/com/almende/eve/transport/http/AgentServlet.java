@@ -25,6 +25,7 @@ import com.almende.eve.agent.AgentSignal;
 import com.almende.eve.agent.callback.AsyncCallbackQueue;
 import com.almende.eve.agent.callback.SyncCallback;
 import com.almende.eve.config.Config;
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.util.StreamingUtil;
 import com.almende.util.StringUtil;
@@ -350,8 +351,15 @@ public class AgentServlet extends HttpServlet {
 			final HttpServletResponse resp) throws IOException,
 			ServletException {
 		
-		// retrieve the agent url and the request body
-		final String body = StringUtil.streamToString(req.getInputStream());
+		// retrieve the agent url and the request body, binary encoded
+		// requests are passed on as byte[]
+		final Codec codec = Codec.forContentType(req.getContentType());
+		Object body = null;
+		if (codec.isBinary()) {
+			body = StreamingUtil.streamToBytes(req.getInputStream());
+		} else {
+			body = StringUtil.streamToString(req.getInputStream());
+		}
 		
 		final String agentUrl = req.getRequestURI();
 		String agentId;
@@ -383,24 +391,36 @@ public class AgentServlet extends HttpServlet {
 		}
 		final String tag = new UUID().toString();
 		
-		final SyncCallback<String> callback = new SyncCallback<String>();
+		final SyncCallback<Object> callback = new SyncCallback<Object>();
 		
-		final AsyncCallbackQueue<String> callbacks = host.getCallbackQueue(
-				"HttpTransport", String.class);
+		final AsyncCallbackQueue<Object> callbacks = host.getCallbackQueue(
+				"HttpTransport", Object.class);
 		callbacks.push(tag, "", callback);
-		//TODO: check if it's base64 encoded data, decode to byte[] and call receive byte[].
-		host.receive(agentId, body, URI.create(senderUrl), tag);
-		
+		httpTransport.registerRequest(tag, URI.create(senderUrl), codec,
+				req.getHeader(HttpService.CODECS));
 		try {
+			//TODO: check if it's base64 encoded data, decode to byte[] and call receive byte[].
+			host.receive(agentId, body, URI.create(senderUrl), tag);
 			final Object message = callback.get();
 			// return response
-			resp.addHeader("Content-Type", "application/json");
-			resp.getWriter().println(message.toString());
-			resp.getWriter().close();
+			resp.addHeader(HttpService.CODECS, Codec.getNames());
+			if (message instanceof byte[]) {
+				final byte[] bytes = (byte[]) message;
+				resp.addHeader("Content-Type", Codec.detect(bytes)
+						.getContentType());
+				resp.getOutputStream().write(bytes);
+				resp.getOutputStream().close();
+			} else {
+				resp.addHeader("Content-Type", "application/json");
+				resp.getWriter().println(message.toString());
+				resp.getWriter().close();
+			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Http Sync receive raised exception.", e);
 			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 					"Receiver raised exception:" + e.getMessage());
+		} finally {
+			httpTransport.releaseRequest(tag);
 		}
 		resp.flushBuffer();
 	}
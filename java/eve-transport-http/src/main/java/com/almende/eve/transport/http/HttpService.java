@@ -14,33 +14,47 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.Header;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
 
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.callback.AsyncCallback;
 import com.almende.eve.agent.callback.AsyncCallbackQueue;
-import com.almende.eve.transport.TransportService;
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.almende.eve.transport.EncodingTransportService;
 import com.almende.util.ClassUtil;
 import com.almende.util.tokens.TokenStore;
 
 /**
  * The Class HttpService.
+ * 
+ * Messages are sent as text JSON, unless the "codec" parameter selects a
+ * binary encoding (e.g. "smile") and the receiving side has advertised
+ * support for it. Both sides advertise the codecs they can read through the
+ * "X-Eve-Codecs" header, on requests as well as on responses.
  */
-public class HttpService implements TransportService {
-	private static final Logger	LOG			= Logger.getLogger(HttpService.class
-													.getCanonicalName());
-	private String				servletUrl	= null;
-	private AgentHost			host		= null;
-	private final List<String>	protocols	= Arrays.asList("http", "https",
-													"web");
+public class HttpService implements EncodingTransportService {
+	/** Header listing the codecs the sender can read. */
+	public static final String			CODECS		= "X-Eve-Codecs";
+	private static final Logger			LOG			= Logger.getLogger(HttpService.class
+															.getCanonicalName());
+	private String						servletUrl	= null;
+	private AgentHost					host		= null;
+	private final List<String>			protocols	= Arrays.asList("http",
+															"https", "web");
+	private Codec						codec		= Codec.JSON;
+	private final Map<String, String>	peerCodecs	= new ConcurrentHashMap<String, String>();
+	private final Map<String, Codec>	replyCodecs	= new ConcurrentHashMap<String, Codec>();
 	
 	/**
 	 * Instantiates a new http service.
@@ -59,13 +73,16 @@ public class HttpService implements TransportService {
 	 * @param agentHost
 	 *            the agent host
 	 * @param params
-	 *            Available parameters: {String} servlet_url
+	 *            Available parameters: {String} servlet_url, {String} codec
 	 */
 	public HttpService(final AgentHost agentHost,
 			final Map<String, Object> params) {
 		host = agentHost;
 		if (params != null) {
 			setServletUrl((String) params.get("servlet_url"));
+			if (params.get("codec") != null) {
+				codec = Codec.forName((String) params.get("codec"));
+			}
 			if (params.get("servlet_launcher") != null) {
 				String className = (String) params.get("servlet_launcher");
 				if (className.equals("JettyLauncher")) {
@@ -160,8 +177,12 @@ public class HttpService implements TransportService {
 	@Override
 	public void sendAsync(URI senderUri, URI receiverUri, byte[] message,
 			String tag) throws IOException {
-		sendAsync(senderUri, receiverUri, Base64.encodeBase64String(message),
-				tag);
+		if (Codec.detect(message).isBinary()) {
+			send(senderUri, receiverUri, message, tag);
+		} else {
+			send(senderUri, receiverUri, Base64.encodeBase64String(message),
+					tag);
+		}
 	}
 	
 	/**
@@ -181,6 +202,23 @@ public class HttpService implements TransportService {
 	@Override
 	public void sendAsync(final URI senderUrl, final URI receiverUrl,
 			final String message, final String tag) throws IOException {
+		send(senderUrl, receiverUrl, message, tag);
+	}
+	
+	/**
+	 * Send a message, either a String or an encoded byte[], via HTTP.
+	 * 
+	 * @param senderUrl
+	 *            the sender url
+	 * @param receiverUrl
+	 *            the receiver url
+	 * @param message
+	 *            the message
+	 * @param tag
+	 *            the tag
+	 */
+	private void send(final URI senderUrl, final URI receiverUrl,
+			final Object message, final String tag) {
 		
 		host.getPool().execute(new Runnable() {
 			
@@ -193,10 +231,10 @@ public class HttpService implements TransportService {
 						// This is a reply to a synchronous inbound call, get
 						// callback
 						// and use it to send the message
-						final AsyncCallbackQueue<String> callbacks = host
-								.getCallbackQueue("HttpTransport", String.class);
+						final AsyncCallbackQueue<Object> callbacks = host
+								.getCallbackQueue("HttpTransport", Object.class);
 						if (callbacks != null) {
-							final AsyncCallback<String> callback = callbacks
+							final AsyncCallback<Object> callback = callbacks
 									.pull(tag);
 							if (callback != null) {
 								callback.onSuccess(message);
@@ -213,19 +251,39 @@ public class HttpService implements TransportService {
 					}
 					httpPost = new HttpPost(receiverUrl);
 					// invoke via Apache HttpClient request:
-					httpPost.setEntity(new StringEntity(message));
+					if (message instanceof byte[]) {
+						final byte[] body = (byte[]) message;
+						httpPost.setEntity(new ByteArrayEntity(body));
+						httpPost.addHeader("Content-Type", Codec.detect(body)
+								.getContentType());
+					} else {
+						httpPost.setEntity(new StringEntity((String) message));
+					}
 					
 					// Add token for HTTP handshake
 					httpPost.addHeader("X-Eve-Token", TokenStore.create()
 							.toString());
 					httpPost.addHeader("X-Eve-SenderUrl", senderUrl.toString());
+					httpPost.addHeader(CODECS, Codec.getNames());
 					final HttpResponse webResp = ApacheHttpClient.get()
 							.execute(httpPost);
-					final String result = EntityUtils.toString(webResp
-							.getEntity());
+					final Header codecs = webResp.getFirstHeader(CODECS);
+					if (codecs != null) {
+						setPeerCodecs(receiverUrl, codecs.getValue());
+					}
+					final Header contentType = webResp.getEntity()
+							.getContentType();
+					final Object result;
+					if (contentType != null
+							&& Codec.forContentType(contentType.getValue())
+									.isBinary()) {
+						result = EntityUtils.toByteArray(webResp.getEntity());
+					} else {
+						result = EntityUtils.toString(webResp.getEntity());
+					}
 					if (webResp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
 						LOG.warning("Received HTTP Error Status:"+webResp.getStatusLine().getStatusCode()+":"+webResp.getStatusLine().getReasonPhrase());
-						LOG.warning(result);
+						LOG.warning(result.toString());
 					} else {
 						host.receive(getAgentId(senderUrl), result,
 								receiverUrl, null);
@@ -242,6 +300,77 @@ public class HttpService implements TransportService {
 		});
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.transport.EncodingTransportService#getCodec(java.net.URI,
+	 * java.lang.String)
+	 */
+	@Override
+	public Codec getCodec(final URI receiverUri, final String tag) {
+		if (tag != null) {
+			final Codec result = replyCodecs.get(tag);
+			return result != null ? result : Codec.JSON;
+		}
+		if (codec.isBinary()
+				&& codec.isIn(peerCodecs.get(getDomain(receiverUri.toString())))) {
+			return codec;
+		}
+		return Codec.JSON;
+	}
+	
+	/**
+	 * Remember the codecs a peer has advertised.
+	 * 
+	 * @param peerUrl
+	 *            the peer url
+	 * @param codecs
+	 *            the codec names, comma separated
+	 */
+	void setPeerCodecs(final URI peerUrl, final String codecs) {
+		final String domain = getDomain(peerUrl.toString());
+		if (!domain.equals("") && codecs != null) {
+			peerCodecs.put(domain, codecs);
+		}
+	}
+	
+	/**
+	 * Register an incoming request, to determine the encoding of its reply: a
+	 * binary request gets a reply in the same encoding, a text request gets a
+	 * reply in the configured codec if the sender advertised it.
+	 * 
+	 * @param tag
+	 *            the tag
+	 * @param senderUrl
+	 *            the sender url
+	 * @param requestCodec
+	 *            the encoding of the request
+	 * @param codecs
+	 *            the codecs advertised by the sender, may be null
+	 */
+	void registerRequest(final String tag, final URI senderUrl,
+			final Codec requestCodec, final String codecs) {
+		setPeerCodecs(senderUrl, codecs);
+		if (requestCodec.isBinary()) {
+			replyCodecs.put(tag, requestCodec);
+		} else if (codec.isBinary() && codec.isIn(codecs)) {
+			replyCodecs.put(tag, codec);
+		}
+	}
+	
+	/**
+	 * Forget an incoming request registered by
+	 * {@link #registerRequest(String, URI, Codec, String)}, once it is
+	 * answered or has failed.
+	 * 
+	 * @param tag
+	 *            the tag
+	 */
+	void releaseRequest(final String tag) {
+		replyCodecs.remove(tag);
+	}
+	
 	/**
 	 * Get the url of an agent from its id.
 	 * 
@@ -374,6 +503,7 @@ public class HttpService implements TransportService {
 		data.put("class", this.getClass().getName());
 		data.put("servlet_url", servletUrl);
 		data.put("protocols", protocols);
+		data.put("codec", codec.getName());
 		return data.toString();
 	}
 	
@@ -4,6 +4,7 @@
  */
 package com.almende.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -69,6 +70,26 @@ public final class StreamingUtil {
 		}
 	}
 	
+	/**
+	 * Read an input stream completely.
+	 * 
+	 * @param inputStream
+	 *            the input stream
+	 * @return the bytes
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public static byte[] streamToBytes(final InputStream inputStream)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buff = new byte[4096];
+		int bytesRead;
+		while (-1 != (bytesRead = inputStream.read(buff, 0, buff.length))) {
+			out.write(buff, 0, bytesRead);
+		}
+		return out.toByteArray();
+	}
+	
 	/*
 	 * Retrieve the mimetype for a file extension
 	 * 
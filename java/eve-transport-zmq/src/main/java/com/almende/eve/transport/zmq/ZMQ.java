@@ -25,6 +25,15 @@ public class ZMQ extends org.zeromq.ZMQ {
 															.valueOf(2)
 															.byteValue() };
 	
+	/** Mask of the message type bits in the type frame. */
+	public static final byte	TYPE_MASK			= 0x0F;
+	
+	/** Flag on NORMAL frames: the body is binary encoded (e.g. Smile). */
+	public static final byte	BINARY				= 0x10;
+	
+	/** Flag on NORMAL frames: the sender can read binary encoded bodies. */
+	public static final byte	ACCEPTS_BINARY		= 0x20;
+	
 	/**
 	 * Gets the single instance of ZMQ.
 	 *
@@ -212,23 +212,25 @@ public class ZmqConnection {
 			NoSuchMethodException, IOException, URISyntaxException {
 		
 		// Receive
-		// ZMQ.NORMAL|senderUrl|tokenJson|body
+		// ZMQ.NORMAL(+flags)|senderUrl|tokenJson|body
 		// ZMQ.HANDSHAKE|senderUrl|tokenJson|timestamp
 		// ZMQ.HANDSHAKE_RESPONSE|senderUrl|tokenJson|null
 		
+		final byte flags = msg[0].array()[0];
+		final byte[] type = new byte[] { (byte) (flags & ZMQ.TYPE_MASK) };
 		final URI senderUrl = new URI(new String(msg[1].array()));
 		final TokenRet token = JOM.getInstance().readValue(msg[2].array(),
 				TokenRet.class);
 		final String body = new String(msg[3].array());
 		final String key = senderUrl + ":" + token.getToken();
 		
-		if (Arrays.equals(msg[0].array(), ZMQ.HANDSHAKE)) {
+		if (Arrays.equals(type, ZMQ.HANDSHAKE)) {
 			// Reply token corresponding to timestamp.
 			final String res = TokenStore.get(body);
 			service.sendAsync(ZMQ.HANDSHAKE_RESPONSE, res, zmqUrl, senderUrl,
 					res.getBytes(), null);
 			return;
-		} else if (Arrays.equals(msg[0].array(), ZMQ.HANDSHAKE_RESPONSE)) {
+		} else if (Arrays.equals(type, ZMQ.HANDSHAKE_RESPONSE)) {
 			// post response to callback for handling by other thread
 			final AsyncCallbackQueue<String> callbacks = host.getCallbackQueue(
 					"zmqHandshakes", String.class);
@@ -266,9 +268,16 @@ public class ZmqConnection {
 			}
 		}
 		
+		if ((flags & ZMQ.ACCEPTS_BINARY) != 0) {
+			service.addBinaryPeer(senderUrl);
+		}
 		if (body != null) {
 			try {
-				host.receive(agentId, body, senderUrl, null);
+				if ((flags & ZMQ.BINARY) != 0) {
+					host.receive(agentId, msg[3].array(), senderUrl, null);
+				} else {
+					host.receive(agentId, body, senderUrl, null);
+				}
 			} catch (final IOException e) {
 				LOG.log(Level.WARNING,
 						"Host threw an IOException, probably agent '" + agentId
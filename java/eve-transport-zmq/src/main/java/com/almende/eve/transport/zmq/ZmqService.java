@@ -8,28 +8,40 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.zeromq.ZMQ.Socket;
 
 import com.almende.eve.agent.AgentHost;
-import com.almende.eve.transport.TransportService;
+import com.almende.eve.rpc.jsonrpc.jackson.Codec;
+import com.almende.eve.transport.EncodingTransportService;
 import com.almende.util.tokens.TokenStore;
 
 /**
  * The Class ZmqService.
+ * 
+ * Messages are sent as text JSON, unless the "codec" parameter selects a
+ * binary encoding (e.g. "smile") and the receiving agent has advertised
+ * support for it, through the ZMQ.ACCEPTS_BINARY flag in the type frame of
+ * its messages.
  */
-public class ZmqService implements TransportService {
+public class ZmqService implements EncodingTransportService {
 	private static final Logger				LOG				= Logger.getLogger(ZmqService.class
 																	.getCanonicalName());
 	private AgentHost						host			= null;
 	private String							baseUrl			= "";
+	private Codec							codec			= Codec.JSON;
 	private final Map<String, ZmqConnection>	inboundSockets	= new HashMap<String, ZmqConnection>();
+	private final Set<String>				binaryPeers		= Collections
+																	.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 	protected ZmqService() {
 	}
 	
@@ -42,6 +54,7 @@ public class ZmqService implements TransportService {
 	 * @param params Available parameters:
 	 * {String} baseUrl
 	 * {Integer} basePort
+	 * {String} codec
 	 */
 	public ZmqService(final AgentHost agentHost, final Map<String, Object> params) {
 		host = agentHost;
@@ -49,6 +62,9 @@ public class ZmqService implements TransportService {
 		if (params != null) {
 			baseUrl = (String) params.get("baseUrl");
 			baseUrl = baseUrl.replaceAll("(.*:[0-9]+).*$", "$1");
+			if (params.get("codec") != null) {
+				codec = Codec.forName((String) params.get("codec"));
+			}
 		}
 		
 	}
@@ -119,7 +135,7 @@ public class ZmqService implements TransportService {
 	@Override
 	public void sendAsync(final URI senderUrl, final URI receiverUrl,
 			final String message, final String tag) {
-		sendAsync(ZMQ.NORMAL, TokenStore.create().toString(), senderUrl,
+		sendAsync(normal(false), TokenStore.create().toString(), senderUrl,
 				receiverUrl, message.getBytes(), tag);
 	}
 	
@@ -129,8 +145,40 @@ public class ZmqService implements TransportService {
 	@Override
 	public void sendAsync(final URI senderUrl, final URI receiverUrl,
 			final byte[] message, final String tag) {
-		sendAsync(ZMQ.NORMAL, TokenStore.create().toString(), senderUrl,
-				receiverUrl, message, tag);
+		sendAsync(normal(Codec.detect(message).isBinary()), TokenStore
+				.create().toString(), senderUrl, receiverUrl, message, tag);
+	}
+	
+	/**
+	 * Type frame of a NORMAL message, advertising that we can read binary
+	 * bodies.
+	 *
+	 * @param binary the body is binary encoded
+	 * @return the type frame
+	 */
+	private byte[] normal(final boolean binary) {
+		return new byte[] { (byte) (ZMQ.NORMAL[0] | ZMQ.ACCEPTS_BINARY | (binary ? ZMQ.BINARY
+				: 0)) };
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.almende.eve.transport.EncodingTransportService#getCodec(java.net.URI, java.lang.String)
+	 */
+	@Override
+	public Codec getCodec(final URI receiverUri, final String tag) {
+		if (codec.isBinary() && binaryPeers.contains(receiverUri.toString())) {
+			return codec;
+		}
+		return Codec.JSON;
+	}
+	
+	/**
+	 * Remember that the given peer can read binary encoded bodies.
+	 *
+	 * @param peerUrl the peer url
+	 */
+	void addBinaryPeer(final URI peerUrl) {
+		binaryPeers.add(peerUrl.toString());
 	}
 	
 	/* (non-Javadoc)